@@ -0,0 +1,118 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+
+/**
+ * Writing and reading the bodies of bytes and stream messages: a mix of ints,
+ * longs, doubles and short strings, followed by a block of bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BodyBenchmark {
+	@Param({ "100" })
+	public int fields;
+
+	@Param({ "1024" })
+	public int payloadSize;
+
+	private Connection connection;
+	private BytesMessage bytesMessage;
+	private StreamMessage streamMessage;
+	private BytesMessage bytesToRead;
+	private StreamMessage streamToRead;
+	private byte[] payload;
+	private byte[] readBuffer;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory().createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		payload = new byte[payloadSize];
+		readBuffer = new byte[payloadSize];
+		bytesMessage = session.createBytesMessage();
+		streamMessage = session.createStreamMessage();
+		bytesToRead = session.createBytesMessage();
+		streamToRead = session.createStreamMessage();
+		write(bytesToRead);
+		write(streamToRead);
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+	}
+
+	@Benchmark
+	public Message writeBytesMessage() throws JMSException {
+		bytesMessage.clearBody();
+		write(bytesMessage);
+		bytesMessage.reset();
+		return bytesMessage;
+	}
+
+	@Benchmark
+	public void readBytesMessage(Blackhole blackhole) throws JMSException {
+		bytesToRead.reset();
+		for (int i = 0; i < fields; i++) {
+			blackhole.consume(bytesToRead.readInt());
+			blackhole.consume(bytesToRead.readLong());
+			blackhole.consume(bytesToRead.readDouble());
+			blackhole.consume(bytesToRead.readUTF());
+		}
+		blackhole.consume(bytesToRead.readBytes(readBuffer));
+	}
+
+	@Benchmark
+	public Message writeStreamMessage() throws JMSException {
+		streamMessage.clearBody();
+		write(streamMessage);
+		streamMessage.reset();
+		return streamMessage;
+	}
+
+	@Benchmark
+	public void readStreamMessage(Blackhole blackhole) throws JMSException {
+		streamToRead.reset();
+		for (int i = 0; i < fields; i++) {
+			blackhole.consume(streamToRead.readInt());
+			blackhole.consume(streamToRead.readLong());
+			blackhole.consume(streamToRead.readDouble());
+			blackhole.consume(streamToRead.readString());
+		}
+		blackhole.consume(streamToRead.readBytes(readBuffer));
+	}
+
+	private void write(BytesMessage message) throws JMSException {
+		for (int i = 0; i < fields; i++) {
+			message.writeInt(i);
+			message.writeLong(i);
+			message.writeDouble(i);
+			message.writeUTF("field");
+		}
+		message.writeBytes(payload);
+		message.reset();
+	}
+
+	private void write(StreamMessage message) throws JMSException {
+		for (int i = 0; i < fields; i++) {
+			message.writeInt(i);
+			message.writeLong(i);
+			message.writeDouble(i);
+			message.writeString("field");
+		}
+		message.writeBytes(payload);
+		message.reset();
+	}
+}
@@ -0,0 +1,31 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks from the JMH command line, adding the GC profiler
+ * unless a profiler is given, so that every run also reports the allocation
+ * per operation (<code>gc.alloc.rate.norm</code>) and the collections it
+ * caused.
+ */
+public final class Main {
+	private static final List<String> NO_RUN = Arrays.asList("-h", "-l", "-lp", "-lprof", "-lrf");
+
+	private Main() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		boolean profile = !options.contains("-prof");
+		for (String option : NO_RUN) {
+			profile &= !options.contains(option);
+		}
+		if (profile) {
+			options.add("-prof");
+			options.add("gc");
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+}
@@ -0,0 +1,104 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.protocol.EncodedMap;
+import nl.ellipsis.tpjms.protocol.MarshallingDecoder;
+import nl.ellipsis.tpjms.protocol.MarshallingEncoder;
+import nl.ellipsis.tpjms.protocol.MarshallingSupport;
+
+/**
+ * Map marshalling through the {@link DataOutputStream} based
+ * {@link MarshallingSupport} methods versus {@link MarshallingEncoder} and
+ * {@link MarshallingDecoder}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MarshallingBenchmark {
+	@Param({ "10", "500" })
+	public int entries;
+
+	private Map<String, Object> map;
+	private byte[] streamEncoded;
+	private byte[] bufferEncoded;
+
+	@Setup
+	public void setUp() throws JMSException {
+		map = new HashMap<String, Object>();
+		for (int i = 0; i < entries; i++) {
+			switch (i % 4) {
+			case 0:
+				map.put("int-" + i, i);
+				break;
+			case 1:
+				map.put("long-" + i, (long) i << 32);
+				break;
+			case 2:
+				map.put("double-" + i, i / 3d);
+				break;
+			default:
+				map.put("string-" + i, "value of entry " + i);
+			}
+		}
+		streamEncoded = marshalStream();
+		bufferEncoded = marshalBuffer();
+	}
+
+	@Benchmark
+	public byte[] marshalStream() throws JMSException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		MarshallingSupport.marshalMap(new DataOutputStream(bos), map);
+		return bos.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] marshalBuffer() throws JMSException {
+		MarshallingEncoder encoder = new MarshallingEncoder();
+		try {
+			encoder.writeMap(map);
+			return encoder.toByteArray();
+		} finally {
+			encoder.release();
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> unmarshalStream() throws JMSException {
+		Map<String, Object> result = new HashMap<String, Object>();
+		MarshallingSupport.unmarshalMap(new DataInputStream(
+				new ByteArrayInputStream(streamEncoded)), result);
+		return result;
+	}
+
+	@Benchmark
+	public Map<String, Object> unmarshalBuffer() throws JMSException {
+		Map<String, Object> result = new HashMap<String, Object>();
+		new MarshallingDecoder(ByteBuffer.wrap(bufferEncoded)).readMap(result);
+		return result;
+	}
+
+	@Benchmark
+	public Object readTwoEntriesDecoded() throws JMSException {
+		Map<String, Object> result = unmarshalBuffer();
+		result.get("int-0");
+		return result.get("string-3");
+	}
+
+	@Benchmark
+	public Object readTwoEntriesView() throws JMSException {
+		EncodedMap view = new EncodedMap(bufferEncoded);
+		view.get("int-0");
+		return view.get("string-3");
+	}
+}
@@ -0,0 +1,112 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+import nl.ellipsis.tpjms.util.BufferPool;
+
+/**
+ * Allocation of sending, receiving and acknowledging bytes and stream
+ * messages, with and without the {@link BufferPool}. The pooled buffers of a
+ * delivered message return to the pool when the consumer acknowledges it, or,
+ * for the <code>AUTO_ACKNOWLEDGE</code> subscribers of the fan-out case, when
+ * they receive the next message; the sent body returns once the last
+ * subscriber has its copy. Run with <code>-prof gc</code> and compare
+ * <code>gc.alloc.rate.norm</code>, the number of bytes allocated per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageAllocationBenchmark {
+	private static final int FAN_OUT = 4;
+
+	@Param({ "false", "true" })
+	public boolean pooled;
+
+	@Param({ "128", "4096" })
+	public int payloadSize;
+
+	private Connection connection;
+	private Session session;
+	private MessageProducer producer;
+	private MessageConsumer consumer;
+	private MessageProducer fanOutProducer;
+	private MessageConsumer[] fanOutConsumers;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws JMSException {
+		BufferPool.getInstance().setEnabled(pooled);
+		connection = new TPJMSConnectionFactory("vm://bench").createConnection();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		Topic topic = session.createTopic("bench-topic");
+		producer = session.createProducer(topic);
+		consumer = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE).createConsumer(topic);
+		Topic fanOutTopic = session.createTopic("bench-fan-out");
+		fanOutProducer = session.createProducer(fanOutTopic);
+		fanOutConsumers = new MessageConsumer[FAN_OUT];
+		for (int i = 0; i < FAN_OUT; i++) {
+			fanOutConsumers[i] = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)
+					.createConsumer(fanOutTopic);
+		}
+		connection.start();
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+		VmProvider.getInstance().removeBroker("bench");
+		BufferPool.getInstance().setEnabled(false);
+	}
+
+	@Benchmark
+	public Message sendBytesMessage() throws JMSException {
+		BytesMessage message = session.createBytesMessage();
+		message.writeInt(payloadSize);
+		message.writeBytes(payload);
+		message.reset();
+		producer.send(message);
+		return receive();
+	}
+
+	@Benchmark
+	public Message sendStreamMessage() throws JMSException {
+		StreamMessage message = session.createStreamMessage();
+		message.writeInt(payloadSize);
+		message.writeBytes(payload);
+		message.reset();
+		producer.send(message);
+		return receive();
+	}
+
+	@Benchmark
+	public int sendBytesMessageFanOut() throws JMSException {
+		BytesMessage message = session.createBytesMessage();
+		message.writeInt(payloadSize);
+		message.writeBytes(payload);
+		message.reset();
+		fanOutProducer.send(message);
+		int received = 0;
+		for (MessageConsumer fanOutConsumer : fanOutConsumers) {
+			if (fanOutConsumer.receiveNoWait() != null) {
+				received++;
+			}
+		}
+		return received;
+	}
+
+	private Message receive() throws JMSException {
+		Message received = consumer.receiveNoWait();
+		received.acknowledge();
+		return received;
+	}
+}
@@ -0,0 +1,65 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+
+/**
+ * Creating an empty message of each type through the session. Run with
+ * <code>-prof gc</code> to see the allocation per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCreationBenchmark {
+	private Connection connection;
+	private Session session;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory().createConnection();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+	}
+
+	@Benchmark
+	public Message createMessage() throws JMSException {
+		return session.createMessage();
+	}
+
+	@Benchmark
+	public Message createTextMessage() throws JMSException {
+		return session.createTextMessage("text");
+	}
+
+	@Benchmark
+	public Message createBytesMessage() throws JMSException {
+		return session.createBytesMessage();
+	}
+
+	@Benchmark
+	public Message createMapMessage() throws JMSException {
+		return session.createMapMessage();
+	}
+
+	@Benchmark
+	public Message createStreamMessage() throws JMSException {
+		return session.createStreamMessage();
+	}
+
+	@Benchmark
+	public Message createObjectMessage() throws JMSException {
+		return session.createObjectMessage();
+	}
+}
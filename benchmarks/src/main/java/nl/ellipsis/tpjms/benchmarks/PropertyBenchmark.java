@@ -0,0 +1,96 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+
+/**
+ * Setting and getting message properties: typed access, which does not box,
+ * versus access as objects, and enumerating the property names.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyBenchmark {
+	@Param({ "4", "16" })
+	public int properties;
+
+	private Connection connection;
+	private Message message;
+	private String[] names;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory().createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		message = session.createMessage();
+		names = new String[properties];
+		for (int i = 0; i < properties; i++) {
+			names[i] = "property" + i;
+		}
+		setTypedProperties();
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+	}
+
+	@Benchmark
+	public Message setTypedProperties() throws JMSException {
+		message.clearProperties();
+		for (int i = 0; i < names.length; i++) {
+			// values outside the Integer cache, so boxing really allocates
+			message.setIntProperty(names[i], i + 1000);
+		}
+		return message;
+	}
+
+	@Benchmark
+	public Message setObjectProperties() throws JMSException {
+		message.clearProperties();
+		for (int i = 0; i < names.length; i++) {
+			message.setObjectProperty(names[i], i + 1000);
+		}
+		return message;
+	}
+
+	@Benchmark
+	public void getTypedProperties(Blackhole blackhole) throws JMSException {
+		for (String name : names) {
+			blackhole.consume(message.getIntProperty(name));
+		}
+	}
+
+	@Benchmark
+	public void getConvertedProperties(Blackhole blackhole) throws JMSException {
+		for (String name : names) {
+			blackhole.consume(message.getLongProperty(name));
+		}
+	}
+
+	@Benchmark
+	public void getObjectProperties(Blackhole blackhole) throws JMSException {
+		for (String name : names) {
+			blackhole.consume(message.getObjectProperty(name));
+		}
+	}
+
+	@Benchmark
+	public void getPropertyNames(Blackhole blackhole) throws JMSException {
+		Enumeration<?> e = message.getPropertyNames();
+		while (e.hasMoreElements()) {
+			blackhole.consume(e.nextElement());
+		}
+	}
+}
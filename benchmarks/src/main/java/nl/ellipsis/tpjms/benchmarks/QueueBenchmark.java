@@ -0,0 +1,57 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Sending a message to a queue of the vm provider and receiving it again, for
+ * each delivery mode. The vm provider keeps persistent messages in memory as
+ * well, so both modes should score alike until a provider stores them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueueBenchmark {
+	@Param({ "NON_PERSISTENT", "PERSISTENT" })
+	public String deliveryMode;
+
+	private Connection connection;
+	private MessageProducer producer;
+	private MessageConsumer consumer;
+	private Message message;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory("vm://queue").createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		Queue queue = session.createQueue("bench-queue");
+		consumer = session.createConsumer(queue);
+		producer = session.createProducer(queue);
+		producer.setDeliveryMode("PERSISTENT".equals(deliveryMode) ? DeliveryMode.PERSISTENT
+				: DeliveryMode.NON_PERSISTENT);
+		message = session.createTextMessage("queued");
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		consumer.close();
+		connection.close();
+		VmProvider.getInstance().removeBroker("queue");
+	}
+
+	@Benchmark
+	public Message sendReceive() throws JMSException {
+		producer.send(message);
+		return consumer.receiveNoWait();
+	}
+}
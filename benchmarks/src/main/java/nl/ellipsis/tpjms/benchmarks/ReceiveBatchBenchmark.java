@@ -0,0 +1,71 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageConsumer;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageProducer;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Sends a batch of messages to a queue and takes them from the consumer,
+ * either one receive at a time or with a single batch receive.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBatchBenchmark {
+	@Param({ "100" })
+	private int batchSize;
+
+	private Connection connection;
+	private TPJMSMessageProducer producer;
+	private TPJMSMessageConsumer consumer;
+	private List<Message> batch;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory("vm://receive").createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		Queue queue = session.createQueue("receive-queue");
+		consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		producer = (TPJMSMessageProducer) session.createProducer(queue);
+		batch = new ArrayList<Message>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			batch.add(session.createTextMessage("message " + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		consumer.close();
+		connection.close();
+		VmProvider.getInstance().removeBroker("receive");
+	}
+
+	@Benchmark
+	public int receiveEach() throws JMSException {
+		producer.sendBatch(batch, false);
+		int count = 0;
+		while (consumer.receiveNoWait() != null) {
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int receiveBatch() throws JMSException {
+		producer.sendBatch(batch, false);
+		return consumer.receiveBatchNoWait(batchSize).size();
+	}
+}
@@ -0,0 +1,71 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageProducer;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Sends a batch of small messages to a topic with one listening consumer,
+ * either one send at a time or with a single batch send.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SendBatchBenchmark {
+	@Param({ "100" })
+	private int batchSize;
+
+	private Connection connection;
+	private TPJMSMessageProducer producer;
+	private Topic topic;
+	private List<Message> batch;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory("vm://batch").createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		topic = session.createTopic("batch-topic");
+		MessageConsumer consumer = session.createConsumer(topic);
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+			}
+		});
+
+		producer = (TPJMSMessageProducer) session.createProducer(null);
+		batch = new ArrayList<Message>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			batch.add(session.createTextMessage("message " + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+		VmProvider.getInstance().removeBroker("batch");
+	}
+
+	@Benchmark
+	public void sendEach() throws JMSException {
+		for (Message message : batch) {
+			producer.send(topic, message);
+		}
+	}
+
+	@Benchmark
+	public void sendBatch() throws JMSException {
+		producer.sendBatch(topic, batch);
+	}
+}
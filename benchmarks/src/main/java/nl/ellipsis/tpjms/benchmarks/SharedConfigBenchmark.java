@@ -0,0 +1,59 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Producer and connection factory shared by all benchmark threads, which is
+ * where reading their configuration contends. Compare thread counts with
+ * <code>-t 1</code>, <code>-t 4</code>, <code>-t 8</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SharedConfigBenchmark {
+	private TPJMSConnectionFactory factory;
+	private Connection connection;
+	private Session session;
+	private MessageProducer producer;
+	private Message message;
+
+	@Setup
+	public void setUp() throws JMSException {
+		factory = new TPJMSConnectionFactory("vm://shared");
+		connection = factory.createConnection();
+		session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		producer = session.createProducer(session.createTopic("shared-topic"));
+		message = session.createMessage();
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+		VmProvider.getInstance().removeBroker("shared");
+	}
+
+	@Benchmark
+	public void send() throws JMSException {
+		producer.send(message);
+	}
+
+	@Benchmark
+	public int readProducerConfig() throws JMSException {
+		return producer.getDeliveryMode() + producer.getPriority();
+	}
+
+	@Benchmark
+	public Connection createConnection() throws JMSException {
+		return factory.createConnection();
+	}
+}
@@ -0,0 +1,71 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+
+/**
+ * Reading a stream message of ints through the typed readers, which decode
+ * the primitive straight from the body, versus <code>readObject()</code>,
+ * which boxes every field. Run with <code>-prof gc</code> to compare
+ * allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamMessageReadBenchmark {
+	@Param({ "1000" })
+	public int fields;
+
+	private Connection connection;
+	private StreamMessage message;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory().createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		message = session.createStreamMessage();
+		for (int i = 0; i < fields; i++) {
+			// values outside the Integer cache, so boxing really allocates
+			message.writeInt(i + 1000);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+	}
+
+	@Benchmark
+	public void readInt(Blackhole blackhole) throws JMSException {
+		message.reset();
+		for (int i = 0; i < fields; i++) {
+			blackhole.consume(message.readInt());
+		}
+	}
+
+	@Benchmark
+	public void readLongWidened(Blackhole blackhole) throws JMSException {
+		message.reset();
+		for (int i = 0; i < fields; i++) {
+			blackhole.consume(message.readLong());
+		}
+	}
+
+	@Benchmark
+	public void readObject(Blackhole blackhole) throws JMSException {
+		message.reset();
+		for (int i = 0; i < fields; i++) {
+			blackhole.consume(message.readObject());
+		}
+	}
+}
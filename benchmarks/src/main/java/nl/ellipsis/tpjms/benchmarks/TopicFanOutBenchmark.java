@@ -0,0 +1,60 @@
+package nl.ellipsis.tpjms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Sending a message to a topic of the vm provider with a number of
+ * subscribers, each with a listener. The score is per message sent, so the
+ * cost per delivery is the score divided by the number of subscribers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TopicFanOutBenchmark {
+	@Param({ "1", "10", "1000" })
+	public int subscribers;
+
+	private Connection connection;
+	private MessageProducer producer;
+	private Message message;
+
+	@Setup
+	public void setUp() throws JMSException {
+		connection = new TPJMSConnectionFactory("vm://fanout").createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		Topic topic = session.createTopic("fanout-topic");
+		MessageListener listener = new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+			}
+		};
+		for (int i = 0; i < subscribers; i++) {
+			session.createConsumer(topic).setMessageListener(listener);
+		}
+		producer = session.createProducer(topic);
+		message = session.createTextMessage("fan-out");
+	}
+
+	@TearDown
+	public void tearDown() throws JMSException {
+		connection.close();
+		VmProvider.getInstance().removeBroker("fanout");
+	}
+
+	@Benchmark
+	public Message send() throws JMSException {
+		producer.send(message);
+		return message;
+	}
+}
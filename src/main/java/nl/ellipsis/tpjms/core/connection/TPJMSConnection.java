@@ -2,23 +2,36 @@ package nl.ellipsis.tpjms.core.connection;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jms.*;
 import javax.jms.IllegalStateException;
 
+import nl.ellipsis.tpjms.core.session.TPJMSConnectionConsumer;
 import nl.ellipsis.tpjms.core.session.TPJMSQueueSession;
 import nl.ellipsis.tpjms.core.session.TPJMSSession;
 import nl.ellipsis.tpjms.core.session.TPJMSTopicSession;
+import nl.ellipsis.tpjms.management.ConnectionView;
+import nl.ellipsis.tpjms.management.ManagementContext;
+import nl.ellipsis.tpjms.protocol.JavaObjectSerializer;
+import nl.ellipsis.tpjms.protocol.ObjectSerializer;
 import nl.ellipsis.tpjms.provider.*;
 
 /**
  * TPJMS implementation of Connection.
  */
 public class TPJMSConnection implements Connection, QueueConnection, TopicConnection {
+	/** Default chunk size for large message bodies. */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
 	private final ReentrantReadWriteLock clientIDLock = new ReentrantReadWriteLock();
 	private final ReentrantReadWriteLock exceptionListenerLock = new ReentrantReadWriteLock();
+	/** guards <code>sessions</code> and <code>isRunning</code> */
+	private final ReentrantLock sessionsLock = new ReentrantLock();
 
 	private String clientID;
 
@@ -27,15 +40,23 @@ public class TPJMSConnection implements Connection, QueueConnection, TopicConnec
 
 	private ExceptionListener exceptionListener;
 
-	private boolean isRunning = false;
+	private volatile boolean isRunning = false;
+
+	private volatile ObjectSerializer objectSerializer = JavaObjectSerializer.getInstance();
+	private volatile boolean objectMessageByReference = false;
+	private volatile long largeMessageThreshold = 0;
+	private volatile int largeMessageChunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile boolean asyncDispatch = false;
 	
 	private List<Session> sessions = new ArrayList<Session>();
+	private final List<ConnectionConsumer> connectionConsumers = new CopyOnWriteArrayList<ConnectionConsumer>();
 
 	TPJMSConnection(TPJMSProvider provider, String clientID, URI uri, String userName, String password)
 			throws JMSException {
 		this.clientID = clientID;
 		this.provider = provider;
 		context = provider.connect(uri, userName, password);
+		ManagementContext.getInstance().register(this, ConnectionView.FACTORY);
 	}
 
 	/*
@@ -44,16 +65,54 @@ public class TPJMSConnection implements Connection, QueueConnection, TopicConnec
 
 	@Override
 	public void close() throws JMSException {
+		for (ConnectionConsumer connectionConsumer : connectionConsumers) {
+			connectionConsumer.close();
+		}
+		// closing a session closes its consumers, which unsubscribes them
+		List<Session> open;
+		try {
+			sessionsLock.lock();
+			open = new ArrayList<Session>(sessions);
+		} finally {
+			sessionsLock.unlock();
+		}
+		for (Session session : open) {
+			session.close();
+		}
 		provider.close(context);
+		ManagementContext.getInstance().unregister(this);
 	}
 
 	/**
-	 * Unsupported.
+	 * Creates a connection consumer for this connection. This is an expert
+	 * facility not used by ordinary JMS clients.
+	 * 
+	 * @param destination
+	 *            the destination to access
+	 * @param messageSelector
+	 *            only messages with properties matching the message selector
+	 *            expression are delivered
+	 * @param sessionPool
+	 *            the server session pool to associate with this connection
+	 *            consumer
+	 * @param maxMessages
+	 *            the maximum number of messages that can be assigned to a
+	 *            server session at one time
+	 * @return the connection consumer
+	 * @throws InvalidDestinationException
+	 *             if an invalid destination is specified.
+	 * @throws JMSException
+	 *             if the pool is missing or <code>maxMessages</code> is not
+	 *             positive.
+	 * @see TPJMSConnectionConsumer
 	 */
 	@Override
 	public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector,
 			ServerSessionPool sessionPool, int maxMessages) throws JMSException {
-		throw new JMSException("Unsupported operation");
+		ConnectionConsumer connectionConsumer = new TPJMSConnectionConsumer(this, destination, messageSelector,
+				sessionPool, maxMessages);
+		connectionConsumers.add(connectionConsumer);
+		return connectionConsumer;
 	}
 
 	/**
@@ -248,14 +307,39 @@ public class TPJMSConnection implements Connection, QueueConnection, TopicConnec
 		}
 	}
 
+	/**
+	 * Starts (or restarts) a connection's delivery of incoming messages.
+	 * Messages that arrived while the connection was stopped are delivered to
+	 * the message listeners in order, on the dispatch threads if the
+	 * connection dispatches asynchronously, otherwise on the calling thread.
+	 * A call to start on a connection that has already been started is
+	 * ignored.
+	 *
+	 * @see #stop()
+	 */
 	@Override
 	public void start() throws JMSException {
-		isRunning = true;
+		for (TPJMSSession session : setRunning(true)) {
+			session.deliverBuffered();
+		}
 	}
 
+	/**
+	 * Temporarily stops a connection's delivery of incoming messages. Messages
+	 * that arrive in the meantime are buffered by the consumers; a
+	 * <CODE>receive</CODE> blocks until the connection is started again.
+	 * <P>
+	 * This call blocks until message listeners in progress have completed,
+	 * unless it is called by one of them. Stopping a stopped connection is
+	 * ignored.
+	 *
+	 * @see #start()
+	 */
 	@Override
 	public void stop() throws JMSException {
-		isRunning = false;
+		for (TPJMSSession session : setRunning(false)) {
+			session.awaitDelivery();
+		}
 	}
 
 	/*
@@ -307,20 +391,150 @@ public class TPJMSConnection implements Connection, QueueConnection, TopicConnec
 
 	// TPJMS specific
 
+	/**
+	 * Sets the running state and applies it to all sessions.
+	 *
+	 * @return the sessions, or none if the state did not change
+	 */
+	private List<TPJMSSession> setRunning(boolean running) {
+		try {
+			sessionsLock.lock();
+			if (isRunning == running) {
+				return Collections.emptyList();
+			}
+			isRunning = running;
+			List<TPJMSSession> started = new ArrayList<TPJMSSession>(sessions.size());
+			for (Session session : sessions) {
+				TPJMSSession tpjmsSession = (TPJMSSession) session;
+				tpjmsSession.setStarted(running);
+				started.add(tpjmsSession);
+			}
+			return started;
+		} finally {
+			sessionsLock.unlock();
+		}
+	}
+
 	private boolean registerSession(Session session) {
-		return sessions.add(session);
+		try {
+			sessionsLock.lock();
+			((TPJMSSession) session).setStarted(isRunning);
+			return sessions.add(session);
+		} finally {
+			sessionsLock.unlock();
+		}
 	}
 	
 	public boolean unregisterSession(Session session) {
-		return sessions.remove(session);
+		try {
+			sessionsLock.lock();
+			return sessions.remove(session);
+		} finally {
+			sessionsLock.unlock();
+		}
+	}
+
+	public boolean unregisterConnectionConsumer(ConnectionConsumer connectionConsumer) {
+		return connectionConsumers.remove(connectionConsumer);
 	}
 	
 	public boolean isRunning() {
 		return isRunning;
 	}
+
+	public int getSessionCount() {
+		try {
+			sessionsLock.lock();
+			return sessions.size();
+		} finally {
+			sessionsLock.unlock();
+		}
+	}
 	
 	public TPJMSProvider getProvider() {
 		return provider;
 	}
 
+	public ObjectSerializer getObjectSerializer() {
+		return objectSerializer;
+	}
+
+	/**
+	 * Sets the serializer used by object messages created on this connection.
+	 * 
+	 * @param objectSerializer
+	 *            serializer, or <code>null</code> for Java serialization
+	 */
+	public void setObjectSerializer(ObjectSerializer objectSerializer) {
+		this.objectSerializer = (objectSerializer == null) ? JavaObjectSerializer
+				.getInstance() : objectSerializer;
+	}
+
+	public boolean isObjectMessageByReference() {
+		return objectMessageByReference;
+	}
+
+	/**
+	 * Sets whether object messages created on this connection keep their
+	 * payload by reference instead of serializing it in
+	 * {@link ObjectMessage#setObject(java.io.Serializable)}. Only safe for
+	 * in-VM delivery of objects that are not modified after sending.
+	 * 
+	 * @param byReference
+	 *            <code>true</code> to pass objects by reference
+	 */
+	public void setObjectMessageByReference(boolean byReference) {
+		this.objectMessageByReference = byReference;
+	}
+
+	public long getLargeMessageThreshold() {
+		return largeMessageThreshold;
+	}
+
+	/**
+	 * Sets the body size above which bytes and stream messages created on this
+	 * connection are moved out of the heap into a chunk store of the provider.
+	 * 
+	 * @param threshold
+	 *            size in bytes, or 0 to keep all bodies in memory
+	 */
+	public void setLargeMessageThreshold(long threshold) {
+		this.largeMessageThreshold = threshold;
+	}
+
+	public int getLargeMessageChunkSize() {
+		return largeMessageChunkSize;
+	}
+
+	/**
+	 * Sets the chunk size for large message bodies, which bounds the heap used
+	 * to write or read such a body.
+	 * 
+	 * @param chunkSize
+	 *            chunk size in bytes
+	 */
+	public void setLargeMessageChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		this.largeMessageChunkSize = chunkSize;
+	}
+
+	public boolean isAsyncDispatch() {
+		return asyncDispatch;
+	}
+
+	/**
+	 * Sets whether sessions created from now on deliver to their message
+	 * listeners on threads of the {@link nl.ellipsis.tpjms.util.DispatchPool}
+	 * (virtual threads where the JDK has them) instead of on the sending
+	 * thread. Deliveries of a session stay ordered and one at a time.
+	 * 
+	 * @param asyncDispatch
+	 *            <code>true</code> to dispatch asynchronously
+	 */
+	public void setAsyncDispatch(boolean asyncDispatch) {
+		this.asyncDispatch = asyncDispatch;
+	}
+
 }
@@ -1,10 +1,11 @@
 package nl.ellipsis.tpjms.core.connection;
 
 import java.net.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jms.*;
 
+import nl.ellipsis.tpjms.protocol.ObjectSerializer;
 import nl.ellipsis.tpjms.provider.*;
 
 /**
@@ -13,34 +14,16 @@ import nl.ellipsis.tpjms.provider.*;
 public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectionFactory, TopicConnectionFactory {
 	
 	/**
-	 * Lock used to gate access to configuration variables.
+	 * Lock serializing configuration changes. Readers do not lock, they take
+	 * the current {@link #config} snapshot.
 	 */
-	private final ReentrantReadWriteLock configLock = new ReentrantReadWriteLock();
+	private final ReentrantLock configLock = new ReentrantLock();
 
 	/**
-	 * Currently configured client ID. Must use configLock for access.
+	 * Current configuration. Replaced by a modified copy on every change, so
+	 * a connection is always created from a consistent set of settings.
 	 */
-	private String clientID;
-
-	/**
-	 * Currently configured uri. Must use configLock for access.
-	 */
-	private URI uri;
-
-	/**
-	 * Currently configured user name. Must use configLock for access.
-	 */
-	private String defaultUserName;
-
-	/**
-	 * Currently configured password. Must use configLock for access.
-	 */
-	private String defaultPassword;
-	
-	/**
-	 * Provider used by the factory
-	 */
-	private TPJMSProvider provider; 
+	private volatile Config config = new Config();
 
 	/**
 	 * Creates a new JMS connection factory.
@@ -75,27 +58,27 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 *             if the URL is invalid or a provider could not be located
 	 */
 	public void setUrl(String url) throws JMSException {
-		try {
-			configLock.writeLock().lock();
-
-			if (url == null) {
-				throw new InvalidUrlException("URL cannot be null");
-			}
-
-			URI tempUri;
-			try {
-				tempUri = new URI(url);
-			} catch (URISyntaxException e) {
-				throw new InvalidUrlException("URL is invalid: " + e.getMessage());
-			}
-
-			provider = ProviderRegistry.getProviderForUri(tempUri); // validate the URI
+		if (url == null) {
+			throw new InvalidUrlException("URL cannot be null");
+		}
 
-			uri = tempUri;
+		URI tempUri;
+		try {
+			tempUri = new URI(url);
+		} catch (URISyntaxException e) {
+			throw new InvalidUrlException("URL is invalid: " + e.getMessage());
 		}
 
-		finally {
-			configLock.writeLock().unlock();
+		TPJMSProvider tempProvider = ProviderRegistry.getProviderForUri(tempUri); // validate the URI
+
+		try {
+			configLock.lock();
+			Config next = new Config(config);
+			next.provider = tempProvider;
+			next.uri = tempUri;
+			config = next;
+		} finally {
+			configLock.unlock();
 		}
 	}
 
@@ -108,10 +91,12 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 */
 	public void setClientID(String clientID) {
 		try {
-			configLock.writeLock().lock();
-			this.clientID = clientID;
+			configLock.lock();
+			Config next = new Config(config);
+			next.clientID = clientID;
+			config = next;
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 
@@ -123,10 +108,12 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 */
 	public void setUserName(String userName) {
 		try {
-			configLock.writeLock().lock();
-			defaultUserName = userName;
+			configLock.lock();
+			Config next = new Config(config);
+			next.userName = userName;
+			config = next;
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 
@@ -138,10 +125,12 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 */
 	public void setPassword(String password) {
 		try {
-			configLock.writeLock().lock();
-			defaultPassword = password;
+			configLock.lock();
+			Config next = new Config(config);
+			next.password = password;
+			config = next;
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 
@@ -152,11 +141,97 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 * @see #setClientID(String)
 	 */
 	public String getClientID() {
+		return config.clientID;
+	}
+
+	/**
+	 * Sets the serializer for object messages of new connections.
+	 * 
+	 * @param objectSerializer
+	 *            serializer, or <code>null</code> for Java serialization
+	 */
+	public void setObjectSerializer(ObjectSerializer objectSerializer) {
+		try {
+			configLock.lock();
+			Config next = new Config(config);
+			next.objectSerializer = objectSerializer;
+			config = next;
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets whether object messages of new connections pass their payload by
+	 * reference. See {@link TPJMSConnection#setObjectMessageByReference}.
+	 * 
+	 * @param byReference
+	 *            <code>true</code> to pass objects by reference
+	 */
+	public void setObjectMessageByReference(boolean byReference) {
 		try {
-			configLock.readLock().lock();
-			return clientID;
+			configLock.lock();
+			Config next = new Config(config);
+			next.objectMessageByReference = byReference;
+			config = next;
 		} finally {
-			configLock.readLock().unlock();
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the large message threshold of new connections. See
+	 * {@link TPJMSConnection#setLargeMessageThreshold}.
+	 * 
+	 * @param threshold
+	 *            size in bytes, or 0 to keep all bodies in memory
+	 */
+	public void setLargeMessageThreshold(long threshold) {
+		try {
+			configLock.lock();
+			Config next = new Config(config);
+			next.largeMessageThreshold = threshold;
+			config = next;
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the large message chunk size of new connections.
+	 * 
+	 * @param chunkSize
+	 *            chunk size in bytes
+	 */
+	public void setLargeMessageChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		try {
+			configLock.lock();
+			Config next = new Config(config);
+			next.largeMessageChunkSize = chunkSize;
+			config = next;
+		} finally {
+			configLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets whether new connections dispatch to message listeners
+	 * asynchronously. See {@link TPJMSConnection#setAsyncDispatch}.
+	 * 
+	 * @param asyncDispatch
+	 *            <code>true</code> to dispatch asynchronously
+	 */
+	public void setAsyncDispatch(boolean asyncDispatch) {
+		try {
+			configLock.lock();
+			Config next = new Config(config);
+			next.asyncDispatch = asyncDispatch;
+			config = next;
+		} finally {
+			configLock.unlock();
 		}
 	}
 
@@ -180,23 +255,8 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 */
 	@Override
 	public Connection createConnection() throws JMSException, JMSSecurityException {
-		TPJMSProvider currProvider;
-		String currClientID;
-		String currUserName;
-		String currPassword;
-		URI currUri;
-		try {
-			configLock.readLock().lock();
-			currClientID = clientID;
-			currUserName = defaultUserName;
-			currPassword = defaultPassword;
-			currUri = uri;
-			currProvider = provider;
-		} finally {
-			configLock.readLock().unlock();
-		}
-
-		return new TPJMSConnection(currProvider, currClientID, currUri, currUserName, currPassword);
+		Config curr = config;
+		return createConnection(curr, curr.userName, curr.password);
 	}
 
 	/**
@@ -219,20 +279,7 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 	 */
 	@Override
 	public Connection createConnection(String userName, String password) throws JMSException, JMSSecurityException {
-		String currClientID;
-		URI currUri;
-		TPJMSProvider currProvider;
-
-		try {
-			configLock.readLock().lock();
-			currClientID = clientID;
-			currUri = uri;
-			currProvider = provider;
-		} finally {
-			configLock.readLock().unlock();
-		}
-
-		return new TPJMSConnection(currProvider, currClientID, currUri, userName, password);
+		return createConnection(config, userName, password);
 	}
 
 	/*
@@ -275,4 +322,51 @@ public class TPJMSConnectionFactory implements ConnectionFactory, QueueConnectio
 		return (QueueConnection) createConnection(userName, password);
 	}
 
+	/**
+	 * Creates a connection with the settings of a configuration snapshot.
+	 */
+	private static TPJMSConnection createConnection(Config curr, String userName, String password)
+			throws JMSException {
+		TPJMSConnection connection = new TPJMSConnection(curr.provider, curr.clientID, curr.uri, userName, password);
+		connection.setObjectSerializer(curr.objectSerializer);
+		connection.setObjectMessageByReference(curr.objectMessageByReference);
+		connection.setLargeMessageThreshold(curr.largeMessageThreshold);
+		connection.setLargeMessageChunkSize(curr.largeMessageChunkSize);
+		connection.setAsyncDispatch(curr.asyncDispatch);
+		return connection;
+	}
+
+	/**
+	 * Snapshot of the factory configuration. A snapshot is never modified
+	 * once it has been published through {@link TPJMSConnectionFactory#config}.
+	 */
+	private static final class Config {
+		String clientID;
+		URI uri;
+		String userName;
+		String password;
+		TPJMSProvider provider;
+		ObjectSerializer objectSerializer;
+		boolean objectMessageByReference;
+		long largeMessageThreshold = 0;
+		int largeMessageChunkSize = TPJMSConnection.DEFAULT_CHUNK_SIZE;
+		boolean asyncDispatch = false;
+
+		Config() {
+		}
+
+		Config(Config other) {
+			clientID = other.clientID;
+			uri = other.uri;
+			userName = other.userName;
+			password = other.password;
+			provider = other.provider;
+			objectSerializer = other.objectSerializer;
+			objectMessageByReference = other.objectMessageByReference;
+			largeMessageThreshold = other.largeMessageThreshold;
+			largeMessageChunkSize = other.largeMessageChunkSize;
+			asyncDispatch = other.asyncDispatch;
+		}
+	}
+
 }
@@ -0,0 +1,124 @@
+package nl.ellipsis.tpjms.core.destination;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the consumers of a destination are handled when they fall behind.
+ *
+ * <p>
+ * A consumer is slow when, as a delivery arrives, any of the configured
+ * limits is exceeded:
+ * </p>
+ * <ul>
+ * <li><em>max pending</em>: the messages buffered for the consumer plus the
+ * delivery would exceed this number, i.e. its prefetch is full;</li>
+ * <li><em>max age</em>: messages have been waiting longer than this without
+ * the consumer taking any;</li>
+ * <li><em>max acknowledge lag</em>: the consumer has consumed more than this
+ * number of messages since it last acknowledged one. Only applies to
+ * <code>CLIENT_ACKNOWLEDGE</code> sessions.</li>
+ * </ul>
+ *
+ * <p>
+ * A limit of 0 is not checked. The {@link Action} is applied to that
+ * consumer only, so other subscribers of a topic and its publishers carry on.
+ * Instances are immutable.
+ * </p>
+ */
+public final class SlowConsumerPolicy {
+
+	/**
+	 * Response to a slow consumer.
+	 */
+	public enum Action {
+		/**
+		 * Drops the oldest buffered messages to make room for the delivery;
+		 * without a max pending limit all buffered messages are dropped.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drops the messages of the delivery that do not fit; without a max
+		 * pending limit nothing is dropped.
+		 */
+		DROP_NEWEST,
+		/** closes the consumer */
+		DISCONNECT,
+		/**
+		 * Keeps at most max pending messages in memory, or as many as are
+		 * buffered, and spools the rest of the consumer's messages to disk.
+		 */
+		SPOOL
+	}
+
+	private final Action action;
+	private final int maxPending;
+	private final long maxAgeMillis;
+	private final int maxAckLag;
+
+	/**
+	 * Creates a policy that only limits the number of pending messages.
+	 */
+	public SlowConsumerPolicy(Action action, int maxPending) {
+		this(action, maxPending, 0, 0);
+	}
+
+	/**
+	 * Creates a policy.
+	 * 
+	 * @param action
+	 *            response to a slow consumer
+	 * @param maxPending
+	 *            maximum number of buffered messages, or 0
+	 * @param maxAgeMillis
+	 *            maximum time messages wait without the consumer taking any,
+	 *            or 0
+	 * @param maxAckLag
+	 *            maximum number of consumed but unacknowledged messages, or 0
+	 * @throws IllegalArgumentException
+	 *             if no action is given, a limit is negative or no limit is
+	 *             set
+	 */
+	public SlowConsumerPolicy(Action action, int maxPending, long maxAgeMillis,
+			int maxAckLag) {
+		if (action == null) {
+			throw new IllegalArgumentException("action must be specified");
+		}
+		if (maxPending < 0 || maxAgeMillis < 0 || maxAckLag < 0) {
+			throw new IllegalArgumentException("Limits cannot be negative");
+		}
+		if (maxPending == 0 && maxAgeMillis == 0 && maxAckLag == 0) {
+			throw new IllegalArgumentException("At least one limit must be set");
+		}
+		this.action = action;
+		this.maxPending = maxPending;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxAckLag = maxAckLag;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public long getMaxAgeNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+	}
+
+	public int getMaxAckLag() {
+		return maxAckLag;
+	}
+
+	@Override
+	public String toString() {
+		return "SlowConsumerPolicy[" + action + ", maxPending=" + maxPending
+				+ ", maxAgeMillis=" + maxAgeMillis + ", maxAckLag=" + maxAckLag
+				+ "]";
+	}
+}
@@ -0,0 +1,64 @@
+package nl.ellipsis.tpjms.core.destination;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.*;
+
+/**
+ * A destination that stands for a list of queues and topics. A message sent
+ * to it is routed to each member by the provider; the message itself is
+ * shared, not copied per member. Consumers receive from the members, not
+ * from the composite destination.
+ *
+ * <p>
+ * The name lists the members, each prefixed by its type, separated by
+ * commas, e.g. <code>queue:orders,topic:audit</code>.
+ * </p>
+ */
+public class TPJMSCompositeDestination extends TPJMSDestination {
+	public static final String QUEUE_PREFIX = "queue:";
+	public static final String TOPIC_PREFIX = "topic:";
+
+	private final List<Destination> destinations;
+
+	public TPJMSCompositeDestination(String name, List<? extends Destination> destinations) {
+		super(name);
+		this.destinations = Collections.unmodifiableList(new ArrayList<Destination>(destinations));
+	}
+
+	@Override
+	public boolean isQueue() {
+		return false;
+	}
+
+	@Override
+	public boolean isTopic() {
+		return false;
+	}
+
+	@Override
+	public boolean isTemporary() {
+		return false;
+	}
+
+	/**
+	 * Gets the members of this destination.
+	 * 
+	 * @return the queues and topics, in the order of the name
+	 */
+	public List<Destination> getDestinations() {
+		return destinations;
+	}
+
+	/**
+	 * Returns a string representation of this object.
+	 * 
+	 * @return the provider-specific identity values for this destination
+	 */
+	@Override
+	public String toString() {
+		return "composite:" + getName();
+	}
+}
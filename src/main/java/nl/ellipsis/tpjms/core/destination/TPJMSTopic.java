@@ -2,10 +2,25 @@ package nl.ellipsis.tpjms.core.destination;
 
 import javax.jms.*;
 
+/**
+ * A topic. Topic names can be hierarchical, with levels separated by
+ * {@link #SEPARATOR}. A topic that has {@link #ANY_LEVEL} or
+ * {@link #ANY_LEVELS} as a level is a wildcard topic: subscribing to it
+ * subscribes to all topics whose names match, and it cannot be published to.
+ */
 public class TPJMSTopic extends TPJMSDestination implements Topic {
-	
+	/** separates the levels of a hierarchical topic name */
+	public static final char SEPARATOR = '.';
+	/** wildcard level that matches exactly one level */
+	public static final String ANY_LEVEL = "*";
+	/** wildcard level that matches one or more levels; must be the last level */
+	public static final String ANY_LEVELS = ">";
+
+	private final boolean wildcard;
+
 	public TPJMSTopic(String topicName) {
 		super(topicName);
+		this.wildcard = isWildcard(topicName);
 	}
 
 	@Override
@@ -28,6 +43,15 @@ public class TPJMSTopic extends TPJMSDestination implements Topic {
 		return super.getName();
 	}
 
+	/**
+	 * Determines if this is a wildcard topic.
+	 * 
+	 * @return <code>true</code> if a level of the name is a wildcard
+	 */
+	public boolean isWildcard() {
+		return wildcard;
+	}
+
 	/**
 	 * Returns a string representation of this object.
 	 * 
@@ -38,4 +62,30 @@ public class TPJMSTopic extends TPJMSDestination implements Topic {
 		return "topic:" + super.toString();
 	}
 
+	/**
+	 * Determines if a topic name has a wildcard level.
+	 */
+	public static boolean isWildcard(String topicName) {
+		if (topicName == null) {
+			return false;
+		}
+		int start = 0;
+		while (true) {
+			int end = topicName.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = topicName.length();
+			}
+			if (end - start == 1) {
+				char c = topicName.charAt(start);
+				if (c == ANY_LEVEL.charAt(0) || c == ANY_LEVELS.charAt(0)) {
+					return true;
+				}
+			}
+			if (end == topicName.length()) {
+				return false;
+			}
+			start = end + 1;
+		}
+	}
+
 }
@@ -0,0 +1,402 @@
+package nl.ellipsis.tpjms.core.message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.session.TPJMSSession;
+import nl.ellipsis.tpjms.protocol.MarshallingDecoder;
+import nl.ellipsis.tpjms.provider.ChunkStore;
+import nl.ellipsis.tpjms.provider.TPJMSProvider;
+import nl.ellipsis.tpjms.util.BufferPool;
+import nl.ellipsis.tpjms.util.PooledByteArrayOutputStream;
+
+/**
+ * Backing store for the streamed bodies of {@link TPJMSBytesMessage} and
+ * {@link TPJMSStreamMessage}.
+ *
+ * <p>
+ * The buffer switches between a writable state, in which bytes are appended to
+ * a pooled output stream, and a sealed state, in which the written bytes are
+ * kept as an array plus a length. Switching states hands the array over
+ * without copying it.
+ * </p>
+ *
+ * <p>
+ * When the connection has a large message threshold, a body that grows beyond
+ * it is moved to a {@link ChunkStore} of the provider. From then on writes are
+ * appended to the store chunk by chunk and reads stream the body back, so the
+ * heap used by the body stays bounded by the chunk size.
+ * </p>
+ */
+final class BodyBuffer {
+	private static final byte[] EMPTY = new byte[0];
+
+	private final TPJMSProvider provider;
+	private final long largeMessageThreshold;
+	private final int chunkSize;
+
+	private PooledByteArrayOutputStream output;
+	private byte[] data;
+	private int length;
+
+	private ChunkStore store;
+	private InputStream storeInput;
+	/** set if the content or store is shared with a copy, see {@link #copy()} */
+	private boolean shared;
+
+	BodyBuffer() {
+		this(null, 0, 0);
+	}
+
+	BodyBuffer(TPJMSProvider provider, long largeMessageThreshold, int chunkSize) {
+		this.provider = provider;
+		this.largeMessageThreshold = (provider == null) ? 0
+				: largeMessageThreshold;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Creates a body buffer with the large message settings of the connection
+	 * of a session.
+	 */
+	static BodyBuffer forSession(Session session) {
+		if (session instanceof TPJMSSession) {
+			TPJMSConnection connection = ((TPJMSSession) session)
+					.getConnection();
+			if (connection.getLargeMessageThreshold() > 0) {
+				return new BodyBuffer(connection.getProvider(),
+						connection.getLargeMessageThreshold(),
+						connection.getLargeMessageChunkSize());
+			}
+		}
+		return new BodyBuffer();
+	}
+
+	/**
+	 * Opens the buffer for writing. Written bytes are appended to the current
+	 * content.
+	 *
+	 * @return output stream to write the body to
+	 */
+	OutputStream getOutputStream() {
+		if (store == null && output == null) {
+			if (shared) {
+				// appending must not touch the array of the other buffer
+				shared = false;
+				data = (data == null) ? null : Arrays.copyOf(data, length);
+			}
+			output = new PooledByteArrayOutputStream(data, length);
+			data = null;
+			length = 0;
+		}
+		return (largeMessageThreshold > 0) ? new ThresholdOutputStream()
+				: output;
+	}
+
+	/**
+	 * Opens the buffer for reading from the start of the content.
+	 *
+	 * @return input stream over the body
+	 */
+	InputStream getInputStream() {
+		closeStoreInput();
+		if (store != null) {
+			return new StoreInputStream();
+		}
+		seal();
+		return new ByteArrayInputStream(data == null ? EMPTY : data, 0, length);
+	}
+
+	/**
+	 * Opens a {@link MarshallingDecoder} from the start of the content. An
+	 * in-memory body is decoded in place, a chunked body is streamed through a
+	 * buffer of one chunk.
+	 */
+	MarshallingDecoder newDecoder() {
+		if (store != null) {
+			return new MarshallingDecoder(getInputStream(), chunkSize);
+		}
+		seal();
+		return new MarshallingDecoder(ByteBuffer.wrap(data == null ? EMPTY
+				: data, 0, length));
+	}
+
+	long length() {
+		if (store != null) {
+			return store.length();
+		}
+		seal();
+		return length;
+	}
+
+	/**
+	 * Gets the number of bytes written so far, without sealing the buffer, so
+	 * that it may be called while the body is being written.
+	 */
+	long size() {
+		if (store != null) {
+			return store.length();
+		}
+		return (output != null) ? output.size() : length;
+	}
+
+	/**
+	 * Indicates whether the body has been moved to a {@link ChunkStore}.
+	 */
+	boolean isChunked() {
+		return store != null;
+	}
+
+	/**
+	 * Gets a copy of the content. A chunked body is read back into memory in
+	 * full.
+	 *
+	 * @return body bytes, or <code>null</code> if the body was never set or
+	 *         written
+	 * @throws JMSException
+	 *             if a chunked body cannot be read or does not fit in an array
+	 */
+	byte[] toByteArray() throws JMSException {
+		if (store != null) {
+			return readStore();
+		}
+		seal();
+		if (data == null) {
+			return null;
+		}
+		byte[] copy = new byte[length];
+		if (length > 0) {
+			System.arraycopy(data, 0, copy, 0, length);
+		}
+		return copy;
+	}
+
+	/**
+	 * Replaces the content by a copy of <code>content</code>.
+	 *
+	 * @param content
+	 *            new content (may be <code>null</code>)
+	 * @throws JMSException
+	 *             if a large body cannot be stored
+	 */
+	void setContent(byte[] content) throws JMSException {
+		release();
+		if (content == null) {
+			return;
+		}
+		if (content.length == 0) {
+			data = EMPTY;
+			return;
+		}
+
+		if (largeMessageThreshold > 0 && content.length > largeMessageThreshold) {
+			try {
+				getOutputStream().write(content, 0, content.length);
+			} catch (IOException e) {
+				throw new JMSException("Unable to store body: " + e.getMessage());
+			}
+		} else {
+			data = BufferPool.getInstance().acquire(content.length);
+			System.arraycopy(content, 0, data, 0, content.length);
+			length = content.length;
+		}
+	}
+
+	/**
+	 * Creates a buffer with the same settings and content. While pooling is
+	 * enabled an in-memory content is copied to a buffer from the
+	 * {@link BufferPool}, so that each buffer hands back its own. Otherwise the
+	 * content, or the chunk store, is shared, and neither buffer releases it.
+	 */
+	BodyBuffer copy() {
+		seal();
+		BodyBuffer copy = new BodyBuffer(provider, largeMessageThreshold,
+				chunkSize);
+		if (store == null && BufferPool.getInstance().isEnabled()) {
+			if (length > 0) {
+				copy.data = BufferPool.getInstance().acquire(length);
+				System.arraycopy(data, 0, copy.data, 0, length);
+				copy.length = length;
+			}
+		} else {
+			shared = true;
+			copy.shared = true;
+			copy.data = data;
+			copy.length = length;
+			copy.store = store;
+		}
+		return copy;
+	}
+
+	/**
+	 * Empties the buffer, returns its memory to the {@link BufferPool} and
+	 * discards any chunk store.
+	 */
+	void release() {
+		if (shared) {
+			// the content belongs to another buffer as well, only let go of it
+			shared = false;
+			closeStoreInput();
+			data = null;
+			length = 0;
+			store = null;
+			return;
+		}
+		if (output != null) {
+			output.release();
+			output = null;
+		} else {
+			BufferPool.getInstance().release(data);
+		}
+		data = null;
+		length = 0;
+
+		if (store != null) {
+			closeStoreInput();
+			try {
+				store.close();
+			} catch (IOException ignored) {
+			}
+			store = null;
+		}
+	}
+
+	private void seal() {
+		if (output != null) {
+			data = output.getBuffer();
+			length = output.size();
+			output = null;
+		}
+	}
+
+	private void spill() throws IOException {
+		try {
+			store = provider.createChunkStore(chunkSize);
+		} catch (JMSException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (output != null) {
+			store.write(output.getBuffer(), 0, output.size());
+			output.release();
+			output = null;
+		}
+	}
+
+	private byte[] readStore() throws JMSException {
+		long size = store.length();
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new JMSException("Body of " + size
+					+ " bytes does not fit in a byte array");
+		}
+
+		byte[] copy = new byte[(int) size];
+		InputStream in = null;
+		try {
+			in = store.getInputStream();
+			new DataInputStream(in).readFully(copy);
+			return copy;
+		} catch (IOException e) {
+			throw new JMSException("Unable to read body: " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private void closeStoreInput() {
+		if (storeInput != null) {
+			try {
+				storeInput.close();
+			} catch (IOException ignored) {
+			}
+			storeInput = null;
+		}
+	}
+
+	/**
+	 * Writes to the pooled output until the threshold is passed, then to the
+	 * chunk store.
+	 */
+	private final class ThresholdOutputStream extends OutputStream {
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			if (store == null && output.size() >= largeMessageThreshold) {
+				spill();
+			}
+			if (store != null) {
+				single[0] = (byte) b;
+				store.write(single, 0, 1);
+			} else {
+				output.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (store == null && output.size() + len > largeMessageThreshold) {
+				spill();
+			}
+			if (store != null) {
+				store.write(b, off, len);
+			} else {
+				output.write(b, off, len);
+			}
+		}
+	}
+
+	/**
+	 * Reads a chunked body. The underlying store stream is opened on the first
+	 * read, so that opening the buffer for reading cannot fail.
+	 */
+	private final class StoreInputStream extends InputStream {
+		private InputStream in;
+
+		@Override
+		public int read() throws IOException {
+			return open().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return open().read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			return open().skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return open().available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+
+		private InputStream open() throws IOException {
+			if (in == null) {
+				if (store == null) {
+					throw new EOFException("Body has been released");
+				}
+				in = store.getInputStream();
+				storeInput = in;
+			}
+			return in;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package nl.ellipsis.tpjms.core.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingDecoder;
+import nl.ellipsis.tpjms.protocol.MarshallingEncoder;
+
+/**
+ * Encodes a message into bytes and back, for keeping it outside the heap.
+ *
+ * <p>
+ * The encoded form holds the type of the message, its headers, its properties
+ * and its body, written with a {@link MarshallingEncoder}. Destinations are
+ * objects of the provider rather than values, so the caller keeps the
+ * <code>JMSDestination</code> and <code>JMSReplyTo</code> of the message and
+ * passes them back when decoding.
+ * </p>
+ */
+public final class MessageCodec {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte MESSAGE = 0;
+	private static final byte TEXT = 1;
+	private static final byte BYTES = 2;
+	private static final byte MAP = 3;
+	private static final byte OBJECT = 4;
+	private static final byte STREAM = 5;
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * Encodes a message, except for its destinations.
+	 * 
+	 * @return encoded message
+	 * @throws JMSException
+	 *             if the message cannot be read
+	 */
+	public static byte[] encode(TPJMSMessage message) throws JMSException {
+		MarshallingEncoder encoder = new MarshallingEncoder();
+		try {
+			encoder.writeByte(typeOf(message));
+			encoder.writeString(message.getJMSMessageID());
+			encoder.writeString(message.getJMSCorrelationID());
+			encoder.writeInt(message.getJMSDeliveryMode());
+			encoder.writeInt(message.getJMSPriority());
+			encoder.writeLong(message.getJMSExpiration());
+			encoder.writeLong(message.getJMSTimestamp());
+			encoder.writeBoolean(message.getJMSRedelivered());
+			encoder.writeString(message.getJMSType());
+
+			List<String> names = new ArrayList<String>();
+			for (Enumeration<?> e = message.getPropertyNames(); e.hasMoreElements();) {
+				names.add((String) e.nextElement());
+			}
+			encoder.writeInt(names.size());
+			for (String name : names) {
+				encoder.writeString(name);
+				encoder.writeObject(message.getObjectProperty(name));
+			}
+
+			byte[] body = message.getBody();
+			if (body == null) {
+				encoder.writeNull();
+			} else {
+				encoder.writeBytes(body, 0, body.length);
+			}
+			return encoder.toByteArray();
+		} finally {
+			encoder.release();
+		}
+	}
+
+	/**
+	 * Decodes a message encoded by {@link #encode(TPJMSMessage)}.
+	 * 
+	 * @param data
+	 *            encoded message
+	 * @param session
+	 *            session the message belongs to
+	 * @param destination
+	 *            <code>JMSDestination</code> of the message
+	 * @param replyTo
+	 *            <code>JMSReplyTo</code> of the message
+	 * @return new message, read-only like a received message
+	 * @throws MessageFormatException
+	 *             if the data is malformed
+	 */
+	public static TPJMSMessage decode(byte[] data, Session session,
+			Destination destination, Destination replyTo) throws JMSException {
+		MarshallingDecoder decoder = new MarshallingDecoder(ByteBuffer.wrap(data));
+		byte type = decoder.readByte();
+		TPJMSMessage message = create(type, session, destination);
+		message.setJMSMessageID((String) decoder.readObject());
+		message.setJMSCorrelationID((String) decoder.readObject());
+		message.setJMSDeliveryMode(decoder.readInt());
+		message.setJMSPriority(decoder.readInt());
+		message.setJMSExpiration(decoder.readLong());
+		message.setJMSTimestamp(decoder.readLong());
+		message.setJMSRedelivered(decoder.readBoolean());
+		message.setJMSType((String) decoder.readObject());
+		message.setJMSReplyTo(replyTo);
+
+		int count = decoder.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = (String) decoder.readObject();
+			message.setObjectProperty(name, decoder.readObject());
+		}
+
+		byte[] body = (byte[]) decoder.readObject();
+		if (type == TEXT) {
+			if (body != null) {
+				((TPJMSTextMessage) message).setText(new String(body, UTF_8));
+			}
+		} else if (type != MESSAGE) {
+			message.setBody(body);
+		}
+		setReadOnly(message);
+		return message;
+	}
+
+	/**
+	 * Makes the properties and body of a decoded message read-only. Bytes and
+	 * stream bodies are already reset for reading by setting them.
+	 */
+	private static void setReadOnly(TPJMSMessage message) {
+		message.setPropertiesReadOnly(true);
+		if (message instanceof TPJMSTextMessage) {
+			((TPJMSTextMessage) message).setReadOnly(true);
+		} else if (message instanceof TPJMSMapMessage) {
+			((TPJMSMapMessage) message).setReadOnly(true);
+		} else if (message instanceof TPJMSObjectMessage) {
+			((TPJMSObjectMessage) message).setReadOnly(true);
+		}
+	}
+
+	private static byte typeOf(TPJMSMessage message) {
+		if (message instanceof TPJMSTextMessage) {
+			return TEXT;
+		} else if (message instanceof TPJMSBytesMessage) {
+			return BYTES;
+		} else if (message instanceof TPJMSMapMessage) {
+			return MAP;
+		} else if (message instanceof TPJMSObjectMessage) {
+			return OBJECT;
+		} else if (message instanceof TPJMSStreamMessage) {
+			return STREAM;
+		}
+		return MESSAGE;
+	}
+
+	private static TPJMSMessage create(byte type, Session session,
+			Destination destination) throws JMSException {
+		switch (type) {
+		case MESSAGE:
+			return new TPJMSMessage(session, destination);
+		case TEXT:
+			return new TPJMSTextMessage(session, destination);
+		case BYTES:
+			return new TPJMSBytesMessage(session, destination);
+		case MAP:
+			return new TPJMSMapMessage(session, destination);
+		case OBJECT:
+			return new TPJMSObjectMessage(session, destination);
+		case STREAM:
+			return new TPJMSStreamMessage(session, destination);
+		default:
+			throw new MessageFormatException("Invalid message type: " + type);
+		}
+	}
+}
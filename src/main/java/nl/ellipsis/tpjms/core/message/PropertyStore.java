@@ -0,0 +1,264 @@
+package nl.ellipsis.tpjms.core.message;
+
+import java.util.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+
+/**
+ * Compact storage for message properties.
+ *
+ * <p>
+ * Properties are kept in parallel arrays of interned keys, type tags,
+ * primitive slots and string values, addressed by open hashing with linear
+ * probing. Primitive values are stored as raw bits in a <code>long</code>, so
+ * setting and getting typed properties does not box. The arrays are only
+ * allocated when the first property is set.
+ * </p>
+ *
+ * <p>
+ * Properties cannot be removed individually, only cleared all at once, so the
+ * table never contains deleted slots. This class is not thread-safe.
+ * </p>
+ */
+final class PropertyStore {
+	private static final int INITIAL_CAPACITY = 8;
+
+	private String[] keys;
+	private ObjectType[] types;
+	private long[] primitives;
+	private String[] strings;
+	private int size;
+
+	/**
+	 * Gets the slot of a property.
+	 *
+	 * @param name
+	 *            property name
+	 * @return slot index, or -1 if the property does not exist
+	 */
+	int indexOf(String name) {
+		if (size == 0 || name == null) {
+			return -1;
+		}
+
+		int mask = keys.length - 1;
+		for (int i = name.hashCode() & mask;; i = (i + 1) & mask) {
+			String key = keys[i];
+			if (key == null) {
+				return -1;
+			}
+			if (key == name || key.equals(name)) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * Gets the type of the property in a slot. A missing property, slot -1,
+	 * reads as {@link ObjectType#NULL}.
+	 */
+	ObjectType typeAt(int index) {
+		return (index < 0) ? ObjectType.NULL : types[index];
+	}
+
+	long longAt(int index) {
+		return primitives[index];
+	}
+
+	boolean booleanAt(int index) {
+		return primitives[index] != 0;
+	}
+
+	float floatAt(int index) {
+		return Float.intBitsToFloat((int) primitives[index]);
+	}
+
+	double doubleAt(int index) {
+		return Double.longBitsToDouble(primitives[index]);
+	}
+
+	/**
+	 * Gets the string value in a slot; <code>null</code> for a missing
+	 * property or a property that is not a string.
+	 */
+	String stringAt(int index) {
+		return (index < 0) ? null : strings[index];
+	}
+
+	/**
+	 * Gets the value in a slot in objectified format.
+	 */
+	Object valueAt(int index) {
+		switch (typeAt(index)) {
+		case BOOLEAN:
+			return booleanAt(index);
+		case BYTE:
+			return (byte) primitives[index];
+		case SHORT:
+			return (short) primitives[index];
+		case INT:
+			return (int) primitives[index];
+		case LONG:
+			return primitives[index];
+		case FLOAT:
+			return floatAt(index);
+		case DOUBLE:
+			return doubleAt(index);
+		case STRING:
+			return strings[index];
+		default:
+			return null;
+		}
+	}
+
+	void putBoolean(String name, boolean value) {
+		put(name, ObjectType.BOOLEAN, value ? 1 : 0, null);
+	}
+
+	void putByte(String name, byte value) {
+		put(name, ObjectType.BYTE, value, null);
+	}
+
+	void putShort(String name, short value) {
+		put(name, ObjectType.SHORT, value, null);
+	}
+
+	void putInt(String name, int value) {
+		put(name, ObjectType.INT, value, null);
+	}
+
+	void putLong(String name, long value) {
+		put(name, ObjectType.LONG, value, null);
+	}
+
+	void putFloat(String name, float value) {
+		put(name, ObjectType.FLOAT, Float.floatToRawIntBits(value), null);
+	}
+
+	void putDouble(String name, double value) {
+		put(name, ObjectType.DOUBLE, Double.doubleToRawLongBits(value), null);
+	}
+
+	void putString(String name, String value) {
+		put(name, (value == null) ? ObjectType.NULL : ObjectType.STRING, 0,
+				value);
+	}
+
+	boolean contains(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Estimates the heap used by the properties: the slots of the tables plus
+	 * the characters of string values. Keys are interned and not counted.
+	 */
+	long estimatedSize() {
+		if (keys == null) {
+			return 0;
+		}
+		long bytes = keys.length * 32L;
+		for (int i = 0; size > 0 && i < strings.length; i++) {
+			if (strings[i] != null) {
+				bytes += strings[i].length() * 2L;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gets the names of all properties, in no particular order.
+	 */
+	List<String> names() {
+		List<String> names = new ArrayList<String>(size);
+		for (int i = 0; size > 0 && i < keys.length; i++) {
+			if (keys[i] != null) {
+				names.add(keys[i]);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Replaces the properties of another store by copies of the tables of
+	 * this one.
+	 */
+	void copyTo(PropertyStore target) {
+		if (size == 0) {
+			target.clear();
+			return;
+		}
+		target.keys = keys.clone();
+		target.types = types.clone();
+		target.primitives = primitives.clone();
+		target.strings = strings.clone();
+		target.size = size;
+	}
+
+	/**
+	 * Removes all properties. The allocated tables are kept for reuse.
+	 */
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, null);
+			Arrays.fill(types, null);
+			Arrays.fill(strings, null);
+			size = 0;
+		}
+	}
+
+	private void put(String name, ObjectType type, long primitive, String string) {
+		int index = indexOf(name);
+		if (index < 0) {
+			if (keys == null) {
+				allocate(INITIAL_CAPACITY);
+			} else if ((size + 1) * 2 > keys.length) {
+				// keep the table at most half full so probe chains stay short
+				rehash(keys.length * 2);
+			}
+			index = freeSlot(name);
+			keys[index] = name.intern();
+			size++;
+		}
+		types[index] = type;
+		primitives[index] = primitive;
+		strings[index] = string;
+	}
+
+	private int freeSlot(String name) {
+		int mask = keys.length - 1;
+		int i = name.hashCode() & mask;
+		while (keys[i] != null) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		types = new ObjectType[capacity];
+		primitives = new long[capacity];
+		strings = new String[capacity];
+	}
+
+	private void rehash(int capacity) {
+		String[] oldKeys = keys;
+		ObjectType[] oldTypes = types;
+		long[] oldPrimitives = primitives;
+		String[] oldStrings = strings;
+
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int index = freeSlot(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				types[index] = oldTypes[i];
+				primitives[index] = oldPrimitives[i];
+				strings[index] = oldStrings[i];
+			}
+		}
+	}
+}
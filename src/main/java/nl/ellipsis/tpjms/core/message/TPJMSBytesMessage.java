@@ -4,59 +4,83 @@ import java.io.*;
 
 import javax.jms.*;
 
+import nl.ellipsis.tpjms.util.BufferPool;
+
 /**
  * TPJMS implementation of {@link BytesMessage}.
  */
 public class TPJMSBytesMessage extends TPJMSMessage implements BytesMessage {
 	private boolean readOnly = false;
 	private DataInputStream dis;
-	private ByteArrayInputStream bis;
 	private DataOutputStream dos;
-	private ByteArrayOutputStream bos;
 
-	private byte[] data;
+	private final BodyBuffer body;
 
 	public TPJMSBytesMessage(Session session) throws JMSException {
 		super(session);
+		body = BodyBuffer.forSession(session);
 		clearBody();
 	}
 	
 	public TPJMSBytesMessage(Session session, Destination destination) throws JMSException {
 		super(session,destination);
+		body = BodyBuffer.forSession(session);
 		clearBody();
 	}
 
+	private TPJMSBytesMessage(TPJMSBytesMessage original) throws JMSException {
+		super(original);
+		body = original.body.copy();
+		reset();
+	}
+
+	@Override
+	long getBodySize() {
+		return body.size();
+	}
+
 	@Override
 	byte[] getBody() throws JMSException {
 		closeStreams();
-		if (data == null) {
-			return null;
-		}
-
-		byte[] copy = new byte[data.length];
-		System.arraycopy(data, 0, copy, 0, data.length);
-		return copy;
+		return body.toByteArray();
 	}
 
 	@Override
 	void setBody(byte[] data) throws JMSException {
 		closeStreams();
-		if (data == null) {
-			this.data = null;
-		} else {
-			this.data = new byte[data.length];
-			System.arraycopy(data, 0, this.data, 0, data.length);
-		}
+		body.setContent(data);
 		reset();
 	}
 
+	@Override
+	public boolean isBodyChunked() {
+		return body.isChunked();
+	}
+
+	@Override
+	boolean isCopiedForDelivery() {
+		return readOnly && !body.isChunked() && BufferPool.getInstance().isEnabled();
+	}
+
+	@Override
+	TPJMSMessage copyForDelivery() throws JMSException {
+		return new TPJMSBytesMessage(this);
+	}
+
+	@Override
+	void releaseBuffers() {
+		closeStreams();
+		body.release();
+		if (readOnly) {
+			dis = new DataInputStream(body.getInputStream());
+		}
+	}
+
 	@Override
 	public void clearBody() throws JMSException {
 		closeStreams();
-		data = null;
+		body.release();
 		readOnly = false;
-		bos = new ByteArrayOutputStream();
-		dos = new DataOutputStream(bos);
 	}
 
 	/**
@@ -76,7 +100,7 @@ public class TPJMSBytesMessage extends TPJMSMessage implements BytesMessage {
 	@Override
 	public long getBodyLength() throws JMSException {
 		checkReadable();
-		return (data == null) ? 0 : data.length;
+		return body.length();
 	}
 
 	/**
@@ -462,11 +486,7 @@ public class TPJMSBytesMessage extends TPJMSMessage implements BytesMessage {
 	public void reset() throws JMSException {
 		closeStreams();
 		readOnly = true;
-		if (data == null) {
-			data = new byte[0];
-		}
-		bis = new ByteArrayInputStream(data);
-		dis = new DataInputStream(bis);
+		dis = new DataInputStream(body.getInputStream());
 	}
 
 	/**
@@ -799,32 +819,16 @@ public class TPJMSBytesMessage extends TPJMSMessage implements BytesMessage {
 			throw new MessageNotWriteableException(
 					"Message is in read-only mode");
 		}
+		// the output stream is only opened once the body is actually written
+		if (dos == null) {
+			dos = new DataOutputStream(body.getOutputStream());
+		}
 	}
 
 	private void closeStreams() {
-		closeStream(dis);
-		closeStream(bis);
-		closeStream(dos);
-		closeStream(bos);
-
-		// get byte array from stream
-		if (bos != null) {
-			data = bos.toByteArray();
-		}
-
+		// the streams only wrap the body buffer, there is nothing to close
 		dis = null;
-		bis = null;
 		dos = null;
-		bos = null;
-	}
-
-	private void closeStream(Closeable c) {
-		if (c != null) {
-			try {
-				c.close();
-			} catch (Exception ignored) {
-			}
-		}
 	}
 
 }
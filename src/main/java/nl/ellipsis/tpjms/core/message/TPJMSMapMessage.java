@@ -1,17 +1,23 @@
 package nl.ellipsis.tpjms.core.message;
 
-import java.io.*;
 import java.util.*;
 
 import javax.jms.*;
 
-import nl.ellipsis.tpjms.protocol.MarshallingSupport;
+import nl.ellipsis.tpjms.protocol.EncodedMap;
+import nl.ellipsis.tpjms.protocol.MarshallingEncoder;
 
 /**
  * TPJMS implementation of {@link MapMessage}.
  */
 public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
+	/** estimated size of a map entry with a boxed value */
+	private static final int MAP_ENTRY_SIZE = 48;
+
 	private final Map<String, Object> data = new HashMap<String, Object>();
+	/** estimated size of the entries of data, kept up to date by put */
+	private volatile long dataSize = 0;
+	private EncodedMap view;
 	private boolean readOnly = false;
 
 	public TPJMSMapMessage(Session session) throws JMSException {
@@ -22,56 +28,62 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 		super(session,destination);
 	}
 
+	private TPJMSMapMessage(TPJMSMapMessage original) {
+		super(original);
+		// a received body gets its own view, the decoding state is not shared
+		if (original.view != null) {
+			view = original.view.duplicate();
+		} else {
+			data.putAll(original.data);
+			dataSize = original.dataSize;
+		}
+		readOnly = true;
+	}
+
+	@Override
+	TPJMSMessage copyForDelivery() {
+		return new TPJMSMapMessage(this);
+	}
+
 	@Override
 	byte[] getBody() throws JMSException {
-		ByteArrayOutputStream bos = null;
-		DataOutputStream dos = null;
+		if (view != null) {
+			// not modified, hand out the received bytes as they are
+			return view.toByteArray();
+		}
 
+		// marshal into pooled scratch space, only the result is allocated
+		MarshallingEncoder encoder = new MarshallingEncoder();
 		try {
-			bos = new ByteArrayOutputStream();
-			dos = new DataOutputStream(bos);
-			MarshallingSupport.marshalMap(dos, data);
+			encoder.writeMap(data);
+			return encoder.toByteArray();
 		} finally {
-			if (dos != null)
-				try {
-					dos.close();
-				} catch (Exception ignored) {
-				}
-			if (bos != null)
-				try {
-					bos.close();
-				} catch (Exception ignored) {
-				}
+			encoder.release();
 		}
+	}
 
-		return bos.toByteArray();
+	@Override
+	long getBodySize() {
+		EncodedMap encoded = view;
+		return (encoded != null) ? encoded.length() : dataSize;
 	}
 
+	/**
+	 * Sets the encoded body. The body is read through an {@link EncodedMap},
+	 * which only decodes the entries that are accessed, so a message that is
+	 * only routed or forwarded is never decoded. The map is unmarshalled in
+	 * full once it is modified.
+	 */
 	@Override
 	void setBody(byte[] bodyData) throws JMSException {
 		data.clear();
+		dataSize = 0;
 		if (bodyData == null) {
-			return;
-		}
-
-		ByteArrayInputStream bis = null;
-		DataInputStream dis = null;
-
-		try {
-			bis = new ByteArrayInputStream(bodyData);
-			dis = new DataInputStream(bis);
-			MarshallingSupport.unmarshalMap(dis, data);
-		} finally {
-			if (dis != null)
-				try {
-					dis.close();
-				} catch (Exception ignored) {
-				}
-			if (bis != null)
-				try {
-					bis.close();
-				} catch (Exception ignored) {
-				}
+			view = null;
+		} else {
+			byte[] copy = new byte[bodyData.length];
+			System.arraycopy(bodyData, 0, copy, 0, bodyData.length);
+			view = new EncodedMap(copy);
 		}
 	}
 
@@ -88,6 +100,8 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	@Override
 	public void clearBody() throws JMSException {
 		data.clear();
+		dataSize = 0;
+		view = null;
 		readOnly = false;
 	}
 
@@ -105,7 +119,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public boolean getBoolean(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Boolean) {
 			return (Boolean) value;
@@ -134,7 +148,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public byte getByte(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Byte) {
 			return (Byte) value;
@@ -164,7 +178,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public byte[] getBytes(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value == null) {
 			return null;
@@ -195,7 +209,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public char getChar(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value == null) {
 			throw new NullPointerException(
@@ -225,7 +239,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public double getDouble(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Double) {
 			return (Double) value;
@@ -258,7 +272,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public float getFloat(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Float) {
 			return (Float) value;
@@ -287,7 +301,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public int getInt(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Integer) {
 			return (Integer) value;
@@ -324,7 +338,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public long getLong(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Long) {
 			return (Long) value;
@@ -362,6 +376,9 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public Enumeration getMapNames() throws JMSException {
+		if (view != null) {
+			return Collections.enumeration(view.keys());
+		}
 		return Collections.enumeration(data.keySet());
 	}
 
@@ -392,7 +409,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public Object getObject(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value == null) {
 			return null;
@@ -430,7 +447,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public short getShort(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value instanceof Short) {
 			return (Short) value;
@@ -464,7 +481,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public String getString(String name) throws JMSException {
-		Object value = data.get(name);
+		Object value = getValue(name);
 
 		if (value == null) {
 			return null;
@@ -491,7 +508,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	 */
 	@Override
 	public boolean itemExists(String name) throws JMSException {
-		return data.containsKey(name);
+		return (view != null) ? view.containsKey(name) : data.containsKey(name);
 	}
 
 	/**
@@ -514,7 +531,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setBoolean(String name, boolean value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -537,7 +554,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setByte(String name, byte value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -571,7 +588,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 			copy = new byte[value.length];
 			System.arraycopy(value, 0, copy, 0, value.length);
 		}
-		data.put(name, copy);
+		put(name, copy);
 	}
 
 	/**
@@ -605,7 +622,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 			copy = new byte[length];
 			System.arraycopy(value, offset, copy, 0, length);
 		}
-		data.put(name, copy);
+		put(name, copy);
 	}
 
 	/**
@@ -627,7 +644,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setChar(String name, char value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -650,7 +667,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setDouble(String name, double value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -673,7 +690,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setFloat(String name, float value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -696,7 +713,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setInt(String name, int value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -719,7 +736,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setLong(String name, long value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -756,11 +773,11 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 				|| value instanceof Integer || value instanceof Long
 				|| value instanceof Float || value instanceof Double
 				|| value instanceof String) {
-			data.put(name, value);
+			put(name, value);
 		} else if (value instanceof byte[]) {
 			byte[] copy = new byte[((byte[]) value).length];
 			System.arraycopy(value, 0, copy, 0, copy.length);
-			data.put(name, copy);
+			put(name, copy);
 		} else {
 			throw new MessageFormatException("Invalid object type: "
 					+ value.getClass().getName());
@@ -787,7 +804,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setShort(String name, short value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	/**
@@ -810,7 +827,7 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 	public void setString(String name, String value) throws JMSException {
 		checkName(name);
 		checkReadOnly();
-		data.put(name, value);
+		put(name, value);
 	}
 
 	private void checkReadOnly() throws MessageNotWriteableException {
@@ -825,4 +842,39 @@ public class TPJMSMapMessage extends TPJMSMessage implements MapMessage {
 			throw new IllegalArgumentException("name must be specified");
 		}
 	}
+
+	private Object getValue(String name) throws JMSException {
+		return (view != null) ? view.get(name) : data.get(name);
+	}
+
+	/**
+	 * Puts a value into the map, decoding a received body first, and keeps
+	 * the size estimate of the map up to date.
+	 */
+	private void put(String name, Object value) throws JMSException {
+		long size = dataSize;
+		if (view != null) {
+			view.copyTo(data);
+			view = null;
+			size = 0;
+			for (Map.Entry<String, Object> entry : data.entrySet()) {
+				size += entrySize(entry.getKey(), entry.getValue());
+			}
+		}
+		Object previous = data.put(name, value);
+		if (previous != null) {
+			size -= entrySize(name, previous);
+		}
+		dataSize = size + entrySize(name, value);
+	}
+
+	private static long entrySize(String name, Object value) {
+		long bytes = MAP_ENTRY_SIZE + name.length() * 2L;
+		if (value instanceof String) {
+			bytes += ((String) value).length() * 2L;
+		} else if (value instanceof byte[]) {
+			bytes += ((byte[]) value).length;
+		}
+		return bytes;
+	}
 }
@@ -2,21 +2,29 @@ package nl.ellipsis.tpjms.core.message;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.jms.*;
 
 import nl.ellipsis.tpjms.core.destination.TPJMSDestination;
 import nl.ellipsis.tpjms.core.session.TPJMSSession;
+import nl.ellipsis.tpjms.trace.MessageTrace;
+import nl.ellipsis.tpjms.trace.TraceStage;
 import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+import nl.ellipsis.tpjms.util.BufferPool;
 
 import org.apache.logging.log4j.*;
 
 public class TPJMSMessage implements Message {
 	private static final Logger logger = LogManager.getLogger(TPJMSMessage.class);
+	private static final AtomicIntegerFieldUpdater<TPJMSMessage> HOLDERS = AtomicIntegerFieldUpdater
+			.newUpdater(TPJMSMessage.class, "holders");
 
 	/* Properties */
-	private final Map<String, Object> properties = new HashMap<String, Object>();
+	private final PropertyStore properties = new PropertyStore();
 	private final static String MESSAGEID_PREFIX = "ID:";
+	/** estimated size of a message without properties or body */
+	private final static int HEADER_SIZE = 256;
 
 	/* Headers */
 	private String messageID = null;
@@ -36,8 +44,19 @@ public class TPJMSMessage implements Message {
 
 	/* State */
 	private boolean propertiesReadOnly = false;
+	/* set on a copy made for a delivery, which owns its pooled buffers */
+	private boolean releaseOnAcknowledge = false;
+	/* holders of the pooled buffers, see retain() */
+	private volatile int holders;
 
 	private AcknowledgeCallback acknowledgeCallback;
+	/* set on a copy made for a delivery, acknowledges to the consuming session */
+	private AcknowledgeCallback consumedCallback;
+
+	/* Metrics, System.nanoTime() or 0 if not recorded */
+	private volatile long sendNanos;
+	/* Tracing, set if the message was sampled when sent */
+	private volatile MessageTrace trace;
 	
 	public TPJMSMessage(Session session) {
 		this.session = session;
@@ -53,6 +72,32 @@ public class TPJMSMessage implements Message {
 		messageID = MESSAGEID_PREFIX + UUID.randomUUID().toString();
 	}
 
+	/**
+	 * Creates a copy made by {@link #forDelivery(AcknowledgeCallback)}. The
+	 * copy keeps the message ID, headers, properties and state of the original,
+	 * and owns its pooled buffers.
+	 */
+	TPJMSMessage(TPJMSMessage original) {
+		session = original.session;
+		messageID = original.messageID;
+		correlationID = original.correlationID;
+		deliveryMode = original.deliveryMode;
+		priority = original.priority;
+		expiration = original.expiration;
+		timestamp = original.timestamp;
+		redelivered = original.redelivered;
+		type = original.type;
+		destination = original.destination;
+		replyTo = original.replyTo;
+		original.properties.copyTo(properties);
+		propertiesReadOnly = original.propertiesReadOnly;
+		acknowledgeCallback = original.acknowledgeCallback;
+		sendNanos = original.sendNanos;
+		trace = original.trace;
+		releaseOnAcknowledge = true;
+		holders = 1;
+	}
+
 	/**
 	 * Acknowledges all consumed messages of the session of this consumed
 	 * message. All consumed JMS messages support the acknowledge method for use
@@ -86,6 +131,53 @@ public class TPJMSMessage implements Message {
 		if (acknowledgeCallback != null) {
 			acknowledgeCallback.acknowledge(messageID);
 		}
+		if (consumedCallback != null) {
+			consumedCallback.acknowledge(messageID);
+		}
+		MessageTrace messageTrace = trace;
+		// a producer acknowledging its own message is not an acknowledge
+		if (messageTrace != null && messageTrace.isRecorded(TraceStage.DISPATCH_WAIT)
+				&& !messageTrace.isRecorded(TraceStage.ACKNOWLEDGE)) {
+			messageTrace.completed(TraceStage.ACKNOWLEDGE);
+		}
+		// the body is consumed, a delivery copy hands its buffers back for the
+		// next message
+		releaseDelivered();
+	}
+
+	/**
+	 * Hands the pooled buffers of a copy made by
+	 * {@link #forDelivery(AcknowledgeCallback)} back to the {@link BufferPool}
+	 * once the client is done with it, in an acknowledge mode in which the
+	 * client does not acknowledge. Does nothing for any other message, or if
+	 * the copy was acknowledged already.
+	 */
+	public void releaseDelivered() {
+		if (releaseOnAcknowledge) {
+			releaseOnAcknowledge = false;
+			release();
+		}
+	}
+
+	/**
+	 * Counts a holder of the pooled buffers of this message. While pooling is
+	 * enabled, a provider holds a sent message while it routes it, and for
+	 * each delivery until the copy for that delivery is made; a message it
+	 * keeps for later is held for good. The buffers are handed back to the
+	 * {@link BufferPool} by the {@link #release()} of the last holder.
+	 */
+	public void retain() {
+		HOLDERS.incrementAndGet(this);
+	}
+
+	/**
+	 * Lets go of a hold taken by {@link #retain()}, releasing the pooled
+	 * buffers if it was the last.
+	 */
+	public void release() {
+		if (HOLDERS.decrementAndGet(this) == 0) {
+			releaseBuffers();
+		}
 	}
 
 	/**
@@ -130,6 +222,92 @@ public class TPJMSMessage implements Message {
 		return null;
 	}
 
+	/**
+	 * Estimates the heap used by the body. Subclasses with a body should
+	 * override this method; it must not change the state of the body.
+	 * 
+	 * @return estimated size in bytes
+	 */
+	long getBodySize() {
+		return 0;
+	}
+
+	/**
+	 * Makes the body read-only once the message is sent, so it no longer
+	 * changes under its consumers. Only message types that cache their
+	 * decoded body need this; the default does nothing.
+	 */
+	public void setBodyReadOnly() {
+	}
+
+	/**
+	 * Indicates whether the body has been moved out of the heap to a chunk
+	 * store of the provider. Such a body is only read back in full on demand.
+	 */
+	public boolean isBodyChunked() {
+		return false;
+	}
+
+	/**
+	 * Gets the instance to hand to a consumer. The consumers of a destination
+	 * are handed the same sent message, so it is copied for a delivery whose
+	 * acknowledge must reach the consuming session, and, while pooling is
+	 * enabled, for each delivery of a body read from pooled buffers. A copy
+	 * owns its buffers and hands them back to the {@link BufferPool} when it is
+	 * acknowledged, see {@link #releaseDelivered()}. Otherwise this message
+	 * itself is delivered.
+	 * 
+	 * @param consumedCallback
+	 *            acknowledges the messages consumed by the session the
+	 *            message is delivered to, or <code>null</code> if that session
+	 *            does not track them
+	 */
+	public TPJMSMessage forDelivery(AcknowledgeCallback consumedCallback) {
+		if (consumedCallback == null && !isCopiedForDelivery()) {
+			return this;
+		}
+		TPJMSMessage copy;
+		try {
+			copy = copyForDelivery();
+		} catch (JMSException e) {
+			logger.warn("Unable to copy message " + messageID + " for delivery", e);
+			return this;
+		}
+		copy.consumedCallback = consumedCallback;
+		// the delivery no longer needs the body of this message
+		release();
+		return copy;
+	}
+
+	/**
+	 * Indicates whether each delivery gets its own copy of this message, even
+	 * if its acknowledges are not tracked. The default does not copy.
+	 */
+	boolean isCopiedForDelivery() {
+		return false;
+	}
+
+	/**
+	 * Creates a read-only copy of this message for a delivery. Subclasses with
+	 * a body must override this method.
+	 */
+	TPJMSMessage copyForDelivery() throws JMSException {
+		return new TPJMSMessage(this);
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Returns pooled body buffers to the {@link BufferPool}. Called by the
+	 * {@link #release()} of the last holder of the buffers; afterwards the
+	 * body reads as empty. Subclasses holding pooled buffers should override
+	 * this method.
+	 */
+	void releaseBuffers() {
+	}
+
 	/**
 	 * Clears a message's properties.
 	 * 
@@ -161,19 +339,16 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public boolean getBooleanProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value == null || value instanceof String) {
-			return Boolean.valueOf((String) value);
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case NULL:
+		case STRING:
+			return Boolean.parseBoolean(properties.stringAt(index));
+		case BOOLEAN:
+			return properties.booleanAt(index);
+		default:
+			throw conversionError("boolean", index);
 		}
-
-		if (value instanceof Boolean) {
-			return (Boolean) value;
-		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to boolean from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -190,18 +365,16 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public byte getByteProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-		if (value instanceof Byte) {
-			return (Byte) value;
-		}
-
-		if (value == null || value instanceof String) {
-			return Byte.valueOf((String) value);
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case BYTE:
+			return (byte) properties.longAt(index);
+		case NULL:
+		case STRING:
+			return Byte.parseByte(properties.stringAt(index));
+		default:
+			throw conversionError("byte", index);
 		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to byte from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -218,22 +391,18 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public double getDoubleProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-		if (value instanceof Double) {
-			return (Double) value;
-		}
-
-		if (value instanceof Float) {
-			return (Float) value;
-		}
-
-		if (value == null || value instanceof String) {
-			return Double.valueOf((String) value);
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case DOUBLE:
+			return properties.doubleAt(index);
+		case FLOAT:
+			return properties.floatAt(index);
+		case NULL:
+		case STRING:
+			return Double.parseDouble(properties.stringAt(index));
+		default:
+			throw conversionError("double", index);
 		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to double from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -250,19 +419,16 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public float getFloatProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value instanceof Float) {
-			return (Float) value;
-		}
-
-		if (value == null || value instanceof String) {
-			return Float.valueOf((String) value);
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case FLOAT:
+			return properties.floatAt(index);
+		case NULL:
+		case STRING:
+			return Float.parseFloat(properties.stringAt(index));
+		default:
+			throw conversionError("float", index);
 		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to float from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -279,27 +445,18 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public int getIntProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value instanceof Integer) {
-			return (Integer) value;
-		}
-
-		if (value instanceof Short) {
-			return (Short) value;
-		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case INT:
+		case SHORT:
+		case BYTE:
+			return (int) properties.longAt(index);
+		case NULL:
+		case STRING:
+			return Integer.parseInt(properties.stringAt(index));
+		default:
+			throw conversionError("int", index);
 		}
-
-		if (value == null || value instanceof String) {
-			return Integer.valueOf((String) value);
-		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to int from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -610,31 +767,19 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public long getLongProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value instanceof Long) {
-			return (Long) value;
-		}
-
-		if (value instanceof Integer) {
-			return (Integer) value;
-		}
-
-		if (value instanceof Short) {
-			return (Short) value;
-		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case LONG:
+		case INT:
+		case SHORT:
+		case BYTE:
+			return properties.longAt(index);
+		case NULL:
+		case STRING:
+			return Long.parseLong(properties.stringAt(index));
+		default:
+			throw conversionError("long", index);
 		}
-
-		if (value == null || value instanceof String) {
-			return Long.valueOf((String) value);
-		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to long from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -659,45 +804,7 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public Object getObjectProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value == null) {
-			return null;
-		}
-
-		if (value instanceof String) {
-			return value;
-		}
-
-		if (value instanceof Double) {
-			return value;
-		}
-
-		if (value instanceof Float) {
-			return value;
-		}
-
-		if (value instanceof Long) {
-			return value;
-		}
-
-		if (value instanceof Integer) {
-			return value;
-		}
-
-		if (value instanceof Short) {
-			return value;
-		}
-
-		if (value instanceof Byte) {
-			return value;
-		}
-
-		if (value instanceof Boolean) {
-			return value;
-		}
-
-		return null;
+		return properties.valueAt(properties.indexOf(name));
 	}
 
 	/**
@@ -715,7 +822,7 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public Enumeration getPropertyNames() throws JMSException {
-		return Collections.enumeration(properties.keySet());
+		return Collections.enumeration(properties.names());
 	}
 
 	/**
@@ -732,23 +839,17 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public short getShortProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value instanceof Short) {
-			return (Short) value;
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case SHORT:
+		case BYTE:
+			return (short) properties.longAt(index);
+		case NULL:
+		case STRING:
+			return Short.parseShort(properties.stringAt(index));
+		default:
+			throw conversionError("short", index);
 		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
-		}
-
-		if (value == null || value instanceof String) {
-			return Short.valueOf((String) value);
-		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to short from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -767,47 +868,26 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public String getStringProperty(String name) throws JMSException {
-		Object value = properties.get(name);
-
-		if (value == null) {
+		int index = properties.indexOf(name);
+		switch (properties.typeAt(index)) {
+		case NULL:
 			return null;
+		case STRING:
+			return properties.stringAt(index);
+		case DOUBLE:
+			return Double.toString(properties.doubleAt(index));
+		case FLOAT:
+			return Float.toString(properties.floatAt(index));
+		case LONG:
+		case INT:
+		case SHORT:
+		case BYTE:
+			return Long.toString(properties.longAt(index));
+		case BOOLEAN:
+			return Boolean.toString(properties.booleanAt(index));
+		default:
+			throw conversionError("String", index);
 		}
-
-		if (value instanceof String) {
-			return (String) value;
-		}
-
-		if (value instanceof Double) {
-			return Double.toString((Double) value);
-		}
-
-		if (value instanceof Float) {
-			return Float.toString((Float) value);
-		}
-
-		if (value instanceof Long) {
-			return Long.toString((Long) value);
-		}
-
-		if (value instanceof Integer) {
-			return Integer.toString((Integer) value);
-		}
-
-		if (value instanceof Short) {
-			return Short.toString((Short) value);
-		}
-
-		if (value instanceof Byte) {
-			return Byte.toString((Byte) value);
-		}
-
-		if (value instanceof Boolean) {
-			return Boolean.toString((Boolean) value);
-		}
-
-		throw new MessageFormatException(
-				"Unsupported conversion to String from type: "
-						+ value.getClass().getName());
 	}
 
 	/**
@@ -822,7 +902,7 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public boolean propertyExists(String name) throws JMSException {
-		return properties.containsKey(name);
+		return properties.contains(name);
 	}
 
 	/**
@@ -844,7 +924,8 @@ public class TPJMSMessage implements Message {
 	@Override
 	public void setBooleanProperty(String name, boolean value)
 			throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putBoolean(name, value);
 	}
 
 	/**
@@ -865,7 +946,8 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public void setByteProperty(String name, byte value) throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putByte(name, value);
 	}
 
 	/**
@@ -887,7 +969,8 @@ public class TPJMSMessage implements Message {
 	@Override
 	public void setDoubleProperty(String name, double value)
 			throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putDouble(name, value);
 	}
 
 	/**
@@ -908,7 +991,8 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public void setFloatProperty(String name, float value) throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putFloat(name, value);
 	}
 
 	/**
@@ -929,7 +1013,8 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public void setIntProperty(String name, int value) throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putInt(name, value);
 	}
 
 	/**
@@ -1266,7 +1351,8 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public void setLongProperty(String name, long value) throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putLong(name, value);
 	}
 
 	/**
@@ -1296,25 +1382,28 @@ public class TPJMSMessage implements Message {
 	@Override
 	public void setObjectProperty(String name, Object value)
 			throws JMSException {
-		if (name == null || name.length() == 0) {
-			throw new IllegalArgumentException("name is required");
-		}
-
-		if (propertiesReadOnly) {
-			throw new MessageNotWriteableException(
-					"Message properties are read-only");
-		}
+		checkPropertyWritable(name);
 
-		if (value != null && !(value instanceof Boolean)
-				&& !(value instanceof Byte) && !(value instanceof Short)
-				&& !(value instanceof Integer) && !(value instanceof Long)
-				&& !(value instanceof Float) && !(value instanceof Double)
-				&& !(value instanceof String)) {
+		if (value == null || value instanceof String) {
+			properties.putString(name, (String) value);
+		} else if (value instanceof Boolean) {
+			properties.putBoolean(name, (Boolean) value);
+		} else if (value instanceof Byte) {
+			properties.putByte(name, (Byte) value);
+		} else if (value instanceof Short) {
+			properties.putShort(name, (Short) value);
+		} else if (value instanceof Integer) {
+			properties.putInt(name, (Integer) value);
+		} else if (value instanceof Long) {
+			properties.putLong(name, (Long) value);
+		} else if (value instanceof Float) {
+			properties.putFloat(name, (Float) value);
+		} else if (value instanceof Double) {
+			properties.putDouble(name, (Double) value);
+		} else {
 			throw new MessageFormatException("Illegal property type: "
 					+ value.getClass().getName());
 		}
-
-		properties.put(name, value);
 	}
 
 	/**
@@ -1335,7 +1424,8 @@ public class TPJMSMessage implements Message {
 	 */
 	@Override
 	public void setShortProperty(String name, short value) throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putShort(name, value);
 	}
 
 	/**
@@ -1357,7 +1447,8 @@ public class TPJMSMessage implements Message {
 	@Override
 	public void setStringProperty(String name, String value)
 			throws JMSException {
-		setObjectProperty(name, value);
+		checkPropertyWritable(name);
+		properties.putString(name, value);
 	}
 
 	/**
@@ -1370,6 +1461,25 @@ public class TPJMSMessage implements Message {
 		this.propertiesReadOnly = value;
 	}
 
+	private void checkPropertyWritable(String name)
+			throws MessageNotWriteableException {
+		if (name == null || name.length() == 0) {
+			throw new IllegalArgumentException("name is required");
+		}
+
+		if (propertiesReadOnly) {
+			throw new MessageNotWriteableException(
+					"Message properties are read-only");
+		}
+	}
+
+	private MessageFormatException conversionError(String targetType,
+			int index) {
+		return new MessageFormatException("Unsupported conversion to "
+				+ targetType + " from type: "
+				+ properties.valueAt(index).getClass().getName());
+	}
+
 	// ////////// INTERNAL
 	public AcknowledgeCallback getAcknowledgeCallback() {
 		return acknowledgeCallback;
@@ -1379,4 +1489,39 @@ public class TPJMSMessage implements Message {
 		this.acknowledgeCallback = acknowledgeCallback;
 	}
 
+	/**
+	 * Gets the {@link System#nanoTime()} at which the provider accepted this
+	 * message, or 0 if metrics were disabled.
+	 */
+	public long getSendNanos() {
+		return sendNanos;
+	}
+
+	public void setSendNanos(long sendNanos) {
+		this.sendNanos = sendNanos;
+	}
+
+	/**
+	 * Gets the trace of this message, or <code>null</code> if it was not
+	 * sampled for tracing.
+	 */
+	public MessageTrace getTrace() {
+		return trace;
+	}
+
+	public void setTrace(MessageTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Estimates the heap used by this message: a fixed amount for the headers
+	 * plus the properties and the body. The estimate is meant for monitoring
+	 * and is cheap enough to compute for every buffered message.
+	 * 
+	 * @return estimated size in bytes
+	 */
+	public long getEstimatedSize() {
+		return HEADER_SIZE + properties.estimatedSize() + getBodySize();
+	}
+
 }
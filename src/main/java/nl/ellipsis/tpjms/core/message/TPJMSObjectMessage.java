@@ -4,19 +4,56 @@ import java.io.*;
 
 import javax.jms.*;
 
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.session.TPJMSSession;
+import nl.ellipsis.tpjms.protocol.JavaObjectSerializer;
+import nl.ellipsis.tpjms.protocol.ObjectSerializer;
+
 /**
  * TinTPJMSyJms implementation of {@link ObjectMessage}.
+ * 
+ * <p>
+ * The payload is converted by the {@link ObjectSerializer} of the connection.
+ * A message becomes read-only when it is sent or its body is set from its
+ * serialized form; from then on the deserialized object is cached and
+ * returned by every call to {@link #getObject()}.
+ * </p>
+ * 
+ * <p>
+ * When the connection passes objects by reference, {@link #setObject} keeps
+ * the object itself and only serializes it when the body is actually needed
+ * in serialized form. In-VM consumers then receive the producer's instance, so
+ * it must be treated as immutable once sent; to change the payload set a new
+ * object rather than modifying the shared one.
+ * </p>
  */
 public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 	private byte[] body;
+	private Serializable object;
 	private boolean readOnly = false;
 
+	private final ObjectSerializer serializer;
+	private final boolean byReference;
+
 	public TPJMSObjectMessage(Session session) {
 		super(session);
+		serializer = getSerializer(session);
+		byReference = isByReference(session);
 	}
 	
 	public TPJMSObjectMessage(Session session, Destination destination) {
 		super(session,destination);
+		serializer = getSerializer(session);
+		byReference = isByReference(session);
+	}
+
+	private TPJMSObjectMessage(TPJMSObjectMessage original) {
+		super(original);
+		body = original.body;
+		object = original.object;
+		readOnly = true;
+		serializer = original.serializer;
+		byReference = original.byReference;
 	}
 
 	/**
@@ -29,17 +66,32 @@ public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 		this.readOnly = readOnly;
 	}
 
+	@Override
+	public void setBodyReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	TPJMSMessage copyForDelivery() {
+		return new TPJMSObjectMessage(this);
+	}
+
 	@Override
 	public void clearBody() throws JMSException {
 		super.clearBody();
 		body = null;
+		object = null;
 		readOnly = false;
 	}
 
 	@Override
 	byte[] getBody() throws JMSException {
 		if (body == null) {
-			return null;
+			if (object == null) {
+				return null;
+			}
+			// passed by reference, serialize once on first demand
+			body = serializer.serialize(object);
 		}
 
 		byte[] copy = new byte[body.length];
@@ -47,6 +99,16 @@ public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 		return copy;
 	}
 
+	/**
+	 * Only counts the serialized form; the size of an object passed by
+	 * reference is unknown.
+	 */
+	@Override
+	long getBodySize() {
+		byte[] bytes = body;
+		return (bytes == null) ? 0 : bytes.length;
+	}
+
 	@Override
 	void setBody(byte[] bodyData) throws JMSException {
 		if (bodyData == null) {
@@ -55,6 +117,8 @@ public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 			this.body = new byte[bodyData.length];
 			System.arraycopy(bodyData, 0, this.body, 0, bodyData.length);
 		}
+		object = null;
+		readOnly = true;
 	}
 
 	/**
@@ -70,10 +134,18 @@ public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 	 */
 	@Override
 	public Serializable getObject() throws JMSException {
+		if (object != null) {
+			return object;
+		}
 		if(body == null) {
 			return null;
 		}
-		return fromByteArray(body);
+		Serializable value = serializer.deserialize(body);
+		if (readOnly) {
+			// the body can no longer change, keep the decoded object
+			object = value;
+		}
+		return value;
 	}
 	
 	/**
@@ -98,73 +170,28 @@ public class TPJMSObjectMessage extends TPJMSMessage implements ObjectMessage {
 		if(readOnly) {
 			throw new MessageNotWriteableException("Message is readonly");
 		}
-		this.body = toByteArray(object);
-	}
-	
-	/**
-	 * Object to byte array
-	 * 
-	 * @throws MessageFormatException 
-	 */
-	private static byte[] toByteArray(Serializable object) throws MessageFormatException {
-		if(object == null) {
-			return null;
-		}
-		byte[] bytes = null;
-		ByteArrayOutputStream bos = null;
-		ObjectOutputStream oos = null;
-	    try {
-            bos = new ByteArrayOutputStream(1024);
-            oos = new ObjectOutputStream(bos);
-            oos.writeObject(object);
-            bytes = bos.toByteArray();
-	    } catch (IOException e) {
-	        throw new MessageFormatException("Cannot serialize object : "+e.toString());
-		} finally {
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (Exception ignored) {}
-			}
-			if (bos != null) {
-				try {
-					oos.close();
-				} catch (Exception ignored) {}
-			}
+		if (byReference) {
+			this.object = object;
+			this.body = null;
+		} else {
+			this.body = serializer.serialize(object);
+			this.object = null;
 		}
-	    return bytes;
 	}
 	
-	/**
-	 * Byte array to object
-	 * @throws MessageFormatException 
-	 */
-	private static Serializable fromByteArray(byte[] bytes) throws MessageFormatException {
-		if(bytes == null) {
-			return null;
-		}
+	private static ObjectSerializer getSerializer(Session session) {
+		TPJMSConnection connection = getConnection(session);
+		return (connection == null) ? JavaObjectSerializer.getInstance()
+				: connection.getObjectSerializer();
+	}
 
-		ByteArrayInputStream bis = null;
-		ObjectInputStream ois = null;
-
-		try {
-			bis = new ByteArrayInputStream(bytes);
-			ois = new ObjectInputStream(bis);
-			return (Serializable) ois.readObject();
-		} catch (Exception e) {
-			throw new MessageFormatException("Unable to deserialize object: " + e.getMessage());
-		} finally {
-			if (ois != null) {
-				try {
-					ois.close();
-				} catch (Exception ignored) {}
-			}
-			if (bis != null) {
-				try {
-					ois.close();
-				} catch (Exception ignored) {}
-			}
-		}
+	private static boolean isByReference(Session session) {
+		TPJMSConnection connection = getConnection(session);
+		return connection != null && connection.isObjectMessageByReference();
 	}
 
+	private static TPJMSConnection getConnection(Session session) {
+		return (session instanceof TPJMSSession) ? ((TPJMSSession) session)
+				.getConnection() : null;
+	}
 }
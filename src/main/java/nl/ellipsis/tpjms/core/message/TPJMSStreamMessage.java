@@ -1,68 +1,102 @@
 package nl.ellipsis.tpjms.core.message;
 
-import java.io.*;
-
 import javax.jms.*;
 
-import nl.ellipsis.tpjms.protocol.MarshallingSupport;
+import nl.ellipsis.tpjms.protocol.MarshallingDecoder;
+import nl.ellipsis.tpjms.protocol.MarshallingEncoder;
 import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+import nl.ellipsis.tpjms.util.BufferPool;
 
 /**
  * TPJMS implementation of {@link StreamMessage}.
+ * 
+ * <p>
+ * The typed read methods peek at the type tag of the next field and decode a
+ * matching primitive straight from the body, without boxing it. Only fields
+ * that need a conversion are read as objects.
+ * </p>
  */
 public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
+	private static final int ENCODER_CAPACITY = 512;
+
 	private boolean readOnly = false;
-	private DataInputStream dis;
-	private ByteArrayInputStream bis;
-	private DataOutputStream dos;
-	private ByteArrayOutputStream bos;
+	private MarshallingDecoder decoder;
+	private MarshallingEncoder encoder;
 
-	private byte[] data;
+	private final BodyBuffer body;
 	private byte[] byteField;
 	private int byteFieldPos = 0;
 	
 	public TPJMSStreamMessage(Session session) throws JMSException {
 		super(session);
+		body = BodyBuffer.forSession(session);
 		clearBody();
 	}
 	public TPJMSStreamMessage(Session session, Destination destination) throws JMSException {
 		super(session,destination);
+		body = BodyBuffer.forSession(session);
 		clearBody();
 	}
 
+	private TPJMSStreamMessage(TPJMSStreamMessage original) throws JMSException {
+		super(original);
+		original.flushEncoder();
+		body = original.body.copy();
+		reset();
+	}
+
+	@Override
+	long getBodySize() {
+		return body.size();
+	}
+
 	@Override
 	byte[] getBody() throws JMSException {
+		flushEncoder();
 		closeStreams();
-		if (data == null) {
-			return null;
-		}
-
-		byte[] copy = new byte[data.length];
-		System.arraycopy(data, 0, copy, 0, data.length);
-		return copy;
+		return body.toByteArray();
 	}
 
 	@Override
 	void setBody(byte[] data) throws JMSException {
 		closeStreams();
-		if (data == null) {
-			this.data = null;
-		} else {
-			this.data = new byte[data.length];
-			System.arraycopy(data, 0, this.data, 0, data.length);
-		}
+		body.setContent(data);
 		reset();
 	}
 
+	@Override
+	public boolean isBodyChunked() {
+		return body.isChunked();
+	}
+
+	@Override
+	boolean isCopiedForDelivery() {
+		return readOnly && !body.isChunked() && BufferPool.getInstance().isEnabled();
+	}
+
+	@Override
+	TPJMSMessage copyForDelivery() throws JMSException {
+		return new TPJMSStreamMessage(this);
+	}
+
+	@Override
+	void releaseBuffers() {
+		closeStreams();
+		body.release();
+		byteField = null;
+		byteFieldPos = 0;
+		if (readOnly) {
+			decoder = body.newDecoder();
+		}
+	}
+
 	@Override
 	public void clearBody() throws JMSException {
 		closeStreams();
-		data = null;
+		body.release();
 		byteField = null;
 		byteFieldPos = 0;
 		readOnly = false;
-		bos = new ByteArrayOutputStream();
-		dos = new DataOutputStream(bos);
 	}
 
 	/**
@@ -83,11 +117,11 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public boolean readBoolean() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-		if (value instanceof Boolean) {
-			return (Boolean) value;
+		if (decoder.peekType() == ObjectType.BOOLEAN) {
+			return decoder.readBoolean();
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Boolean.valueOf((String) value);
 		}
@@ -101,11 +135,11 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public byte readByte() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-		if (value instanceof Byte) {
-			return (Byte) value;
+		if (decoder.peekType() == ObjectType.BYTE) {
+			return decoder.readByte();
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Byte.valueOf((String) value);
 		}
@@ -222,6 +256,10 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public char readChar() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
+		if (decoder.peekType() == ObjectType.CHAR) {
+			return decoder.readChar();
+		}
+
 		Object value = deserializeObject();
 		if (value == null || value instanceof Character) {
 			return (Character) value;
@@ -250,15 +288,16 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public double readDouble() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-		if (value instanceof Double) {
-			return (Double) value;
-		}
-
-		if (value instanceof Float) {
-			return (Float) value;
+		switch (decoder.peekType()) {
+		case DOUBLE:
+			return decoder.readDouble();
+		case FLOAT:
+			return decoder.readFloat();
+		default:
+			break;
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Double.valueOf((String) value);
 		}
@@ -286,12 +325,11 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public float readFloat() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-
-		if (value instanceof Float) {
-			return (Float) value;
+		if (decoder.peekType() == ObjectType.FLOAT) {
+			return decoder.readFloat();
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Float.valueOf((String) value);
 		}
@@ -319,20 +357,18 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public int readInt() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-
-		if (value instanceof Integer) {
-			return (Integer) value;
-		}
-
-		if (value instanceof Short) {
-			return (Short) value;
-		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
+		switch (decoder.peekType()) {
+		case INT:
+			return decoder.readInt();
+		case SHORT:
+			return decoder.readShort();
+		case BYTE:
+			return decoder.readByte();
+		default:
+			break;
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Integer.valueOf((String) value);
 		}
@@ -360,24 +396,20 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public long readLong() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-
-		if (value instanceof Long) {
-			return (Long) value;
-		}
-
-		if (value instanceof Integer) {
-			return (Integer) value;
-		}
-
-		if (value instanceof Short) {
-			return (Short) value;
-		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
+		switch (decoder.peekType()) {
+		case LONG:
+			return decoder.readLong();
+		case INT:
+			return decoder.readInt();
+		case SHORT:
+			return decoder.readShort();
+		case BYTE:
+			return decoder.readByte();
+		default:
+			break;
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Long.valueOf((String) value);
 		}
@@ -447,16 +479,16 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public short readShort() throws JMSException {
 		checkReadable();
 		checkByteReadInProgress();
-		Object value = deserializeObject();
-
-		if (value instanceof Short) {
-			return (Short) value;
-		}
-
-		if (value instanceof Byte) {
-			return (Byte) value;
+		switch (decoder.peekType()) {
+		case SHORT:
+			return decoder.readShort();
+		case BYTE:
+			return decoder.readByte();
+		default:
+			break;
 		}
 
+		Object value = deserializeObject();
 		if (value == null || value instanceof String) {
 			return Short.valueOf((String) value);
 		}
@@ -512,15 +544,12 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	 */
 	@Override
 	public void reset() throws JMSException {
+		flushEncoder();
 		closeStreams();
 		readOnly = true;
-		if (data == null) {
-			data = new byte[0];
-		}
 		byteField = null;
 		byteFieldPos = 0;
-		bis = new ByteArrayInputStream(data);
-		dis = new DataInputStream(bis);
+		decoder = body.newDecoder();
 	}
 
 	/**
@@ -608,15 +637,7 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 	public void writeBytes(byte[] value, int offset, int length)
 			throws JMSException {
 		checkWritable();
-		try {
-			dos.writeByte(ObjectType.BYTE_ARRAY.ordinal());
-			dos.writeInt(length);
-			dos.write(value, offset, length);
-		} catch (EOFException e) {
-			throw new MessageEOFException("End of message: " + e.getMessage());
-		} catch (IOException e) {
-			throw new JMSException("Error reading data: " + e.getMessage());
-		}
+		encoder.writeBytes(value, offset, length);
 	}
 
 	/**
@@ -780,40 +801,37 @@ public class TPJMSStreamMessage extends TPJMSMessage implements StreamMessage {
 			throw new MessageNotWriteableException(
 					"Message is in read-only mode");
 		}
+		// the output stream is only opened once the body is actually written
+		if (encoder == null) {
+			encoder = new MarshallingEncoder(body.getOutputStream(),
+					ENCODER_CAPACITY);
+		}
 	}
 
 	private void serializeObject(Object value) throws JMSException {
-		MarshallingSupport.marshalObject(dos, value);
+		encoder.writeObject(value);
 	}
 
 	private Object deserializeObject() throws JMSException {
-		return MarshallingSupport.unmarshalObject(dis);
+		return decoder.readObject();
 	}
 
-	private void closeStreams() {
-		closeStream(dis);
-		closeStream(bis);
-		closeStream(dos);
-		closeStream(bos);
-
-		// get byte array from stream
-		if (bos != null) {
-			data = bos.toByteArray();
+	private void flushEncoder() throws JMSException {
+		if (encoder != null) {
+			encoder.flush();
 		}
-
-		dis = null;
-		bis = null;
-		dos = null;
-		bos = null;
 	}
 
-	private void closeStream(Closeable c) {
-		if (c != null) {
-			try {
-				c.close();
-			} catch (Exception ignored) {
-			}
+	/**
+	 * Drops the encoder and decoder; bytes still held by the encoder are
+	 * discarded, so flush it first when they belong to the body.
+	 */
+	private void closeStreams() {
+		if (encoder != null) {
+			encoder.release();
+			encoder = null;
 		}
+		decoder = null;
 	}
 
 }
@@ -6,9 +6,20 @@ import javax.jms.*;
 
 /**
  * TPJMS implementation of {@link TextMessage}.
+ * 
+ * <p>
+ * The UTF-8 encoding of the text is cached next to it, so a message that is
+ * handed on several times is only encoded once, and a received body is only
+ * decoded when {@link #getText()} is called. Either form is derived from the
+ * other on demand; {@link #setText(String)} drops the cached encoding.
+ * </p>
  */
 public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private String text;
+	/** UTF-8 encoding of the body, valid for the current text if both are set */
+	private byte[] encoded;
 	private boolean readOnly = false;
 	
 	public TPJMSTextMessage(Session session) {
@@ -31,6 +42,13 @@ public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
 		this.text = text;
 	}
 
+	private TPJMSTextMessage(TPJMSTextMessage original) {
+		super(original);
+		text = original.text;
+		encoded = original.encoded;
+		readOnly = true;
+	}
+
 	/**
 	 * Sets the read-only flag for this message.
 	 * 
@@ -41,25 +59,42 @@ public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
 		this.readOnly = readOnly;
 	}
 
+	@Override
+	TPJMSMessage copyForDelivery() {
+		return new TPJMSTextMessage(this);
+	}
+
 	@Override
 	byte[] getBody() throws JMSException {
-		try {
-			return (text == null) ? null : text.getBytes(Charset
-					.forName("UTF-8"));
-		} catch (Exception e) {
-			throw new JMSException("Unable to serialize body: "
-					+ e.getMessage());
+		if (encoded == null) {
+			if (text == null) {
+				return null;
+			}
+			encoded = text.getBytes(UTF_8);
 		}
+
+		byte[] copy = new byte[encoded.length];
+		System.arraycopy(encoded, 0, copy, 0, encoded.length);
+		return copy;
+	}
+
+	@Override
+	long getBodySize() {
+		String current = text;
+		byte[] bytes = encoded;
+		return ((current == null) ? 0 : current.length() * 2L)
+				+ ((bytes == null) ? 0 : bytes.length);
 	}
 
 	@Override
 	void setBody(byte[] data) throws JMSException {
-		try {
-			text = (data == null) ? null : new String(data,
-					Charset.forName("UTF-8"));
-		} catch (Exception e) {
-			throw new JMSException("Unable to deserialize body: "
-					+ e.getMessage());
+		text = null;
+		if (data == null) {
+			encoded = null;
+		} else {
+			// decoded on the first call to getText()
+			encoded = new byte[data.length];
+			System.arraycopy(data, 0, encoded, 0, data.length);
 		}
 	}
 
@@ -74,6 +109,10 @@ public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
 	 */
 	@Override
 	public String getText() throws JMSException {
+		if (text == null && encoded != null) {
+			// the encoded bytes are kept, they stay valid for the text
+			text = new String(encoded, UTF_8);
+		}
 		return text;
 	}
 
@@ -81,6 +120,7 @@ public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
 	public void clearBody() throws JMSException {
 		super.clearBody();
 		text = null;
+		encoded = null;
 		readOnly = false;
 	}
 
@@ -102,6 +142,7 @@ public class TPJMSTextMessage extends TPJMSMessage implements TextMessage {
 			throw new MessageNotWriteableException("Message is read-only");
 
 		this.text = text;
+		this.encoded = null;
 	}
 
 }
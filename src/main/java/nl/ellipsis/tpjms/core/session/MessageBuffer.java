@@ -0,0 +1,561 @@
+package nl.ellipsis.tpjms.core.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Messages delivered to a {@link TPJMSMessageConsumer} that have not been
+ * received yet.
+ *
+ * <p>
+ * Providers add messages in batches and receivers take them in batches, each
+ * under a single lock acquisition, and a waiting receiver is only woken when
+ * the buffer goes from empty to non-empty. Closing the buffer wakes all
+ * waiting receivers.
+ * </p>
+ *
+ * <p>
+ * While the buffer is paused, messages are still added but none can be taken;
+ * receivers wait until it is resumed.
+ * </p>
+ *
+ * <p>
+ * A buffer can be given a {@link MessageSpool} for a slow consumer. It then
+ * keeps at most a given number of messages in memory and appends the rest to
+ * the spool; once the spool holds messages, all new messages go there too, so
+ * that order is kept. Messages are read back from the spool when the memory
+ * part runs empty.
+ * </p>
+ *
+ * <p>
+ * A buffer can also conflate messages by the value of a key property: a
+ * message replaces the buffered message with the same key, taking its place,
+ * so that the receiver only gets the latest value per key. Keys are indexed
+ * in a hash map, so a replacement costs O(1). Messages read back from a spool
+ * are not conflated.
+ * </p>
+ */
+final class MessageBuffer {
+	private static final Logger logger = LogManager.getLogger(MessageBuffer.class);
+
+	private final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private boolean closed = false;
+	private volatile boolean paused = false;
+	/** number of buffered messages including spooled ones, readable without the lock */
+	private volatile int size = 0;
+	/** number of buffered messages in memory, readable without the lock */
+	private volatile int memorySize = 0;
+
+	private MessageSpool spool;
+	private int memoryLimit;
+
+	/** property to conflate messages by, or <code>null</code> */
+	private String conflationKey;
+	/** conflated messages in memory by key */
+	private final Map<Object, Slot> slots = new HashMap<Object, Slot>();
+
+	/** whether to keep {@link #progressNanos} up to date */
+	private volatile boolean trackProgress = false;
+	/** when a message was last taken or the buffer last became non-empty */
+	private volatile long progressNanos;
+
+	/**
+	 * A buffered message that later messages with the same key replace.
+	 */
+	private static final class Slot {
+		/** message in the buffer that holds the place */
+		final Message queued;
+		/** message to take in its place */
+		Message latest;
+
+		Slot(Message queued) {
+			this.queued = queued;
+			this.latest = queued;
+		}
+	}
+
+	/**
+	 * Adds messages at the tail of the buffer. Messages added to a closed
+	 * buffer are dropped.
+	 * 
+	 * @return number of buffered messages replaced by conflation
+	 */
+	int addAll(Collection<? extends Message> batch) {
+		try {
+			lock.lock();
+			if (closed || batch.isEmpty()) {
+				return 0;
+			}
+			int replaced = 0;
+			if (conflationKey != null) {
+				int count = batch.size();
+				batch = conflate(batch);
+				replaced = count - batch.size();
+				if (batch.isEmpty()) {
+					return replaced;
+				}
+			}
+			boolean wasEmpty = size == 0;
+			if (spool != null
+					&& (spool.size() > 0 || messages.size() + batch.size() > memoryLimit)) {
+				spill(batch);
+			} else {
+				messages.addAll(batch);
+			}
+			updateSize();
+			if (wasEmpty) {
+				if (trackProgress) {
+					progressNanos = System.nanoTime();
+				}
+				notEmpty.signalAll();
+			}
+			return replaced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the message at the head of the buffer.
+	 * 
+	 * @param timeout
+	 *            time to wait in milliseconds; zero waits until a message
+	 *            arrives or the buffer is closed, a negative value does not
+	 *            wait
+	 * @return message, or <code>null</code> if none arrived in time
+	 */
+	Message poll(long timeout) throws InterruptedException {
+		try {
+			lock.lock();
+			if (!await(timeout)) {
+				return null;
+			}
+			if (messages.isEmpty()) {
+				refill();
+			}
+			Message message = latest(messages.poll());
+			taken();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to <code>max</code> messages from the head of the buffer to
+	 * <code>batch</code>. Waits for the first message as {@link #poll(long)}
+	 * does, but not for the others.
+	 * 
+	 * @return number of messages moved
+	 */
+	int drainTo(List<Message> batch, int max, long timeout) throws InterruptedException {
+		try {
+			lock.lock();
+			if (!await(timeout)) {
+				return 0;
+			}
+			return take(batch, max);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to <code>max</code> messages that are immediately available
+	 * from the head of the buffer to <code>batch</code>.
+	 * 
+	 * @return number of messages moved
+	 */
+	int drainTo(List<Message> batch, int max) {
+		try {
+			lock.lock();
+			if (closed || paused) {
+				return 0;
+			}
+			return take(batch, max);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts messages back at the head of the buffer, in order, for example
+	 * when their delivery was interrupted by a pause.
+	 */
+	void requeue(List<Message> batch) {
+		try {
+			lock.lock();
+			if (closed) {
+				return;
+			}
+			for (int i = batch.size() - 1; i >= 0; i--) {
+				Message message = batch.get(i);
+				messages.addFirst(message);
+				if (conflationKey != null) {
+					// unless a newer message with the key is buffered already
+					Object key = keyOf(message);
+					if (key != null && !slots.containsKey(key)) {
+						slots.put(key, new Slot(message));
+					}
+				}
+			}
+			updateSize();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Pauses or resumes taking messages. Resuming wakes waiting receivers.
+	 */
+	void setPaused(boolean paused) {
+		try {
+			lock.lock();
+			this.paused = paused;
+			if (!paused) {
+				notEmpty.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the property to conflate messages added from now on by.
+	 * 
+	 * @param conflationKey
+	 *            property name, or <code>null</code> to stop conflating
+	 */
+	void setConflationKey(String conflationKey) {
+		try {
+			lock.lock();
+			this.conflationKey = conflationKey;
+			slots.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of buffered messages held in memory, i.e. not spooled.
+	 */
+	int memorySize() {
+		return memorySize;
+	}
+
+	/**
+	 * Starts keeping track of when messages were last taken, for
+	 * {@link #getStalledNanos(long)}.
+	 */
+	void setTrackProgress(boolean trackProgress) {
+		if (trackProgress && !this.trackProgress) {
+			progressNanos = System.nanoTime();
+		}
+		this.trackProgress = trackProgress;
+	}
+
+	/**
+	 * Gets how long messages have been waiting without any being taken.
+	 * 
+	 * @param now
+	 *            current {@link System#nanoTime()}
+	 * @return time in nanoseconds, 0 if the buffer is empty
+	 */
+	long getStalledNanos(long now) {
+		return (size == 0) ? 0 : now - progressNanos;
+	}
+
+	/**
+	 * Spools messages beyond <code>limit</code> held in memory from now on.
+	 * 
+	 * @param session
+	 *            session to read spooled messages back into
+	 * @param limit
+	 *            number of messages to keep in memory
+	 */
+	void spoolBeyond(TPJMSSession session, int limit) {
+		try {
+			lock.lock();
+			if (closed) {
+				return;
+			}
+			if (spool == null) {
+				spool = new MessageSpool(session);
+			}
+			memoryLimit = Math.max(1, limit);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes up to <code>count</code> messages from the head of the buffer.
+	 * 
+	 * @return number of messages removed
+	 */
+	int dropOldest(int count) {
+		try {
+			lock.lock();
+			int dropped = 0;
+			while (dropped < count) {
+				if (messages.isEmpty()) {
+					refill();
+					if (messages.isEmpty()) {
+						break;
+					}
+				}
+				latest(messages.poll());
+				dropped++;
+			}
+			updateSize();
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets a copy of the buffered messages held in memory, in order. The lock
+	 * is only held while copying.
+	 */
+	List<Message> snapshot() {
+		try {
+			lock.lock();
+			List<Message> copy = new ArrayList<Message>(messages);
+			if (!slots.isEmpty()) {
+				for (int i = 0; i < copy.size(); i++) {
+					Object key = keyOf(copy.get(i));
+					Slot slot = (key == null) ? null : slots.get(key);
+					if (slot != null && slot.queued == copy.get(i)) {
+						copy.set(i, slot.latest);
+					}
+				}
+			}
+			return copy;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes all buffered messages, paused or not, including spooled ones.
+	 * Spooled messages that cannot be read back are dropped.
+	 * 
+	 * @return the messages, in order
+	 */
+	List<Message> removeAll() {
+		try {
+			lock.lock();
+			List<Message> removed = new ArrayList<Message>(messages.size());
+			while (!messages.isEmpty()) {
+				removed.add(latest(messages.poll()));
+			}
+			if (spool != null) {
+				try {
+					spool.read(removed, Integer.MAX_VALUE);
+				} catch (JMSException e) {
+					logger.error("Dropped " + spool.clear() + " spooled messages", e);
+				}
+			}
+			updateSize();
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards the buffered messages and releases all waiting receivers.
+	 */
+	void close() {
+		try {
+			lock.lock();
+			closed = true;
+			messages.clear();
+			slots.clear();
+			if (spool != null) {
+				spool.close();
+			}
+			updateSize();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the buffer holds a message. Must be called with the lock
+	 * held.
+	 * 
+	 * @return <code>false</code> if the buffer is closed or the timeout
+	 *         expired first
+	 */
+	private boolean await(long timeout) throws InterruptedException {
+		if (timeout == 0) {
+			while (!available() && !closed) {
+				notEmpty.await();
+			}
+		} else if (timeout > 0) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (!available() && !closed && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		}
+		return available() && !closed;
+	}
+
+	private int take(List<Message> batch, int max) {
+		int count = 0;
+		while (count < max) {
+			if (messages.isEmpty()) {
+				refill();
+				if (messages.isEmpty()) {
+					break;
+				}
+			}
+			batch.add(latest(messages.poll()));
+			count++;
+		}
+		taken();
+		return count;
+	}
+
+	/**
+	 * Updates the sizes and progress after messages were taken. Must be
+	 * called with the lock held.
+	 */
+	private void taken() {
+		updateSize();
+		if (trackProgress) {
+			progressNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Adds the messages that fit in memory and spools the rest. If they cannot
+	 * be spooled, they are kept in memory. Must be called with the lock held.
+	 */
+	private void spill(Collection<? extends Message> batch) {
+		List<Message> rest = new ArrayList<Message>(batch);
+		if (spool.size() == 0) {
+			int room = Math.min(rest.size(), Math.max(0, memoryLimit - messages.size()));
+			messages.addAll(rest.subList(0, room));
+			rest = rest.subList(room, rest.size());
+		}
+		for (int i = 0; i < rest.size(); i++) {
+			// spooled messages can no longer be replaced
+			rest.set(i, latest(rest.get(i)));
+		}
+		try {
+			spool.write(rest);
+		} catch (JMSException e) {
+			logger.warn("Unable to spool messages, keeping them in memory", e);
+			messages.addAll(rest);
+		}
+	}
+
+	/**
+	 * Reads messages back from the spool into memory. Messages that cannot be
+	 * read back are dropped. Must be called with the lock held.
+	 */
+	private void refill() {
+		if (spool == null || spool.size() == 0) {
+			return;
+		}
+		try {
+			spool.read(messages, memoryLimit);
+		} catch (JMSException e) {
+			logger.error("Dropped " + spool.clear() + " spooled messages", e);
+		}
+	}
+
+	/**
+	 * Indexes the keyed messages of a batch, replacing buffered messages with
+	 * the same key. Must be called with the lock held.
+	 * 
+	 * @return the messages to add to the buffer
+	 */
+	private List<Message> conflate(Collection<? extends Message> batch) {
+		List<Message> added = new ArrayList<Message>(batch.size());
+		for (Message message : batch) {
+			Object key = keyOf(message);
+			if (key == null) {
+				added.add(message);
+				continue;
+			}
+			Slot slot = slots.get(key);
+			if (slot != null) {
+				slot.latest = message;
+			} else {
+				slots.put(key, new Slot(message));
+				added.add(message);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Gets the message to take in place of a message leaving the buffer, and
+	 * removes it from the index. Must be called with the lock held.
+	 */
+	private Message latest(Message message) {
+		if (slots.isEmpty() || message == null) {
+			return message;
+		}
+		Object key = keyOf(message);
+		Slot slot = (key == null) ? null : slots.get(key);
+		if (slot == null || slot.queued != message) {
+			return message;
+		}
+		slots.remove(key);
+		return slot.latest;
+	}
+
+	/**
+	 * Gets the conflation key of a message.
+	 * 
+	 * @return key, or <code>null</code> if the message has none
+	 */
+	private Object keyOf(Message message) {
+		if (conflationKey == null) {
+			return null;
+		}
+		try {
+			return message.getObjectProperty(conflationKey);
+		} catch (JMSException e) {
+			return null;
+		}
+	}
+
+	private void updateSize() {
+		memorySize = messages.size();
+		size = messages.size() + ((spool == null) ? 0 : spool.size());
+	}
+
+	private boolean available() {
+		return !paused && size > 0;
+	}
+}
@@ -0,0 +1,221 @@
+package nl.ellipsis.tpjms.core.session;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import nl.ellipsis.tpjms.core.message.MessageCodec;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.trace.MessageTrace;
+import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+
+/**
+ * First-in first-out store of messages in a temporary file, used by a
+ * {@link MessageBuffer} to keep the messages of a slow consumer off the heap.
+ *
+ * <p>
+ * Messages are appended to the file as encoded by {@link MessageCodec}; only
+ * their offset, length, destinations and the state that is not encoded, such
+ * as their acknowledge callback and trace, stay in memory. Messages with a
+ * chunked body are already off the heap and are kept as they are, as encoding
+ * them would read the body back in full. The file is truncated
+ * whenever the spool runs empty, and deleted when the spool is closed. This
+ * class is not thread-safe; the buffer calls it under its lock.
+ * </p>
+ */
+final class MessageSpool {
+	private final TPJMSSession session;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private File file;
+	private RandomAccessFile data;
+	private long end = 0;
+
+	/**
+	 * Location, destinations and in-memory state of a spooled message, or the
+	 * message itself if its body is chunked.
+	 */
+	private static final class Entry {
+		final long offset;
+		final int length;
+		final Destination destination;
+		final Destination replyTo;
+		final AcknowledgeCallback acknowledgeCallback;
+		final MessageTrace trace;
+		final long sendNanos;
+		final Message message;
+
+		Entry(long offset, int length, TPJMSMessage message) throws JMSException {
+			this.offset = offset;
+			this.length = length;
+			this.destination = message.getJMSDestination();
+			this.replyTo = message.getJMSReplyTo();
+			this.acknowledgeCallback = message.getAcknowledgeCallback();
+			this.trace = message.getTrace();
+			this.sendNanos = message.getSendNanos();
+			this.message = null;
+		}
+
+		Entry(Message message) {
+			this.offset = 0;
+			this.length = 0;
+			this.destination = null;
+			this.replyTo = null;
+			this.acknowledgeCallback = null;
+			this.trace = null;
+			this.sendNanos = 0;
+			this.message = message;
+		}
+
+		/**
+		 * Restores the state of the message that is not encoded.
+		 */
+		TPJMSMessage restore(TPJMSMessage decoded) {
+			decoded.setAcknowledgeCallback(acknowledgeCallback);
+			decoded.setTrace(trace);
+			decoded.setSendNanos(sendNanos);
+			return decoded;
+		}
+	}
+
+	/**
+	 * Creates a spool. The file is only created when the first message is
+	 * spooled.
+	 * 
+	 * @param session
+	 *            session the spooled messages are read back into
+	 */
+	MessageSpool(TPJMSSession session) {
+		this.session = session;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Appends messages.
+	 * 
+	 * @throws JMSException
+	 *             if a message is not a TPJMS message or cannot be written;
+	 *             none of the messages is spooled then
+	 */
+	void write(List<? extends Message> messages) throws JMSException {
+		// encode the whole batch first, then write it at once
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		Entry[] written = new Entry[messages.size()];
+		long offset = end;
+		for (int i = 0; i < written.length; i++) {
+			Message message = messages.get(i);
+			if (!(message instanceof TPJMSMessage)) {
+				throw new JMSException("Cannot spool message of type "
+						+ message.getClass().getName());
+			}
+			if (((TPJMSMessage) message).isBodyChunked()) {
+				written[i] = new Entry(message);
+				continue;
+			}
+			byte[] encoded = MessageCodec.encode((TPJMSMessage) message);
+			batch.write(encoded, 0, encoded.length);
+			written[i] = new Entry(offset, encoded.length, (TPJMSMessage) message);
+			offset += encoded.length;
+		}
+
+		try {
+			if (batch.size() > 0) {
+				open();
+				data.seek(end);
+				data.write(batch.toByteArray());
+			}
+			for (Entry entry : written) {
+				entries.add(entry);
+			}
+			end = offset;
+		} catch (IOException e) {
+			throw new JMSException("Unable to spool messages: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads and removes up to <code>max</code> messages from the head of the
+	 * spool.
+	 * 
+	 * @return number of messages read
+	 * @throws JMSException
+	 *             if the messages cannot be read; those that could not be read
+	 *             are left in the spool
+	 */
+	int read(Collection<Message> messages, int max) throws JMSException {
+		int count = 0;
+		try {
+			while (count < max && !entries.isEmpty()) {
+				Entry entry = entries.peek();
+				if (entry.message != null) {
+					messages.add(entry.message);
+					entries.poll();
+					count++;
+					continue;
+				}
+				byte[] encoded = new byte[entry.length];
+				data.seek(entry.offset);
+				data.readFully(encoded);
+				messages.add(entry.restore(MessageCodec.decode(encoded, session,
+						entry.destination, entry.replyTo)));
+				entries.poll();
+				count++;
+			}
+			if (entries.isEmpty() && data != null) {
+				end = 0;
+				data.setLength(0);
+			}
+			return count;
+		} catch (IOException e) {
+			throw new JMSException("Unable to read spooled messages: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Discards all messages.
+	 * 
+	 * @return number of messages discarded
+	 */
+	int clear() {
+		int count = entries.size();
+		entries.clear();
+		end = 0;
+		if (data != null) {
+			try {
+				data.setLength(0);
+			} catch (IOException ignored) {
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Discards all messages and deletes the file.
+	 */
+	void close() {
+		entries.clear();
+		if (data != null) {
+			try {
+				data.close();
+			} catch (IOException ignored) {
+			}
+			file.delete();
+			data = null;
+		}
+	}
+
+	private void open() throws IOException {
+		if (data == null) {
+			file = File.createTempFile("tpjms-", ".spool");
+			data = new RandomAccessFile(file, "rw");
+		}
+	}
+}
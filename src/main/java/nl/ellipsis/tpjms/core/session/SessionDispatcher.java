@@ -0,0 +1,134 @@
+package nl.ellipsis.tpjms.core.session;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.*;
+
+import nl.ellipsis.tpjms.util.DispatchPool;
+
+/**
+ * Runs the listener deliveries of one session on the {@link DispatchPool}.
+ *
+ * <p>
+ * A session delivers to its listeners one message at a time, so the
+ * deliveries are queued and run in order by a single task; the task is only
+ * submitted to the pool while there is work, so an idle session holds no
+ * thread. After {@link #MAX_TASKS_PER_TURN} deliveries the task resubmits
+ * itself, giving other sessions a turn on a bounded platform pool.
+ * </p>
+ */
+final class SessionDispatcher implements Runnable {
+	private static final Logger logger = LogManager.getLogger(SessionDispatcher.class);
+
+	private static final int MAX_TASKS_PER_TURN = 64;
+
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition idle = lock.newCondition();
+	private boolean scheduled = false;
+	private boolean closed = false;
+	/** thread running a delivery, if any */
+	private Thread running;
+
+	/**
+	 * Queues a delivery. Deliveries queued after {@link #close()} are dropped.
+	 */
+	void execute(Runnable task) {
+		try {
+			lock.lock();
+			if (closed) {
+				return;
+			}
+			tasks.add(task);
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		} finally {
+			lock.unlock();
+		}
+		DispatchPool.getInstance().execute(this);
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+			Runnable task;
+			try {
+				lock.lock();
+				task = tasks.poll();
+				if (task == null) {
+					finish();
+					return;
+				}
+				running = Thread.currentThread();
+			} finally {
+				lock.unlock();
+			}
+
+			boolean completed = false;
+			try {
+				task.run();
+				completed = true;
+			} catch (RuntimeException e) {
+				logger.error("Delivery to MessageListener failed", e);
+				completed = true;
+			} finally {
+				if (!completed) {
+					// an Error escapes to the pool, the next task takes over
+					yieldTurn();
+				}
+			}
+		}
+		yieldTurn();
+	}
+
+	/**
+	 * Ends the turn of this task: resubmits it if deliveries are queued,
+	 * otherwise marks the dispatcher idle.
+	 */
+	private void yieldTurn() {
+		try {
+			lock.lock();
+			if (tasks.isEmpty()) {
+				finish();
+				return;
+			}
+			running = null;
+		} finally {
+			lock.unlock();
+		}
+		DispatchPool.getInstance().execute(this);
+	}
+
+	/**
+	 * Drops the queued deliveries and waits for a delivery in progress to
+	 * complete, unless it is called by that delivery itself.
+	 */
+	void close() {
+		try {
+			lock.lock();
+			closed = true;
+			tasks.clear();
+			if (running == Thread.currentThread()) {
+				return;
+			}
+			while (scheduled) {
+				idle.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the dispatcher idle. Must be called with the lock held.
+	 */
+	private void finish() {
+		scheduled = false;
+		running = null;
+		idle.signalAll();
+	}
+}
@@ -0,0 +1,170 @@
+package nl.ellipsis.tpjms.core.session;
+
+import java.util.List;
+
+import javax.jms.*;
+
+import org.apache.logging.log4j.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+
+/**
+ * For application servers, connections provide a special facility for
+ * creating a <CODE>ConnectionConsumer</CODE>. The messages it is to consume
+ * are specified by a <CODE>Destination</CODE> and a message selector. In
+ * addition, a <CODE>ConnectionConsumer</CODE> must be given a
+ * <CODE>ServerSessionPool</CODE> to use for processing its messages.
+ * <P>
+ * This implementation consumes from the destination with a consumer on an
+ * internal session. A dispatcher thread takes batches of up to
+ * <CODE>maxMessages</CODE> messages from it, loads each batch into the
+ * session of a <CODE>ServerSession</CODE> taken from the pool, and starts the
+ * server session, whose session then delivers the batch to its distinguished
+ * message listener in {@link TPJMSSession#run()}. The sessions of the pool
+ * must be sessions of this provider. A batch that cannot be handed to a
+ * server session is put back and tried again after a back-off.
+ *
+ * @see javax.jms.ConnectionConsumer
+ * @see javax.jms.ServerSessionPool
+ */
+public class TPJMSConnectionConsumer implements ConnectionConsumer {
+	private static final Logger logger = LogManager.getLogger(TPJMSConnectionConsumer.class);
+
+	/** first and longest wait before a failed batch is dispatched again */
+	private static final long MIN_BACKOFF_MILLIS = 10;
+	private static final long MAX_BACKOFF_MILLIS = 1000;
+
+	private final TPJMSConnection connection;
+	private final ServerSessionPool sessionPool;
+	private final int maxMessages;
+
+	private final TPJMSSession session;
+	private final TPJMSMessageConsumer consumer;
+	private final Thread dispatcher;
+
+	private volatile boolean closed = false;
+
+	public TPJMSConnectionConsumer(TPJMSConnection connection, Destination destination, String messageSelector,
+			ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+		if (sessionPool == null) {
+			throw new JMSException("sessionPool must be specified");
+		}
+		if (maxMessages <= 0) {
+			throw new JMSException("Invalid maxMessages: " + maxMessages);
+		}
+		this.connection = connection;
+		this.sessionPool = sessionPool;
+		this.maxMessages = maxMessages;
+
+		// a session of the connection, so that it is started and stopped with it
+		this.session = (TPJMSSession) connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			this.consumer = new TPJMSMessageConsumer(session, destination, messageSelector);
+		} catch (JMSException e) {
+			session.close();
+			throw e;
+		}
+
+		this.dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "TPJMSConnectionConsumer-" + destination);
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Closes the connection consumer.
+	 * <P>
+	 * Since a provider may allocate some resources on behalf of a connection
+	 * consumer outside the Java virtual machine, clients should close these
+	 * resources when they are not needed. Relying on garbage collection to
+	 * eventually reclaim these resources may not be timely enough.
+	 * <P>
+	 * Messages already handed to a server session are still delivered.
+	 *
+	 * @throws JMSException if the JMS provider fails to release resources on
+	 *                 behalf of the connection consumer or fails to close the
+	 *                 connection consumer.
+	 */
+	@Override
+	public void close() throws JMSException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		session.close();
+		connection.unregisterConnectionConsumer(this);
+
+		if (Thread.currentThread() != dispatcher) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the server session pool associated with this connection consumer.
+	 *
+	 * @return the server session pool used by this connection consumer
+	 */
+	@Override
+	public ServerSessionPool getServerSessionPool() throws JMSException {
+		return sessionPool;
+	}
+
+	/*
+	 *  TPJMS-specific
+	 */
+
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	private void dispatch() {
+		long backoff = MIN_BACKOFF_MILLIS;
+		while (!closed) {
+			List<Message> batch;
+			try {
+				batch = consumer.receiveBatch(maxMessages, 0);
+			} catch (JMSException e) {
+				if (!closed) {
+					logger.error("Unable to receive messages, stopping connection consumer", e);
+				}
+				return;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			TPJMSSession loaded = null;
+			try {
+				ServerSession serverSession = sessionPool.getServerSession();
+				Session target = serverSession.getSession();
+				if (!(target instanceof TPJMSSession)) {
+					throw new JMSException("ServerSession does not provide a TPJMSSession: " + target);
+				}
+				loaded = (TPJMSSession) target;
+				loaded.loadMessages(batch);
+				serverSession.start();
+				backoff = MIN_BACKOFF_MILLIS;
+			} catch (JMSException e) {
+				logger.error("Unable to dispatch " + batch.size() + " messages to a server session, retrying in "
+						+ backoff + " ms", e);
+				// take the batch back, it is handed to the next server session
+				consumer.requeue((loaded == null) ? batch : loaded.unloadMessages());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			}
+		}
+	}
+}
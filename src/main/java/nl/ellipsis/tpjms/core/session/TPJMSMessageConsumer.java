@@ -1,216 +1,841 @@
-package nl.ellipsis.tpjms.core.session;
-
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageConsumer;
-import javax.jms.MessageListener;
-import javax.jms.Topic;
-
-/**
- * A client uses a <CODE>MessageConsumer</CODE> object to receive messages
- * from a destination. A <CODE> MessageConsumer</CODE> object is created by
- * passing a <CODE>Destination</CODE> object to a message-consumer creation
- * method supplied by a session.
- * <P>
- * <CODE>MessageConsumer</CODE> is the parent interface for all message
- * consumers.
- * <P>
- * A message consumer can be created with a message selector. A message selector
- * allows the client to restrict the messages delivered to the message consumer
- * to those that match the selector.
- * <P>
- * A client may either synchronously receive a message consumer's messages or
- * have the consumer asynchronously deliver them as they arrive.
- * <P>
- * For synchronous receipt, a client can request the next message from a message
- * consumer using one of its <CODE> receive</CODE> methods. There are several
- * variations of <CODE>receive</CODE> that allow a client to poll or wait for
- * the next message.
- * <P>
- * For asynchronous delivery, a client can register a
- * <CODE>MessageListener</CODE> object with a message consumer. As messages
- * arrive at the message consumer, it delivers them by calling the
- * <CODE>MessageListener</CODE>'s<CODE>
- * onMessage</CODE> method.
- * <P>
- * It is a client programming error for a <CODE>MessageListener</CODE> to
- * throw an exception.
- *
- *
- * @see javax.jms.MessageConsumer
- * @see javax.jms.QueueReceiver
- * @see javax.jms.TopicSubscriber
- * @see javax.jms.Session
- */
-public class TPJMSMessageConsumer implements MessageConsumer {
-	private String messageConsumerId;
-	private final Destination destination;
-	private final String messageSelector;
-	private MessageListener messageListener;
-	
-	private boolean noLocal = true;
-	
-	/**
-	 * Connection
-	 */
-	private final TPJMSSession session;
-
-    public TPJMSMessageConsumer(TPJMSSession session, Destination destination) throws JMSException {
-    	this.session = session;
-		this.destination = destination;
-		this.messageSelector = null;
-	}
-
-	public TPJMSMessageConsumer(TPJMSSession session, Destination destination, String messageSelector) throws JMSException {
-	   	this.session = session;
-		this.destination = destination;
-		this.messageSelector = messageSelector;
-	}
-
-	public TPJMSMessageConsumer(TPJMSSession session, Destination destination, String messageSelector, boolean noLocal) throws JMSException {
-	   	this.session = session;
-		this.destination = destination;
-		this.messageSelector = messageSelector;
-		this.noLocal = noLocal;
-	}
-
-	/**
-     * Closes the message consumer.
-     * <P>
-     * Since a provider may allocate some resources on behalf of a <CODE>
-     * MessageConsumer</CODE>
-     * outside the Java virtual machine, clients should close them when they are
-     * not needed. Relying on garbage collection to eventually reclaim these
-     * resources may not be timely enough.
-     * <P>
-     * This call blocks until a <CODE>receive</CODE> or message listener in
-     * progress has completed. A blocked message consumer <CODE>receive </CODE>
-     * call returns null when this message consumer is closed.
-     *
-     * @throws JMSException if the JMS provider fails to close the consumer due
-     *                 to some internal error.
-     */
-	@Override
-	public void close() throws JMSException {
-		// TODO Auto-generated method stub
-		
-	}
-
-    /**
-     * Gets the message consumer's <CODE>MessageListener</CODE>.
-     *
-     * @return the listener for the message consumer, or null if no listener is
-     *         set
-     * @throws JMSException if the JMS provider fails to get the message
-     *                 listener due to some internal error.
-     * @see javax.jms.MessageConsumer#setMessageListener(javax.jms.MessageListener)
-     */
-	@Override
-	public MessageListener getMessageListener() throws JMSException {
-		return messageListener;
-	}
-
-    /**
-     * Gets this message consumer's message selector expression.
-     *
-     * @return this message consumer's message selector, or null if no message
-     *         selector exists for the message consumer (that is, if the message
-     *         selector was not set or was set to null or the empty string)
-     * @throws JMSException if the JMS provider fails to receive the next
-     *                 message due to some internal error.
-     */
-	@Override
-	public String getMessageSelector() throws JMSException {
-		return messageSelector;
-	}
-
-    /**
-     * Receives the next message produced for this message consumer.
-     * <P>
-     * This call blocks indefinitely until a message is produced or until this
-     * message consumer is closed.
-     * <P>
-     * If this <CODE>receive</CODE> is done within a transaction, the consumer
-     * retains the message until the transaction commits.
-     *
-     * @return the next message produced for this message consumer, or null if
-     *         this message consumer is concurrently closed
-     */
-	@Override
-	public Message receive() throws JMSException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	/**
-     * Receives the next message that arrives within the specified timeout
-     * interval.
-     * <P>
-     * This call blocks until a message arrives, the timeout expires, or this
-     * message consumer is closed. A <CODE>timeout</CODE> of zero never
-     * expires, and the call blocks indefinitely.
-     *
-     * @param timeout the timeout value (in milliseconds), a time out of zero
-     *                never expires.
-     * @return the next message produced for this message consumer, or null if
-     *         the timeout expires or this message consumer is concurrently
-     *         closed
-     */
-	@Override
-	public Message receive(long timeout) throws JMSException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-    /**
-     * Receives the next message if one is immediately available.
-     *
-     * @return the next message produced for this message consumer, or null if
-     *         one is not available
-     * @throws JMSException if the JMS provider fails to receive the next
-     *                 message due to some internal error.
-     */
-	@Override
-	public Message receiveNoWait() throws JMSException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-    /**
-     * Sets the message consumer's <CODE>MessageListener</CODE>.
-     * <P>
-     * Setting the message listener to null is the equivalent of unsetting the
-     * message listener for the message consumer.
-     * <P>
-     * The effect of calling <CODE>MessageConsumer.setMessageListener</CODE>
-     * while messages are being consumed by an existing listener or the consumer
-     * is being used to consume messages synchronously is undefined.
-     *
-     * @param listener the listener to which the messages are to be delivered
-     * @throws JMSException if the JMS provider fails to receive the next
-     *                 message due to some internal error.
-     * @see javax.jms.MessageConsumer#getMessageListener
-     */
-	@Override
-	public void setMessageListener(MessageListener messageListener) throws JMSException {
-		this.messageListener = messageListener;
-	}
-	
-	/*
-	 *  TPJMS-specific
-	 */
-
-	protected Destination getDestination() {
-		return destination;
-	}
-	
-	public String getJMSMessageConsumerID() {
-		return messageConsumerId;
-	}
-	
-	public boolean getNoLocal() throws JMSException {
-		return noLocal;
-	}
-	
-}
+package nl.ellipsis.tpjms.core.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import org.apache.logging.log4j.*;
+
+import nl.ellipsis.tpjms.core.destination.SlowConsumerPolicy;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.management.ConsumerView;
+import nl.ellipsis.tpjms.management.ManagementContext;
+import nl.ellipsis.tpjms.metrics.ConsumerMetrics;
+import nl.ellipsis.tpjms.metrics.DestinationMetrics;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.trace.MessageTrace;
+import nl.ellipsis.tpjms.trace.TraceStage;
+import nl.ellipsis.tpjms.trace.Tracing;
+
+/**
+ * A client uses a <CODE>MessageConsumer</CODE> object to receive messages
+ * from a destination. A <CODE> MessageConsumer</CODE> object is created by
+ * passing a <CODE>Destination</CODE> object to a message-consumer creation
+ * method supplied by a session.
+ * <P>
+ * <CODE>MessageConsumer</CODE> is the parent interface for all message
+ * consumers.
+ * <P>
+ * A message consumer can be created with a message selector. A message selector
+ * allows the client to restrict the messages delivered to the message consumer
+ * to those that match the selector.
+ * <P>
+ * A client may either synchronously receive a message consumer's messages or
+ * have the consumer asynchronously deliver them as they arrive.
+ * <P>
+ * For synchronous receipt, a client can request the next message from a message
+ * consumer using one of its <CODE> receive</CODE> methods. There are several
+ * variations of <CODE>receive</CODE> that allow a client to poll or wait for
+ * the next message.
+ * <P>
+ * For asynchronous delivery, a client can register a
+ * <CODE>MessageListener</CODE> object with a message consumer. As messages
+ * arrive at the message consumer, it delivers them by calling the
+ * <CODE>MessageListener</CODE>'s<CODE>
+ * onMessage</CODE> method.
+ * <P>
+ * It is a client programming error for a <CODE>MessageListener</CODE> to
+ * throw an exception.
+ *
+ *
+ * @see javax.jms.MessageConsumer
+ * @see javax.jms.QueueReceiver
+ * @see javax.jms.TopicSubscriber
+ * @see javax.jms.Session
+ */
+public class TPJMSMessageConsumer implements MessageConsumer {
+	private static final Logger logger = LogManager.getLogger(TPJMSMessageConsumer.class);
+
+	/**
+	 * Maximum number of messages taken from the buffer at a time for delivery
+	 * to the listener.
+	 */
+	private static final int LISTENER_BATCH = 64;
+
+	private String messageConsumerId;
+	private final Destination destination;
+	private final String messageSelector;
+	private volatile MessageListener messageListener;
+	private volatile boolean closed = false;
+
+	/**
+	 * Messages delivered by the provider, waiting to be received or to be
+	 * handed to the listener. The buffer is paused while the connection is
+	 * stopped.
+	 */
+	private final MessageBuffer buffer = new MessageBuffer();
+	/** set while a delivery of the buffer to the listener is queued */
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+	/** created when metrics are first recorded for this consumer */
+	private volatile ConsumerMetrics metrics;
+
+	/*
+	 * Messages consumed but not acknowledged, by message ID, with the
+	 * System.nanoTime() of their consumption. Tracked in a CLIENT_ACKNOWLEDGE
+	 * session once a slow consumer policy limits the acknowledge lag or
+	 * metrics are recorded. A tracked message is delivered as a copy that
+	 * acknowledges to the session, which clears this for each of its
+	 * consumers.
+	 */
+	private volatile boolean trackAcknowledges = false;
+	private final Map<String, Long> unacknowledged = new HashMap<String, Long>();
+	private final ReentrantLock acknowledgeLock = new ReentrantLock();
+	/*
+	 * Copies with pooled buffers handed out by the last receive, in an
+	 * acknowledge mode in which the client does not acknowledge. Released on
+	 * the next receive or when the consumer is closed; guarded by
+	 * acknowledgeLock.
+	 */
+	private final List<TPJMSMessage> received = new ArrayList<TPJMSMessage>();
+	
+	private boolean noLocal = true;
+	
+	/**
+	 * Connection
+	 */
+	private final TPJMSSession session;
+
+    public TPJMSMessageConsumer(TPJMSSession session, Destination destination) throws JMSException {
+    	this.session = session;
+		this.destination = destination;
+		this.messageSelector = null;
+		register();
+	}
+
+	public TPJMSMessageConsumer(TPJMSSession session, Destination destination, String messageSelector) throws JMSException {
+	   	this.session = session;
+		this.destination = destination;
+		this.messageSelector = messageSelector;
+		register();
+	}
+
+	public TPJMSMessageConsumer(TPJMSSession session, Destination destination, String messageSelector, boolean noLocal) throws JMSException {
+	   	this.session = session;
+		this.destination = destination;
+		this.messageSelector = messageSelector;
+		this.noLocal = noLocal;
+		register();
+	}
+
+	/**
+     * Closes the message consumer.
+     * <P>
+     * Since a provider may allocate some resources on behalf of a <CODE>
+     * MessageConsumer</CODE>
+     * outside the Java virtual machine, clients should close them when they are
+     * not needed. Relying on garbage collection to eventually reclaim these
+     * resources may not be timely enough.
+     * <P>
+     * This call blocks until a <CODE>receive</CODE> or message listener in
+     * progress has completed. A blocked message consumer <CODE>receive </CODE>
+     * call returns null when this message consumer is closed.
+     *
+     * @throws JMSException if the JMS provider fails to close the consumer due
+     *                 to some internal error.
+     */
+	@Override
+	public void close() throws JMSException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		ConsumerMetrics consumerMetrics = metrics;
+		if (consumerMetrics != null) {
+			consumerMetrics.discarded(buffer.size());
+			MetricsRegistry.getInstance().removeConsumer(this);
+		}
+		buffer.close();
+		try {
+			acknowledgeLock.lock();
+			unacknowledged.clear();
+		} finally {
+			acknowledgeLock.unlock();
+		}
+		releaseReceived();
+		session.removeConsumer(this);
+		session.getProvider().unregisterMessageConsumer(destination, this);
+		ManagementContext.getInstance().unregister(this);
+	}
+
+    /**
+     * Gets the message consumer's <CODE>MessageListener</CODE>.
+     *
+     * @return the listener for the message consumer, or null if no listener is
+     *         set
+     * @throws JMSException if the JMS provider fails to get the message
+     *                 listener due to some internal error.
+     * @see javax.jms.MessageConsumer#setMessageListener(javax.jms.MessageListener)
+     */
+	@Override
+	public MessageListener getMessageListener() throws JMSException {
+		return messageListener;
+	}
+
+    /**
+     * Gets this message consumer's message selector expression.
+     *
+     * @return this message consumer's message selector, or null if no message
+     *         selector exists for the message consumer (that is, if the message
+     *         selector was not set or was set to null or the empty string)
+     * @throws JMSException if the JMS provider fails to receive the next
+     *                 message due to some internal error.
+     */
+	@Override
+	public String getMessageSelector() throws JMSException {
+		return messageSelector;
+	}
+
+    /**
+     * Receives the next message produced for this message consumer.
+     * <P>
+     * This call blocks indefinitely until a message is produced or until this
+     * message consumer is closed.
+     * <P>
+     * If this <CODE>receive</CODE> is done within a transaction, the consumer
+     * retains the message until the transaction commits.
+     *
+     * @return the next message produced for this message consumer, or null if
+     *         this message consumer is concurrently closed
+     */
+	@Override
+	public Message receive() throws JMSException {
+		return poll(0);
+	}
+
+	/**
+     * Receives the next message that arrives within the specified timeout
+     * interval.
+     * <P>
+     * This call blocks until a message arrives, the timeout expires, or this
+     * message consumer is closed. A <CODE>timeout</CODE> of zero never
+     * expires, and the call blocks indefinitely.
+     *
+     * @param timeout the timeout value (in milliseconds), a time out of zero
+     *                never expires.
+     * @return the next message produced for this message consumer, or null if
+     *         the timeout expires or this message consumer is concurrently
+     *         closed
+     */
+	@Override
+	public Message receive(long timeout) throws JMSException {
+		return poll(Math.max(timeout, 0));
+	}
+
+    /**
+     * Receives the next message if one is immediately available.
+     *
+     * @return the next message produced for this message consumer, or null if
+     *         one is not available
+     * @throws JMSException if the JMS provider fails to receive the next
+     *                 message due to some internal error.
+     */
+	@Override
+	public Message receiveNoWait() throws JMSException {
+		return poll(-1);
+	}
+
+    /**
+     * Sets the message consumer's <CODE>MessageListener</CODE>.
+     * <P>
+     * Setting the message listener to null is the equivalent of unsetting the
+     * message listener for the message consumer.
+     * <P>
+     * The effect of calling <CODE>MessageConsumer.setMessageListener</CODE>
+     * while messages are being consumed by an existing listener or the consumer
+     * is being used to consume messages synchronously is undefined.
+     * <P>
+     * Messages that were buffered before the listener was set are delivered
+     * to it once the connection is started.
+     *
+     * @param listener the listener to which the messages are to be delivered
+     * @throws JMSException if the JMS provider fails to receive the next
+     *                 message due to some internal error.
+     * @see javax.jms.MessageConsumer#getMessageListener
+     */
+	@Override
+	public void setMessageListener(MessageListener messageListener) throws JMSException {
+		this.messageListener = messageListener;
+		if (messageListener != null) {
+			session.dispatch(this);
+		}
+	}
+	
+	/*
+	 *  TPJMS-specific
+	 */
+
+	/**
+	 * Receives up to <code>max</code> messages in one operation.
+	 * <P>
+	 * This call blocks until a message arrives, the timeout expires, or this
+	 * message consumer is closed, and then takes the messages that are
+	 * buffered for this consumer without waiting for more. A
+	 * <CODE>timeout</CODE> of zero never expires, and the call blocks
+	 * indefinitely.
+	 *
+	 * @param max the maximum number of messages to receive
+	 * @param timeout the timeout value (in milliseconds), a time out of zero
+	 *                never expires.
+	 * @return the received messages in delivery order; empty if the timeout
+	 *         expires or this message consumer is concurrently closed
+	 * @throws JMSException if the JMS provider fails to receive the messages
+	 *                 due to some internal error.
+	 * @see #acknowledge(List)
+	 */
+	public List<Message> receiveBatch(int max, long timeout) throws JMSException {
+		return drain(max, Math.max(timeout, 0));
+	}
+
+	/**
+	 * Receives up to <code>max</code> messages that are immediately available.
+	 *
+	 * @param max the maximum number of messages to receive
+	 * @return the received messages in delivery order; empty if none is
+	 *         available
+	 * @throws JMSException if the JMS provider fails to receive the messages
+	 *                 due to some internal error.
+	 */
+	public List<Message> receiveBatchNoWait(int max) throws JMSException {
+		return drain(max, -1);
+	}
+
+	/**
+	 * Acknowledges a batch of received messages at once.
+	 * <P>
+	 * As acknowledgement is cumulative, this acknowledges the last message of
+	 * the batch only, which covers all messages consumed before it. The call
+	 * is ignored unless the session uses <CODE>CLIENT_ACKNOWLEDGE</CODE>,
+	 * just like {@link Message#acknowledge()}.
+	 *
+	 * @param batch the messages to acknowledge, in the order they were
+	 *                 received
+	 * @throws JMSException if the JMS provider fails to acknowledge the
+	 *                 messages due to some internal error.
+	 */
+	public void acknowledge(List<? extends Message> batch) throws JMSException {
+		if (batch.isEmpty() || session.getAcknowledgeMode() != Session.CLIENT_ACKNOWLEDGE) {
+			return;
+		}
+		batch.get(batch.size() - 1).acknowledge();
+	}
+
+	/**
+	 * Buffers messages sent to the destination of this consumer, and hands
+	 * them over to its listener if one is set and the connection is started.
+	 *
+	 * @param messages the messages, in delivery order
+	 */
+	public void deliver(List<? extends Message> messages) {
+		deliver(messages, null);
+	}
+
+	/**
+	 * Delivers messages as {@link #deliver(List)} does, first applying the
+	 * slow consumer policy of the destination if this consumer is slow.
+	 *
+	 * @param messages the messages, in delivery order
+	 * @param policy the slow consumer policy, or <code>null</code> for none
+	 */
+	public void deliver(List<? extends Message> messages, SlowConsumerPolicy policy) {
+		ConsumerMetrics consumerMetrics = metrics();
+		if (consumerMetrics != null) {
+			consumerMetrics.dispatched(messages.size());
+		}
+		if (policy != null && isSlow(policy, messages.size())) {
+			messages = handleSlow(policy, messages, consumerMetrics);
+			if (messages.isEmpty()) {
+				return;
+			}
+		}
+		if (messageListener == null) {
+			enqueue(messages);
+			Tracing.getInstance().completed(messages, TraceStage.ENQUEUE);
+		} else if (!session.deliverDirect(this, messages)) {
+			enqueue(messages);
+			Tracing.getInstance().completed(messages, TraceStage.ENQUEUE);
+			session.dispatch(this);
+		}
+	}
+
+	/**
+	 * Gets the number of messages delivered to this consumer that have not
+	 * been received yet.
+	 */
+	public int getPendingMessageCount() {
+		return buffer.size();
+	}
+
+	/**
+	 * Gets a copy of the messages delivered to this consumer that have not
+	 * been received yet, in order.
+	 */
+	public List<Message> getPendingMessages() {
+		return buffer.snapshot();
+	}
+
+	/**
+	 * Removes the messages delivered to this consumer that have not been
+	 * received yet. A listener being called is not interrupted.
+	 *
+	 * @return the removed messages, in order
+	 */
+	public List<Message> purge() {
+		List<Message> removed = buffer.removeAll();
+		ConsumerMetrics consumerMetrics = metrics();
+		if (consumerMetrics != null) {
+			consumerMetrics.discarded(removed.size());
+		}
+		return removed;
+	}
+
+	/**
+	 * Conflates the messages buffered for this consumer from now on by the
+	 * value of a property: a message replaces the buffered message with the
+	 * same value, so a slow consumer only receives the latest message per
+	 * key. Messages without the property are buffered as usual.
+	 *
+	 * @param conflationKey property name, or <code>null</code> to stop
+	 *            conflating
+	 */
+	public void setConflationKey(String conflationKey) {
+		buffer.setConflationKey(conflationKey);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public Destination getDestination() {
+		return destination;
+	}
+	
+	public String getJMSMessageConsumerID() {
+		return messageConsumerId;
+	}
+	
+	public boolean getNoLocal() throws JMSException {
+		return noLocal;
+	}
+
+	boolean hasMessageListener() {
+		return messageListener != null;
+	}
+
+	/**
+	 * Pauses or resumes taking messages from the buffer, following the state
+	 * of the connection.
+	 */
+	void setStarted(boolean started) {
+		buffer.setPaused(!started);
+	}
+
+	/**
+	 * Puts messages taken from this consumer back at the head of its buffer,
+	 * in order, for example when they could not be handed on.
+	 */
+	void requeue(List<Message> messages) {
+		buffer.requeue(messages);
+	}
+
+	/**
+	 * Marks a delivery of the buffer to the listener as queued.
+	 *
+	 * @return <code>false</code> if one was queued already
+	 */
+	boolean scheduleDelivery() {
+		return deliveryScheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Hands the buffered messages to the listener in order, until the buffer
+	 * is empty or paused. Messages taken from the buffer but not yet delivered
+	 * when it is paused are put back. Called by the session, one delivery at a
+	 * time.
+	 */
+	void deliverBuffered() {
+		deliveryScheduled.set(false);
+		List<Message> batch = new ArrayList<Message>();
+		MessageListener listener;
+		while ((listener = messageListener) != null
+				&& buffer.drainTo(batch, LISTENER_BATCH) > 0) {
+			for (int i = 0; i < batch.size(); i++) {
+				if (buffer.isPaused()) {
+					buffer.requeue(batch.subList(i, batch.size()));
+					return;
+				}
+				boolean delivered = false;
+				try {
+					onMessage(listener, batch.get(i));
+					delivered = true;
+				} finally {
+					if (!delivered) {
+						// an Error escaped the listener, keep the rest for later
+						buffer.requeue(batch.subList(i + 1, batch.size()));
+						session.dispatch(this);
+					}
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Hands messages to the listener without buffering them, if nothing is
+	 * buffered that should go first. Messages left when the buffer is paused
+	 * during the delivery are buffered. Called by the session, one delivery at
+	 * a time.
+	 *
+	 * @return <code>false</code> if the messages must be buffered instead
+	 */
+	boolean deliverDirect(List<? extends Message> messages) {
+		MessageListener listener = messageListener;
+		if (listener == null || buffer.isPaused() || buffer.size() > 0) {
+			return false;
+		}
+		for (int i = 0; i < messages.size(); i++) {
+			if (buffer.isPaused()) {
+				enqueue(messages.subList(i, messages.size()));
+				return true;
+			}
+			onMessage(listener, messages.get(i));
+		}
+		return true;
+	}
+
+	/**
+	 * Hands a message to the listener.
+	 */
+	private void onMessage(MessageListener listener, Message message) {
+		Message delivered = consumed(message);
+		MessageTrace trace = Tracing.getInstance().traceOf(delivered);
+		long start = (trace == null) ? 0 : System.nanoTime();
+		try {
+			listener.onMessage(delivered);
+		} catch (RuntimeException e) {
+			// a client programming error, the other messages are still delivered
+			logger.error("MessageListener failed on message", e);
+		}
+		if (trace != null) {
+			trace.completed(TraceStage.LISTENER, start, System.nanoTime());
+		}
+		if (delivered != message && isReleasedWhenDelivered()) {
+			((TPJMSMessage) delivered).releaseDelivered();
+		}
+	}
+
+	/**
+	 * Checks the limits of a slow consumer policy for a delivery of
+	 * <code>incoming</code> messages.
+	 */
+	private boolean isSlow(SlowConsumerPolicy policy, int incoming) {
+		if (policy.getMaxPending() > 0
+				&& buffer.memorySize() + incoming > policy.getMaxPending()) {
+			return true;
+		}
+		if (policy.getMaxAgeMillis() > 0) {
+			buffer.setTrackProgress(true);
+			if (buffer.getStalledNanos(System.nanoTime()) > policy.getMaxAgeNanos()) {
+				return true;
+			}
+		}
+		if (policy.getMaxAckLag() > 0 && session.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) {
+			trackAcknowledges = true;
+			if (getUnacknowledgedCount() > policy.getMaxAckLag()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Applies the action of a slow consumer policy to a delivery.
+	 *
+	 * @return the messages still to be delivered
+	 */
+	private List<? extends Message> handleSlow(SlowConsumerPolicy policy, List<? extends Message> messages,
+			ConsumerMetrics consumerMetrics) {
+		if (consumerMetrics != null) {
+			consumerMetrics.slowConsumer();
+		}
+		int maxPending = policy.getMaxPending();
+		int incoming = messages.size();
+		int dropped = 0;
+		switch (policy.getAction()) {
+		case DROP_NEWEST: {
+			int keep = (maxPending > 0) ? Math.min(incoming, Math.max(0, maxPending - buffer.size())) : incoming;
+			dropped = incoming - keep;
+			messages = messages.subList(0, keep);
+			break;
+		}
+		case DROP_OLDEST: {
+			int limit = (maxPending > 0) ? maxPending : incoming;
+			if (incoming > limit) {
+				dropped = incoming - limit;
+				messages = messages.subList(dropped, incoming);
+				incoming = limit;
+			}
+			dropped += buffer.dropOldest(buffer.size() + incoming - limit);
+			break;
+		}
+		case DISCONNECT:
+			logger.warn("Closing slow consumer of " + destination + " with " + buffer.size()
+					+ " pending messages");
+			try {
+				close();
+			} catch (JMSException e) {
+				logger.warn("Unable to close slow consumer", e);
+			}
+			dropped = incoming;
+			messages = Collections.emptyList();
+			break;
+		case SPOOL:
+			buffer.spoolBeyond(session, (maxPending > 0) ? maxPending : buffer.memorySize());
+			break;
+		}
+		if (dropped > 0) {
+			logger.debug("Dropped " + dropped + " messages for slow consumer of " + destination);
+			if (consumerMetrics != null) {
+				consumerMetrics.discarded(dropped);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Buffers messages, counting the buffered messages they replace as
+	 * discarded.
+	 */
+	private void enqueue(List<? extends Message> messages) {
+		int replaced = buffer.addAll(messages);
+		if (replaced > 0) {
+			ConsumerMetrics consumerMetrics = metrics();
+			if (consumerMetrics != null) {
+				consumerMetrics.discarded(replaced);
+			}
+		}
+	}
+
+	private void register() throws JMSException {
+		if (destination == null) {
+			throw new InvalidDestinationException("destination must be specified");
+		}
+		session.getProvider().registerMessageConsumer(destination, this);
+		session.addConsumer(this);
+		ManagementContext.getInstance().register(this, ConsumerView.FACTORY);
+	}
+
+	private Message poll(long timeout) throws JMSException {
+		checkOpen();
+		releaseReceived();
+		try {
+			Message message = buffer.poll(timeout);
+			if (message == null) {
+				return null;
+			}
+			Message delivered = consumed(message);
+			if (delivered != message && isReleasedWhenDelivered()) {
+				holdReceived(delivered);
+			}
+			return delivered;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private List<Message> drain(int max, long timeout) throws JMSException {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must be positive: " + max);
+		}
+		checkOpen();
+		releaseReceived();
+		List<Message> batch = new ArrayList<Message>(Math.min(max, 64));
+		try {
+			buffer.drainTo(batch, max, timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		boolean release = isReleasedWhenDelivered();
+		for (int i = 0; i < batch.size(); i++) {
+			Message message = batch.get(i);
+			Message delivered = consumed(message);
+			if (delivered != message && release) {
+				holdReceived(delivered);
+			}
+			batch.set(i, delivered);
+		}
+		return batch;
+	}
+
+	/**
+	 * Indicates whether the client is done with a delivered message without
+	 * acknowledging it: once it received the next one, or once the listener
+	 * returns.
+	 */
+	private boolean isReleasedWhenDelivered() {
+		int mode = session.getAcknowledgeMode();
+		return mode == Session.AUTO_ACKNOWLEDGE || mode == Session.DUPS_OK_ACKNOWLEDGE;
+	}
+
+	/**
+	 * Keeps a received copy until the next receive, which releases its pooled
+	 * buffers.
+	 */
+	private void holdReceived(Message delivered) {
+		try {
+			acknowledgeLock.lock();
+			received.add((TPJMSMessage) delivered);
+		} finally {
+			acknowledgeLock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the pooled buffers of the copies handed out by the last
+	 * receive.
+	 */
+	private void releaseReceived() {
+		try {
+			acknowledgeLock.lock();
+			if (received.isEmpty()) {
+				return;
+			}
+			for (TPJMSMessage message : received) {
+				message.releaseDelivered();
+			}
+			received.clear();
+		} finally {
+			acknowledgeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the metrics of this consumer, or <code>null</code> if metrics are
+	 * disabled.
+	 */
+	private ConsumerMetrics metrics() {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		if (!registry.isEnabled()) {
+			return null;
+		}
+		ConsumerMetrics consumerMetrics = metrics;
+		if (consumerMetrics == null) {
+			consumerMetrics = registry.getConsumerMetrics(this, destination);
+			metrics = consumerMetrics;
+		}
+		return consumerMetrics;
+	}
+
+	/**
+	 * Records a message taken by the client.
+	 *
+	 * @return the instance to hand to the client
+	 */
+	private Message consumed(Message message) {
+		ConsumerMetrics consumerMetrics = metrics();
+		boolean track = (consumerMetrics != null || trackAcknowledges)
+				&& message instanceof TPJMSMessage
+				&& session.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE;
+		if (message instanceof TPJMSMessage) {
+			message = ((TPJMSMessage) message).forDelivery(track ? session
+					.getConsumedCallback() : null);
+		}
+		MessageTrace trace = Tracing.getInstance().traceOf(message);
+		if (trace != null) {
+			trace.completed(TraceStage.DISPATCH_WAIT);
+		}
+		if (consumerMetrics == null && !track) {
+			return message;
+		}
+		long now = System.nanoTime();
+		if (track) {
+			String messageID = getMessageID(message);
+			if (messageID != null) {
+				try {
+					acknowledgeLock.lock();
+					unacknowledged.put(messageID, now);
+				} finally {
+					acknowledgeLock.unlock();
+				}
+			}
+		}
+		if (consumerMetrics == null) {
+			return message;
+		}
+		if (message instanceof TPJMSMessage) {
+			consumerMetrics.dequeued(((TPJMSMessage) message).getSendNanos(), now);
+		} else {
+			consumerMetrics.dequeued(0, now);
+		}
+		return message;
+	}
+
+	/**
+	 * Marks all messages consumed so far as acknowledged, recording their
+	 * acknowledge latency if metrics are recorded.
+	 */
+	void acknowledgeConsumed() {
+		ConsumerMetrics consumerMetrics = metrics;
+		long now = System.nanoTime();
+		try {
+			acknowledgeLock.lock();
+			if (consumerMetrics != null) {
+				DestinationMetrics destinationMetrics = consumerMetrics.getDestinationMetrics();
+				for (Long consumedNanos : unacknowledged.values()) {
+					destinationMetrics.acknowledged(now - consumedNanos);
+				}
+			}
+			unacknowledged.clear();
+		} finally {
+			acknowledgeLock.unlock();
+		}
+	}
+
+	private static String getMessageID(Message message) {
+		try {
+			return message.getJMSMessageID();
+		} catch (JMSException e) {
+			return null;
+		}
+	}
+
+	private int getUnacknowledgedCount() {
+		try {
+			acknowledgeLock.lock();
+			return unacknowledged.size();
+		} finally {
+			acknowledgeLock.unlock();
+		}
+	}
+
+	private void checkOpen() throws IllegalStateException {
+		if (closed) {
+			throw new IllegalStateException("Consumer is closed");
+		}
+	}
+	
+}
@@ -1,7 +1,8 @@
 package nl.ellipsis.tpjms.core.session;
 
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jms.*;
 
@@ -9,6 +10,12 @@ import org.apache.logging.log4j.*;
 
 import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
 import nl.ellipsis.tpjms.core.destination.TPJMSDestination;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.trace.MessageTrace;
+import nl.ellipsis.tpjms.trace.TraceStage;
+import nl.ellipsis.tpjms.trace.Tracing;
+import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+import nl.ellipsis.tpjms.util.CompletionListener;
 
 /**
  * A client uses a <CODE>MessageProducer</CODE> object to send messages to a
@@ -46,24 +53,16 @@ public class TPJMSMessageProducer implements MessageProducer {
 	private static final Logger logger = LogManager.getLogger(TPJMSMessageProducer.class);
 
 	/**
-	 * Lock used to guard configuration parameters.
+	 * Lock serializing configuration changes. Senders do not lock, they take
+	 * the current {@link #config} snapshot.
 	 */
-	private final ReentrantReadWriteLock configLock = new ReentrantReadWriteLock();
+	private final ReentrantLock configLock = new ReentrantLock();
 
 	/**
-	 * Delivery mode - must be gated by configLock.
+	 * Default delivery mode, priority and time-to-live. Replaced by a new
+	 * snapshot on every change.
 	 */
-	private int defaultDeliveryMode = Message.DEFAULT_DELIVERY_MODE;
-
-	/**
-	 * Priority - must be gated by configLock.
-	 */
-	private int defaultPriority = Message.DEFAULT_PRIORITY;
-
-	/**
-	 * Time-to-live in milliseconds - must be gated by configLock.
-	 */
-	private long defaultTimeToLive = Message.DEFAULT_TIME_TO_LIVE;
+	private volatile Config config = Config.DEFAULT;
 
 	/**
 	 * Destination
@@ -128,12 +127,7 @@ public class TPJMSMessageProducer implements MessageProducer {
 	 */
 	@Override
 	public int getDeliveryMode() {
-		try {
-			configLock.readLock().lock();
-			return defaultDeliveryMode;
-		} finally {
-			configLock.readLock().unlock();
-		}
+		return config.deliveryMode;
 	}
 
 	/**
@@ -177,12 +171,7 @@ public class TPJMSMessageProducer implements MessageProducer {
 	 */
 	@Override
 	public int getPriority() {
-		try {
-			configLock.readLock().lock();
-			return defaultPriority;
-		} finally {
-			configLock.readLock().unlock();
-		}
+		return config.priority;
 	}
 
 	/**
@@ -194,12 +183,7 @@ public class TPJMSMessageProducer implements MessageProducer {
 	 */
 	@Override
 	public long getTimeToLive() {
-		try {
-			configLock.readLock().lock();
-			return defaultTimeToLive;
-		} finally {
-			configLock.readLock().unlock();
-		}
+		return config.timeToLive;
 	}
 
 	/**
@@ -232,21 +216,8 @@ public class TPJMSMessageProducer implements MessageProducer {
 					"This producer requires a destination to be specified at send() time.");
 		}
 
-		int deliveryMode;
-		int priority;
-		long timeToLive;
-
-		try {
-			configLock.readLock().lock();
-
-			deliveryMode = defaultDeliveryMode;
-			priority = defaultPriority;
-			timeToLive = defaultTimeToLive;
-		} finally {
-			configLock.readLock().unlock();
-		}
-
-		sendInternal(defaultDestination, message, deliveryMode, priority, timeToLive);
+		Config curr = config;
+		sendInternal(defaultDestination, message, curr.deliveryMode, curr.priority, curr.timeToLive);
 	}
 
 	/**
@@ -284,21 +255,8 @@ public class TPJMSMessageProducer implements MessageProducer {
 			throw new UnsupportedOperationException("This producer does not allow a destination to be specified at send() time");
 		}
 
-		int deliveryMode;
-		int priority;
-		long timeToLive;
-
-		try {
-			configLock.readLock().lock();
-
-			deliveryMode = defaultDeliveryMode;
-			priority = defaultPriority;
-			timeToLive = defaultTimeToLive;
-		} finally {
-			configLock.readLock().unlock();
-		}
-
-		sendInternal(destination, message, deliveryMode, priority, timeToLive);
+		Config curr = config;
+		sendInternal(destination, message, curr.deliveryMode, curr.priority, curr.timeToLive);
 	}
 
 	/**
@@ -384,10 +342,11 @@ public class TPJMSMessageProducer implements MessageProducer {
 		validateDeliveryMode(deliveryMode);
 
 		try {
-			configLock.writeLock().lock();
-			defaultDeliveryMode = deliveryMode;
+			configLock.lock();
+			Config curr = config;
+			config = new Config(deliveryMode, curr.priority, curr.timeToLive);
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 
@@ -446,10 +405,11 @@ public class TPJMSMessageProducer implements MessageProducer {
 		validatePriority(priority);
 
 		try {
-			configLock.writeLock().lock();
-			defaultPriority = priority;
+			configLock.lock();
+			Config curr = config;
+			config = new Config(curr.deliveryMode, priority, curr.timeToLive);
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 
@@ -474,10 +434,11 @@ public class TPJMSMessageProducer implements MessageProducer {
 		validateTimeToLive(timeToLive);
 
 		try {
-			configLock.writeLock().lock();
-			defaultTimeToLive = timeToLive;
+			configLock.lock();
+			Config curr = config;
+			config = new Config(curr.deliveryMode, curr.priority, timeToLive);
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.unlock();
 		}
 	}
 	
@@ -486,21 +447,261 @@ public class TPJMSMessageProducer implements MessageProducer {
 	public String getJMSMessageProducerID() {
 		return this.producerId;
 	}
+
+	/**
+	 * Sends a message asynchronously, using the producer's default delivery
+	 * mode, priority, and time to live.
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @param completionListener
+	 *            notified when the send has completed or failed
+	 * @throws UnsupportedOperationException
+	 *             if the producer did not specify a destination at creation
+	 *             time
+	 * @see #sendAsync(Destination, Message, CompletionListener)
+	 */
+	public void sendAsync(Message message, CompletionListener completionListener) throws JMSException {
+		if (defaultDestination == null) {
+			throw new UnsupportedOperationException(
+					"This producer requires a destination to be specified at send() time.");
+		}
+
+		sendAsyncInternal(defaultDestination, message, config, completionListener);
+	}
+
+	/**
+	 * Sends a message asynchronously to a destination for an unidentified
+	 * message producer, using the producer's default delivery mode, priority,
+	 * and time to live.
+	 * 
+	 * <p>
+	 * The method returns as soon as the send has been queued. The send itself
+	 * runs on the send thread of the session, which hands the messages of all
+	 * producers of the session to the provider in the order in which they were
+	 * sent. The listener is notified once the provider has taken the message,
+	 * or with the exception that made the send fail. The message must not be
+	 * modified until then.
+	 * </p>
+	 * 
+	 * @param destination
+	 *            the destination to send this message to
+	 * @param message
+	 *            the message to send
+	 * @param completionListener
+	 *            notified when the send has completed or failed
+	 * @throws InvalidDestinationException
+	 *             if the destination is invalid
+	 * @throws IllegalStateException
+	 *             if the session is closed
+	 * @throws UnsupportedOperationException
+	 *             if the producer specified a destination at creation time
+	 */
+	public void sendAsync(Destination destination, Message message, CompletionListener completionListener)
+			throws JMSException {
+		if (defaultDestination != null) {
+			throw new UnsupportedOperationException(
+					"This producer does not allow a destination to be specified at send() time");
+		}
+
+		sendAsyncInternal(destination, message, config, completionListener);
+	}
+
+	/**
+	 * Sends a batch of messages to the producer's destination, using the
+	 * producer's default delivery mode, priority, and time to live.
+	 * 
+	 * @see #sendBatch(Destination, List, boolean)
+	 */
+	public void sendBatch(List<? extends Message> messages, boolean atomic) throws JMSException {
+		if (defaultDestination == null) {
+			throw new UnsupportedOperationException(
+					"This producer requires a destination to be specified at send() time.");
+		}
+
+		sendBatchInternal(defaultDestination, messages, atomic);
+	}
+
+	/**
+	 * Sends a batch of messages to a destination for an unidentified message
+	 * producer. Same as <code>sendBatch(destination, messages, false)</code>.
+	 * 
+	 * @see #sendBatch(Destination, List, boolean)
+	 */
+	public void sendBatch(Destination destination, List<? extends Message> messages) throws JMSException {
+		sendBatch(destination, messages, false);
+	}
+
+	/**
+	 * Sends a batch of messages to a destination for an unidentified message
+	 * producer, using the producer's default delivery mode, priority, and time
+	 * to live.
+	 * 
+	 * <p>
+	 * The destination and the producer settings are validated once for the
+	 * whole batch, and the batch is handed to the provider in one call, so
+	 * the destination is resolved once. The messages are delivered in list
+	 * order.
+	 * </p>
+	 * 
+	 * <p>
+	 * A batch is checked before anything is sent. If it contains an invalid
+	 * message, a non-atomic batch sends the messages before it and then
+	 * fails, while an atomic batch fails without sending any message.
+	 * </p>
+	 * 
+	 * @param destination
+	 *            the destination to send the messages to
+	 * @param messages
+	 *            the messages to send
+	 * @param atomic
+	 *            whether to send either all messages or none
+	 * @throws JMSException
+	 *             if the JMS provider fails to send the messages due to some
+	 *             internal error.
+	 * @throws MessageFormatException
+	 *             if the batch contains an invalid message.
+	 * @throws InvalidDestinationException
+	 *             if a client uses this method with an invalid destination.
+	 * @throws UnsupportedOperationException
+	 *             if the producer specified a destination at creation time
+	 */
+	public void sendBatch(Destination destination, List<? extends Message> messages, boolean atomic)
+			throws JMSException {
+		if (defaultDestination != null) {
+			throw new UnsupportedOperationException(
+					"This producer does not allow a destination to be specified at send() time");
+		}
+
+		sendBatchInternal(destination, messages, atomic);
+	}
+
+	private void sendBatchInternal(Destination destination, List<? extends Message> messages, boolean atomic)
+			throws JMSException {
+		Tracing tracing = Tracing.getInstance();
+		long start = tracing.isEnabled() ? System.nanoTime() : 0;
+		validateDestination(destination);
+		if (messages == null) {
+			throw new IllegalArgumentException("messages must be specified");
+		}
+
+		int size = messages.size();
+		int valid = 0;
+		for (Message message : messages) {
+			if (message == null) {
+				break;
+			}
+			valid++;
+		}
+		if (valid < size && atomic) {
+			throw new MessageFormatException("Message " + valid + " of the batch is null, nothing was sent");
+		}
+
+		if (valid > 0) {
+			List<? extends Message> batch = (valid == size) ? messages : messages.subList(0, valid);
+			if (start != 0) {
+				sampled(tracing, destination, batch, start);
+			}
+			for (Message message : batch) {
+				setBodyReadOnly(message);
+			}
+			session.getProvider().send(destination, batch);
+			if (session.getAcknowledgeMode() == Session.AUTO_ACKNOWLEDGE) {
+				for (Message message : batch) {
+					acknowledgeSent(message);
+				}
+			}
+		}
+		if (valid < size) {
+			throw new MessageFormatException("Message " + valid + " of the batch is null, " + valid
+					+ " messages were sent");
+		}
+	}
+
+	private void sendAsyncInternal(final Destination destination, final Message message, final Config curr,
+			final CompletionListener completionListener) throws JMSException {
+		if (completionListener == null) {
+			throw new IllegalArgumentException("completionListener must be specified");
+		}
+		validateDestination(destination);
+
+		session.executeSend(new Runnable() {
+			@Override
+			public void run() {
+				Exception failure = null;
+				try {
+					sendInternal(destination, message, curr.deliveryMode, curr.priority, curr.timeToLive);
+				} catch (Exception e) {
+					failure = e;
+				}
+
+				try {
+					if (failure == null) {
+						completionListener.onCompletion(message);
+					} else {
+						completionListener.onException(message, failure);
+					}
+				} catch (RuntimeException e) {
+					logger.warn("CompletionListener failed", e);
+				}
+			}
+		});
+	}
 	
 	private void sendInternal(Destination destination, Message message, int deliveryMode, int priority, long timeToLive)
 			throws JMSException {
+		MessageTrace trace = Tracing.getInstance().sample(message, destination);
 		validateDestination(destination);
 		validateDeliveryMode(deliveryMode);
 		validatePriority(priority);
 		validateTimeToLive(timeToLive);
+		if (trace != null) {
+			trace.completed(TraceStage.VALIDATE);
+		}
 		
+		setBodyReadOnly(message);
 		session.getProvider().send(destination, message);
 		// TODO correct, or should the destination acknowledge
 		if(session.getAcknowledgeMode() == Session.AUTO_ACKNOWLEDGE) {
+			acknowledgeSent(message);
+		}
+	}
+
+	/**
+	 * Acknowledges a sent message to its callback only. The consumers of the
+	 * destination may already hold the same message instance, and what they
+	 * did with it is not acknowledged by sending it.
+	 */
+	private static void acknowledgeSent(Message message) throws JMSException {
+		if (message instanceof TPJMSMessage) {
+			AcknowledgeCallback callback = ((TPJMSMessage) message).getAcknowledgeCallback();
+			if (callback != null) {
+				callback.acknowledge(message.getJMSMessageID());
+			}
+		} else {
 			message.acknowledge();
 		}
 	}
 
+	private static void setBodyReadOnly(Message message) {
+		if (message instanceof TPJMSMessage) {
+			((TPJMSMessage) message).setBodyReadOnly();
+		}
+	}
+
+	/**
+	 * Samples the messages of a batch for tracing. The validation of the
+	 * batch counts for each traced message.
+	 */
+	private static void sampled(Tracing tracing, Destination destination, List<? extends Message> batch, long start) {
+		for (Message message : batch) {
+			MessageTrace trace = tracing.sample(message, destination);
+			if (trace != null) {
+				trace.completed(TraceStage.VALIDATE, start, System.nanoTime());
+			}
+		}
+	}
+
 	private void validateDestination(Destination destination) throws InvalidDestinationException {
 		if (destination == null) {
 			throw new InvalidDestinationException("destination must be specified");
@@ -528,4 +729,22 @@ public class TPJMSMessageProducer implements MessageProducer {
 			throw new JMSException("Invalid timeToLive: " + timeToLive);
 		}
 	}
+
+	/**
+	 * Immutable snapshot of the producer defaults.
+	 */
+	private static final class Config {
+		static final Config DEFAULT = new Config(Message.DEFAULT_DELIVERY_MODE, Message.DEFAULT_PRIORITY,
+				Message.DEFAULT_TIME_TO_LIVE);
+
+		final int deliveryMode;
+		final int priority;
+		final long timeToLive;
+
+		Config(int deliveryMode, int priority, long timeToLive) {
+			this.deliveryMode = deliveryMode;
+			this.priority = priority;
+			this.timeToLive = timeToLive;
+		}
+	}
 }
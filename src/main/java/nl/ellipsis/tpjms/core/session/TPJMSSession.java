@@ -4,6 +4,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jms.*;
 
@@ -17,6 +19,7 @@ import nl.ellipsis.tpjms.core.message.TPJMSObjectMessage;
 import nl.ellipsis.tpjms.core.message.TPJMSStreamMessage;
 import nl.ellipsis.tpjms.core.message.TPJMSTextMessage;
 import nl.ellipsis.tpjms.provider.TPJMSProvider;
+import nl.ellipsis.tpjms.util.AcknowledgeCallback;
 
 public class TPJMSSession implements Session {
 	private static final Logger logger = LogManager.getLogger(TPJMSSession.class);
@@ -27,6 +30,53 @@ public class TPJMSSession implements Session {
 	
 	private Destination defaultDestination;
 
+	/**
+	 * Single thread running the asynchronous sends of this session, so that
+	 * they complete in order. Created on the first asynchronous send.
+	 */
+	private ExecutorService sendExecutor;
+	private volatile Thread sendThread;
+	private final ReentrantLock sendExecutorLock = new ReentrantLock();
+
+	/**
+	 * Open consumers, closed along with the session.
+	 */
+	private final List<TPJMSMessageConsumer> consumers = new CopyOnWriteArrayList<TPJMSMessageConsumer>();
+
+	/**
+	 * Distinguished message listener, and the messages loaded by a connection
+	 * consumer for it to process in {@link #run()}.
+	 */
+	private volatile MessageListener messageListener;
+	private final MessageBuffer loadedMessages = new MessageBuffer();
+
+	/**
+	 * Runs the listener deliveries of this session when the connection
+	 * dispatches asynchronously, otherwise <code>null</code>.
+	 */
+	private final SessionDispatcher dispatcher;
+
+	/**
+	 * Held while messages are handed to a listener of a consumer, so that
+	 * deliveries run one at a time and stopping the connection can wait for
+	 * one in progress.
+	 */
+	private final ReentrantLock deliveryLock = new ReentrantLock();
+	/** guards <code>started</code> and the started state of the consumers */
+	private final ReentrantLock stateLock = new ReentrantLock();
+	private boolean started = false;
+
+	/**
+	 * Handed to the copies of the messages its consumers track, so that
+	 * acknowledging one reaches this session only.
+	 */
+	private final AcknowledgeCallback consumedCallback = new AcknowledgeCallback() {
+		@Override
+		public void acknowledge(String messageID) {
+			acknowledgeConsumed();
+		}
+	};
+
 	/**
 	 * Creates a new JMS session.
 	 * 
@@ -64,6 +114,7 @@ public class TPJMSSession implements Session {
 
 		this.acknowledgeMode = acknowledgeMode;
 		this.connection = connection;
+		this.dispatcher = connection.isAsyncDispatch() ? new SessionDispatcher() : null;
 		this.openedConnection = true;
 	}
 
@@ -110,7 +161,19 @@ public class TPJMSSession implements Session {
 		if(!this.openedConnection) {
 			throw new JMSException("Session is already closed");
 		}
+		if (Thread.currentThread() == sendThread) {
+			throw new javax.jms.IllegalStateException(
+					"Session cannot be closed from a CompletionListener");
+		}
 		this.openedConnection = false;
+		shutdownSendExecutor();
+		for (TPJMSMessageConsumer consumer : consumers) {
+			consumer.close();
+		}
+		loadedMessages.close();
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
 		connection.unregisterSession(this);
 	}
 
@@ -490,8 +553,7 @@ public class TPJMSSession implements Session {
 	 */
 	@Override
 	public MessageListener getMessageListener() throws JMSException {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
+		return messageListener;
 	}
 
 	/**
@@ -518,7 +580,29 @@ public class TPJMSSession implements Session {
 
 	@Override
 	public void run() {
-		logger.warn("run() not implemented");
+		List<Message> batch = new ArrayList<Message>();
+		try {
+			loadedMessages.drainTo(batch, Integer.MAX_VALUE, -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		MessageListener listener = messageListener;
+		if (listener == null) {
+			logger.warn("No MessageListener set, dropping " + batch.size() + " messages");
+			return;
+		}
+		for (Message message : batch) {
+			try {
+				listener.onMessage(message);
+			} catch (RuntimeException e) {
+				// a client programming error, the other messages are still delivered
+				logger.error("MessageListener failed on message", e);
+			}
+		}
 	}
 
 	/**
@@ -537,8 +621,7 @@ public class TPJMSSession implements Session {
 	 */
 	@Override
 	public void setMessageListener(MessageListener listener) throws JMSException {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
+		this.messageListener = listener;
 	}
 
 	/**
@@ -567,6 +650,159 @@ public class TPJMSSession implements Session {
 	}
 
 	///// INTERNAL
+	void addConsumer(TPJMSMessageConsumer consumer) {
+		try {
+			stateLock.lock();
+			consumers.add(consumer);
+			consumer.setStarted(started);
+		} finally {
+			stateLock.unlock();
+		}
+	}
+
+	void removeConsumer(TPJMSMessageConsumer consumer) {
+		consumers.remove(consumer);
+	}
+
+	/**
+	 * Gets the callback that acknowledges the messages consumed by this
+	 * session, for the messages its consumers deliver.
+	 */
+	AcknowledgeCallback getConsumedCallback() {
+		return consumedCallback;
+	}
+
+	/**
+	 * Acknowledges all messages consumed by this session. Acknowledging is
+	 * cumulative, so it covers the messages consumed by each consumer of the
+	 * session.
+	 */
+	void acknowledgeConsumed() {
+		for (TPJMSMessageConsumer consumer : consumers) {
+			consumer.acknowledgeConsumed();
+		}
+	}
+
+	/**
+	 * Delivers the buffered messages of a consumer to its listener, on the
+	 * dispatcher if the session has one, otherwise on the calling thread.
+	 */
+	void dispatch(final TPJMSMessageConsumer consumer) {
+		if (dispatcher == null) {
+			deliverBuffered(consumer);
+		} else if (consumer.scheduleDelivery()) {
+			dispatcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliverBuffered(consumer);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Delivers messages straight to the listener of a consumer on the calling
+	 * thread, bypassing its buffer. Only a session without a dispatcher does
+	 * so.
+	 * 
+	 * @return <code>false</code> if the messages must be buffered instead
+	 */
+	boolean deliverDirect(TPJMSMessageConsumer consumer, List<? extends Message> messages) {
+		if (dispatcher != null) {
+			return false;
+		}
+		try {
+			deliveryLock.lock();
+			return consumer.deliverDirect(messages);
+		} finally {
+			deliveryLock.unlock();
+		}
+	}
+
+	private void deliverBuffered(TPJMSMessageConsumer consumer) {
+		try {
+			deliveryLock.lock();
+			consumer.deliverBuffered();
+		} finally {
+			deliveryLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads messages to be delivered to the distinguished message listener by
+	 * the next call of {@link #run()}.
+	 */
+	void loadMessages(List<Message> messages) {
+		loadedMessages.addAll(messages);
+	}
+
+	/**
+	 * Takes back the loaded messages that {@link #run()} has not delivered,
+	 * for example when the server session could not be started.
+	 */
+	List<Message> unloadMessages() {
+		List<Message> batch = new ArrayList<Message>();
+		loadedMessages.drainTo(batch, Integer.MAX_VALUE);
+		return batch;
+	}
+
+	/**
+	 * Runs an asynchronous send on the send thread of this session. Sends are
+	 * run one at a time, in the order in which they are submitted.
+	 * 
+	 * @throws javax.jms.IllegalStateException
+	 *             if the session is closed
+	 */
+	void executeSend(Runnable send) throws JMSException {
+		try {
+			sendExecutorLock.lock();
+			if (!openedConnection) {
+				throw new javax.jms.IllegalStateException("Session is closed");
+			}
+			if (sendExecutor == null) {
+				sendExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "TPJMSSession-send");
+						thread.setDaemon(true);
+						sendThread = thread;
+						return thread;
+					}
+				});
+			}
+			sendExecutor.execute(send);
+		} finally {
+			sendExecutorLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for all outstanding asynchronous sends to complete and stops the
+	 * send thread.
+	 */
+	private void shutdownSendExecutor() {
+		ExecutorService executor;
+		try {
+			sendExecutorLock.lock();
+			executor = sendExecutor;
+			sendExecutor = null;
+		} finally {
+			sendExecutorLock.unlock();
+		}
+		if (executor == null) {
+			return;
+		}
+
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				logger.debug("Waiting for asynchronous sends to complete");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	public TPJMSConnection getConnection() {
 		return this.connection;
 	}
@@ -579,6 +815,45 @@ public class TPJMSSession implements Session {
 		return connection.getProvider();
 	}
 	
+	/**
+	 * Pauses or resumes message delivery to the consumers of this session.
+	 * Called by the connection when it is started or stopped.
+	 */
+	public void setStarted(boolean started) {
+		try {
+			stateLock.lock();
+			this.started = started;
+			for (TPJMSMessageConsumer consumer : consumers) {
+				consumer.setStarted(started);
+			}
+		} finally {
+			stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Delivers the messages buffered while the connection was stopped to the
+	 * listeners of the consumers of this session.
+	 */
+	public void deliverBuffered() {
+		for (TPJMSMessageConsumer consumer : consumers) {
+			if (consumer.hasMessageListener()) {
+				dispatch(consumer);
+			}
+		}
+	}
+
+	/**
+	 * Waits until a listener delivery in progress has completed, unless it is
+	 * called by that delivery itself.
+	 */
+	public void awaitDelivery() {
+		if (!deliveryLock.isHeldByCurrentThread()) {
+			deliveryLock.lock();
+			deliveryLock.unlock();
+		}
+	}
+
 	public boolean isOpen() {
 		return this.openedConnection;
 	}
@@ -0,0 +1,105 @@
+package nl.ellipsis.tpjms.management;
+
+import java.util.List;
+
+import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.management.ObjectName;
+
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.provider.vm.VmBroker;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Management of a {@link VmBroker}. The destinations of the in-memory provider
+ * are shared by all its brokers, so each broker lists all of them.
+ */
+public class BrokerView implements BrokerViewMBean {
+	private final VmProvider provider;
+	private final VmBroker broker;
+
+	public BrokerView(VmProvider provider, VmBroker broker) {
+		this.provider = provider;
+		this.broker = broker;
+	}
+
+	/**
+	 * Creates the MBean of a broker of the in-memory provider, named after the
+	 * broker.
+	 */
+	public static final ManagementContext.MBeanFactory<VmBroker> FACTORY = new ManagementContext.MBeanFactory<VmBroker>() {
+		@Override
+		public Object createMBean(VmBroker broker) {
+			return new BrokerView(VmProvider.getInstance(), broker);
+		}
+
+		@Override
+		public String keyProperties(VmBroker broker) {
+			return "type=Broker,name=" + ObjectName.quote(broker.getBrokerName());
+		}
+	};
+
+	@Override
+	public String getBrokerName() {
+		return broker.getBrokerName();
+	}
+
+	@Override
+	public String getBrokerId() {
+		return broker.getBrokerId();
+	}
+
+	@Override
+	public String[] getDestinations() {
+		List<Destination> destinations = provider.getDestinations();
+		String[] names = new String[destinations.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = MetricsRegistry.nameOf(destinations.get(i));
+		}
+		return names;
+	}
+
+	@Override
+	public String[] listDestinations() {
+		List<Destination> destinations = provider.getDestinations();
+		String[] lines = new String[destinations.size()];
+		for (int i = 0; i < lines.length; i++) {
+			Destination destination = destinations.get(i);
+			lines[i] = MetricsRegistry.nameOf(destination) + " depth="
+					+ provider.getDepth(destination) + " memory="
+					+ provider.getMemoryUsage(destination) + " consumers="
+					+ provider.getConsumers(destination).size()
+					+ (provider.isPaused(destination) ? " paused" : "");
+		}
+		return lines;
+	}
+
+	@Override
+	public int purge(String destination) throws JMSException {
+		return provider.purge(lookup(destination));
+	}
+
+	@Override
+	public int moveMessages(String from, String to) throws JMSException {
+		return provider.moveMessages(lookup(from), lookup(to));
+	}
+
+	@Override
+	public void pause(String destination) throws JMSException {
+		provider.pause(lookup(destination));
+	}
+
+	@Override
+	public void resume(String destination) throws JMSException {
+		provider.resume(lookup(destination));
+	}
+
+	private Destination lookup(String name) throws InvalidDestinationException {
+		Destination destination = provider.getDestination(name);
+		if (destination == null) {
+			throw new InvalidDestinationException("Unknown destination: " + name);
+		}
+		return destination;
+	}
+}
@@ -0,0 +1,29 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.JMSException;
+
+/**
+ * JMX management of an in-memory broker. Destinations are named as by the
+ * metrics, e.g. <code>queue://orders</code> or <code>topic://prices</code>.
+ */
+public interface BrokerViewMBean {
+	String getBrokerName();
+
+	String getBrokerId();
+
+	/** names of all destinations */
+	String[] getDestinations();
+
+	/** one line per destination with its depth, memory use and consumers */
+	String[] listDestinations();
+
+	/** discards the pending messages of a destination */
+	int purge(String destination) throws JMSException;
+
+	/** moves the pending messages of a destination to another one */
+	int moveMessages(String from, String to) throws JMSException;
+
+	void pause(String destination) throws JMSException;
+
+	void resume(String destination) throws JMSException;
+}
@@ -0,0 +1,61 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.JMSException;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+
+/**
+ * Management of a {@link TPJMSConnection}.
+ */
+public class ConnectionView implements ConnectionViewMBean {
+	private final TPJMSConnection connection;
+
+	public ConnectionView(TPJMSConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Creates the MBean of a connection, numbered when it is registered.
+	 */
+	public static final ManagementContext.MBeanFactory<TPJMSConnection> FACTORY = new ManagementContext.MBeanFactory<TPJMSConnection>() {
+		@Override
+		public Object createMBean(TPJMSConnection connection) {
+			return new ConnectionView(connection);
+		}
+
+		@Override
+		public String keyProperties(TPJMSConnection connection) {
+			return "type=Connection,id=" + ManagementContext.getInstance().nextId();
+		}
+	};
+
+	@Override
+	public String getClientID() throws JMSException {
+		return connection.getClientID();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return connection.isRunning();
+	}
+
+	@Override
+	public int getSessionCount() {
+		return connection.getSessionCount();
+	}
+
+	@Override
+	public void start() throws JMSException {
+		connection.start();
+	}
+
+	@Override
+	public void stop() throws JMSException {
+		connection.stop();
+	}
+
+	@Override
+	public void close() throws JMSException {
+		connection.close();
+	}
+}
@@ -0,0 +1,20 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.JMSException;
+
+/**
+ * JMX management of a connection.
+ */
+public interface ConnectionViewMBean {
+	String getClientID() throws JMSException;
+
+	boolean isRunning();
+
+	int getSessionCount();
+
+	void start() throws JMSException;
+
+	void stop() throws JMSException;
+
+	void close() throws JMSException;
+}
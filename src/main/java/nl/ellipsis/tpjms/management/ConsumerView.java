@@ -0,0 +1,75 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.management.ObjectName;
+
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageConsumer;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+
+/**
+ * Management of a {@link TPJMSMessageConsumer}.
+ */
+public class ConsumerView implements ConsumerViewMBean {
+	private final TPJMSMessageConsumer consumer;
+
+	public ConsumerView(TPJMSMessageConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Creates the MBean of a consumer, named after its destination and
+	 * numbered when it is registered.
+	 */
+	public static final ManagementContext.MBeanFactory<TPJMSMessageConsumer> FACTORY = new ManagementContext.MBeanFactory<TPJMSMessageConsumer>() {
+		@Override
+		public Object createMBean(TPJMSMessageConsumer consumer) {
+			return new ConsumerView(consumer);
+		}
+
+		@Override
+		public String keyProperties(TPJMSMessageConsumer consumer) {
+			return "type=Consumer,destination="
+					+ ObjectName.quote(MetricsRegistry.nameOf(consumer.getDestination()))
+					+ ",id=" + ManagementContext.getInstance().nextId();
+		}
+	};
+
+	@Override
+	public String getDestination() {
+		return MetricsRegistry.nameOf(consumer.getDestination());
+	}
+
+	@Override
+	public String getMessageSelector() throws JMSException {
+		return consumer.getMessageSelector();
+	}
+
+	@Override
+	public boolean isMessageListener() throws JMSException {
+		return consumer.getMessageListener() != null;
+	}
+
+	@Override
+	public int getPendingMessageCount() {
+		return consumer.getPendingMessageCount();
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (Message message : consumer.getPendingMessages()) {
+			if (message instanceof TPJMSMessage) {
+				bytes += ((TPJMSMessage) message).getEstimatedSize();
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public void close() throws JMSException {
+		consumer.close();
+	}
+}
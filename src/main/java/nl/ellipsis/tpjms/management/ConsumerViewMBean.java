@@ -0,0 +1,23 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.JMSException;
+
+/**
+ * JMX management of a message consumer.
+ */
+public interface ConsumerViewMBean {
+	String getDestination();
+
+	String getMessageSelector() throws JMSException;
+
+	boolean isMessageListener() throws JMSException;
+
+	/** messages delivered to the consumer but not yet received */
+	int getPendingMessageCount();
+
+	/** estimated heap used by the pending messages, in bytes */
+	long getMemoryUsage();
+
+	/** closes the consumer, e.g. one too slow to keep up */
+	void close() throws JMSException;
+}
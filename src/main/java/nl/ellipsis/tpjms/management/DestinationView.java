@@ -0,0 +1,95 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.management.ObjectName;
+
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+/**
+ * Management of a destination of the in-memory provider. Each attribute is
+ * read from the provider when asked for, so reading them costs nothing while
+ * nobody looks.
+ */
+public class DestinationView implements DestinationViewMBean {
+	private final VmProvider provider;
+	private final Destination destination;
+
+	public DestinationView(VmProvider provider, Destination destination) {
+		this.provider = provider;
+		this.destination = destination;
+	}
+
+	/**
+	 * Creates the MBean of a destination of the in-memory provider, named
+	 * after the destination.
+	 */
+	public static final ManagementContext.MBeanFactory<Destination> FACTORY = new ManagementContext.MBeanFactory<Destination>() {
+		@Override
+		public Object createMBean(Destination destination) {
+			return new DestinationView(VmProvider.getInstance(), destination);
+		}
+
+		@Override
+		public String keyProperties(Destination destination) {
+			return "type=Destination,name="
+					+ ObjectName.quote(MetricsRegistry.nameOf(destination));
+		}
+	};
+
+	@Override
+	public String getName() {
+		return MetricsRegistry.nameOf(destination);
+	}
+
+	@Override
+	public long getDepth() {
+		return provider.getDepth(destination);
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return provider.getMemoryUsage(destination);
+	}
+
+	@Override
+	public int getConsumerCount() {
+		return provider.getConsumers(destination).size();
+	}
+
+	@Override
+	public boolean isPaused() {
+		return provider.isPaused(destination);
+	}
+
+	@Override
+	public int getHeldCount() {
+		return provider.getHeldCount(destination);
+	}
+
+	@Override
+	public void pause() throws JMSException {
+		provider.pause(destination);
+	}
+
+	@Override
+	public void resume() throws JMSException {
+		provider.resume(destination);
+	}
+
+	@Override
+	public int purge() {
+		return provider.purge(destination);
+	}
+
+	@Override
+	public int moveMessagesTo(String name) throws JMSException {
+		Destination target = provider.getDestination(name);
+		if (target == null) {
+			throw new InvalidDestinationException("Unknown destination: " + name);
+		}
+		return provider.moveMessages(destination, target);
+	}
+}
@@ -0,0 +1,33 @@
+package nl.ellipsis.tpjms.management;
+
+import javax.jms.JMSException;
+
+/**
+ * JMX management of a destination.
+ */
+public interface DestinationViewMBean {
+	String getName();
+
+	/** messages sent but not yet received; a topic counts each subscriber */
+	long getDepth();
+
+	/** estimated heap used by the pending messages, in bytes */
+	long getMemoryUsage();
+
+	int getConsumerCount();
+
+	boolean isPaused();
+
+	/** messages held back while paused */
+	int getHeldCount();
+
+	void pause() throws JMSException;
+
+	void resume() throws JMSException;
+
+	/** discards the pending messages */
+	int purge();
+
+	/** moves the pending messages to the named destination */
+	int moveMessagesTo(String destination) throws JMSException;
+}
@@ -0,0 +1,209 @@
+package nl.ellipsis.tpjms.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.*;
+
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+
+/**
+ * Registry of the management MBeans of the provider: one for each broker,
+ * destination, connection and consumer.
+ *
+ * <p>
+ * Resources always announce themselves here when they are created and
+ * withdraw when they are closed, which costs a map update. The MBeans are
+ * only registered with the platform MBean server while management is
+ * enabled, which it is not by default. Enabling it registers the MBeans of
+ * the existing resources, disabling it unregisters them. Until then a
+ * resource is only held weakly, and its MBean and name are not created, so
+ * an unclosed resource can still be garbage collected. MBeans are named
+ * <code>nl.ellipsis.tpjms:type=...</code>, in the domain of the
+ * {@link MetricsRegistry}.
+ * </p>
+ */
+public final class ManagementContext {
+	private static final Logger logger = LogManager.getLogger(ManagementContext.class);
+
+	private static final ManagementContext instance = new ManagementContext();
+
+	private volatile boolean enabled = false;
+
+	/** the managed resources, weakly held; guarded by <code>jmxLock</code> */
+	private final Map<Object, Managed> resources = new WeakHashMap<Object, Managed>();
+	private final AtomicLong ids = new AtomicLong();
+	/** serializes JMX registration with enabling and disabling management */
+	private final ReentrantLock jmxLock = new ReentrantLock();
+
+	/**
+	 * Creates the MBean of a resource and the key properties of its name, such
+	 * as <code>type=Connection,id=1</code>, when the MBean is registered. A
+	 * factory must not hold on to the resources it is given.
+	 */
+	public interface MBeanFactory<T> {
+		Object createMBean(T resource);
+
+		String keyProperties(T resource);
+	}
+
+	/**
+	 * Factory of the MBean of a resource, and its name once registered.
+	 */
+	private static final class Managed {
+		final MBeanFactory<Object> factory;
+		ObjectName name;
+
+		Managed(MBeanFactory<Object> factory) {
+			this.factory = factory;
+		}
+	}
+
+	private ManagementContext() {
+	}
+
+	/**
+	 * Gets the singleton instance of the ManagementContext.
+	 * 
+	 * @return ManagementContext instance.
+	 */
+	public static ManagementContext getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables registering the management MBeans.
+	 */
+	public void setEnabled(boolean enabled) {
+		try {
+			jmxLock.lock();
+			if (this.enabled == enabled) {
+				return;
+			}
+			this.enabled = enabled;
+			for (Map.Entry<Object, Managed> entry : resources.entrySet()) {
+				if (enabled) {
+					register(entry.getKey(), entry.getValue());
+				} else {
+					unregister(entry.getValue());
+				}
+			}
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets a number to tell apart resources of the same type in MBean names.
+	 */
+	public long nextId() {
+		return ids.incrementAndGet();
+	}
+
+	/**
+	 * Adds a resource, and registers its MBean if management is enabled. A
+	 * resource that is already managed keeps its MBean.
+	 * 
+	 * @param resource
+	 *            managed resource
+	 * @param factory
+	 *            factory of the standard MBean for the resource
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> void register(T resource, MBeanFactory<? super T> factory) {
+		try {
+			jmxLock.lock();
+			if (resources.containsKey(resource)) {
+				return;
+			}
+			Managed managed = new Managed((MBeanFactory<Object>) factory);
+			resources.put(resource, managed);
+			if (enabled) {
+				register(resource, managed);
+			}
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the MBean of a resource.
+	 */
+	public void unregister(Object resource) {
+		try {
+			jmxLock.lock();
+			Managed managed = resources.remove(resource);
+			if (managed != null) {
+				unregister(managed);
+			}
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the MBean name of a resource.
+	 * 
+	 * @return name, or <code>null</code> if the resource has no registered
+	 *         MBean
+	 */
+	public ObjectName getObjectName(Object resource) {
+		try {
+			jmxLock.lock();
+			Managed managed = resources.get(resource);
+			return (managed == null) ? null : managed.name;
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Registers an MBean. Must be called with the JMX lock held.
+	 */
+	private void register(Object resource, Managed managed) {
+		if (managed.name != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = null;
+		try {
+			name = new ObjectName(MetricsRegistry.JMX_DOMAIN + ":"
+					+ managed.factory.keyProperties(resource));
+			if (server.isRegistered(name)) {
+				// left behind by an earlier resource of the same name
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(managed.factory.createMBean(resource), name);
+			managed.name = name;
+		} catch (JMException e) {
+			logger.warn("Unable to register MBean " + name, e);
+		}
+	}
+
+	/**
+	 * Unregisters an MBean. Must be called with the JMX lock held.
+	 */
+	private void unregister(Managed managed) {
+		ObjectName name = managed.name;
+		if (name == null) {
+			return;
+		}
+		managed.name = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warn("Unable to unregister MBean " + name, e);
+		}
+	}
+}
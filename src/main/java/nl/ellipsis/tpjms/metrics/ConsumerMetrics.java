@@ -0,0 +1,101 @@
+package nl.ellipsis.tpjms.metrics;
+
+/**
+ * Counters of one consumer. Each update is also applied to the
+ * {@link DestinationMetrics} of the destination of the consumer.
+ */
+public final class ConsumerMetrics implements ConsumerMetricsMBean {
+	private final DestinationMetrics destination;
+	private final StripedCounter dispatched = new StripedCounter();
+	private final StripedCounter dequeued = new StripedCounter();
+	private final StripedCounter discarded = new StripedCounter();
+	private final StripedCounter slowConsumer = new StripedCounter();
+
+	ConsumerMetrics(DestinationMetrics destination) {
+		this.destination = destination;
+	}
+
+	@Override
+	public String getDestination() {
+		return destination.getDestination();
+	}
+
+	public DestinationMetrics getDestinationMetrics() {
+		return destination;
+	}
+
+	@Override
+	public long getDispatchCount() {
+		return dispatched.sum();
+	}
+
+	@Override
+	public long getDequeueCount() {
+		return dequeued.sum();
+	}
+
+	@Override
+	public long getDiscardCount() {
+		return discarded.sum();
+	}
+
+	@Override
+	public long getPendingCount() {
+		return Math.max(0, dispatched.sum() - dequeued.sum() - discarded.sum());
+	}
+
+	@Override
+	public long getSlowConsumerCount() {
+		return slowConsumer.sum();
+	}
+
+	@Override
+	public void reset() {
+		dispatched.reset();
+		dequeued.reset();
+		discarded.reset();
+		slowConsumer.reset();
+	}
+
+	/**
+	 * Records messages handed to the consumer.
+	 */
+	public void dispatched(int count) {
+		dispatched.add(count);
+		destination.dispatched(count);
+	}
+
+	/**
+	 * Records a message received by the consumer or delivered to its
+	 * listener.
+	 *
+	 * @param sendNanos
+	 *            {@link System#nanoTime()} at which the provider accepted the
+	 *            message, or 0 if unknown
+	 * @param now
+	 *            current {@link System#nanoTime()}
+	 */
+	public void dequeued(long sendNanos, long now) {
+		dequeued.increment();
+		destination.dequeued(sendNanos == 0 ? -1 : now - sendNanos);
+	}
+
+	/**
+	 * Records messages dropped without being consumed, e.g. when the consumer
+	 * is closed.
+	 */
+	public void discarded(int count) {
+		if (count > 0) {
+			discarded.add(count);
+			destination.discarded(count);
+		}
+	}
+
+	/**
+	 * Records a delivery handled by the slow consumer policy.
+	 */
+	public void slowConsumer() {
+		slowConsumer.increment();
+		destination.slowConsumer();
+	}
+}
@@ -0,0 +1,25 @@
+package nl.ellipsis.tpjms.metrics;
+
+/**
+ * JMX view of the {@link ConsumerMetrics} of a consumer.
+ */
+public interface ConsumerMetricsMBean {
+	String getDestination();
+
+	/** messages handed to the consumer */
+	long getDispatchCount();
+
+	/** messages received or delivered to the listener */
+	long getDequeueCount();
+
+	/** messages dropped by the consumer without being consumed */
+	long getDiscardCount();
+
+	/** messages handed to the consumer but not yet consumed */
+	long getPendingCount();
+
+	/** deliveries handled by the slow consumer policy */
+	long getSlowConsumerCount();
+
+	void reset();
+}
@@ -0,0 +1,194 @@
+package nl.ellipsis.tpjms.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters and latencies of one destination.
+ *
+ * <p>
+ * The delivery latency runs from the moment the provider accepts a message to
+ * the moment a consumer receives it or its listener is called; the
+ * acknowledge latency runs from there to the call of
+ * <code>Message.acknowledge()</code>. Depth and in-flight count are derived
+ * from the counters, so they are only exact while no update is in progress.
+ * </p>
+ */
+public final class DestinationMetrics implements DestinationMetricsMBean {
+	private final String destination;
+
+	private final StripedCounter enqueued = new StripedCounter();
+	private final StripedCounter dispatched = new StripedCounter();
+	private final StripedCounter dequeued = new StripedCounter();
+	private final StripedCounter discarded = new StripedCounter();
+	private final StripedCounter acknowledged = new StripedCounter();
+	private final StripedCounter slowConsumer = new StripedCounter();
+	private final AtomicInteger consumers = new AtomicInteger();
+
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private final LatencyHistogram acknowledgeLatency = new LatencyHistogram();
+
+	DestinationMetrics(String destination) {
+		this.destination = destination;
+	}
+
+	@Override
+	public String getDestination() {
+		return destination;
+	}
+
+	@Override
+	public long getEnqueueCount() {
+		return enqueued.sum();
+	}
+
+	@Override
+	public long getDispatchCount() {
+		return dispatched.sum();
+	}
+
+	@Override
+	public long getDequeueCount() {
+		return dequeued.sum();
+	}
+
+	@Override
+	public long getDiscardCount() {
+		return discarded.sum();
+	}
+
+	@Override
+	public long getAcknowledgeCount() {
+		return acknowledged.sum();
+	}
+
+	@Override
+	public long getSlowConsumerCount() {
+		return slowConsumer.sum();
+	}
+
+	@Override
+	public long getDepth() {
+		return Math.max(0, dispatched.sum() - dequeued.sum() - discarded.sum());
+	}
+
+	@Override
+	public long getInFlightCount() {
+		return Math.max(0, dequeued.sum() - acknowledged.sum());
+	}
+
+	@Override
+	public int getConsumerCount() {
+		return consumers.get();
+	}
+
+	@Override
+	public double getDeliveryLatencyMean() {
+		return deliveryLatency.getMean();
+	}
+
+	@Override
+	public long getDeliveryLatency50thPercentile() {
+		return deliveryLatency.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getDeliveryLatency99thPercentile() {
+		return deliveryLatency.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getDeliveryLatency999thPercentile() {
+		return deliveryLatency.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getDeliveryLatencyMax() {
+		return deliveryLatency.getMax();
+	}
+
+	@Override
+	public double getAcknowledgeLatencyMean() {
+		return acknowledgeLatency.getMean();
+	}
+
+	@Override
+	public long getAcknowledgeLatency99thPercentile() {
+		return acknowledgeLatency.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getAcknowledgeLatencyMax() {
+		return acknowledgeLatency.getMax();
+	}
+
+	public LatencyHistogram getDeliveryLatency() {
+		return deliveryLatency;
+	}
+
+	public LatencyHistogram getAcknowledgeLatency() {
+		return acknowledgeLatency;
+	}
+
+	/**
+	 * Resets the counters and latencies. The consumer count is kept.
+	 */
+	@Override
+	public void reset() {
+		enqueued.reset();
+		dispatched.reset();
+		dequeued.reset();
+		discarded.reset();
+		acknowledged.reset();
+		slowConsumer.reset();
+		deliveryLatency.reset();
+		acknowledgeLatency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "DestinationMetrics[" + destination + ", enqueued=" + enqueued
+				+ ", dequeued=" + dequeued + ", depth=" + getDepth() + "]";
+	}
+
+	void enqueued(int count) {
+		enqueued.add(count);
+	}
+
+	void dispatched(int count) {
+		dispatched.add(count);
+	}
+
+	void dequeued(long latency) {
+		dequeued.increment();
+		if (latency >= 0) {
+			deliveryLatency.record(latency);
+		}
+	}
+
+	void discarded(int count) {
+		discarded.add(count);
+	}
+
+	void slowConsumer() {
+		slowConsumer.increment();
+	}
+
+	/**
+	 * Records the acknowledgement of a message.
+	 * 
+	 * @param latency
+	 *            time from delivery to acknowledgement, in nanoseconds
+	 */
+	public void acknowledged(long latency) {
+		acknowledged.increment();
+		acknowledgeLatency.record(latency);
+	}
+
+	void consumerAdded() {
+		consumers.incrementAndGet();
+	}
+
+	void consumerRemoved() {
+		consumers.decrementAndGet();
+	}
+}
@@ -0,0 +1,52 @@
+package nl.ellipsis.tpjms.metrics;
+
+/**
+ * JMX view of the {@link DestinationMetrics} of a destination. Latencies are
+ * in nanoseconds.
+ */
+public interface DestinationMetricsMBean {
+	String getDestination();
+
+	/** messages sent to the destination */
+	long getEnqueueCount();
+
+	/** messages handed to consumers; a topic counts each subscriber */
+	long getDispatchCount();
+
+	/** messages received by consumers or delivered to their listeners */
+	long getDequeueCount();
+
+	/** messages dropped because their consumer was closed, purged or slow */
+	long getDiscardCount();
+
+	long getAcknowledgeCount();
+
+	/** deliveries handled by the slow consumer policy */
+	long getSlowConsumerCount();
+
+	/** messages dispatched to consumers but not yet consumed */
+	long getDepth();
+
+	/** messages consumed but not yet acknowledged */
+	long getInFlightCount();
+
+	int getConsumerCount();
+
+	double getDeliveryLatencyMean();
+
+	long getDeliveryLatency50thPercentile();
+
+	long getDeliveryLatency99thPercentile();
+
+	long getDeliveryLatency999thPercentile();
+
+	long getDeliveryLatencyMax();
+
+	double getAcknowledgeLatencyMean();
+
+	long getAcknowledgeLatency99thPercentile();
+
+	long getAcknowledgeLatencyMax();
+
+	void reset();
+}
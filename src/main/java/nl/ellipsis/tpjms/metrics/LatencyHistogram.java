@@ -0,0 +1,124 @@
+package nl.ellipsis.tpjms.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds, with buckets laid out as
+ * in HdrHistogram.
+ *
+ * <p>
+ * Values below {@link #SUB_BUCKETS} get a bucket each. Above that, every
+ * power of two is split in {@link #SUB_BUCKETS}/2 linear buckets, so a
+ * recorded value is reported with a relative error below 2%. Values beyond
+ * {@link #MAX_TRACKABLE} (about 73 minutes) are counted in the last bucket.
+ * Recording is a few shifts and an atomic increment; it never allocates or
+ * locks.
+ * </p>
+ */
+public final class LatencyHistogram {
+	static final int SUB_BUCKETS = 128;
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int HALF = SUB_BUCKETS / 2;
+	/** highest bit of the largest value that gets its own bucket */
+	private static final int MAX_BIT = 42;
+	static final long MAX_TRACKABLE = (1L << (MAX_BIT + 1)) - 1;
+	private static final int BUCKETS = (MAX_BIT - SUB_BUCKET_BITS + 3) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency. Negative values, from clocks of different threads,
+	 * are recorded as zero.
+	 *
+	 * @param nanos
+	 *            latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts.incrementAndGet(index(Math.min(value, MAX_TRACKABLE)));
+		count.increment();
+		total.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean latency in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * Gets the latency at a percentile, as the highest value that falls in the
+	 * same bucket.
+	 *
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				// the last bucket also holds the values beyond its range
+				return (i == BUCKETS - 1) ? max.get() : Math.min(highestEquivalent(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		// value >> shift lies in [HALF, SUB_BUCKETS)
+		return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	static long highestEquivalent(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / HALF - 1;
+		long sub = index % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
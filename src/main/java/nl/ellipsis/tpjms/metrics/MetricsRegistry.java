@@ -0,0 +1,283 @@
+package nl.ellipsis.tpjms.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Registry of the {@link DestinationMetrics} and {@link ConsumerMetrics} of
+ * the provider.
+ *
+ * <p>
+ * Metrics are disabled by default. The instrumented code checks
+ * {@link #isEnabled()}, a single volatile read, before doing anything else, so
+ * disabled metrics cost next to nothing. When JMX is enabled as well, each
+ * metrics object is registered with the platform MBean server as
+ * <code>nl.ellipsis.tpjms:type=DestinationMetrics,name=...</code> or
+ * <code>nl.ellipsis.tpjms:type=ConsumerMetrics,destination=...,id=...</code>.
+ * </p>
+ */
+public final class MetricsRegistry {
+	private static final Logger logger = LogManager.getLogger(MetricsRegistry.class);
+
+	public static final String JMX_DOMAIN = "nl.ellipsis.tpjms";
+
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	private volatile boolean enabled = false;
+	private volatile boolean jmxEnabled = false;
+
+	private final ConcurrentMap<Destination, DestinationMetrics> destinations = new ConcurrentHashMap<Destination, DestinationMetrics>();
+	private final ConcurrentMap<MessageConsumer, ConsumerMetrics> consumers = new ConcurrentHashMap<MessageConsumer, ConsumerMetrics>();
+	private final ConcurrentMap<Object, ObjectName> objectNames = new ConcurrentHashMap<Object, ObjectName>();
+	private final AtomicLong consumerIds = new AtomicLong();
+	/** serializes JMX registration with enabling and disabling JMX */
+	private final ReentrantLock jmxLock = new ReentrantLock();
+
+	private MetricsRegistry() {
+	}
+
+	/**
+	 * Gets the singleton instance of the MetricsRegistry.
+	 * 
+	 * @return MetricsRegistry instance.
+	 */
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables collecting metrics. Metrics collected so far are
+	 * kept.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	/**
+	 * Enables or disables registering the metrics as MBeans. Enabling it
+	 * registers the existing metrics, disabling it unregisters them.
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		try {
+			jmxLock.lock();
+			if (this.jmxEnabled == jmxEnabled) {
+				return;
+			}
+			this.jmxEnabled = jmxEnabled;
+			if (jmxEnabled) {
+				for (DestinationMetrics metrics : destinations.values()) {
+					register(metrics);
+				}
+				for (ConsumerMetrics metrics : consumers.values()) {
+					register(metrics);
+				}
+			} else {
+				for (Object metrics : new ArrayList<Object>(objectNames.keySet())) {
+					unregister(metrics);
+				}
+			}
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the metrics of a destination, creating them if needed.
+	 */
+	public DestinationMetrics getDestinationMetrics(Destination destination) {
+		DestinationMetrics metrics = destinations.get(destination);
+		if (metrics != null) {
+			return metrics;
+		}
+		metrics = new DestinationMetrics(nameOf(destination));
+		DestinationMetrics existing = destinations.putIfAbsent(destination, metrics);
+		if (existing != null) {
+			return existing;
+		}
+		if (jmxEnabled) {
+			registerLocked(metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Drops the metrics of a destination that no longer exists, such as a
+	 * temporary destination.
+	 */
+	public void removeDestination(Destination destination) {
+		DestinationMetrics metrics = destinations.remove(destination);
+		if (metrics != null) {
+			try {
+				jmxLock.lock();
+				unregister(metrics);
+			} finally {
+				jmxLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the metrics of all destinations that have been used.
+	 */
+	public Collection<DestinationMetrics> getDestinationMetrics() {
+		return new ArrayList<DestinationMetrics>(destinations.values());
+	}
+
+	/**
+	 * Gets the metrics of a consumer, creating them if needed.
+	 */
+	public ConsumerMetrics getConsumerMetrics(MessageConsumer consumer, Destination destination) {
+		ConsumerMetrics metrics = consumers.get(consumer);
+		if (metrics != null) {
+			return metrics;
+		}
+		DestinationMetrics destinationMetrics = getDestinationMetrics(destination);
+		metrics = new ConsumerMetrics(destinationMetrics);
+		ConsumerMetrics existing = consumers.putIfAbsent(consumer, metrics);
+		if (existing != null) {
+			return existing;
+		}
+		destinationMetrics.consumerAdded();
+		if (jmxEnabled) {
+			registerLocked(metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Gets the metrics of all consumers that have metrics.
+	 */
+	public Collection<ConsumerMetrics> getConsumerMetrics() {
+		return new ArrayList<ConsumerMetrics>(consumers.values());
+	}
+
+	/**
+	 * Drops the metrics of a closed consumer.
+	 */
+	public void removeConsumer(MessageConsumer consumer) {
+		ConsumerMetrics metrics = consumers.remove(consumer);
+		if (metrics != null) {
+			metrics.getDestinationMetrics().consumerRemoved();
+			try {
+				jmxLock.lock();
+				unregister(metrics);
+			} finally {
+				jmxLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Records messages accepted by the provider for a destination.
+	 */
+	public void enqueued(Destination destination, int count) {
+		getDestinationMetrics(destination).enqueued(count);
+	}
+
+	/**
+	 * Resets the counters and latencies of all destinations and consumers.
+	 */
+	public void reset() {
+		for (DestinationMetrics metrics : destinations.values()) {
+			metrics.reset();
+		}
+		for (ConsumerMetrics metrics : consumers.values()) {
+			metrics.reset();
+		}
+	}
+
+	/**
+	 * Gets the name under which a destination is reported, such as
+	 * <code>queue://orders</code>.
+	 */
+	public static String nameOf(Destination destination) {
+		try {
+			if (destination instanceof Queue) {
+				return "queue://" + ((Queue) destination).getQueueName();
+			}
+			if (destination instanceof Topic) {
+				return "topic://" + ((Topic) destination).getTopicName();
+			}
+		} catch (JMSException e) {
+			// fall through to the default name
+		}
+		return String.valueOf(destination);
+	}
+
+	private ObjectName objectName(Object metrics) throws JMException {
+		if (metrics instanceof DestinationMetrics) {
+			return new ObjectName(JMX_DOMAIN + ":type=DestinationMetrics,name="
+					+ ObjectName.quote(((DestinationMetrics) metrics).getDestination()));
+		}
+		return new ObjectName(JMX_DOMAIN + ":type=ConsumerMetrics,destination="
+				+ ObjectName.quote(((ConsumerMetrics) metrics).getDestination())
+				+ ",id=" + consumerIds.incrementAndGet());
+	}
+
+	private void registerLocked(Object metrics) {
+		try {
+			jmxLock.lock();
+			if (jmxEnabled && !objectNames.containsKey(metrics)) {
+				register(metrics);
+			}
+		} finally {
+			jmxLock.unlock();
+		}
+	}
+
+	/**
+	 * Registers a metrics object as MBean. Must be called with the JMX lock
+	 * held.
+	 */
+	private void register(Object metrics) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = null;
+		try {
+			name = objectName(metrics);
+			if (server.isRegistered(name)) {
+				// left behind by an earlier registry state, e.g. a removed broker
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+			objectNames.put(metrics, name);
+		} catch (JMException e) {
+			logger.warn("Unable to register MBean " + name, e);
+		}
+	}
+
+	private void unregister(Object metrics) {
+		ObjectName name = objectNames.remove(metrics);
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warn("Unable to unregister MBean " + name, e);
+		}
+	}
+}
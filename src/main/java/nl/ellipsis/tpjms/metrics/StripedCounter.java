@@ -0,0 +1,65 @@
+package nl.ellipsis.tpjms.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads concurrent updates over several cells, in the manner
+ * of <code>java.util.concurrent.atomic.LongAdder</code>.
+ *
+ * <p>
+ * A thread always updates the cell picked by its id, so threads sending to the
+ * same destination rarely contend on one cache line. Cells are padded apart
+ * in the backing array. Reading the sum adds up all cells and is not an
+ * atomic snapshot; it is meant for monitoring.
+ * </p>
+ */
+public final class StripedCounter {
+	/** longs between two cells, keeping them on separate cache lines */
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.getAndAdd(cell(), delta);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		// spread sequential thread ids over the stripes
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((h >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+	private static int stripes() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = Integer.highestOneBit(Math.max(cpus, 1));
+		if (stripes < cpus) {
+			stripes <<= 1;
+		}
+		return Math.min(stripes, 64);
+	}
+}
@@ -0,0 +1,264 @@
+package nl.ellipsis.tpjms.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import javax.jms.*;
+
+/**
+ * Read-only view of a map encoded by {@link MarshallingEncoder#writeMap(Map)}.
+ *
+ * <p>
+ * The view keeps the encoded bytes. On first access it scans them once to
+ * build an index of the offsets of the keys and their values; keys are
+ * matched against the encoded bytes, and values are only decoded when they
+ * are requested, and are then cached. Reading a few entries
+ * of a large map therefore costs little more than scanning its keys, and the
+ * encoded form can be handed on unchanged.
+ * </p>
+ *
+ * <p>
+ * As with the decoded map, a malformed body is only reported when it is
+ * read. This class is not thread-safe.
+ * </p>
+ */
+public final class EncodedMap {
+	private static final Object UNDECODED = new Object();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final byte[] encoded;
+	private final ByteBuffer buffer;
+	private final MarshallingDecoder decoder;
+
+	/** offset and length of each key; a length of -1 marks a replaced entry */
+	private int[] keyOffsets;
+	private int[] keyLengths;
+	/** decoded keys, filled on demand; non-ASCII keys are decoded up front */
+	private String[] keys;
+	private int[] offsets;
+	private Object[] values;
+	/** hash table of entry index + 1, 0 marks a free slot */
+	private int[] table;
+	private int size = -1;
+
+	/**
+	 * Creates a view over encoded map data.
+	 *
+	 * @param encoded
+	 *            encoded map; the array is used as is, not copied
+	 */
+	public EncodedMap(byte[] encoded) {
+		this.encoded = encoded;
+		this.buffer = ByteBuffer.wrap(encoded);
+		this.decoder = new MarshallingDecoder(buffer);
+	}
+
+	/**
+	 * Gets the value of an entry, decoding it if needed.
+	 *
+	 * @param name
+	 *            key of the entry
+	 * @return value, or <code>null</code> if there is no such entry
+	 * @throws JMSException
+	 *             if the encoded data is malformed
+	 */
+	public Object get(String name) throws JMSException {
+		int index = indexOf(name);
+		return (index < 0) ? null : valueAt(index);
+	}
+
+	public boolean containsKey(String name) throws JMSException {
+		return indexOf(name) >= 0;
+	}
+
+	public int size() throws JMSException {
+		index();
+		return size;
+	}
+
+	/**
+	 * Gets the keys of all entries, in encoded order.
+	 */
+	public List<String> keys() throws JMSException {
+		index();
+		List<String> names = new ArrayList<String>(size);
+		for (int i = 0; i < offsets.length; i++) {
+			if (keyLengths[i] >= 0) {
+				names.add(keyAt(i));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Decodes all entries into <code>map</code>.
+	 */
+	public void copyTo(Map<String, Object> map) throws JMSException {
+		index();
+		for (int i = 0; i < offsets.length; i++) {
+			if (keyLengths[i] >= 0) {
+				map.put(keyAt(i), valueAt(i));
+			}
+		}
+	}
+
+	/**
+	 * Creates another view over the same encoded data, with its own decoding
+	 * state.
+	 */
+	public EncodedMap duplicate() {
+		return new EncodedMap(encoded);
+	}
+
+	/**
+	 * Gets the length of the encoded data.
+	 */
+	public int length() {
+		return encoded.length;
+	}
+
+	/**
+	 * Gets a copy of the encoded data.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[encoded.length];
+		System.arraycopy(encoded, 0, copy, 0, encoded.length);
+		return copy;
+	}
+
+	private Object valueAt(int index) throws JMSException {
+		if (values[index] == UNDECODED) {
+			buffer.position(offsets[index]);
+			values[index] = decoder.readObject();
+		}
+		return values[index];
+	}
+
+	private String keyAt(int index) {
+		if (keys[index] == null) {
+			keys[index] = new String(encoded, keyOffsets[index],
+					keyLengths[index], ASCII);
+		}
+		return keys[index];
+	}
+
+	private int indexOf(String name) throws JMSException {
+		index();
+		if (name == null || size == 0) {
+			return -1;
+		}
+
+		int mask = table.length - 1;
+		for (int i = name.hashCode() & mask;; i = (i + 1) & mask) {
+			int entry = table[i] - 1;
+			if (entry < 0) {
+				return -1;
+			}
+			if (keyEquals(entry, name)) {
+				return entry;
+			}
+		}
+	}
+
+	private boolean keyEquals(int index, String name) {
+		if (keys[index] != null) {
+			return keys[index].equals(name);
+		}
+
+		// an ASCII key is compared with the encoded bytes, nothing is decoded
+		int length = keyLengths[index];
+		if (name.length() != length) {
+			return false;
+		}
+		int offset = keyOffsets[index];
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != encoded[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean sameKey(int a, int b) {
+		int length = keyLengths[a];
+		if (keyLengths[b] != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (encoded[keyOffsets[a] + i] != encoded[keyOffsets[b] + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Scans the keys and records the offsets of each key and value. Keys in
+	 * plain ASCII are hashed straight from the encoded bytes, giving the same
+	 * value as {@link String#hashCode()}.
+	 */
+	private void index() throws JMSException {
+		if (size >= 0) {
+			return;
+		}
+
+		buffer.position(0);
+		int count = decoder.getVarInt();
+		// every entry takes at least two bytes, which bounds a corrupt count
+		if (count > buffer.remaining() / 2) {
+			throw new MessageEOFException("End of message reached");
+		}
+
+		keyOffsets = new int[count];
+		keyLengths = new int[count];
+		keys = new String[count];
+		offsets = new int[count];
+		// keep the table at most half full so probe chains stay short
+		int capacity = Integer.highestOneBit(Math.max(count, 1) * 4 - 1);
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		int live = count;
+
+		for (int i = 0; i < count; i++) {
+			int keyStart = buffer.position();
+			int length = decoder.getVarInt();
+			decoder.ensure(length);
+			int offset = buffer.position();
+
+			int hash = 0;
+			int end = offset + length;
+			for (int j = offset; j < end; j++) {
+				byte b = encoded[j];
+				if (b < 0) {
+					buffer.position(keyStart);
+					keys[i] = decoder.getString();
+					hash = keys[i].hashCode();
+					break;
+				}
+				hash = 31 * hash + b;
+			}
+			buffer.position(end);
+			keyOffsets[i] = offset;
+			keyLengths[i] = length;
+			offsets[i] = end;
+			decoder.skipValue();
+
+			int slot = hash & mask;
+			while (table[slot] != 0 && !sameKey(table[slot] - 1, i)) {
+				slot = (slot + 1) & mask;
+			}
+			if (table[slot] != 0) {
+				// a duplicate key replaces the earlier entry, as Map.put does
+				keyLengths[table[slot] - 1] = -1;
+				live--;
+			}
+			table[slot] = i + 1;
+		}
+
+		values = new Object[count];
+		Arrays.fill(values, UNDECODED);
+		this.table = table;
+		this.size = live;
+	}
+}
@@ -0,0 +1,64 @@
+package nl.ellipsis.tpjms.protocol;
+
+import java.io.*;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.util.PooledByteArrayOutputStream;
+
+/**
+ * {@link ObjectSerializer} using standard Java serialization.
+ */
+public final class JavaObjectSerializer implements ObjectSerializer {
+	private static final JavaObjectSerializer instance = new JavaObjectSerializer();
+
+	private JavaObjectSerializer() {
+	}
+
+	public static JavaObjectSerializer getInstance() {
+		return instance;
+	}
+
+	@Override
+	public byte[] serialize(Serializable object) throws JMSException {
+		if (object == null) {
+			return null;
+		}
+
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream();
+		try {
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(object);
+			oos.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new MessageFormatException("Cannot serialize object : "
+					+ e.toString());
+		} finally {
+			bos.release();
+		}
+	}
+
+	@Override
+	public Serializable deserialize(byte[] data) throws JMSException {
+		if (data == null) {
+			return null;
+		}
+
+		ObjectInputStream ois = null;
+		try {
+			ois = new ObjectInputStream(new ByteArrayInputStream(data));
+			return (Serializable) ois.readObject();
+		} catch (Exception e) {
+			throw new MessageFormatException("Unable to deserialize object: "
+					+ e.getMessage());
+		} finally {
+			if (ois != null) {
+				try {
+					ois.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package nl.ellipsis.tpjms.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+
+/**
+ * Decodes values written by a {@link MarshallingEncoder}.
+ *
+ * <p>
+ * The decoder either reads a {@link ByteBuffer} that holds all encoded data,
+ * or reads from an {@link InputStream} through a buffer that is refilled as
+ * needed. In the latter case memory use is bounded by the buffer size and the
+ * largest single string that is read. This class is not thread-safe.
+ * </p>
+ */
+public final class MarshallingDecoder {
+	private static final ObjectType[] TYPES = ObjectType.values();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final InputStream source;
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates a decoder over the remaining bytes of a buffer.
+	 *
+	 * @param buffer
+	 *            encoded data; its position is advanced while reading
+	 */
+	public MarshallingDecoder(ByteBuffer buffer) {
+		this.source = null;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Creates a decoder that reads encoded data from a stream.
+	 *
+	 * @param source
+	 *            stream to read from
+	 * @param bufferSize
+	 *            size of the read buffer
+	 */
+	public MarshallingDecoder(InputStream source, int bufferSize) {
+		this.source = source;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+		this.buffer.flip();
+	}
+
+	/**
+	 * Indicates whether there is more data to read.
+	 *
+	 * @throws JMSException
+	 *             if the source fails
+	 */
+	public boolean hasRemaining() throws JMSException {
+		return buffer.hasRemaining() || fill(1);
+	}
+
+	/**
+	 * Gets the type tag of the next value without consuming it.
+	 *
+	 * @return type of the next value
+	 * @throws MessageEOFException
+	 *             if there is no more data
+	 * @throws MessageFormatException
+	 *             if the tag is invalid
+	 */
+	public ObjectType peekType() throws JMSException {
+		ensure(1);
+		return toType(buffer.get(buffer.position()));
+	}
+
+	/**
+	 * Reads a tagged value.
+	 *
+	 * @return value read, with primitives boxed
+	 * @throws MessageEOFException
+	 *             if the data ends before the value is complete
+	 * @throws MessageFormatException
+	 *             if the data is invalid
+	 */
+	public Object readObject() throws JMSException {
+		ensure(1);
+		ObjectType type = toType(buffer.get());
+		switch (type) {
+		case NULL:
+			return null;
+		case BOOLEAN:
+			ensure(1);
+			return buffer.get() != 0;
+		case BYTE:
+			ensure(1);
+			return buffer.get();
+		case CHAR:
+			ensure(2);
+			return buffer.getChar();
+		case SHORT:
+			ensure(2);
+			return buffer.getShort();
+		case INT:
+			ensure(4);
+			return buffer.getInt();
+		case LONG:
+			ensure(8);
+			return buffer.getLong();
+		case FLOAT:
+			ensure(4);
+			return buffer.getFloat();
+		case DOUBLE:
+			ensure(8);
+			return buffer.getDouble();
+		case STRING:
+			return getString();
+		case BYTE_ARRAY:
+			return getBytes();
+		default:
+			throw new MessageFormatException("Unknown data type received: "
+					+ type);
+		}
+	}
+
+	/*
+	 * Typed readers. Each one consumes a value of exactly its own type and
+	 * fails without consuming anything if the next tag differs; use
+	 * peekType() to decide which reader applies.
+	 */
+
+	public boolean readBoolean() throws JMSException {
+		expect(ObjectType.BOOLEAN, 1);
+		return buffer.get() != 0;
+	}
+
+	public byte readByte() throws JMSException {
+		expect(ObjectType.BYTE, 1);
+		return buffer.get();
+	}
+
+	public char readChar() throws JMSException {
+		expect(ObjectType.CHAR, 2);
+		return buffer.getChar();
+	}
+
+	public short readShort() throws JMSException {
+		expect(ObjectType.SHORT, 2);
+		return buffer.getShort();
+	}
+
+	public int readInt() throws JMSException {
+		expect(ObjectType.INT, 4);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws JMSException {
+		expect(ObjectType.LONG, 8);
+		return buffer.getLong();
+	}
+
+	public float readFloat() throws JMSException {
+		expect(ObjectType.FLOAT, 4);
+		return buffer.getFloat();
+	}
+
+	public double readDouble() throws JMSException {
+		expect(ObjectType.DOUBLE, 8);
+		return buffer.getDouble();
+	}
+
+	/**
+	 * Reads a map written by {@link MarshallingEncoder#writeMap(Map)}.
+	 *
+	 * @param map
+	 *            map to put the entries in
+	 * @throws MessageEOFException
+	 *             if the data ends before the map is complete
+	 * @throws MessageFormatException
+	 *             if the data is invalid
+	 */
+	public void readMap(Map<String, Object> map) throws JMSException {
+		int size = getVarInt();
+		for (int i = 0; i < size; i++) {
+			String key = getString();
+			map.put(key, readObject());
+		}
+	}
+
+	/**
+	 * Skips a tagged value without decoding it.
+	 *
+	 * @throws MessageEOFException
+	 *             if the data ends before the value is complete
+	 * @throws MessageFormatException
+	 *             if the data is invalid
+	 */
+	public void skipValue() throws JMSException {
+		ensure(1);
+		switch (toType(buffer.get())) {
+		case NULL:
+			break;
+		case BOOLEAN:
+		case BYTE:
+			skip(1);
+			break;
+		case CHAR:
+		case SHORT:
+			skip(2);
+			break;
+		case INT:
+		case FLOAT:
+			skip(4);
+			break;
+		case LONG:
+		case DOUBLE:
+			skip(8);
+			break;
+		default:
+			// strings and byte arrays
+			skip(getVarInt());
+		}
+	}
+
+	/**
+	 * Reads an untagged, length-prefixed UTF-8 string.
+	 */
+	String getString() throws JMSException {
+		int length = getVarInt();
+		ensure(length);
+
+		byte[] bytes;
+		int start;
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			start = buffer.arrayOffset() + buffer.position();
+		} else {
+			bytes = new byte[length];
+			buffer.get(bytes, 0, length);
+			buffer.position(buffer.position() - length);
+			start = 0;
+		}
+		buffer.position(buffer.position() + length);
+
+		int end = start + length;
+		int i = start;
+		while (i < end && bytes[i] >= 0) {
+			i++;
+		}
+		if (i == end) {
+			// plain ASCII, which the platform decodes without a char copy
+			return new String(bytes, start, length, ASCII);
+		}
+
+		char[] chars = new char[length];
+		int count = decodeUtf8(bytes, start, length, chars);
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Reads an untagged, length-prefixed byte array.
+	 */
+	byte[] getBytes() throws JMSException {
+		int length = getVarInt();
+		if (source == null && length > buffer.remaining()) {
+			throw new MessageEOFException("End of message reached");
+		}
+
+		byte[] bytes = new byte[length];
+		int buffered = Math.min(length, buffer.remaining());
+		buffer.get(bytes, 0, buffered);
+		if (buffered < length) {
+			// read the rest straight from the source, bypassing the buffer
+			try {
+				new DataInputStream(source).readFully(bytes, buffered, length
+						- buffered);
+			} catch (EOFException e) {
+				throw new MessageEOFException("End of message reached");
+			} catch (IOException e) {
+				throw new JMSException("Error reading data: " + e.getMessage());
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reads an unsigned varint of at most 32 bits.
+	 */
+	int getVarInt() throws JMSException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			ensure(1);
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value < 0) {
+					throw new MessageFormatException("Invalid length: "
+							+ (value & 0xFFFFFFFFL));
+				}
+				return value;
+			}
+		}
+		throw new MessageFormatException("Malformed varint");
+	}
+
+	private void skip(int length) throws JMSException {
+		while (length > buffer.remaining()) {
+			length -= buffer.remaining();
+			buffer.position(buffer.limit());
+			if (!fill(1)) {
+				throw new MessageEOFException("End of message reached");
+			}
+		}
+		buffer.position(buffer.position() + length);
+	}
+
+	/**
+	 * Makes sure at least <code>length</code> bytes can be read from the
+	 * buffer.
+	 */
+	void ensure(int length) throws JMSException {
+		if (buffer.remaining() < length && !fill(length)) {
+			throw new MessageEOFException("End of message reached");
+		}
+	}
+
+	/**
+	 * Consumes the tag of the next value, after checking it is
+	 * <code>type</code>, and makes sure its <code>length</code> bytes of data
+	 * can be read.
+	 */
+	private void expect(ObjectType type, int length) throws JMSException {
+		ensure(1 + length);
+		byte tag = buffer.get(buffer.position());
+		if (tag != type.ordinal()) {
+			throw new MessageFormatException("Expected " + type
+					+ " but found " + toType(tag));
+		}
+		buffer.position(buffer.position() + 1);
+	}
+
+	/**
+	 * Reads from the source until the buffer holds <code>length</code>
+	 * bytes.
+	 *
+	 * @return <code>false</code> if the source ended first
+	 */
+	private boolean fill(int length) throws JMSException {
+		if (source == null) {
+			return false;
+		}
+		if (length > buffer.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocate(length);
+			grown.put(buffer);
+			buffer = grown;
+		} else {
+			buffer.compact();
+		}
+
+		try {
+			while (buffer.position() < length) {
+				int read = source.read(buffer.array(), buffer.position(),
+						buffer.remaining());
+				if (read < 0) {
+					break;
+				}
+				buffer.position(buffer.position() + read);
+			}
+		} catch (IOException e) {
+			throw new JMSException("Error reading data: " + e.getMessage());
+		} finally {
+			buffer.flip();
+		}
+		return buffer.remaining() >= length;
+	}
+
+	private static ObjectType toType(byte tag) throws MessageFormatException {
+		if (tag < 0 || tag >= TYPES.length) {
+			throw new MessageFormatException("Invalid type read: " + tag);
+		}
+		return TYPES[tag];
+	}
+
+	/**
+	 * Decodes UTF-8 in a single pass.
+	 *
+	 * @return number of chars written to <code>chars</code>
+	 */
+	private static int decodeUtf8(byte[] bytes, int offset, int length,
+			char[] chars) throws MessageFormatException {
+		int end = offset + length;
+		int count = 0;
+		int i = offset;
+
+		// plain ASCII needs no decoding
+		while (i < end && bytes[i] >= 0) {
+			chars[count++] = (char) bytes[i++];
+		}
+
+		while (i < end) {
+			int b = bytes[i++];
+			if (b >= 0) {
+				chars[count++] = (char) b;
+			} else if ((b & 0xE0) == 0xC0 && i < end) {
+				chars[count++] = (char) (((b & 0x1F) << 6) | continuation(bytes[i++]));
+			} else if ((b & 0xF0) == 0xE0 && i + 1 < end) {
+				chars[count++] = (char) (((b & 0x0F) << 12)
+						| (continuation(bytes[i++]) << 6) | continuation(bytes[i++]));
+			} else if ((b & 0xF8) == 0xF0 && i + 2 < end) {
+				int cp = ((b & 0x07) << 18) | (continuation(bytes[i++]) << 12)
+						| (continuation(bytes[i++]) << 6) | continuation(bytes[i++]);
+				if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT
+						|| cp > Character.MAX_CODE_POINT) {
+					throw new MessageFormatException("Malformed UTF-8 string");
+				}
+				chars[count++] = Character.highSurrogate(cp);
+				chars[count++] = Character.lowSurrogate(cp);
+			} else {
+				throw new MessageFormatException("Malformed UTF-8 string");
+			}
+		}
+		return count;
+	}
+
+	private static int continuation(byte b) throws MessageFormatException {
+		if ((b & 0xC0) != 0x80) {
+			throw new MessageFormatException("Malformed UTF-8 string");
+		}
+		return b & 0x3F;
+	}
+}
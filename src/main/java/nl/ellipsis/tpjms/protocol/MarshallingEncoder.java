@@ -0,0 +1,366 @@
+package nl.ellipsis.tpjms.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+import nl.ellipsis.tpjms.util.BufferPool;
+
+/**
+ * Encodes typed values into a {@link ByteBuffer}, using the {@link ObjectType}
+ * tags of {@link MarshallingSupport}.
+ *
+ * <p>
+ * Primitives are written big-endian at their natural size. Strings and byte
+ * arrays are prefixed with their length in bytes as an unsigned varint, and
+ * strings are encoded as standard UTF-8 straight into the buffer, so there is
+ * no limit on their length. Map entries are written as a varint count followed
+ * by pairs of an untagged key string and a tagged value.
+ * </p>
+ *
+ * <p>
+ * Without a sink, the buffer grows as needed and the result is taken with
+ * {@link #toByteArray()}. With a sink, the buffer is written to the sink
+ * whenever it fills up, so memory use stays bounded by its capacity. The
+ * buffer is taken from the {@link BufferPool}; call {@link #release()} when
+ * done. This class is not thread-safe.
+ * </p>
+ */
+public final class MarshallingEncoder {
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final OutputStream sink;
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates an encoder that collects all output in memory.
+	 */
+	public MarshallingEncoder() {
+		this(null, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an encoder that flushes its output to <code>sink</code>.
+	 *
+	 * @param sink
+	 *            stream to write the encoded bytes to (may be
+	 *            <code>null</code> to collect the output in memory)
+	 * @param capacity
+	 *            size of the buffer
+	 */
+	public MarshallingEncoder(OutputStream sink, int capacity) {
+		this.sink = sink;
+		this.buffer = ByteBuffer.wrap(BufferPool.getInstance().acquire(
+				Math.max(capacity, 16)));
+	}
+
+	/**
+	 * Writes a value preceded by its type tag.
+	 *
+	 * @param value
+	 *            value to write (may be <code>null</code>)
+	 * @throws MessageFormatException
+	 *             if the value is not of a supported type
+	 * @throws JMSException
+	 *             if the sink fails
+	 */
+	public void writeObject(Object value) throws JMSException {
+		if (value == null) {
+			writeNull();
+		} else if (value instanceof Boolean) {
+			writeBoolean((Boolean) value);
+		} else if (value instanceof Byte) {
+			writeByte((Byte) value);
+		} else if (value instanceof Character) {
+			writeChar((Character) value);
+		} else if (value instanceof Short) {
+			writeShort((Short) value);
+		} else if (value instanceof Integer) {
+			writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			writeLong((Long) value);
+		} else if (value instanceof Float) {
+			writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			writeDouble((Double) value);
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			writeBytes(bytes, 0, bytes.length);
+		} else {
+			throw new MessageFormatException("Invalid type: "
+					+ value.getClass().getName());
+		}
+	}
+
+	public void writeNull() throws JMSException {
+		ensure(1);
+		buffer.put((byte) ObjectType.NULL.ordinal());
+	}
+
+	public void writeBoolean(boolean value) throws JMSException {
+		ensure(2);
+		buffer.put((byte) ObjectType.BOOLEAN.ordinal());
+		buffer.put(value ? (byte) 1 : (byte) 0);
+	}
+
+	public void writeByte(byte value) throws JMSException {
+		ensure(2);
+		buffer.put((byte) ObjectType.BYTE.ordinal());
+		buffer.put(value);
+	}
+
+	public void writeChar(char value) throws JMSException {
+		ensure(3);
+		buffer.put((byte) ObjectType.CHAR.ordinal());
+		buffer.putChar(value);
+	}
+
+	public void writeShort(short value) throws JMSException {
+		ensure(3);
+		buffer.put((byte) ObjectType.SHORT.ordinal());
+		buffer.putShort(value);
+	}
+
+	public void writeInt(int value) throws JMSException {
+		ensure(5);
+		buffer.put((byte) ObjectType.INT.ordinal());
+		buffer.putInt(value);
+	}
+
+	public void writeLong(long value) throws JMSException {
+		ensure(9);
+		buffer.put((byte) ObjectType.LONG.ordinal());
+		buffer.putLong(value);
+	}
+
+	public void writeFloat(float value) throws JMSException {
+		ensure(5);
+		buffer.put((byte) ObjectType.FLOAT.ordinal());
+		buffer.putFloat(value);
+	}
+
+	public void writeDouble(double value) throws JMSException {
+		ensure(9);
+		buffer.put((byte) ObjectType.DOUBLE.ordinal());
+		buffer.putDouble(value);
+	}
+
+	/**
+	 * Writes a tagged string, or a null tag if <code>value</code> is
+	 * <code>null</code>.
+	 */
+	public void writeString(String value) throws JMSException {
+		if (value == null) {
+			writeNull();
+			return;
+		}
+		ensure(1);
+		buffer.put((byte) ObjectType.STRING.ordinal());
+		putString(value);
+	}
+
+	/**
+	 * Writes a tagged byte array. Large arrays are passed to the sink directly
+	 * instead of being copied into the buffer.
+	 */
+	public void writeBytes(byte[] value, int offset, int length)
+			throws JMSException {
+		if (offset < 0 || length < 0 || offset + length > value.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		ensure(6);
+		buffer.put((byte) ObjectType.BYTE_ARRAY.ordinal());
+		putVarInt(length);
+
+		if (sink != null && length > buffer.remaining()) {
+			flush();
+			try {
+				sink.write(value, offset, length);
+			} catch (IOException e) {
+				throw new JMSException("Error writing data: " + e.getMessage());
+			}
+		} else {
+			ensure(length);
+			buffer.put(value, offset, length);
+		}
+	}
+
+	/**
+	 * Writes a map as a count followed by its entries.
+	 *
+	 * @param map
+	 *            map to write
+	 * @throws MessageFormatException
+	 *             if a key is <code>null</code> or a value is not of a
+	 *             supported type
+	 * @throws JMSException
+	 *             if the sink fails
+	 */
+	public void writeMap(Map<String, Object> map) throws JMSException {
+		ensure(5);
+		putVarInt(map.size());
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			String key = entry.getKey();
+			if (key == null) {
+				throw new MessageFormatException("name cannot be null");
+			}
+			putString(key);
+			writeObject(entry.getValue());
+		}
+	}
+
+	/**
+	 * Gets the number of bytes held in the buffer, i.e. not yet flushed.
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Gets a copy of the bytes held in the buffer.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, copy, 0, copy.length);
+		return copy;
+	}
+
+	/**
+	 * Writes the bytes held in the buffer to the sink and empties the buffer.
+	 * Without a sink this is a no-op.
+	 *
+	 * @throws JMSException
+	 *             if the sink fails
+	 */
+	public void flush() throws JMSException {
+		if (sink == null || buffer.position() == 0) {
+			return;
+		}
+		try {
+			sink.write(buffer.array(), 0, buffer.position());
+		} catch (IOException e) {
+			throw new JMSException("Error writing data: " + e.getMessage());
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Discards the bytes held in the buffer.
+	 */
+	public void reset() {
+		buffer.clear();
+	}
+
+	/**
+	 * Returns the buffer to the {@link BufferPool}. The encoder must not be
+	 * used afterwards.
+	 */
+	public void release() {
+		if (buffer != null) {
+			BufferPool.getInstance().release(buffer.array());
+			buffer = null;
+		}
+	}
+
+	private void putString(String value) throws JMSException {
+		int chars = value.length();
+		int length = utf8Length(value);
+		ensure(5 + length);
+		putVarInt(length);
+
+		byte[] array = buffer.array();
+		int pos = buffer.position();
+		for (int i = 0; i < chars; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				array[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				array[pos++] = (byte) (0xC0 | (c >> 6));
+				array[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < chars
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				array[pos++] = (byte) (0xF0 | (cp >> 18));
+				array[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				array[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				array[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, encoded as '?' like String.getBytes
+				array[pos++] = (byte) '?';
+			} else {
+				array[pos++] = (byte) (0xE0 | (c >> 12));
+				array[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				array[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		buffer.position(pos);
+	}
+
+	private void putVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Makes room for at least <code>length</code> more bytes, by flushing to
+	 * the sink or by growing the buffer.
+	 */
+	private void ensure(int length) throws JMSException {
+		if (buffer.remaining() >= length) {
+			return;
+		}
+		if (sink != null) {
+			flush();
+			if (buffer.remaining() >= length) {
+				return;
+			}
+		}
+
+		int required = buffer.position() + length;
+		if (required < 0) {
+			throw new JMSException("Encoded data too large");
+		}
+		int capacity = Math.max(required, buffer.capacity() << 1);
+		if (capacity < 0) {
+			capacity = required;
+		}
+		byte[] grown = BufferPool.getInstance().acquire(capacity);
+		System.arraycopy(buffer.array(), 0, grown, 0, buffer.position());
+		int pos = buffer.position();
+		BufferPool.getInstance().release(buffer.array());
+		buffer = ByteBuffer.wrap(grown);
+		buffer.position(pos);
+	}
+
+	/**
+	 * Gets the number of bytes of the UTF-8 encoding of a string.
+	 */
+	static int utf8Length(String value) {
+		int chars = value.length();
+		int length = chars;
+		for (int i = 0; i < chars; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					length++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < chars
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					// the pair takes four bytes for two chars
+					length += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					length += 2;
+				}
+			}
+		}
+		return length;
+	}
+}
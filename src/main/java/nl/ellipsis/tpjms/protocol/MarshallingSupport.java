@@ -7,6 +7,13 @@ import javax.jms.*;
 
 /**
  * Marshalling support for TPJMS objects.
+ * 
+ * <p>
+ * The stream based methods of this class use {@link DataOutputStream}
+ * encoding, which limits strings to 64KB. Message bodies are encoded with
+ * {@link MarshallingEncoder} and {@link MarshallingDecoder}, which share the
+ * {@link ObjectType} tags.
+ * </p>
  */
 public final class MarshallingSupport {
 	
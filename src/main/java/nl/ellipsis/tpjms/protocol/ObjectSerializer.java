@@ -0,0 +1,42 @@
+package nl.ellipsis.tpjms.protocol;
+
+import java.io.Serializable;
+
+import javax.jms.JMSException;
+
+/**
+ * Converts the payload of an {@link javax.jms.ObjectMessage} to and from its
+ * wire format. The default is {@link JavaObjectSerializer}; a faster codec can
+ * be configured with
+ * {@link nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory#setObjectSerializer(ObjectSerializer)}.
+ *
+ * <p>
+ * Implementations must be thread-safe, a single instance is shared by all
+ * messages of a connection.
+ * </p>
+ */
+public interface ObjectSerializer {
+
+	/**
+	 * Serializes an object.
+	 *
+	 * @param object
+	 *            object to serialize (may be <code>null</code>)
+	 * @return the serialized form, or <code>null</code> for a
+	 *         <code>null</code> object
+	 * @throws JMSException
+	 *             if the object cannot be serialized
+	 */
+	byte[] serialize(Serializable object) throws JMSException;
+
+	/**
+	 * Deserializes an object.
+	 *
+	 * @param data
+	 *            serialized form, as returned by {@link #serialize}
+	 * @return a new instance of the serialized object
+	 * @throws JMSException
+	 *             if the data cannot be deserialized
+	 */
+	Serializable deserialize(byte[] data) throws JMSException;
+}
@@ -0,0 +1,59 @@
+package nl.ellipsis.tpjms.provider;
+
+import java.io.*;
+
+/**
+ * Out-of-heap storage for the body of a large message.
+ *
+ * <p>
+ * A chunk store is filled by appending to it while the application writes
+ * the message, and each completed chunk is handed to the backing storage
+ * right away. Reading streams the body back one chunk at a time, so the heap
+ * used by a large message is bounded by the chunk size rather than by the
+ * size of the message.
+ * </p>
+ *
+ * <p>
+ * Chunk stores are created by {@link TPJMSProvider#createChunkStore(int)}.
+ * They are not thread-safe.
+ * </p>
+ */
+public interface ChunkStore extends Closeable {
+
+	/**
+	 * Appends bytes to the body.
+	 *
+	 * @param b
+	 *            source buffer
+	 * @param off
+	 *            offset in the source buffer
+	 * @param len
+	 *            number of bytes to append
+	 * @throws IOException
+	 *             if the bytes cannot be stored
+	 */
+	void write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Gets the total number of bytes stored.
+	 *
+	 * @return body length
+	 */
+	long length();
+
+	/**
+	 * Opens a stream that reads the body from the start. The caller must close
+	 * the stream.
+	 *
+	 * @return input stream over the stored body
+	 * @throws IOException
+	 *             if the body cannot be read
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Discards the stored body and releases its resources.
+	 */
+	@Override
+	void close() throws IOException;
+}
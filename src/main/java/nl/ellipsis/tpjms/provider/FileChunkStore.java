@@ -0,0 +1,162 @@
+package nl.ellipsis.tpjms.provider;
+
+import java.io.*;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link ChunkStore} that spools chunks to a temporary file. The file is
+ * deleted when the store is closed. A store that is dropped without being
+ * closed, along with the message holding it, is cleaned up once it has been
+ * garbage collected; the files still left when the VM exits are deleted by a
+ * single shutdown hook.
+ */
+public class FileChunkStore implements ChunkStore {
+	private static final ReferenceQueue<FileChunkStore> collected = new ReferenceQueue<FileChunkStore>();
+	/** the spools of the open stores, which keeps their references reachable */
+	private static final Set<Spool> open = Collections
+			.newSetFromMap(new ConcurrentHashMap<Spool, Boolean>());
+
+	static {
+		Thread cleaner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Reference<? extends FileChunkStore> reference = collected.remove();
+						((Spool) reference).delete();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "TPJMS-chunk-cleaner");
+		cleaner.setDaemon(true);
+		cleaner.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (Spool spool : open) {
+					spool.delete();
+				}
+			}
+		}, "TPJMS-chunk-cleanup"));
+	}
+
+	private final Spool spool;
+	private final File file;
+	private final OutputStream out;
+	private final byte[] chunk;
+	private final int chunkSize;
+	private int chunkLength = 0;
+	private long length = 0;
+
+	/**
+	 * Creates a chunk store.
+	 *
+	 * @param directory
+	 *            directory for the spool file, or <code>null</code> for the
+	 *            default temporary directory
+	 * @param chunkSize
+	 *            chunk size in bytes
+	 * @throws IOException
+	 *             if the spool file cannot be created
+	 */
+	public FileChunkStore(File directory, int chunkSize) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size: "
+					+ chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		this.chunk = new byte[chunkSize];
+		this.file = File.createTempFile("tpjms-", ".chunks", directory);
+		try {
+			this.out = new FileOutputStream(file);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		this.spool = new Spool(this, file, out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, chunkSize - chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, n);
+			chunkLength += n;
+			length += n;
+			off += n;
+			len -= n;
+			if (chunkLength == chunkSize) {
+				flushChunk();
+			}
+		}
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		flushChunk();
+		return new BufferedInputStream(new FileInputStream(file), chunkSize);
+	}
+
+	@Override
+	public void close() throws IOException {
+		spool.delete();
+	}
+
+	/**
+	 * Gets the spool file.
+	 *
+	 * @return file holding the stored chunks
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	private void flushChunk() throws IOException {
+		if (chunkLength > 0) {
+			out.write(chunk, 0, chunkLength);
+			out.flush();
+			chunkLength = 0;
+		}
+	}
+
+	/**
+	 * The file and stream of a store, released when the store is closed or
+	 * garbage collected.
+	 */
+	private static final class Spool extends PhantomReference<FileChunkStore> {
+		private final File file;
+		private final OutputStream out;
+
+		Spool(FileChunkStore store, File file, OutputStream out) {
+			super(store, collected);
+			this.file = file;
+			this.out = out;
+			open.add(this);
+		}
+
+		void delete() {
+			if (!open.remove(this)) {
+				return;
+			}
+			clear();
+			try {
+				out.close();
+			} catch (IOException ignored) {
+			} finally {
+				file.delete();
+			}
+		}
+	}
+}
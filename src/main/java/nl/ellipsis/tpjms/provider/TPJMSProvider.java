@@ -1,6 +1,7 @@
 package nl.ellipsis.tpjms.provider;
 
 import java.net.URI;
+import java.util.List;
 
 import javax.jms.Destination;
 import javax.jms.JMSException;
@@ -44,11 +45,64 @@ public interface TPJMSProvider {
 
 	public Topic createTopic(String topicName) throws JMSException;
 
-	public boolean registerMessageConsumer(Topic topic,
-			MessageConsumer topicSubscriber) throws JMSException;
+	/**
+	 * Registers a consumer, so that it receives the messages sent to a
+	 * destination from now on. Each message sent to a topic is delivered to
+	 * all of its consumers, each message sent to a queue to one of them.
+	 * 
+	 * @param destination
+	 *            destination to consume from
+	 * @param messageConsumer
+	 *            consumer to register
+	 * @return <code>true</code> if the consumer was registered
+	 * @throws JMSException
+	 *             if the destination is unknown or the consumer is already
+	 *             registered
+	 */
+	public boolean registerMessageConsumer(Destination destination,
+			MessageConsumer messageConsumer) throws JMSException;
+
+	/**
+	 * Stops delivering messages to a consumer. Unknown consumers are ignored.
+	 * 
+	 * @param destination
+	 *            destination the consumer was registered for
+	 * @param messageConsumer
+	 *            consumer to unregister
+	 * @throws JMSException
+	 *             if unregistering fails
+	 */
+	public void unregisterMessageConsumer(Destination destination,
+			MessageConsumer messageConsumer) throws JMSException;
 
 	public void send(Destination destination, Message message)
 			throws JMSException;
 
+	/**
+	 * Sends a batch of messages to one destination. The destination is
+	 * resolved once and the messages are delivered in list order. If the
+	 * destination is unknown, none of the messages is sent.
+	 * 
+	 * @param destination
+	 *            destination to send to
+	 * @param messages
+	 *            messages to send
+	 * @throws JMSException
+	 *             if the destination is unknown or delivery fails
+	 */
+	public void send(Destination destination, List<? extends Message> messages)
+			throws JMSException;
+
 	public Queue createQueue(String queueName) throws JMSException;
+
+	/**
+	 * Creates storage for the body of a large message, see {@link ChunkStore}.
+	 * 
+	 * @param chunkSize
+	 *            chunk size in bytes
+	 * @return new, empty chunk store
+	 * @throws JMSException
+	 *             if the store cannot be created
+	 */
+	public ChunkStore createChunkStore(int chunkSize) throws JMSException;
 }
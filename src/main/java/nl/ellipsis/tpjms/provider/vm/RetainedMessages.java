@@ -0,0 +1,126 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+
+/**
+ * The last messages sent to a topic, kept for subscribers that join later.
+ *
+ * <p>
+ * Messages are kept in a ring of at most a given number of messages and,
+ * optionally, a given estimated size in bytes; the oldest messages are
+ * dropped to make room. A message that does not fit on its own empties the
+ * ring, as the older messages no longer reflect the latest state. This class
+ * is not thread-safe.
+ * </p>
+ */
+final class RetainedMessages {
+	private final Message[] ring;
+	private final long[] sizes;
+	private final long maxBytes;
+	private int head;
+	private int count;
+	private long bytes;
+
+	/**
+	 * @param maxMessages
+	 *            maximum number of messages, at least 1
+	 * @param maxBytes
+	 *            maximum estimated size of the messages, or 0 for no limit
+	 */
+	RetainedMessages(int maxMessages, long maxBytes) {
+		this.ring = new Message[maxMessages];
+		this.sizes = new long[maxMessages];
+		this.maxBytes = maxBytes;
+	}
+
+	int getMaxMessages() {
+		return ring.length;
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	void addAll(Collection<? extends Message> messages) {
+		for (Message message : messages) {
+			add(message);
+		}
+	}
+
+	void add(Message message) {
+		long size = (message instanceof TPJMSMessage) ? ((TPJMSMessage) message)
+				.getEstimatedSize() : 0;
+		if (maxBytes > 0 && size > maxBytes) {
+			clear();
+			return;
+		}
+		if (count == ring.length) {
+			removeOldest();
+		}
+		while (maxBytes > 0 && bytes + size > maxBytes) {
+			removeOldest();
+		}
+		int tail = (head + count) % ring.length;
+		ring[tail] = message;
+		sizes[tail] = size;
+		bytes += size;
+		count++;
+	}
+
+	/**
+	 * Gets the retained messages that have not expired, oldest first.
+	 * 
+	 * @param now
+	 *            current time in milliseconds
+	 */
+	List<Message> snapshot(long now) {
+		List<Message> messages = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++) {
+			Message message = ring[(head + i) % ring.length];
+			if (!isExpired(message, now)) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the estimated size of the retained messages in bytes.
+	 */
+	long getMemoryUsage() {
+		return bytes;
+	}
+
+	void clear() {
+		while (count > 0) {
+			removeOldest();
+		}
+	}
+
+	private void removeOldest() {
+		bytes -= sizes[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+	}
+
+	private static boolean isExpired(Message message, long now) {
+		try {
+			long expiration = message.getJMSExpiration();
+			return expiration != 0 && expiration <= now;
+		} catch (JMSException e) {
+			return false;
+		}
+	}
+}
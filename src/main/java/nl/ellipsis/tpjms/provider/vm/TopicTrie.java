@@ -0,0 +1,172 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jms.InvalidDestinationException;
+import javax.jms.Topic;
+
+import nl.ellipsis.tpjms.core.destination.TPJMSTopic;
+
+/**
+ * Index of wildcard topics by the levels of their names, for finding the
+ * wildcard topics that match a topic name.
+ *
+ * <p>
+ * Each node of the trie stands for a level. Literal levels are children by
+ * name, a {@link TPJMSTopic#ANY_LEVEL} level is a separate child, and a
+ * trailing {@link TPJMSTopic#ANY_LEVELS} is kept as a list on the node that
+ * precedes it. Matching a name walks the literal child and the any-level
+ * child at each level, so it costs O(depth + matches) no matter how many
+ * wildcard topics there are; only patterns with many <code>*</code> levels
+ * fan out. Names are matched ignoring case. This class is not thread-safe.
+ * </p>
+ */
+final class TopicTrie {
+	private final Node root = new Node();
+	private int size;
+
+	private static final class Node {
+		/** children by literal level, created on demand */
+		Map<String, Node> children;
+		/** child for a one-level wildcard */
+		Node anyLevel;
+		/** topics whose pattern ends at this node */
+		List<Topic> topics;
+		/** topics whose pattern continues with a trailing multi-level wildcard */
+		List<Topic> anyLevels;
+	}
+
+	/**
+	 * Adds a wildcard topic.
+	 * 
+	 * @param pattern
+	 *            name of the topic, checked by {@link #checkPattern(String)}
+	 */
+	void add(Topic topic, String pattern) {
+		String[] levels = levels(pattern);
+		Node node = root;
+		for (int i = 0; i < levels.length; i++) {
+			String level = levels[i];
+			if (level.equals(TPJMSTopic.ANY_LEVELS)) {
+				node.anyLevels = append(node.anyLevels, topic);
+				size++;
+				return;
+			}
+			if (level.equals(TPJMSTopic.ANY_LEVEL)) {
+				if (node.anyLevel == null) {
+					node.anyLevel = new Node();
+				}
+				node = node.anyLevel;
+			} else {
+				if (node.children == null) {
+					node.children = new HashMap<String, Node>();
+				}
+				Node child = node.children.get(level);
+				if (child == null) {
+					child = new Node();
+					node.children.put(level, child);
+				}
+				node = child;
+			}
+		}
+		node.topics = append(node.topics, topic);
+		size++;
+	}
+
+	/**
+	 * Finds the wildcard topics that match a topic name.
+	 * 
+	 * @param name
+	 *            name of a topic without wildcards
+	 * @param matches
+	 *            list to add the matching topics to
+	 */
+	void match(String name, List<Topic> matches) {
+		if (size > 0) {
+			match(root, levels(name), 0, matches);
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Determines if a topic name matches a pattern.
+	 */
+	static boolean matches(String pattern, String name) {
+		String[] patternLevels = levels(pattern);
+		String[] levels = levels(name);
+		for (int i = 0; i < patternLevels.length; i++) {
+			if (patternLevels[i].equals(TPJMSTopic.ANY_LEVELS)) {
+				return levels.length > i;
+			}
+			if (i >= levels.length
+					|| !(patternLevels[i].equals(TPJMSTopic.ANY_LEVEL) || patternLevels[i]
+							.equals(levels[i]))) {
+				return false;
+			}
+		}
+		return patternLevels.length == levels.length;
+	}
+
+	/**
+	 * Checks that a multi-level wildcard only occurs as the last level of a
+	 * topic name.
+	 * 
+	 * @throws InvalidDestinationException
+	 *             if it does not
+	 */
+	static void checkPattern(String pattern) throws InvalidDestinationException {
+		String[] levels = levels(pattern);
+		for (int i = 0; i < levels.length - 1; i++) {
+			if (levels[i].equals(TPJMSTopic.ANY_LEVELS)) {
+				throw new InvalidDestinationException("Wildcard '"
+						+ TPJMSTopic.ANY_LEVELS
+						+ "' must be the last level of topic " + pattern);
+			}
+		}
+	}
+
+	private static void match(Node node, String[] levels, int index,
+			List<Topic> matches) {
+		if (node.anyLevels != null && index < levels.length) {
+			matches.addAll(node.anyLevels);
+		}
+		if (index == levels.length) {
+			if (node.topics != null) {
+				matches.addAll(node.topics);
+			}
+			return;
+		}
+		if (node.children != null) {
+			Node child = node.children.get(levels[index]);
+			if (child != null) {
+				match(child, levels, index + 1, matches);
+			}
+		}
+		if (node.anyLevel != null) {
+			match(node.anyLevel, levels, index + 1, matches);
+		}
+	}
+
+	private static String[] levels(String name) {
+		return name.toLowerCase(Locale.ROOT).split("\\.", -1);
+	}
+
+	private static List<Topic> append(List<Topic> topics, Topic topic) {
+		if (topics == null) {
+			topics = new ArrayList<Topic>(1);
+		}
+		topics.add(topic);
+		return topics;
+	}
+}
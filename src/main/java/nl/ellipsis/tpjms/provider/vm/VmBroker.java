@@ -3,12 +3,18 @@ package nl.ellipsis.tpjms.provider.vm;
 import java.util.UUID;
 
 public class VmBroker {
+	private final String brokerName;
 	private final String brokerId;
 
 	public VmBroker(String brokerName) {
+		this.brokerName = brokerName;
 		brokerId = "vm:" + brokerName + ":" + UUID.randomUUID().toString();
 	}
 
+	public String getBrokerName() {
+		return brokerName;
+	}
+
 	public String getBrokerId() {
 		return brokerId;
 	}
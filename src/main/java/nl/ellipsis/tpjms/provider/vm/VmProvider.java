@@ -1,11 +1,15 @@
 package nl.ellipsis.tpjms.provider.vm;
 
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jms.Connection;
 import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
@@ -18,41 +22,107 @@ import javax.jms.TopicConnection;
 import org.apache.logging.log4j.*;
 
 import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.destination.SlowConsumerPolicy;
+import nl.ellipsis.tpjms.core.destination.TPJMSCompositeDestination;
+import nl.ellipsis.tpjms.core.destination.TPJMSDestination;
 import nl.ellipsis.tpjms.core.destination.TPJMSQueue;
 import nl.ellipsis.tpjms.core.destination.TPJMSTopic;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageConsumer;
+import nl.ellipsis.tpjms.management.BrokerView;
+import nl.ellipsis.tpjms.management.DestinationView;
+import nl.ellipsis.tpjms.management.ManagementContext;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.trace.TraceStage;
+import nl.ellipsis.tpjms.trace.Tracing;
+import nl.ellipsis.tpjms.util.BufferPool;
 import nl.ellipsis.tpjms.provider.*;
 
 /**
  * In-memory provider.
+ *
+ * <p>
+ * Besides queues and topics, the provider routes messages sent to a
+ * {@link TPJMSCompositeDestination} to each of its members, and mirrors the
+ * messages of a virtual topic, named {@value #VIRTUAL_TOPIC_PREFIX}
+ * <em>name</em>, into every queue named {@value #VIRTUAL_QUEUE_PREFIX}
+ * <em>group</em>.{@value #VIRTUAL_TOPIC_PREFIX}<em>name</em>. Each queue
+ * shares the messages among the consumers of its group, while every group
+ * gets all messages.
+ * </p>
  */
 public class VmProvider implements TPJMSProvider {
 	private static final Logger logger = LogManager.getLogger(VmProvider.class);
 
+	/** prefix of the name of a virtual topic */
+	public static final String VIRTUAL_TOPIC_PREFIX = "VirtualTopic.";
+	/** prefix of the name of a queue of a consumer group of a virtual topic */
+	public static final String VIRTUAL_QUEUE_PREFIX = "Consumer.";
+
 	private static final VmProvider instance = new VmProvider();
 
 	private final Map<String, VmBroker> brokers = new HashMap<String, VmBroker>();
 	private final ReentrantLock brokersLock = new ReentrantLock();
 
 	private static List<Connection> connections = new ArrayList<Connection>();
-	private static List<Destination> destinations = new ArrayList<Destination>();
-	private final Map<Destination, List<MessageConsumer>> destinationMessageConsumers = new HashMap<Destination, List<MessageConsumer>>();
-	private final Map<MessageConsumer, List<Delivery>> consumerMessageMap = new HashMap<MessageConsumer, List<Delivery>>();
-
-	class Delivery {
-		private final Message message;
-		private boolean acknowledged = false;
+	private static Set<Destination> destinations = new LinkedHashSet<Destination>();
+	private final Map<Destination, Subscribers> destinationMessageConsumers = new HashMap<Destination, Subscribers>();
+	/**
+	 * Guards the destinations and the consumer registrations, which are
+	 * updated and read by any session, including the send threads of
+	 * asynchronous sends. Messages are delivered outside the lock.
+	 */
+	private final ReentrantLock destinationsLock = new ReentrantLock();
+	/**
+	 * Messages held back for paused destinations, in order. Guarded by
+	 * <code>destinationsLock</code>.
+	 */
+	private final Map<Destination, List<Message>> pausedDestinations = new HashMap<Destination, List<Message>>();
+	/** slow consumer policies by destination, guarded by <code>destinationsLock</code> */
+	private final Map<Destination, SlowConsumerPolicy> slowConsumerPolicies = new HashMap<Destination, SlowConsumerPolicy>();
+	/** conflation key properties by topic, guarded by <code>destinationsLock</code> */
+	private final Map<Destination, String> conflationKeys = new HashMap<Destination, String>();
+	/** retained messages by topic, guarded by <code>destinationsLock</code> */
+	private final Map<Destination, RetainedMessages> retainedMessages = new HashMap<Destination, RetainedMessages>();
+	/** queues and topics by lower case name, guarded by <code>destinationsLock</code> */
+	private final Map<String, Queue> queuesByName = new HashMap<String, Queue>();
+	private final Map<String, Topic> topicsByName = new HashMap<String, Topic>();
+	/**
+	 * Queues of the consumer groups of virtual topics, by lower case topic
+	 * name, guarded by <code>destinationsLock</code>. Senders iterate over
+	 * the lists without copying them.
+	 */
+	private final Map<String, List<Queue>> virtualTopicQueues = new HashMap<String, List<Queue>>();
+	/** wildcard topics, guarded by <code>destinationsLock</code> */
+	private final TopicTrie wildcardTopics = new TopicTrie();
+	/** serializes resuming destinations, so held messages stay in order */
+	private final ReentrantLock resumeLock = new ReentrantLock();
 
-		public Delivery(Message message) {
-			this.message = message;
-		}
+	/**
+	 * The consumers of a wildcard topic that a message sent to another topic
+	 * is routed to.
+	 */
+	private static final class WildcardRoute {
+		final Topic topic;
+		final Subscribers subscribers;
+		final SlowConsumerPolicy policy;
 
-		public void acknowledge() {
-			acknowledged = true;
+		WildcardRoute(Topic topic, Subscribers subscribers,
+				SlowConsumerPolicy policy) {
+			this.topic = topic;
+			this.subscribers = subscribers;
+			this.policy = policy;
 		}
+	}
 
-		public boolean isAcknowledged() {
-			return acknowledged;
-		}
+	/**
+	 * Consumers of a destination. Senders iterate over the list without
+	 * copying it.
+	 */
+	private static final class Subscribers {
+		final List<MessageConsumer> consumers = new CopyOnWriteArrayList<MessageConsumer>();
+		/** next consumer in turn for a queue */
+		final AtomicInteger cursor = new AtomicInteger();
 	}
 
 	private VmProvider() {
@@ -69,22 +139,25 @@ public class VmProvider implements TPJMSProvider {
 
 	private VmBroker getBroker(String brokerName, String brokerId)
 			throws JMSException {
+		VmBroker broker;
 		try {
 			brokersLock.lock();
 
-			VmBroker broker = brokers.get(brokerName);
-			if (broker == null) {
-				broker = new VmBroker(brokerName);
-				brokers.put(brokerName, broker);
-			} else if (brokerId != null
-					&& !broker.getBrokerId().equals(brokerId)) {
-				throw new JMSException(
-						"Broker ID mismatch. Is your connection closed?");
+			broker = brokers.get(brokerName);
+			if (broker != null) {
+				if (brokerId != null && !broker.getBrokerId().equals(brokerId)) {
+					throw new JMSException(
+							"Broker ID mismatch. Is your connection closed?");
+				}
+				return broker;
 			}
-			return broker;
+			broker = new VmBroker(brokerName);
+			brokers.put(brokerName, broker);
 		} finally {
 			brokersLock.unlock();
 		}
+		ManagementContext.getInstance().register(broker, BrokerView.FACTORY);
+		return broker;
 	}
 
 	/**
@@ -95,12 +168,16 @@ public class VmProvider implements TPJMSProvider {
 	 */
 	public void removeBroker(String brokerName) {
 		logger.debug("Removing broker: " + brokerName);
+		VmBroker broker;
 		try {
 			brokersLock.lock();
-			brokers.remove(brokerName);
+			broker = brokers.remove(brokerName);
 		} finally {
 			brokersLock.unlock();
 		}
+		if (broker != null) {
+			ManagementContext.getInstance().unregister(broker);
+		}
 	}
 
 	@Override
@@ -128,11 +205,29 @@ public class VmProvider implements TPJMSProvider {
 
 	@Override
 	public Queue createQueue(String queueName) throws JMSException {
-		Queue queue = getQueue(queueName);
-		if (queue == null) {
+		Queue queue;
+		try {
+			destinationsLock.lock();
+			queue = getQueue(queueName);
+			if (queue != null) {
+				return queue;
+			}
 			queue = new TPJMSQueue(queueName);
 			destinations.add(queue);
+			queuesByName.put(nameKey(queueName), queue);
+			String virtualTopic = virtualTopicOf(queueName);
+			if (virtualTopic != null) {
+				List<Queue> queues = virtualTopicQueues.get(virtualTopic);
+				if (queues == null) {
+					queues = new CopyOnWriteArrayList<Queue>();
+					virtualTopicQueues.put(virtualTopic, queues);
+				}
+				queues.add(queue);
+			}
+		} finally {
+			destinationsLock.unlock();
 		}
+		manage(queue);
 		return queue;
 	}
 
@@ -148,20 +243,41 @@ public class VmProvider implements TPJMSProvider {
 	 * initiated by the JMS API. The one exception is the creation of temporary
 	 * topics, which is accomplished with the createTemporaryTopic method.
 	 * 
+	 * Topic names can be hierarchical; a name with a wildcard level creates a
+	 * wildcard topic, see {@link TPJMSTopic}.
+	 * 
 	 * @param topicName
 	 *            - the name of this Topic
 	 * @return a Topic with the given name
+	 * @throws InvalidDestinationException
+	 *             - if a multi-level wildcard is not the last level of the name
 	 * @throws JMSException
 	 *             - if the session fails to create a topic due to some internal error.
 	 * @since 1.1
 	 */
 	@Override
 	public Topic createTopic(String topicName) throws JMSException {
-		Topic topic = getTopic(topicName);
-		if (topic == null) {
+		Topic topic;
+		try {
+			destinationsLock.lock();
+			topic = getTopic(topicName);
+			if (topic != null) {
+				return topic;
+			}
+			boolean wildcard = TPJMSTopic.isWildcard(topicName);
+			if (wildcard) {
+				TopicTrie.checkPattern(topicName);
+			}
 			topic = new TPJMSTopic(topicName);
 			destinations.add(topic);
+			topicsByName.put(nameKey(topicName), topic);
+			if (wildcard) {
+				wildcardTopics.add(topic, topicName);
+			}
+		} finally {
+			destinationsLock.unlock();
 		}
+		manage(topic);
 		return topic;
 	}
 
@@ -172,84 +288,953 @@ public class VmProvider implements TPJMSProvider {
 		return connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 	}
 
+	/**
+	 * Registers a consumer. Temporary destinations are created by sessions
+	 * without involving the provider, so they are registered with their first
+	 * consumer. A subscriber of a topic that retains messages is given the
+	 * retained messages right away.
+	 */
 	@Override
-	public boolean registerMessageConsumer(Topic topic,
+	public boolean registerMessageConsumer(Destination destination,
 			MessageConsumer messageConsumer) throws JMSException {
-		if (!isRegisteredTopic(topic)) {
-			throw new JMSException("Topic " + topic.getTopicName()
-					+ " is not registered for this provider");
+		boolean added = false;
+		String conflationKey = null;
+		try {
+			destinationsLock.lock();
+			if (!destinations.contains(destination)) {
+				if (!isTemporary(destination)) {
+					throw new InvalidDestinationException("Destination "
+							+ destination.toString()
+							+ " is not registered for this provider");
+				}
+				destinations.add(destination);
+				added = true;
+			}
+			Subscribers subscribers = destinationMessageConsumers
+					.get(destination);
+			if (subscribers == null) {
+				subscribers = new Subscribers();
+				destinationMessageConsumers.put(destination, subscribers);
+			}
+			if (subscribers.consumers.contains(messageConsumer)) {
+				throw new JMSException("MessageConsumer "
+						+ messageConsumer.toString()
+						+ " is already registered for destination "
+						+ destination.toString());
+			}
+			conflationKey = conflationKeys.isEmpty() ? null : conflationKeys
+					.get(destination);
+			boolean registered = subscribers.consumers.add(messageConsumer);
+			if (!retainedMessages.isEmpty()) {
+				// under the lock, so that no later message overtakes them; a
+				// new consumer has no listener yet, so this only buffers them
+				SlowConsumerPolicy policy = slowConsumerPolicies.get(destination);
+				for (List<Message> retained : retainedFor(destination)) {
+					deliver(messageConsumer, policy, retained);
+				}
+			}
+			return registered;
+		} finally {
+			destinationsLock.unlock();
+			if (added) {
+				manage(destination);
+			}
+			if (conflationKey != null
+					&& messageConsumer instanceof TPJMSMessageConsumer) {
+				((TPJMSMessageConsumer) messageConsumer)
+						.setConflationKey(conflationKey);
+			}
 		}
-		List<MessageConsumer> messageConsumers = destinationMessageConsumers
-				.get(topic);
-		if (messageConsumers == null) {
-			messageConsumers = new ArrayList<MessageConsumer>();
-			destinationMessageConsumers.put(topic, messageConsumers);
+	}
+
+	@Override
+	public void unregisterMessageConsumer(Destination destination,
+			MessageConsumer messageConsumer) throws JMSException {
+		boolean removed = false;
+		try {
+			destinationsLock.lock();
+			Subscribers subscribers = destinationMessageConsumers
+					.get(destination);
+			if (subscribers == null
+					|| !subscribers.consumers.remove(messageConsumer)) {
+				return;
+			}
+			if (subscribers.consumers.isEmpty()) {
+				destinationMessageConsumers.remove(destination);
+				if (isTemporary(destination)) {
+					destinations.remove(destination);
+					pausedDestinations.remove(destination);
+					slowConsumerPolicies.remove(destination);
+					conflationKeys.remove(destination);
+					retainedMessages.remove(destination);
+					removed = true;
+				}
+			}
+		} finally {
+			destinationsLock.unlock();
 		}
-		if (messageConsumers.contains(messageConsumer)) {
-			throw new JMSException("MessageConsumer "
-					+ messageConsumer.toString()
-					+ " is already registered for topic "
-					+ topic.getTopicName());
+		if (removed) {
+			ManagementContext.getInstance().unregister(destination);
+			MetricsRegistry.getInstance().removeDestination(destination);
 		}
-		return messageConsumers.add(messageConsumer);
 	}
 
 	@Override
 	public void send(Destination destination, Message message)
 			throws JMSException {
-		if (!destinations.contains(destination)) {
-			throw new JMSException("Destination " + destination.toString()
-					+ " is not registered for this provider");
+		send(destination, Collections.singletonList(message));
+	}
+
+	/**
+	 * Sends a batch of messages. The destination and its consumers are looked
+	 * up once, and each consumer gets its share of the batch in one call.
+	 * While pooling is enabled, the messages are held until they are routed,
+	 * so that their pooled bodies outlive the copies made for the deliveries;
+	 * see {@link TPJMSMessage#retain()}.
+	 */
+	@Override
+	public void send(Destination destination, List<? extends Message> messages)
+			throws JMSException {
+		boolean pooled = BufferPool.getInstance().isEnabled();
+		if (pooled) {
+			retain(messages);
 		}
-		List<MessageConsumer> messageConsumers = destinationMessageConsumers
-				.get(destination);
-		if (messageConsumers != null) {
-			for (MessageConsumer messageConsumer : messageConsumers) {
-				MessageListener messageListener = messageConsumer
-						.getMessageListener();
-				if (messageListener != null) {
-					messageListener.onMessage(message);
-					List<Delivery> consumerMessages = consumerMessageMap
-							.get(messageListener);
-					if (consumerMessages == null) {
-						consumerMessages = new ArrayList<Delivery>();
-						consumerMessageMap.put(messageConsumer,
-								consumerMessages);
-					}
-					consumerMessages.add(new Delivery(message));
+		try {
+			route(destination, messages, pooled);
+		} finally {
+			if (pooled) {
+				release(messages);
+			}
+		}
+	}
+
+	private void route(Destination destination, List<? extends Message> messages,
+			boolean pooled) throws JMSException {
+		if (destination instanceof TPJMSCompositeDestination) {
+			for (Destination member : ((TPJMSCompositeDestination) destination)
+					.getDestinations()) {
+				route(member, messages, pooled);
+			}
+			return;
+		}
+		if (isWildcard(destination)) {
+			throw new InvalidDestinationException("Cannot send to wildcard "
+					+ destination);
+		}
+		Subscribers subscribers;
+		SlowConsumerPolicy policy;
+		List<WildcardRoute> wildcardRoutes = null;
+		List<Queue> virtualQueues = null;
+		boolean held;
+		try {
+			destinationsLock.lock();
+			if (!destinations.contains(destination)) {
+				throw new JMSException("Destination " + destination.toString()
+						+ " is not registered for this provider");
+			}
+			List<Message> backlog = pausedDestinations.isEmpty() ? null
+					: pausedDestinations.get(destination);
+			held = backlog != null;
+			if (held) {
+				backlog.addAll(messages);
+				if (pooled) {
+					retain(messages);
 				}
 			}
+			subscribers = destinationMessageConsumers.get(destination);
+			policy = slowConsumerPolicies.isEmpty() ? null
+					: slowConsumerPolicies.get(destination);
+			RetainedMessages retained = retainedMessages.isEmpty() ? null
+					: retainedMessages.get(destination);
+			if (retained != null) {
+				retained.addAll(messages);
+				if (pooled) {
+					retain(messages);
+				}
+			}
+			if (!held) {
+				wildcardRoutes = wildcardRoutes(destination, messages, pooled);
+				virtualQueues = virtualQueues(destination);
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+		if (metrics.isEnabled()) {
+			enqueued(metrics, destination, messages);
+		}
+		Tracing.getInstance().completed(messages, TraceStage.ROUTE);
+		if (!held) {
+			route(destination, subscribers, policy, messages);
+			route(wildcardRoutes, messages);
+			mirror(virtualQueues, messages);
 		}
 	}
 
-	private Queue getQueue(String queueName) throws JMSException {
-		for (Destination destination : destinations) {
-			if (destination instanceof Queue && ((Queue) destination).getQueueName().equalsIgnoreCase(queueName)) {
-				return (Queue) destination;
+	/**
+	 * Gets the queues of the virtual topic a destination is, or
+	 * <code>null</code> if it is none. Must be called with
+	 * <code>destinationsLock</code> held.
+	 */
+	private List<Queue> virtualQueues(Destination destination)
+			throws JMSException {
+		if (virtualTopicQueues.isEmpty() || !(destination instanceof Topic)) {
+			return null;
+		}
+		return virtualTopicQueues.get(nameKey(((Topic) destination)
+				.getTopicName()));
+	}
+
+	/**
+	 * Sends messages that reached a virtual topic on to each of its queues.
+	 */
+	private void mirror(List<Queue> virtualQueues, List<? extends Message> messages)
+			throws JMSException {
+		if (virtualQueues != null) {
+			for (Queue queue : virtualQueues) {
+				send(queue, messages);
 			}
 		}
-		return null;
 	}
 
-	private Topic getTopic(String topicName) throws JMSException {
-		for (Destination destination : destinations) {
-			if (destination instanceof Topic
-					&& ((Topic) destination).getTopicName().equalsIgnoreCase(
-							topicName)) {
-				return (Topic) destination;
+	/**
+	 * Hands messages sent to a topic to the consumers of the wildcard topics
+	 * that match it.
+	 */
+	private void route(List<WildcardRoute> wildcardRoutes,
+			List<? extends Message> messages) throws JMSException {
+		if (wildcardRoutes == null) {
+			return;
+		}
+		for (WildcardRoute wildcardRoute : wildcardRoutes) {
+			route(wildcardRoute.topic, wildcardRoute.subscribers,
+					wildcardRoute.policy, messages);
+		}
+	}
+
+	/**
+	 * Hands messages to the consumers of a destination: each queue message to
+	 * one consumer, each topic message to all of them.
+	 */
+	private void route(Destination destination, Subscribers subscribers,
+			SlowConsumerPolicy policy, List<? extends Message> messages)
+			throws JMSException {
+		if (subscribers == null || messages.isEmpty()) {
+			return;
+		}
+
+		if (destination instanceof Queue) {
+			Object[] consumers = subscribers.consumers.toArray();
+			if (consumers.length == 1) {
+				deliver((MessageConsumer) consumers[0], policy, messages);
+			} else if (consumers.length > 1) {
+				distribute(consumers, subscribers.cursor, policy, messages);
+			}
+		} else {
+			for (MessageConsumer messageConsumer : subscribers.consumers) {
+				deliver(messageConsumer, policy, messages);
+			}
+		}
+	}
+
+	// TPJMS specific
+
+	/**
+	 * Gets the destinations known to this provider.
+	 * 
+	 * @return a snapshot of the destinations
+	 */
+	public List<Destination> getDestinations() {
+		try {
+			destinationsLock.lock();
+			return new ArrayList<Destination>(destinations);
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Looks up a destination by the name under which it is managed, such as
+	 * <code>queue://orders</code> or <code>topic://prices</code>.
+	 * 
+	 * @return the destination, or <code>null</code> if there is none
+	 */
+	public Destination getDestination(String name) {
+		for (Destination destination : getDestinations()) {
+			if (MetricsRegistry.nameOf(destination).equalsIgnoreCase(name)) {
+				return destination;
 			}
 		}
 		return null;
 	}
 
-	private boolean isRegisteredTopic(Topic topic) throws JMSException {
-		for (Destination destination : destinations) {
-			if (destination instanceof Topic
-					&& ((Topic) destination).equals(topic)) {
-				return true;
+	/**
+	 * Gets the consumers of a destination.
+	 * 
+	 * @return a snapshot of the consumers
+	 */
+	public List<MessageConsumer> getConsumers(Destination destination) {
+		Subscribers subscribers;
+		try {
+			destinationsLock.lock();
+			subscribers = destinationMessageConsumers.get(destination);
+		} finally {
+			destinationsLock.unlock();
+		}
+		return (subscribers == null) ? new ArrayList<MessageConsumer>()
+				: new ArrayList<MessageConsumer>(subscribers.consumers);
+	}
+
+	/**
+	 * Gets the number of messages sent to a destination that have not been
+	 * received yet: those held while it is paused plus those buffered by its
+	 * consumers. A topic message counts once for each subscriber.
+	 */
+	public long getDepth(Destination destination) {
+		long depth = getHeldCount(destination);
+		for (MessageConsumer consumer : getConsumers(destination)) {
+			if (consumer instanceof TPJMSMessageConsumer) {
+				depth += ((TPJMSMessageConsumer) consumer)
+						.getPendingMessageCount();
 			}
 		}
-		return false;
+		return depth;
+	}
+
+	/**
+	 * Estimates the heap used by the messages counted by
+	 * {@link #getDepth(Destination)} and by the retained messages of a topic.
+	 * Each buffer is copied and measured outside its lock, so senders are
+	 * hardly held up.
+	 * 
+	 * @return estimated size in bytes
+	 */
+	public long getMemoryUsage(Destination destination) {
+		List<Message> held;
+		long bytes = 0;
+		try {
+			destinationsLock.lock();
+			List<Message> backlog = pausedDestinations.get(destination);
+			held = (backlog == null) ? Collections.<Message> emptyList()
+					: new ArrayList<Message>(backlog);
+			RetainedMessages retained = retainedMessages.get(destination);
+			if (retained != null) {
+				bytes += retained.getMemoryUsage();
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+		bytes += estimatedSize(held);
+		for (MessageConsumer consumer : getConsumers(destination)) {
+			if (consumer instanceof TPJMSMessageConsumer) {
+				bytes += estimatedSize(((TPJMSMessageConsumer) consumer)
+						.getPendingMessages());
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Discards the messages sent to a destination that have not been received
+	 * yet.
+	 * 
+	 * @return number of messages discarded
+	 */
+	public int purge(Destination destination) {
+		return removePending(destination).size();
+	}
+
+	/**
+	 * Moves the messages sent to a destination that have not been received
+	 * yet to another destination. Messages held by a paused destination come
+	 * first, followed by those of each consumer in turn; messages spread over
+	 * the consumers of a queue therefore need not keep their original order.
+	 * 
+	 * @return number of messages moved
+	 * @throws InvalidDestinationException
+	 *             if <code>to</code> is not registered with this provider
+	 */
+	public int moveMessages(Destination from, Destination to)
+			throws JMSException {
+		checkRegistered(to);
+		List<Message> moved = removePending(from);
+		send(to, moved);
+		return moved.size();
+	}
+
+	/**
+	 * Pauses a destination. Messages sent to it are held back until it is
+	 * resumed, consumers can still receive what they were given before.
+	 * 
+	 * @throws InvalidDestinationException
+	 *             if the destination is not registered with this provider
+	 */
+	public void pause(Destination destination) throws JMSException {
+		try {
+			destinationsLock.lock();
+			checkRegistered(destination);
+			if (!pausedDestinations.containsKey(destination)) {
+				pausedDestinations.put(destination, new ArrayList<Message>());
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Resumes a paused destination and hands the held messages to its
+	 * consumers, in order. Messages are handed over in batches outside the
+	 * lock; the destination stays paused until the last batch is taken, so
+	 * later sends queue up behind the held messages.
+	 */
+	public void resume(Destination destination) throws JMSException {
+		try {
+			resumeLock.lock();
+			while (true) {
+				List<Message> batch;
+				Subscribers subscribers;
+				SlowConsumerPolicy policy;
+				List<WildcardRoute> wildcardRoutes;
+				List<Queue> virtualQueues;
+				try {
+					destinationsLock.lock();
+					List<Message> backlog = pausedDestinations.get(destination);
+					if (backlog == null) {
+						return;
+					}
+					if (backlog.isEmpty()) {
+						pausedDestinations.remove(destination);
+						return;
+					}
+					batch = new ArrayList<Message>(backlog);
+					backlog.clear();
+					subscribers = destinationMessageConsumers.get(destination);
+					policy = slowConsumerPolicies.get(destination);
+					wildcardRoutes = wildcardRoutes(destination, batch, false);
+					virtualQueues = virtualQueues(destination);
+				} finally {
+					destinationsLock.unlock();
+				}
+				route(destination, subscribers, policy, batch);
+				route(wildcardRoutes, batch);
+				mirror(virtualQueues, batch);
+			}
+		} finally {
+			resumeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how the consumers of a destination are handled when they fall
+	 * behind. The policy applies to deliveries from now on.
+	 * 
+	 * @param policy
+	 *            policy, or <code>null</code> to let consumers fall behind
+	 *            without limit
+	 * @throws InvalidDestinationException
+	 *             if the destination is not registered with this provider
+	 */
+	public void setSlowConsumerPolicy(Destination destination,
+			SlowConsumerPolicy policy) throws JMSException {
+		try {
+			destinationsLock.lock();
+			checkRegistered(destination);
+			if (policy == null) {
+				slowConsumerPolicies.remove(destination);
+			} else {
+				slowConsumerPolicies.put(destination, policy);
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the slow consumer policy of a destination.
+	 * 
+	 * @return policy, or <code>null</code> if there is none
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy(Destination destination) {
+		try {
+			destinationsLock.lock();
+			return slowConsumerPolicies.get(destination);
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes a topic conflating: a message carrying the key property replaces
+	 * the message with the same key that a subscriber has not received yet,
+	 * so slow subscribers get the latest value per key instead of a backlog.
+	 * Applies to current and future subscribers, for messages delivered from
+	 * now on.
+	 * 
+	 * @param keyProperty
+	 *            name of the key property, or <code>null</code> to stop
+	 *            conflating
+	 * @throws InvalidDestinationException
+	 *             if the topic is not registered with this provider
+	 */
+	public void setConflationKey(Topic topic, String keyProperty)
+			throws JMSException {
+		List<MessageConsumer> consumers;
+		try {
+			destinationsLock.lock();
+			checkRegistered(topic);
+			if (keyProperty == null) {
+				conflationKeys.remove(topic);
+			} else {
+				conflationKeys.put(topic, keyProperty);
+			}
+			Subscribers subscribers = destinationMessageConsumers.get(topic);
+			consumers = (subscribers == null) ? Collections
+					.<MessageConsumer> emptyList() : subscribers.consumers;
+		} finally {
+			destinationsLock.unlock();
+		}
+		for (MessageConsumer consumer : consumers) {
+			if (consumer instanceof TPJMSMessageConsumer) {
+				((TPJMSMessageConsumer) consumer).setConflationKey(keyProperty);
+			}
+		}
+	}
+
+	/**
+	 * Gets the conflation key property of a topic.
+	 * 
+	 * @return property name, or <code>null</code> if the topic does not
+	 *         conflate
+	 */
+	public String getConflationKey(Topic topic) {
+		try {
+			destinationsLock.lock();
+			return conflationKeys.get(topic);
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes a topic retain its last messages, which are delivered to each new
+	 * subscriber as soon as it subscribes, so it starts from the latest state
+	 * instead of waiting for the next publish. Messages sent from now on are
+	 * retained; changing the limits keeps the retained messages that fit.
+	 * Expired messages are not delivered.
+	 * 
+	 * @param maxMessages
+	 *            number of messages to retain, or 0 to retain none and discard
+	 *            those retained
+	 * @param maxBytes
+	 *            maximum estimated size of the retained messages, or 0 for no
+	 *            limit
+	 * @throws IllegalArgumentException
+	 *             if a limit is negative
+	 * @throws InvalidDestinationException
+	 *             if the topic is not registered with this provider
+	 */
+	public void setRetention(Topic topic, int maxMessages, long maxBytes)
+			throws JMSException {
+		if (maxMessages < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("limits cannot be negative");
+		}
+		try {
+			destinationsLock.lock();
+			checkRegistered(topic);
+			RetainedMessages previous = retainedMessages.remove(topic);
+			if (maxMessages > 0) {
+				RetainedMessages retained = new RetainedMessages(maxMessages,
+						maxBytes);
+				if (previous != null) {
+					retained.addAll(previous.snapshot(System.currentTimeMillis()));
+				}
+				retainedMessages.put(topic, retained);
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the messages retained by a topic that have not expired.
+	 * 
+	 * @return the messages, oldest first
+	 */
+	public List<Message> getRetainedMessages(Topic topic) {
+		try {
+			destinationsLock.lock();
+			RetainedMessages retained = retainedMessages.get(topic);
+			return (retained == null) ? new ArrayList<Message>() : retained
+					.snapshot(System.currentTimeMillis());
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Discards the messages retained by a topic. The topic keeps retaining
+	 * messages sent from now on.
+	 * 
+	 * @return number of messages discarded
+	 */
+	public int clearRetainedMessages(Topic topic) {
+		try {
+			destinationsLock.lock();
+			RetainedMessages retained = retainedMessages.get(topic);
+			if (retained == null) {
+				return 0;
+			}
+			int count = retained.size();
+			retained.clear();
+			return count;
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a composite destination. Its queues and topics are created as
+	 * by {@link #createQueue(String)} and {@link #createTopic(String)}.
+	 * 
+	 * @param name
+	 *            the members, each prefixed by its type, separated by commas,
+	 *            e.g. <code>queue:orders,topic:audit</code>
+	 * @throws InvalidDestinationException
+	 *             if the name lists no members, a member has no type prefix
+	 *             or is a wildcard topic
+	 */
+	public TPJMSCompositeDestination createCompositeDestination(String name)
+			throws JMSException {
+		if (name == null) {
+			throw new InvalidDestinationException("name cannot be null");
+		}
+		List<Destination> members = new ArrayList<Destination>();
+		for (String member : name.split(",")) {
+			member = member.trim();
+			if (member.regionMatches(true, 0,
+					TPJMSCompositeDestination.QUEUE_PREFIX, 0,
+					TPJMSCompositeDestination.QUEUE_PREFIX.length())) {
+				members.add(createQueue(member
+						.substring(TPJMSCompositeDestination.QUEUE_PREFIX
+								.length())));
+			} else if (member.regionMatches(true, 0,
+					TPJMSCompositeDestination.TOPIC_PREFIX, 0,
+					TPJMSCompositeDestination.TOPIC_PREFIX.length())) {
+				String topicName = member
+						.substring(TPJMSCompositeDestination.TOPIC_PREFIX
+								.length());
+				if (TPJMSTopic.isWildcard(topicName)) {
+					throw new InvalidDestinationException(
+							"Composite destination cannot contain wildcard topic "
+									+ topicName);
+				}
+				members.add(createTopic(topicName));
+			} else {
+				throw new InvalidDestinationException("Invalid member '"
+						+ member + "' of composite destination " + name);
+			}
+		}
+		return new TPJMSCompositeDestination(name, members);
+	}
+
+	/**
+	 * Gets the queues that the messages of a virtual topic are mirrored into.
+	 * 
+	 * @return a snapshot of the queues of its consumer groups
+	 */
+	public List<Queue> getVirtualTopicQueues(Topic topic) throws JMSException {
+		try {
+			destinationsLock.lock();
+			List<Queue> queues = virtualTopicQueues.get(nameKey(topic
+					.getTopicName()));
+			return (queues == null) ? new ArrayList<Queue>()
+					: new ArrayList<Queue>(queues);
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	public boolean isPaused(Destination destination) {
+		try {
+			destinationsLock.lock();
+			return pausedDestinations.containsKey(destination);
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of messages held back by a paused destination.
+	 */
+	public int getHeldCount(Destination destination) {
+		try {
+			destinationsLock.lock();
+			List<Message> backlog = pausedDestinations.get(destination);
+			return (backlog == null) ? 0 : backlog.size();
+		} finally {
+			destinationsLock.unlock();
+		}
+	}
+
+	// ////////// INTERNAL
+
+	/**
+	 * Takes the held messages of a destination and the buffered messages of
+	 * its consumers. The subscribers of a topic share the instances sent to
+	 * it, so each message is only taken once, in the order it was first
+	 * found.
+	 */
+	private List<Message> removePending(Destination destination) {
+		List<Message> removed = new ArrayList<Message>();
+		Set<Message> seen = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		try {
+			destinationsLock.lock();
+			List<Message> backlog = pausedDestinations.get(destination);
+			if (backlog != null) {
+				removed.addAll(backlog);
+				seen.addAll(backlog);
+				backlog.clear();
+			}
+		} finally {
+			destinationsLock.unlock();
+		}
+		for (MessageConsumer consumer : getConsumers(destination)) {
+			if (consumer instanceof TPJMSMessageConsumer) {
+				for (Message message : ((TPJMSMessageConsumer) consumer).purge()) {
+					if (seen.add(message)) {
+						removed.add(message);
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Looks up the consumers of the wildcard topics that match a topic. A
+	 * matching wildcard topic that is paused holds the messages instead. Must
+	 * be called with <code>destinationsLock</code> held.
+	 * 
+	 * @return the routes, or <code>null</code> if there are none
+	 */
+	private List<WildcardRoute> wildcardRoutes(Destination destination,
+			List<? extends Message> messages, boolean pooled) throws JMSException {
+		if (wildcardTopics.isEmpty() || !(destination instanceof Topic)
+				|| isWildcard(destination)) {
+			return null;
+		}
+		List<Topic> matches = new ArrayList<Topic>();
+		wildcardTopics.match(((Topic) destination).getTopicName(), matches);
+		List<WildcardRoute> routes = null;
+		for (Topic topic : matches) {
+			List<Message> backlog = pausedDestinations.isEmpty() ? null
+					: pausedDestinations.get(topic);
+			if (backlog != null) {
+				backlog.addAll(messages);
+				if (pooled) {
+					retain(messages);
+				}
+				continue;
+			}
+			Subscribers subscribers = destinationMessageConsumers.get(topic);
+			if (subscribers == null) {
+				continue;
+			}
+			if (routes == null) {
+				routes = new ArrayList<WildcardRoute>(matches.size());
+			}
+			routes.add(new WildcardRoute(topic, subscribers,
+					slowConsumerPolicies.get(topic)));
+		}
+		return routes;
+	}
+
+	/**
+	 * Gets the retained messages for a new consumer of a destination: those
+	 * of the destination itself, or for a wildcard topic those of each
+	 * matching topic. Must be called with <code>destinationsLock</code> held.
+	 */
+	private List<List<Message>> retainedFor(Destination destination)
+			throws JMSException {
+		List<List<Message>> retained = new ArrayList<List<Message>>();
+		long now = System.currentTimeMillis();
+		if (isWildcard(destination)) {
+			String pattern = ((Topic) destination).getTopicName();
+			for (Map.Entry<Destination, RetainedMessages> entry : retainedMessages
+					.entrySet()) {
+				if (TopicTrie.matches(pattern,
+						((Topic) entry.getKey()).getTopicName())) {
+					retained.add(entry.getValue().snapshot(now));
+				}
+			}
+		} else {
+			RetainedMessages messages = retainedMessages.get(destination);
+			if (messages != null && messages.size() > 0) {
+				retained.add(messages.snapshot(now));
+			}
+		}
+		return retained;
+	}
+
+	private void checkRegistered(Destination destination)
+			throws InvalidDestinationException {
+		if (!getDestinations().contains(destination)) {
+			throw new InvalidDestinationException("Destination " + destination
+					+ " is not registered for this provider");
+		}
+	}
+
+	private void manage(Destination destination) {
+		ManagementContext.getInstance().register(destination,
+				DestinationView.FACTORY);
+	}
+
+	private static long estimatedSize(List<Message> messages) {
+		long bytes = 0;
+		for (Message message : messages) {
+			if (message instanceof TPJMSMessage) {
+				bytes += ((TPJMSMessage) message).getEstimatedSize();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Counts messages accepted for a destination and stamps them, so that
+	 * their delivery latency can be measured.
+	 */
+	private static void enqueued(MetricsRegistry metrics,
+			Destination destination, List<? extends Message> messages) {
+		metrics.enqueued(destination, messages.size());
+		long now = System.nanoTime();
+		for (Message message : messages) {
+			if (message instanceof TPJMSMessage) {
+				((TPJMSMessage) message).setSendNanos(now);
+			}
+		}
+	}
+
+	/**
+	 * Hands each message of a queue batch to one consumer, taking the
+	 * consumers in turn.
+	 */
+	private void distribute(Object[] consumers, AtomicInteger cursor,
+			SlowConsumerPolicy policy, List<? extends Message> messages)
+			throws JMSException {
+		Message[] batch = messages.toArray(new Message[messages.size()]);
+		int n = consumers.length;
+		int start = (cursor.getAndAdd(batch.length) & Integer.MAX_VALUE) % n;
+		for (int c = 0; c < n; c++) {
+			// message i goes to consumer (start + i) % n
+			int first = (c - start + n) % n;
+			if (first >= batch.length) {
+				continue;
+			}
+			List<Message> share = new ArrayList<Message>(batch.length / n + 1);
+			for (int i = first; i < batch.length; i += n) {
+				share.add(batch[i]);
+			}
+			deliver((MessageConsumer) consumers[c], policy, share);
+		}
+	}
+
+	private void deliver(MessageConsumer messageConsumer,
+			SlowConsumerPolicy policy, List<? extends Message> messages)
+			throws JMSException {
+		// held until the consumer copies them, or for good if it takes them as
+		// they are
+		if (BufferPool.getInstance().isEnabled()) {
+			retain(messages);
+		}
+		if (messageConsumer instanceof TPJMSMessageConsumer) {
+			((TPJMSMessageConsumer) messageConsumer).deliver(messages, policy);
+			return;
+		}
+		MessageListener messageListener = messageConsumer.getMessageListener();
+		if (messageListener != null) {
+			for (Message message : messages) {
+				messageListener.onMessage(message);
+			}
+		}
+	}
+
+	private static void retain(List<? extends Message> messages) {
+		for (Message message : messages) {
+			if (message instanceof TPJMSMessage) {
+				((TPJMSMessage) message).retain();
+			}
+		}
+	}
+
+	private static void release(List<? extends Message> messages) {
+		for (Message message : messages) {
+			if (message instanceof TPJMSMessage) {
+				((TPJMSMessage) message).release();
+			}
+		}
+	}
+
+	/**
+	 * Creates a chunk store that spools to a temporary file, so large message
+	 * bodies do not have to be held in memory.
+	 */
+	@Override
+	public ChunkStore createChunkStore(int chunkSize) throws JMSException {
+		try {
+			return new FileChunkStore(null, chunkSize);
+		} catch (IOException e) {
+			throw new JMSException("Unable to create chunk store: "
+					+ e.getMessage());
+		}
+	}
+
+	private Queue getQueue(String queueName) throws JMSException {
+		return queuesByName.get(nameKey(queueName));
+	}
+
+	private Topic getTopic(String topicName) throws JMSException {
+		return topicsByName.get(nameKey(topicName));
+	}
+
+	/**
+	 * Gets the virtual topic whose messages a queue of a consumer group
+	 * receives, from a queue name of the form
+	 * <code>Consumer.&lt;group&gt;.VirtualTopic.&lt;name&gt;</code>.
+	 * 
+	 * @return the name key of the virtual topic, or <code>null</code> if the
+	 *         queue is not of a consumer group
+	 */
+	private static String virtualTopicOf(String queueName) {
+		if (queueName == null
+				|| !queueName.regionMatches(true, 0, VIRTUAL_QUEUE_PREFIX, 0,
+						VIRTUAL_QUEUE_PREFIX.length())) {
+			return null;
+		}
+		int group = queueName.indexOf(TPJMSTopic.SEPARATOR,
+				VIRTUAL_QUEUE_PREFIX.length());
+		if (group <= VIRTUAL_QUEUE_PREFIX.length()
+				|| !queueName.regionMatches(true, group + 1,
+						VIRTUAL_TOPIC_PREFIX, 0, VIRTUAL_TOPIC_PREFIX.length())) {
+			return null;
+		}
+		return nameKey(queueName.substring(group + 1));
+	}
+
+	/**
+	 * Gets the key of a destination name, which is matched ignoring case.
+	 */
+	private static String nameKey(String name) {
+		return (name == null) ? null : name.toLowerCase(Locale.ROOT);
+	}
+
+	private static boolean isWildcard(Destination destination) {
+		return destination instanceof TPJMSTopic
+				&& ((TPJMSTopic) destination).isWildcard();
+	}
+
+	private static boolean isTemporary(Destination destination) {
+		return destination instanceof TPJMSDestination
+				&& ((TPJMSDestination) destination).isTemporary();
 	}
 
 }
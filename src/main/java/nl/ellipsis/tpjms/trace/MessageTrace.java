@@ -0,0 +1,86 @@
+package nl.ellipsis.tpjms.trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Trace of a sampled message. It keeps the time at which each stage ended, so
+ * the next stage can be timed from there, and passes each stage to the tracer
+ * chosen when the message was sampled.
+ *
+ * <p>
+ * A message sent to a topic is delivered to all subscribers as the same
+ * object, so they share its trace; their enqueue and dispatch stages are each
+ * recorded, timed from the latest mark of any of them.
+ * </p>
+ */
+public final class MessageTrace {
+	private static final TraceStage[] STAGES = TraceStage.values();
+
+	private final long id;
+	private final String destination;
+	private final MessageTracer tracer;
+	private final long startNanos;
+	/** end of each stage, 0 until recorded */
+	private final AtomicLongArray marks = new AtomicLongArray(STAGES.length);
+
+	MessageTrace(long id, String destination, MessageTracer tracer,
+			long startNanos) {
+		this.id = id;
+		this.destination = destination;
+		this.tracer = tracer;
+		this.startNanos = startNanos;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the name of the destination the message was sent to, such as
+	 * <code>queue://orders</code>.
+	 */
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Gets the {@link System#nanoTime()} at which the message was sampled.
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * Indicates whether a stage has been recorded.
+	 */
+	public boolean isRecorded(TraceStage stage) {
+		return marks.get(stage.ordinal()) != 0;
+	}
+
+	/**
+	 * Records a stage that ends now and started where the previous recorded
+	 * stage ended.
+	 */
+	public void completed(TraceStage stage) {
+		long now = System.nanoTime();
+		completed(stage, startOf(stage), now);
+	}
+
+	/**
+	 * Records a stage with an explicit start.
+	 */
+	public void completed(TraceStage stage, long start, long end) {
+		marks.set(stage.ordinal(), end);
+		Tracing.record(tracer, this, stage, start, end);
+	}
+
+	private long startOf(TraceStage stage) {
+		for (int i = stage.ordinal() - 1; i >= 0; i--) {
+			long mark = marks.get(i);
+			if (mark != 0) {
+				return mark;
+			}
+		}
+		return startNanos;
+	}
+}
@@ -0,0 +1,24 @@
+package nl.ellipsis.tpjms.trace;
+
+/**
+ * Receives the stage timings of sampled messages. Implementations are called
+ * on the send and delivery threads, so they must be thread-safe and quick.
+ *
+ * @see Tracing#setTracer(MessageTracer)
+ */
+public interface MessageTracer {
+	/**
+	 * Records a stage of a sampled message.
+	 * 
+	 * @param trace
+	 *            trace of the message
+	 * @param stage
+	 *            stage that completed
+	 * @param startNanos
+	 *            {@link System#nanoTime()} at which the stage started
+	 * @param endNanos
+	 *            {@link System#nanoTime()} at which the stage ended
+	 */
+	void record(MessageTrace trace, TraceStage stage, long startNanos,
+			long endNanos);
+}
@@ -0,0 +1,118 @@
+package nl.ellipsis.tpjms.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link MessageTracer} that keeps the latest stage events in a ring buffer.
+ *
+ * <p>
+ * Recording takes no lock: a writer claims a slot by incrementing a cursor,
+ * marks the slot as being written, writes the event and then publishes the
+ * sequence number of the event in the slot. A reader only accepts a slot whose
+ * sequence number is the expected one both before and after reading it, so
+ * events that are overwritten while being dumped are skipped instead of
+ * being returned torn. When the buffer wraps, the oldest events are
+ * overwritten.
+ * </p>
+ */
+public final class TraceBuffer implements MessageTracer {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final int FIELDS = 4;
+	private static final TraceStage[] STAGES = TraceStage.values();
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicLong cursor = new AtomicLong();
+	/** sequence number + 1 of the event in each slot, 0 while being written */
+	private final AtomicLongArray sequences;
+	/** trace id, stage, start and end of each slot */
+	private final AtomicLongArray fields;
+	private final AtomicReferenceArray<String> destinations;
+
+	public TraceBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a buffer.
+	 * 
+	 * @param capacity
+	 *            number of events kept, rounded up to a power of two
+	 */
+	public TraceBuffer(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 24)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.capacity = (capacity == 1) ? 1
+				: Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.sequences = new AtomicLongArray(this.capacity);
+		this.fields = new AtomicLongArray(this.capacity * FIELDS);
+		this.destinations = new AtomicReferenceArray<String>(this.capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public void record(MessageTrace trace, TraceStage stage, long startNanos,
+			long endNanos) {
+		long sequence = cursor.getAndIncrement();
+		int slot = (int) (sequence & mask);
+		int base = slot * FIELDS;
+		sequences.set(slot, 0);
+		fields.set(base, trace.getId());
+		fields.set(base + 1, stage.ordinal());
+		fields.set(base + 2, startNanos);
+		fields.set(base + 3, endNanos);
+		destinations.set(slot, trace.getDestination());
+		sequences.set(slot, sequence + 1);
+	}
+
+	/**
+	 * Gets the number of events recorded since the buffer was created or
+	 * cleared, including those that have been overwritten.
+	 */
+	public long getRecordedCount() {
+		return cursor.get();
+	}
+
+	/**
+	 * Gets the events in the buffer, oldest first.
+	 */
+	public List<TraceEvent> dump() {
+		long end = cursor.get();
+		long start = Math.max(0, end - capacity);
+		List<TraceEvent> events = new ArrayList<TraceEvent>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			int slot = (int) (sequence & mask);
+			int base = slot * FIELDS;
+			if (sequences.get(slot) != sequence + 1) {
+				continue;
+			}
+			TraceEvent event = new TraceEvent(fields.get(base),
+					destinations.get(slot), STAGES[(int) fields.get(base + 1)],
+					fields.get(base + 2), fields.get(base + 3));
+			if (sequences.get(slot) == sequence + 1) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Discards all events. Events recorded concurrently may survive.
+	 */
+	public void clear() {
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, 0);
+		}
+		cursor.set(0);
+	}
+}
@@ -0,0 +1,51 @@
+package nl.ellipsis.tpjms.trace;
+
+/**
+ * A stage of a traced message, as kept by a {@link TraceBuffer}.
+ */
+public final class TraceEvent {
+	private final long traceId;
+	private final String destination;
+	private final TraceStage stage;
+	private final long startNanos;
+	private final long endNanos;
+
+	public TraceEvent(long traceId, String destination, TraceStage stage,
+			long startNanos, long endNanos) {
+		this.traceId = traceId;
+		this.destination = destination;
+		this.stage = stage;
+		this.startNanos = startNanos;
+		this.endNanos = endNanos;
+	}
+
+	public long getTraceId() {
+		return traceId;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	public TraceStage getStage() {
+		return stage;
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public long getEndNanos() {
+		return endNanos;
+	}
+
+	public long getDurationNanos() {
+		return endNanos - startNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "trace " + traceId + " " + destination + " " + stage + " "
+				+ getDurationNanos() + " ns";
+	}
+}
@@ -0,0 +1,23 @@
+package nl.ellipsis.tpjms.trace;
+
+/**
+ * Stages a traced message passes through, in order. Each stage starts where
+ * the previous one that was recorded ended.
+ */
+public enum TraceStage {
+	/** checking the destination and send parameters in the producer */
+	VALIDATE,
+	/** looking up the consumers of the destination in the provider */
+	ROUTE,
+	/**
+	 * handing the message to a consumer's buffer; not recorded for messages
+	 * handed straight to a listener
+	 */
+	ENQUEUE,
+	/** waiting in the buffer until received or handed to the listener */
+	DISPATCH_WAIT,
+	/** running the message listener */
+	LISTENER,
+	/** from consumption until the message is acknowledged */
+	ACKNOWLEDGE
+}
@@ -0,0 +1,162 @@
+package nl.ellipsis.tpjms.trace;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+import javax.jms.Message;
+
+import org.apache.logging.log4j.*;
+
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+
+/**
+ * Sampled tracing of messages from send to acknowledge.
+ *
+ * <p>
+ * Tracing is disabled by default. When a sample rate is set, producers pick
+ * one in that many messages at random and attach a {@link MessageTrace} to
+ * them. The producer, the provider and the consumer record the
+ * {@link TraceStage}s of a traced message with the {@link MessageTracer},
+ * which by default is a {@link TraceBuffer}. Every hook first checks
+ * {@link #isEnabled()}, a single volatile read, and an unsampled message
+ * costs no more than a random number and a field read at each hook.
+ * </p>
+ */
+public final class Tracing {
+	private static final Logger logger = LogManager.getLogger(Tracing.class);
+
+	private static final Tracing instance = new Tracing();
+
+	private volatile int sampleRate = 0;
+	private volatile MessageTracer tracer;
+	private final TraceBuffer buffer = new TraceBuffer();
+	private final AtomicLong ids = new AtomicLong();
+
+	private Tracing() {
+		tracer = buffer;
+	}
+
+	/**
+	 * Gets the singleton instance of Tracing.
+	 * 
+	 * @return Tracing instance.
+	 */
+	public static Tracing getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return sampleRate > 0;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Sets how many messages are sent per traced message, e.g. 1000 to trace
+	 * one message in a thousand, 1 to trace all of them, or 0 to disable
+	 * tracing.
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 0) {
+			throw new IllegalArgumentException("Invalid sample rate: "
+					+ sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	public MessageTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Sets the tracer for messages sampled from now on.
+	 * 
+	 * @param tracer
+	 *            tracer, or <code>null</code> for the default
+	 *            {@link TraceBuffer}
+	 */
+	public void setTracer(MessageTracer tracer) {
+		this.tracer = (tracer == null) ? buffer : tracer;
+	}
+
+	/**
+	 * Gets the default tracer.
+	 */
+	public TraceBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gets the events kept by the default tracer, oldest first.
+	 */
+	public List<TraceEvent> dump() {
+		return buffer.dump();
+	}
+
+	/**
+	 * Decides whether to trace a message that is about to be sent, and
+	 * attaches a new trace to it if so.
+	 * 
+	 * @return trace of the message, or <code>null</code> if it is not traced
+	 */
+	public MessageTrace sample(Message message, Destination destination) {
+		int rate = sampleRate;
+		if (rate == 0 || !(message instanceof TPJMSMessage)) {
+			return null;
+		}
+		TPJMSMessage tpjmsMessage = (TPJMSMessage) message;
+		if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+			if (tpjmsMessage.getTrace() != null) {
+				// sampled when sent before
+				tpjmsMessage.setTrace(null);
+			}
+			return null;
+		}
+		MessageTrace trace = new MessageTrace(ids.incrementAndGet(),
+				MetricsRegistry.nameOf(destination), tracer, System.nanoTime());
+		tpjmsMessage.setTrace(trace);
+		return trace;
+	}
+
+	/**
+	 * Gets the trace of a message.
+	 * 
+	 * @return trace, or <code>null</code> if tracing is disabled or the
+	 *         message is not traced
+	 */
+	public MessageTrace traceOf(Message message) {
+		if (sampleRate == 0 || !(message instanceof TPJMSMessage)) {
+			return null;
+		}
+		return ((TPJMSMessage) message).getTrace();
+	}
+
+	/**
+	 * Records a stage of the messages of a batch that are traced.
+	 */
+	public void completed(List<? extends Message> messages, TraceStage stage) {
+		if (sampleRate == 0) {
+			return;
+		}
+		for (int i = 0; i < messages.size(); i++) {
+			MessageTrace trace = traceOf(messages.get(i));
+			if (trace != null) {
+				trace.completed(stage);
+			}
+		}
+	}
+
+	static void record(MessageTracer tracer, MessageTrace trace,
+			TraceStage stage, long start, long end) {
+		try {
+			tracer.record(trace, stage, start, end);
+		} catch (RuntimeException e) {
+			logger.warn("MessageTracer failed", e);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package nl.ellipsis.tpjms.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of recyclable byte arrays, used for message bodies and codec scratch
+ * space.
+ *
+ * <p>
+ * Buffers are handed out in power-of-two size classes between
+ * {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}. Each size class is a
+ * small slab of slots that is claimed and refilled with compare-and-set, so
+ * acquiring or releasing a buffer never blocks. Requests larger than the
+ * largest size class are always allocated and never pooled.
+ * </p>
+ *
+ * <p>
+ * Pooling is disabled by default; while disabled {@link #acquire(int)}
+ * allocates an array of exactly the requested size and
+ * {@link #release(byte[])} is a no-op. A released buffer must not be used by
+ * its previous owner anymore, so only enable pooling when message consumers
+ * do not hold on to message bodies after acknowledging them, or, in the
+ * acknowledge modes in which they do not acknowledge, after receiving the next
+ * message or returning from the listener. The body of a sent message that was
+ * reset for reading is released once the last consumer has its copy, so such
+ * a message must not be sent again either.
+ * </p>
+ */
+public final class BufferPool {
+	public static final int MIN_BUFFER_SIZE = 1 << 8;
+	public static final int MAX_BUFFER_SIZE = 1 << 20;
+
+	private static final int MIN_SHIFT = 8;
+	private static final int SIZE_CLASSES = 20 - MIN_SHIFT + 1;
+	private static final int SLOTS_PER_CLASS = 32;
+
+	private static final BufferPool instance = new BufferPool();
+
+	private final AtomicReferenceArray<byte[]> slots = new AtomicReferenceArray<byte[]>(
+			SIZE_CLASSES * SLOTS_PER_CLASS);
+	private volatile boolean enabled = false;
+
+	private BufferPool() {
+	}
+
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables pooling. Disabling the pool drops all cached
+	 * buffers.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to recycle buffers
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			clear();
+		}
+	}
+
+	/**
+	 * Gets a buffer of at least <code>minCapacity</code> bytes. The content of
+	 * the returned buffer is undefined.
+	 *
+	 * @param minCapacity
+	 *            minimum number of bytes needed
+	 * @return a buffer, taken from the pool when possible
+	 */
+	public byte[] acquire(int minCapacity) {
+		if (!enabled || minCapacity > MAX_BUFFER_SIZE) {
+			return new byte[minCapacity];
+		}
+
+		int sizeClass = sizeClass(minCapacity);
+		int base = sizeClass * SLOTS_PER_CLASS;
+		for (int i = base; i < base + SLOTS_PER_CLASS; i++) {
+			byte[] buffer = slots.get(i);
+			if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+				return buffer;
+			}
+		}
+		return new byte[MIN_BUFFER_SIZE << sizeClass];
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not handed out by
+	 * {@link #acquire(int)}, or that do not fit in the pool, are left to the
+	 * garbage collector.
+	 *
+	 * @param buffer
+	 *            buffer to recycle (may be <code>null</code>)
+	 */
+	public void release(byte[] buffer) {
+		if (!enabled || buffer == null || !isPoolable(buffer.length)) {
+			return;
+		}
+
+		int base = sizeClass(buffer.length) * SLOTS_PER_CLASS;
+		for (int i = base; i < base + SLOTS_PER_CLASS; i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of buffers currently cached by the pool.
+	 *
+	 * @return number of idle buffers
+	 */
+	public int getPooledCount() {
+		int count = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Drops all cached buffers.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+		}
+	}
+
+	private static boolean isPoolable(int length) {
+		return length >= MIN_BUFFER_SIZE && length <= MAX_BUFFER_SIZE
+				&& Integer.bitCount(length) == 1;
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,24 @@
+package nl.ellipsis.tpjms.util;
+
+import javax.jms.Message;
+
+/**
+ * Callback for the outcome of an asynchronous send, modelled on the JMS 2.0
+ * <code>CompletionListener</code>.
+ *
+ * <p>
+ * The callbacks of a session are invoked one at a time, in the order in which
+ * the messages were sent, on a thread owned by the session.
+ * </p>
+ */
+public interface CompletionListener {
+	/**
+	 * Notifies that the message has been handed off to the provider.
+	 */
+	void onCompletion(Message message);
+
+	/**
+	 * Notifies that the message could not be sent.
+	 */
+	void onException(Message message, Exception exception);
+}
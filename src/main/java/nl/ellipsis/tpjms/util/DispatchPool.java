@@ -0,0 +1,82 @@
+package nl.ellipsis.tpjms.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Threads for asynchronous delivery to message listeners, shared by all
+ * connections.
+ *
+ * <p>
+ * On a JDK with virtual threads (21 and later) every task runs on a virtual
+ * thread of its own, so listeners that block on downstream calls do not tie up
+ * a platform thread and the number of sessions is not bounded by the number of
+ * threads. On older JDKs tasks run on a fixed pool of
+ * {@link #PLATFORM_THREADS} daemon threads. The virtual thread executor is
+ * looked up reflectively, so this class also loads on older JDKs.
+ * </p>
+ */
+public final class DispatchPool {
+	private static final Logger logger = LogManager.getLogger(DispatchPool.class);
+
+	/** Size of the platform thread pool used when there are no virtual threads. */
+	public static final int PLATFORM_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+	private static final DispatchPool instance = new DispatchPool();
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	private DispatchPool() {
+		ExecutorService virtualExecutor = newVirtualThreadExecutor();
+		this.virtual = virtualExecutor != null;
+		this.executor = virtual ? virtualExecutor : newPlatformThreadExecutor();
+		logger.debug("Dispatching on " + (virtual ? "virtual threads" : PLATFORM_THREADS + " platform threads"));
+	}
+
+	public static DispatchPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Indicates whether tasks run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Runs a task on a dispatch thread.
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			// no such method before JDK 21; on JDK 19 and 20 it fails unless preview features are enabled
+			return null;
+		}
+	}
+
+	private static ExecutorService newPlatformThreadExecutor() {
+		return Executors.newFixedThreadPool(PLATFORM_THREADS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TPJMS-dispatch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
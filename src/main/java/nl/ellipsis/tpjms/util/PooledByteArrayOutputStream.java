@@ -0,0 +1,105 @@
+package nl.ellipsis.tpjms.util;
+
+import java.io.OutputStream;
+
+/**
+ * Unsynchronized byte array output stream that takes its buffers from the
+ * {@link BufferPool}. Unlike {@link java.io.ByteArrayOutputStream} the
+ * backing buffer is exposed, so the written bytes can be handed on without a
+ * copy.
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private byte[] buf;
+	private int count;
+
+	public PooledByteArrayOutputStream() {
+	}
+
+	/**
+	 * Creates a stream that continues writing after the first
+	 * <code>count</code> bytes of <code>buf</code>. The stream takes ownership
+	 * of the buffer.
+	 *
+	 * @param buf
+	 *            buffer to adopt (may be <code>null</code>)
+	 * @param count
+	 *            number of valid bytes in the buffer
+	 */
+	public PooledByteArrayOutputStream(byte[] buf, int count) {
+		this.buf = buf;
+		this.count = (buf == null) ? 0 : count;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Gets the backing buffer. Only the first {@link #size()} bytes are valid.
+	 *
+	 * @return backing buffer, or <code>null</code> if nothing was written
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public byte[] toByteArray() {
+		byte[] copy = new byte[count];
+		if (count > 0) {
+			System.arraycopy(buf, 0, copy, 0, count);
+		}
+		return copy;
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the backing buffer to the pool and empties the stream.
+	 */
+	public void release() {
+		BufferPool.getInstance().release(buf);
+		buf = null;
+		count = 0;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity < 0) {
+			throw new OutOfMemoryError("Buffer too large");
+		}
+		if (buf != null && minCapacity <= buf.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(minCapacity, (buf == null) ? INITIAL_CAPACITY
+				: buf.length << 1);
+		if (newCapacity < 0) {
+			newCapacity = minCapacity;
+		}
+		byte[] newBuf = BufferPool.getInstance().acquire(newCapacity);
+		if (count > 0) {
+			System.arraycopy(buf, 0, newBuf, 0, count);
+		}
+		BufferPool.getInstance().release(buf);
+		buf = newBuf;
+	}
+}
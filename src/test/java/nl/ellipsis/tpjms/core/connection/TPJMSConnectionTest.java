@@ -37,6 +37,17 @@ public class TPJMSConnectionTest {
 		con.close();
 	}
 
+	@Test
+	public void testCloseClosesSessions() throws JMSException {
+		Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		Topic topic = session.createTopic("close-topic");
+		session.createConsumer(topic);
+		assertEquals(1, VmProvider.getInstance().getConsumers(topic).size());
+
+		con.close();
+		assertTrue(VmProvider.getInstance().getConsumers(topic).isEmpty());
+	}
+
 	@Test(expected = JMSException.class)
 	public void testCreateConnectionConsumer() throws JMSException {
 		con.createConnectionConsumer((Destination) null, null, null, 0);
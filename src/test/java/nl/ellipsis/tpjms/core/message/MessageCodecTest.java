@@ -0,0 +1,104 @@
+package nl.ellipsis.tpjms.core.message;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class MessageCodecTest {
+	private Connection con;
+	private Session session;
+	private Queue queue;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		con = new TPJMSConnectionFactory("vm://test").createConnection();
+		session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		queue = session.createQueue("codec-queue");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testHeadersAndProperties() throws Exception {
+		Message message = session.createMessage();
+		message.setJMSCorrelationID("CORRELATION");
+		message.setJMSPriority(7);
+		message.setJMSExpiration(1234L);
+		message.setJMSTimestamp(5678L);
+		message.setJMSRedelivered(true);
+		message.setJMSType("TYPE");
+		message.setStringProperty("string", "value");
+		message.setIntProperty("int", 42);
+		message.setDoubleProperty("double", 1.5);
+		message.setBooleanProperty("boolean", true);
+
+		Message copy = roundTrip(message);
+		assertEquals(TPJMSMessage.class, copy.getClass());
+		assertEquals(message.getJMSMessageID(), copy.getJMSMessageID());
+		assertEquals("CORRELATION", copy.getJMSCorrelationID());
+		assertEquals(7, copy.getJMSPriority());
+		assertEquals(1234L, copy.getJMSExpiration());
+		assertEquals(5678L, copy.getJMSTimestamp());
+		assertTrue(copy.getJMSRedelivered());
+		assertEquals("TYPE", copy.getJMSType());
+		assertSame(queue, copy.getJMSDestination());
+		assertSame(queue, copy.getJMSReplyTo());
+		assertEquals("value", copy.getStringProperty("string"));
+		assertEquals(42, copy.getIntProperty("int"));
+		assertEquals(1.5, copy.getDoubleProperty("double"), 0);
+		assertTrue(copy.getBooleanProperty("boolean"));
+	}
+
+	@Test
+	public void testBodies() throws Exception {
+		assertEquals("TEXT \u00e9", ((TextMessage) roundTrip(session.createTextMessage("TEXT \u00e9"))).getText());
+		assertNull(((TextMessage) roundTrip(session.createTextMessage())).getText());
+
+		BytesMessage bytes = session.createBytesMessage();
+		bytes.writeInt(17);
+		bytes.writeUTF("BYTES");
+		BytesMessage bytesCopy = (BytesMessage) roundTrip(bytes);
+		assertEquals(17, bytesCopy.readInt());
+		assertEquals("BYTES", bytesCopy.readUTF());
+
+		MapMessage map = session.createMapMessage();
+		map.setLong("long", 99L);
+		map.setBytes("bytes", new byte[] { 1, 2 });
+		MapMessage mapCopy = (MapMessage) roundTrip(map);
+		assertEquals(99L, mapCopy.getLong("long"));
+		assertTrue(Arrays.equals(new byte[] { 1, 2 }, mapCopy.getBytes("bytes")));
+
+		StreamMessage stream = session.createStreamMessage();
+		stream.writeString("STREAM");
+		stream.writeShort((short) 3);
+		StreamMessage streamCopy = (StreamMessage) roundTrip(stream);
+		assertEquals("STREAM", streamCopy.readString());
+		assertEquals(3, streamCopy.readShort());
+
+		ObjectMessage object = session.createObjectMessage("OBJECT");
+		assertEquals("OBJECT", ((ObjectMessage) roundTrip(object)).getObject());
+	}
+
+	@Test(expected = JMSException.class)
+	public void testMalformed() throws Exception {
+		MessageCodec.decode(new byte[] { 9 }, session, queue, null);
+	}
+
+	private Message roundTrip(Message message) throws JMSException {
+		byte[] encoded = MessageCodec.encode((TPJMSMessage) message);
+		return MessageCodec.decode(encoded, session, queue, queue);
+	}
+}
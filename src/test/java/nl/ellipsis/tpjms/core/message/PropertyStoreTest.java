@@ -0,0 +1,87 @@
+package nl.ellipsis.tpjms.core.message;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+
+public class PropertyStoreTest {
+	private PropertyStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new PropertyStore();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store = null;
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(0, store.size());
+		assertEquals(-1, store.indexOf("name"));
+		assertEquals(ObjectType.NULL, store.typeAt(-1));
+		assertNull(store.stringAt(-1));
+		assertNull(store.valueAt(-1));
+		assertTrue(store.names().isEmpty());
+	}
+
+	@Test
+	public void testPrimitives() {
+		store.putBoolean("boolean", true);
+		store.putByte("byte", (byte) -1);
+		store.putShort("short", (short) 300);
+		store.putInt("int", Integer.MIN_VALUE);
+		store.putLong("long", Long.MAX_VALUE);
+		store.putFloat("float", 1.5f);
+		store.putDouble("double", -2.25d);
+
+		assertTrue(store.booleanAt(store.indexOf("boolean")));
+		assertEquals(-1L, store.longAt(store.indexOf("byte")));
+		assertEquals(300L, store.longAt(store.indexOf("short")));
+		assertEquals(Integer.MIN_VALUE, store.longAt(store.indexOf("int")));
+		assertEquals(Long.MAX_VALUE, store.longAt(store.indexOf("long")));
+		assertEquals(1.5f, store.floatAt(store.indexOf("float")), 0f);
+		assertEquals(-2.25d, store.doubleAt(store.indexOf("double")), 0d);
+		assertEquals(Byte.valueOf((byte) -1), store.valueAt(store.indexOf("byte")));
+		assertEquals(ObjectType.FLOAT, store.typeAt(store.indexOf("float")));
+	}
+
+	@Test
+	public void testOverwrite() {
+		store.putInt("key", 1);
+		store.putString("key", "value");
+		assertEquals(1, store.size());
+		assertEquals(ObjectType.STRING, store.typeAt(store.indexOf("key")));
+		assertEquals("value", store.stringAt(store.indexOf("key")));
+
+		store.putString("key", null);
+		assertTrue(store.contains("key"));
+		assertEquals(ObjectType.NULL, store.typeAt(store.indexOf("key")));
+	}
+
+	@Test
+	public void testGrowth() {
+		for (int i = 0; i < 100; i++) {
+			store.putInt("key" + i, i);
+		}
+		assertEquals(100, store.size());
+		assertEquals(100, store.names().size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, store.longAt(store.indexOf("key" + i)));
+		}
+	}
+
+	@Test
+	public void testClear() {
+		store.putString("a", "b");
+		store.clear();
+		assertEquals(0, store.size());
+		assertFalse(store.contains("a"));
+		store.putString("a", "c");
+		assertEquals("c", store.stringAt(store.indexOf("a")));
+	}
+}
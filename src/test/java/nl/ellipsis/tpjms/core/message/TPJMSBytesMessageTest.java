@@ -9,6 +9,7 @@ import org.junit.*;
 import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
 import nl.ellipsis.tpjms.core.message.TPJMSBytesMessage;
 import nl.ellipsis.tpjms.provider.vm.VmProvider;
+import nl.ellipsis.tpjms.util.BufferPool;
 
 public class TPJMSBytesMessageTest {
 	private TPJMSBytesMessage message;
@@ -34,6 +35,120 @@ public class TPJMSBytesMessageTest {
 		assertEquals((byte) 1, data[0]);
 	}
 
+	@Test
+	public void testGetBodyUnset() throws JMSException {
+		assertNull(message.getBody());
+		message.setBody(new byte[0]);
+		assertEquals(0, message.getBody().length);
+		message.setBody(null);
+		assertNull(message.getBody());
+	}
+
+	@Test
+	public void testReleaseBuffersOnAcknowledge() throws JMSException {
+		BufferPool.getInstance().setEnabled(true);
+		VmProvider.getInstance().removeBroker("test");
+		Connection connection = new TPJMSConnectionFactory("vm://test").createConnection();
+		try {
+			connection.start();
+			Session producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+			Topic topic = session.createTopic("bytes-topic");
+			MessageConsumer first = session.createConsumer(topic);
+			MessageConsumer second = session.createConsumer(topic);
+			BytesMessage sent = producerSession.createBytesMessage();
+			sent.writeBytes(new byte[1000]);
+			sent.reset();
+			// the producer acknowledges its own message under AUTO_ACKNOWLEDGE
+			producerSession.createProducer(topic).send(sent);
+
+			BytesMessage received = (BytesMessage) first.receiveNoWait();
+			assertEquals(1000L, sent.getBodyLength());
+			BytesMessage other = (BytesMessage) second.receiveNoWait();
+			// the sent body is released once the last subscriber has its copy
+			assertEquals(0L, sent.getBodyLength());
+			assertNotSame(sent, received);
+			assertEquals(sent.getJMSMessageID(), received.getJMSMessageID());
+			assertEquals(1000L, received.getBodyLength());
+			assertEquals(1000, received.readBytes(new byte[2000]));
+
+			int pooled = BufferPool.getInstance().getPooledCount();
+			received.acknowledge();
+			assertEquals(0L, received.getBodyLength());
+			assertEquals(pooled + 1, BufferPool.getInstance().getPooledCount());
+			// the buffers of the other deliveries are their own
+			assertEquals(1000L, other.getBodyLength());
+		} finally {
+			connection.close();
+			VmProvider.getInstance().removeBroker("test");
+			BufferPool.getInstance().setEnabled(false);
+		}
+	}
+
+	@Test
+	public void testReleaseBuffersOnNextReceive() throws JMSException {
+		BufferPool.getInstance().setEnabled(true);
+		VmProvider.getInstance().removeBroker("test");
+		Connection connection = new TPJMSConnectionFactory("vm://test").createConnection();
+		try {
+			connection.start();
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Queue queue = session.createQueue("bytes-queue");
+			MessageConsumer consumer = session.createConsumer(queue);
+			MessageProducer producer = session.createProducer(queue);
+			for (int i = 0; i < 2; i++) {
+				BytesMessage sent = session.createBytesMessage();
+				sent.writeBytes(new byte[1000]);
+				sent.reset();
+				producer.send(sent);
+			}
+
+			BytesMessage received = (BytesMessage) consumer.receiveNoWait();
+			assertEquals(1000L, received.getBodyLength());
+			BytesMessage next = (BytesMessage) consumer.receiveNoWait();
+			// the client is done with a message once it receives the next one
+			assertEquals(0L, received.getBodyLength());
+			assertEquals(1000L, next.getBodyLength());
+			consumer.close();
+			assertEquals(0L, next.getBodyLength());
+		} finally {
+			connection.close();
+			VmProvider.getInstance().removeBroker("test");
+			BufferPool.getInstance().setEnabled(false);
+		}
+	}
+
+	@Test
+	public void testLargeMessageChunked() throws JMSException {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory();
+		factory.setLargeMessageThreshold(100);
+		factory.setLargeMessageChunkSize(64);
+		Session session = factory.createConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+		TPJMSBytesMessage large = new TPJMSBytesMessage(session);
+
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		large.writeBytes(data, 0, 60);
+		large.writeBytes(data, 60, data.length - 60);
+		large.reset();
+		assertEquals(1000L, large.getBodyLength());
+
+		byte[] read = new byte[data.length];
+		assertEquals(data.length, large.readBytes(read));
+		assertArrayEquals(data, read);
+		assertEquals(-1, large.readBytes(read));
+		assertArrayEquals(data, large.getBody());
+
+		large.setBody(data);
+		assertEquals(1000L, large.getBodyLength());
+		assertEquals((byte) 0, large.readByte());
+		large.clearBody();
+		large.reset();
+		assertEquals(0L, large.getBodyLength());
+	}
+
 	@Test
 	public void testGetBodyLength() throws JMSException {
 		message.reset(); // make read-only
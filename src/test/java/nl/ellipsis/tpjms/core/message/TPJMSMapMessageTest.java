@@ -62,6 +62,37 @@ public class TPJMSMapMessageTest {
 		assertEquals(1, dst[0]);
 	}
 
+	@Test
+	public void testBodyDecodedLazily() throws JMSException {
+		message.setString("test", "value");
+		byte[] ser = message.getBody();
+
+		// an undecoded body is handed on unchanged
+		message.setBody(ser);
+		assertArrayEquals(ser, message.getBody());
+
+		// a corrupt body only fails once it is read
+		message.setBody(new byte[] { 5 });
+		try {
+			message.getString("test");
+			fail("Expected MessageEOFException");
+		} catch (MessageEOFException expected) {
+		}
+	}
+
+	@Test
+	public void testModifyReceivedBody() throws JMSException {
+		message.setString("a", "1");
+		message.setInt("b", 2);
+		message.setBody(message.getBody());
+
+		assertEquals(2, message.getInt("b"));
+		message.setInt("c", 3);
+		assertEquals("1", message.getString("a"));
+		assertEquals(3, message.getInt("c"));
+		assertEquals(3, Collections.list(message.getMapNames()).size());
+	}
+
 	@Test
 	public void testClearBody() throws JMSException {
 		message.setString("test", "value");
@@ -467,4 +498,26 @@ public class TPJMSMapMessageTest {
 		message.setString("test", "value");
 	}
 
+	@Test
+	public void testBodySize() throws JMSException {
+		assertEquals(0, message.getBodySize());
+		message.setString("test", "value");
+		long one = message.getBodySize();
+		assertTrue(one > 0);
+		message.setString("test", "longer value");
+		assertEquals(one + 14, message.getBodySize());
+		message.setInt("other", 1);
+		long two = message.getBodySize();
+		assertTrue(two > one + 14);
+
+		// a received body is counted again once it is modified
+		TPJMSMapMessage received = new TPJMSMapMessage(null);
+		received.setBody(message.getBody());
+		received.setInt("other", 2);
+		assertEquals(two, received.getBodySize());
+
+		message.clearBody();
+		assertEquals(0, message.getBodySize());
+	}
+
 }
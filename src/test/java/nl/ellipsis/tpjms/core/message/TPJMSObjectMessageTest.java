@@ -2,7 +2,9 @@ package nl.ellipsis.tpjms.core.message;
 
 import static org.junit.Assert.*;
 
+import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.jms.*;
@@ -11,6 +13,7 @@ import org.junit.*;
 
 import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
 import nl.ellipsis.tpjms.core.message.TPJMSObjectMessage;
+import nl.ellipsis.tpjms.protocol.ObjectSerializer;
 import nl.ellipsis.tpjms.provider.vm.VmProvider;
 
 public class TPJMSObjectMessageTest {
@@ -51,6 +54,85 @@ public class TPJMSObjectMessageTest {
 		assertEquals("TEST", message.getObject());
 	}
 
+	@Test
+	public void testReadOnlyObjectCached() throws JMSException {
+		message.setObject(new StringBuilder("TEST"));
+		assertNotSame(message.getObject(), message.getObject());
+
+		message.setBody(message.getBody());
+		Object object = message.getObject();
+		assertEquals("TEST", object.toString());
+		assertSame(object, message.getObject());
+	}
+
+	@Test
+	public void testReceivedObjectCached() throws JMSException {
+		VmProvider.getInstance().removeBroker("test");
+		Connection connection = new TPJMSConnectionFactory("vm://test").createConnection();
+		try {
+			connection.start();
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Queue queue = session.createQueue("object-queue");
+			MessageConsumer consumer = session.createConsumer(queue);
+			session.createProducer(queue).send(session.createObjectMessage(new StringBuilder("TEST")));
+
+			ObjectMessage received = (ObjectMessage) consumer.receiveNoWait();
+			Object object = received.getObject();
+			assertEquals("TEST", object.toString());
+			assertSame(object, received.getObject());
+			try {
+				received.setObject("OTHER");
+				fail("a sent message is read-only");
+			} catch (MessageNotWriteableException e) {
+				// expected
+			}
+		} finally {
+			connection.close();
+			VmProvider.getInstance().removeBroker("test");
+		}
+	}
+
+	@Test
+	public void testByReference() throws JMSException {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory();
+		factory.setObjectMessageByReference(true);
+		Session session = factory.createConnection().createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		TPJMSObjectMessage byReference = new TPJMSObjectMessage(session);
+
+		StringBuilder object = new StringBuilder("TEST");
+		byReference.setObject(object);
+		assertSame(object, byReference.getObject());
+
+		// serialized on demand
+		message.setBody(byReference.getBody());
+		assertEquals("TEST", message.getObject().toString());
+	}
+
+	@Test
+	public void testCustomSerializer() throws JMSException {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory();
+		factory.setObjectSerializer(new ObjectSerializer() {
+			@Override
+			public byte[] serialize(Serializable object) throws JMSException {
+				return ((String) object).getBytes(Charset.forName("UTF-8"));
+			}
+
+			@Override
+			public Serializable deserialize(byte[] data) throws JMSException {
+				return new String(data, Charset.forName("UTF-8"));
+			}
+		});
+		Session session = factory.createConnection().createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		TPJMSObjectMessage custom = new TPJMSObjectMessage(session);
+
+		custom.setObject("TEST");
+		assertArrayEquals("TEST".getBytes(Charset.forName("UTF-8")),
+				custom.getBody());
+		assertEquals("TEST", custom.getObject());
+	}
+
 	@Test(expected = MessageNotWriteableException.class)
 	public void testReadOnlySerialization() throws JMSException {
 		message.setReadOnly(true);
@@ -26,6 +26,38 @@ public class TPJMSStreamMessageTest {
 		message = null;
 	}
 
+	@Test
+	public void testLongString() throws JMSException {
+		StringBuilder value = new StringBuilder();
+		while (value.length() < 70000) {
+			value.append("long string ");
+		}
+		message.writeString(value.toString());
+		message.writeInt(1);
+		message.reset();
+		assertEquals(value.toString(), message.readString());
+		assertEquals(1, message.readInt());
+	}
+
+	@Test
+	public void testLargeMessageChunked() throws JMSException {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory();
+		factory.setLargeMessageThreshold(100);
+		factory.setLargeMessageChunkSize(64);
+		Session session = factory.createConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+		TPJMSStreamMessage large = new TPJMSStreamMessage(session);
+
+		for (int i = 0; i < 1000; i++) {
+			large.writeLong(i);
+		}
+		large.writeBytes(new byte[500]);
+		large.reset();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, large.readLong());
+		}
+		assertEquals(500, large.readBytes(new byte[1000]));
+	}
+
 	@Test
 	public void testReadBoolean() throws JMSException {
 		message.writeBoolean(false);
@@ -63,6 +63,29 @@ public class TPJMSTextMessageTest {
 				new String(message.getBody(), Charset.forName("UTF-8")));
 	}
 
+	@Test
+	public void testBodyDecodedLazily() throws JMSException {
+		message.setBody("TEST".getBytes(Charset.forName("UTF-8")));
+		assertEquals("TEST", message.getText());
+
+		message.setBody("TEST2".getBytes(Charset.forName("UTF-8")));
+		message.setText("OTHER");
+		assertEquals("OTHER",
+				new String(message.getBody(), Charset.forName("UTF-8")));
+	}
+
+	@Test
+	public void testEncodingCached() throws JMSException {
+		message.setText("cached");
+		byte[] first = message.getBody();
+		first[0] = 'X';
+		// each caller gets its own copy of the cached encoding
+		assertEquals("cached", new String(message.getBody(), Charset.forName("UTF-8")));
+
+		message.setText("changed");
+		assertEquals("changed", new String(message.getBody(), Charset.forName("UTF-8")));
+	}
+
 	@Test
 	public void testClearBodyReadOnly() throws JMSException {
 		message.setReadOnly(true);
@@ -0,0 +1,151 @@
+package nl.ellipsis.tpjms.core.session;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class ConflatingTopicTest {
+	private VmProvider provider;
+	private TPJMSConnection con;
+	private TPJMSSession session;
+	private Topic topic;
+	private MessageProducer producer;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		provider = VmProvider.getInstance();
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = (TPJMSSession) con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		topic = session.createTopic("conflating-topic");
+		producer = session.createProducer(topic);
+		provider.setConflationKey(topic, "symbol");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		provider.setConflationKey(topic, null);
+		MetricsRegistry.getInstance().setEnabled(false);
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testLatestValuePerKey() throws Exception {
+		MessageConsumer consumer = session.createConsumer(topic);
+		send("AAPL", 1);
+		send("MSFT", 2);
+		send("AAPL", 3);
+		send("AAPL", 4);
+		send("MSFT", 5);
+
+		// each key keeps the place of its first pending message
+		assertPrice(consumer.receiveNoWait(), "AAPL", 4);
+		assertPrice(consumer.receiveNoWait(), "MSFT", 5);
+		assertNull(consumer.receiveNoWait());
+
+		send("AAPL", 6);
+		assertPrice(consumer.receiveNoWait(), "AAPL", 6);
+	}
+
+	@Test
+	public void testMessagesWithoutKey() throws Exception {
+		MessageConsumer consumer = session.createConsumer(topic);
+		producer.send(session.createTextMessage("A"));
+		send("AAPL", 1);
+		producer.send(session.createTextMessage("B"));
+		send("AAPL", 2);
+
+		assertEquals("A", ((TextMessage) consumer.receiveNoWait()).getText());
+		assertPrice(consumer.receiveNoWait(), "AAPL", 2);
+		assertEquals("B", ((TextMessage) consumer.receiveNoWait()).getText());
+		assertNull(consumer.receiveNoWait());
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(topic);
+		List<Message> batch = new ArrayList<Message>();
+		for (int i = 0; i < 10; i++) {
+			batch.add(message("KEY" + (i % 2), i));
+		}
+		((TPJMSMessageProducer) producer).sendBatch(batch, true);
+
+		assertEquals(2, consumer.getPendingMessageCount());
+		List<Message> pending = consumer.getPendingMessages();
+		assertPrice(pending.get(0), "KEY0", 8);
+		assertPrice(pending.get(1), "KEY1", 9);
+		List<Message> received = consumer.receiveBatchNoWait(10);
+		assertEquals(2, received.size());
+		assertPrice(received.get(0), "KEY0", 8);
+		assertPrice(received.get(1), "KEY1", 9);
+	}
+
+	@Test
+	public void testSubscribersConflateIndependently() throws Exception {
+		MessageConsumer slow = session.createConsumer(topic);
+		MessageConsumer fast = session.createConsumer(topic);
+		for (int i = 0; i < 5; i++) {
+			send("AAPL", i);
+			assertPrice(fast.receiveNoWait(), "AAPL", i);
+		}
+		assertPrice(slow.receiveNoWait(), "AAPL", 4);
+		assertNull(slow.receiveNoWait());
+	}
+
+	@Test
+	public void testStopConflating() throws Exception {
+		MessageConsumer consumer = session.createConsumer(topic);
+		provider.setConflationKey(topic, null);
+		assertNull(provider.getConflationKey(topic));
+		send("AAPL", 1);
+		send("AAPL", 2);
+
+		assertPrice(consumer.receiveNoWait(), "AAPL", 1);
+		assertPrice(consumer.receiveNoWait(), "AAPL", 2);
+	}
+
+	@Test
+	public void testReplacedCountAsDiscarded() throws Exception {
+		MetricsRegistry.getInstance().setEnabled(true);
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(topic);
+		for (int i = 0; i < 5; i++) {
+			send("AAPL", i);
+		}
+
+		assertEquals(4, MetricsRegistry.getInstance().getConsumerMetrics(consumer, topic).getDiscardCount());
+		assertEquals(1, MetricsRegistry.getInstance().getConsumerMetrics(consumer, topic).getPendingCount());
+		consumer.close();
+	}
+
+	private Message message(String symbol, int price) throws JMSException {
+		Message message = session.createMessage();
+		message.setStringProperty("symbol", symbol);
+		message.setIntProperty("price", price);
+		return message;
+	}
+
+	private void send(String symbol, int price) throws JMSException {
+		producer.send(message(symbol, price));
+	}
+
+	private static void assertPrice(Message message, String symbol, int price) throws JMSException {
+		assertNotNull(message);
+		assertEquals(symbol, message.getStringProperty("symbol"));
+		assertEquals(price, message.getIntProperty("price"));
+	}
+}
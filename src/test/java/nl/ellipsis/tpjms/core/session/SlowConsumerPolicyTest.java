@@ -0,0 +1,289 @@
+package nl.ellipsis.tpjms.core.session;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.destination.SlowConsumerPolicy;
+import nl.ellipsis.tpjms.core.destination.SlowConsumerPolicy.Action;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.metrics.ConsumerMetrics;
+import nl.ellipsis.tpjms.metrics.MetricsRegistry;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+
+import org.junit.*;
+
+public class SlowConsumerPolicyTest {
+	private VmProvider provider;
+	private TPJMSConnection con;
+	private TPJMSSession session;
+	private Topic topic;
+	private MessageProducer producer;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		provider = VmProvider.getInstance();
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = (TPJMSSession) con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		topic = session.createTopic("slow-consumer-topic");
+		producer = session.createProducer(topic);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		provider.setSlowConsumerPolicy(topic, null);
+		MetricsRegistry.getInstance().setEnabled(false);
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPolicyWithoutLimit() {
+		new SlowConsumerPolicy(Action.DROP_NEWEST, 0, 0, 0);
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_NEWEST, 5));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 8);
+
+		assertBodies(consumer, 0, 5);
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_OLDEST, 5));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 8);
+
+		assertBodies(consumer, 3, 8);
+	}
+
+	@Test
+	public void testDropOldestBatchLargerThanLimit() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_OLDEST, 3));
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(topic);
+		List<Message> batch = new java.util.ArrayList<Message>();
+		for (int i = 0; i < 5; i++) {
+			batch.add(session.createTextMessage("BODY" + i));
+		}
+		((TPJMSMessageProducer) session.createProducer(null)).sendBatch(topic, batch, true);
+
+		assertBodies(consumer, 2, 5);
+	}
+
+	@Test
+	public void testDisconnectLeavesFastSubscriber() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DISCONNECT, 5));
+		TPJMSMessageConsumer slow = (TPJMSMessageConsumer) session.createConsumer(topic);
+		MessageConsumer fast = session.createConsumer(topic);
+
+		for (int i = 0; i < 8; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+			assertEquals("BODY" + i, ((TextMessage) fast.receiveNoWait()).getText());
+		}
+		assertTrue(slow.isClosed());
+		assertEquals(1, provider.getConsumers(topic).size());
+	}
+
+	@Test
+	public void testSpool() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.SPOOL, 3));
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(topic);
+		for (int i = 0; i < 10; i++) {
+			TextMessage message = session.createTextMessage("BODY" + i);
+			message.setIntProperty("index", i);
+			producer.send(message);
+		}
+
+		assertEquals(10, consumer.getPendingMessageCount());
+		assertEquals(3, consumer.getPendingMessages().size());
+		for (int i = 0; i < 10; i++) {
+			TextMessage message = (TextMessage) consumer.receiveNoWait();
+			assertEquals("BODY" + i, message.getText());
+			assertEquals(i, message.getIntProperty("index"));
+		}
+		assertNull(consumer.receiveNoWait());
+	}
+
+	@Test
+	public void testSpooledMessageState() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.SPOOL, 1));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 1);
+		TPJMSMessage sent = (TPJMSMessage) session.createTextMessage("SPOOLED");
+		final List<String> acknowledged = new java.util.ArrayList<String>();
+		sent.setAcknowledgeCallback(new AcknowledgeCallback() {
+			@Override
+			public void acknowledge(String messageID) {
+				acknowledged.add(messageID);
+			}
+		});
+		producer.send(sent);
+
+		assertEquals("BODY0", ((TextMessage) consumer.receiveNoWait()).getText());
+		TextMessage received = (TextMessage) consumer.receiveNoWait();
+		assertNotSame(sent, received);
+		assertEquals("SPOOLED", received.getText());
+		try {
+			received.setText("OTHER");
+			fail("a received message is read-only");
+		} catch (MessageNotWriteableException e) {
+			// expected
+		}
+		try {
+			received.setStringProperty("name", "value");
+			fail("a received message is read-only");
+		} catch (MessageNotWriteableException e) {
+			// expected
+		}
+		received.acknowledge();
+		assertEquals(1, acknowledged.size());
+		assertEquals(sent.getJMSMessageID(), acknowledged.get(0));
+	}
+
+	@Test
+	public void testSpoolChunkedMessage() throws Exception {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		factory.setLargeMessageThreshold(100);
+		factory.setLargeMessageChunkSize(64);
+		Connection large = factory.createConnection();
+		try {
+			Session largeSession = large.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.SPOOL, 1));
+			MessageConsumer consumer = session.createConsumer(topic);
+			MessageProducer largeProducer = largeSession.createProducer(topic);
+			send(0, 2);
+			BytesMessage chunked = largeSession.createBytesMessage();
+			chunked.writeBytes(new byte[1000]);
+			chunked.reset();
+			largeProducer.send(chunked);
+			send(2, 3);
+
+			assertEquals("BODY0", ((TextMessage) consumer.receiveNoWait()).getText());
+			assertEquals("BODY1", ((TextMessage) consumer.receiveNoWait()).getText());
+			// kept as is rather than encoded, which would read the body back
+			assertSame(chunked, consumer.receiveNoWait());
+			assertEquals("BODY2", ((TextMessage) consumer.receiveNoWait()).getText());
+			assertNull(consumer.receiveNoWait());
+		} finally {
+			large.close();
+		}
+	}
+
+	@Test
+	public void testSpoolKeepsOrderWhileReceiving() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.SPOOL, 2));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 5);
+		assertEquals("BODY0", ((TextMessage) consumer.receiveNoWait()).getText());
+		send(5, 10);
+
+		assertBodies(consumer, 1, 10);
+	}
+
+	@Test
+	public void testMaxAge() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_OLDEST, 0, 50, 0));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 1);
+		send(1, 2);
+		Thread.sleep(100);
+		send(2, 3);
+
+		assertBodies(consumer, 2, 3);
+	}
+
+	@Test
+	public void testDropNewestWithoutPendingLimit() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_NEWEST, 0, 50, 0));
+		MessageConsumer consumer = session.createConsumer(topic);
+		send(0, 2);
+		Thread.sleep(100);
+		send(2, 3);
+
+		assertBodies(consumer, 0, 3);
+	}
+
+	@Test
+	public void testMaxAckLag() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_OLDEST, 0, 0, 2));
+		MessageConsumer consumer = session.createConsumer(topic);
+		// tracking starts with the first delivery
+		send(0, 2);
+		consumer.receiveNoWait();
+		consumer.receiveNoWait();
+		send(2, 3);
+		Message message = consumer.receiveNoWait();
+		assertEquals("BODY2", ((TextMessage) message).getText());
+		// each delivery drops the messages buffered before it
+		send(3, 5);
+		assertBodies(consumer, 4, 5);
+
+		message.acknowledge();
+		send(5, 7);
+		assertBodies(consumer, 5, 7);
+	}
+
+	@Test
+	public void testMaxAckLagPerSubscriber() throws Exception {
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_OLDEST, 0, 0, 2));
+		Session other = con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		MessageConsumer acking = other.createConsumer(topic);
+		MessageConsumer idle = session.createConsumer(topic);
+		send(0, 3);
+		Message last = null;
+		for (int i = 0; i < 3; i++) {
+			// both subscribers are handed a copy of the same message
+			last = acking.receiveNoWait();
+			assertNotNull(idle.receiveNoWait());
+		}
+		// only acknowledges the messages consumed by the other session
+		last.acknowledge();
+
+		send(3, 5);
+		assertBodies(acking, 3, 5);
+		assertBodies(idle, 4, 5);
+		other.close();
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		MetricsRegistry.getInstance().setEnabled(true);
+		provider.setSlowConsumerPolicy(topic, new SlowConsumerPolicy(Action.DROP_NEWEST, 2));
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(topic);
+		send(0, 5);
+
+		ConsumerMetrics metrics = MetricsRegistry.getInstance().getConsumerMetrics(consumer, topic);
+		assertEquals(3, metrics.getSlowConsumerCount());
+		assertEquals(3, metrics.getDiscardCount());
+		assertEquals(2, metrics.getPendingCount());
+		consumer.close();
+	}
+
+	private void send(int from, int to) throws JMSException {
+		for (int i = from; i < to; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+	}
+
+	private static void assertBodies(MessageConsumer consumer, int from, int to) throws JMSException {
+		for (int i = from; i < to; i++) {
+			TextMessage message = (TextMessage) consumer.receiveNoWait();
+			assertNotNull("message " + i, message);
+			assertEquals("BODY" + i, message.getText());
+		}
+		assertNull(consumer.receiveNoWait());
+	}
+}
@@ -0,0 +1,217 @@
+package nl.ellipsis.tpjms.core.session;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class TPJMSConnectionConsumerTest {
+	private TPJMSConnection con;
+	private TPJMSSession session;
+	private Queue queue;
+	private MessageProducer prod;
+	private Pool pool;
+
+	private final static String QUEUE_NAME = "connection-consumer-queue";
+	private final static int POOL_SIZE = 3;
+	private final static int MAX_MESSAGES = 5;
+
+	/**
+	 * Pool of server sessions that run their sessions on an executor, the way
+	 * an application server would.
+	 */
+	private class Pool implements ServerSessionPool {
+		private final BlockingQueue<ServerSession> idle = new LinkedBlockingQueue<ServerSession>();
+		private final ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+		private final List<Message> received = Collections.synchronizedList(new ArrayList<Message>());
+		private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		private final CountDownLatch latch;
+
+		Pool(int expected) throws JMSException {
+			latch = new CountDownLatch(expected);
+			for (int i = 0; i < POOL_SIZE; i++) {
+				final Session worker = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				// counted per worker, the workers run at the same time
+				final AtomicInteger delivered = new AtomicInteger();
+				worker.setMessageListener(new MessageListener() {
+					@Override
+					public void onMessage(Message message) {
+						delivered.incrementAndGet();
+						received.add(message);
+						latch.countDown();
+					}
+				});
+				idle.add(new ServerSession() {
+					@Override
+					public Session getSession() {
+						return worker;
+					}
+
+					@Override
+					public void start() {
+						final ServerSession serverSession = this;
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								int before = delivered.get();
+								worker.run();
+								batchSizes.add(delivered.get() - before);
+								idle.add(serverSession);
+							}
+						});
+					}
+				});
+			}
+		}
+
+		@Override
+		public ServerSession getServerSession() throws JMSException {
+			try {
+				return idle.take();
+			} catch (InterruptedException e) {
+				throw new JMSException("Interrupted");
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = (TPJMSSession) con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		queue = session.createQueue(QUEUE_NAME);
+		prod = session.createProducer(queue);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (pool != null) {
+			pool.executor.shutdownNow();
+			pool = null;
+		}
+		if (session != null) {
+			session.close();
+			session = null;
+		}
+		con.close();
+		con = null;
+
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testDeliverToServerSessions() throws Exception {
+		int count = 100;
+		pool = new Pool(count);
+		ConnectionConsumer connectionConsumer = con.createConnectionConsumer(queue, null, pool, MAX_MESSAGES);
+		assertSame(pool, connectionConsumer.getServerSessionPool());
+
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message message = session.createTextMessage("BODY" + i);
+			sent.add(message);
+			prod.send(message);
+		}
+		assertTrue(pool.latch.await(10, TimeUnit.SECONDS));
+		connectionConsumer.close();
+
+		assertEquals(count, pool.received.size());
+		assertTrue(pool.received.containsAll(sent));
+		for (int size : pool.batchSizes) {
+			assertTrue(size <= MAX_MESSAGES);
+		}
+	}
+
+	@Test
+	public void testFailedDispatchIsRetried() throws Exception {
+		int count = 20;
+		pool = new Pool(count);
+		// the first server session cannot be had, the second cannot be started
+		ServerSessionPool failing = new ServerSessionPool() {
+			private int calls = 0;
+
+			@Override
+			public ServerSession getServerSession() throws JMSException {
+				calls++;
+				if (calls == 1) {
+					throw new JMSException("No server session");
+				}
+				final ServerSession serverSession = pool.getServerSession();
+				if (calls > 2) {
+					return serverSession;
+				}
+				return new ServerSession() {
+					@Override
+					public Session getSession() throws JMSException {
+						return serverSession.getSession();
+					}
+
+					@Override
+					public void start() throws JMSException {
+						pool.idle.add(serverSession);
+						throw new JMSException("Not started");
+					}
+				};
+			}
+		};
+		ConnectionConsumer connectionConsumer = con.createConnectionConsumer(queue, null, failing, MAX_MESSAGES);
+
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message message = session.createTextMessage("BODY" + i);
+			sent.add(message);
+			prod.send(message);
+		}
+		assertTrue(pool.latch.await(10, TimeUnit.SECONDS));
+		connectionConsumer.close();
+
+		assertEquals(count, pool.received.size());
+		assertTrue(pool.received.containsAll(sent));
+	}
+
+	@Test
+	public void testCloseStopsDelivery() throws Exception {
+		pool = new Pool(1);
+		ConnectionConsumer connectionConsumer = con.createConnectionConsumer(queue, null, pool, MAX_MESSAGES);
+		connectionConsumer.close();
+		prod.send(session.createTextMessage("BODY"));
+		assertFalse(pool.latch.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCloseConnectionClosesConnectionConsumer() throws Exception {
+		pool = new Pool(1);
+		con.createConnectionConsumer(queue, null, pool, MAX_MESSAGES);
+		TextMessage message = session.createTextMessage("BODY");
+		// closing the connection closes its session
+		con.close();
+		session = null;
+		prod.send(message);
+		assertFalse(pool.latch.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test(expected = JMSException.class)
+	public void testInvalidMaxMessages() throws Exception {
+		pool = new Pool(1);
+		con.createConnectionConsumer(queue, null, pool, 0);
+	}
+
+	@Test(expected = JMSException.class)
+	public void testMissingPool() throws Exception {
+		con.createConnectionConsumer(queue, null, null, MAX_MESSAGES);
+	}
+}
@@ -0,0 +1,510 @@
+package nl.ellipsis.tpjms.core.session;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.destination.TPJMSQueue;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+
+import org.junit.*;
+
+public class TPJMSMessageConsumerTest {
+	private TPJMSConnection con;
+	private TPJMSSession session;
+	private Queue queue;
+	private TPJMSMessageConsumer consumer;
+	private TPJMSMessageProducer prod;
+
+	private final static String QUEUE_NAME = "consumer-test-queue";
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = (TPJMSSession) con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		queue = session.createQueue(QUEUE_NAME);
+		consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		prod = (TPJMSMessageProducer) session.createProducer(queue);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		prod.close();
+		prod = null;
+		consumer.close();
+		consumer = null;
+		if (session.isOpen()) {
+			session.close();
+		}
+		session = null;
+		con.close();
+		con = null;
+
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	private List<Message> send(int count) throws JMSException {
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message message = session.createTextMessage("BODY" + i);
+			sent.add(message);
+			prod.send(message);
+		}
+		return sent;
+	}
+
+	@Test
+	public void testReceiveNoWait() throws JMSException {
+		assertNull(consumer.receiveNoWait());
+		List<Message> sent = send(2);
+		assertSame(sent.get(0), consumer.receiveNoWait());
+		assertSame(sent.get(1), consumer.receiveNoWait());
+		assertNull(consumer.receiveNoWait());
+	}
+
+	@Test
+	public void testReceiveTimeout() throws JMSException {
+		long start = System.currentTimeMillis();
+		assertNull(consumer.receive(50));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+
+		List<Message> sent = send(1);
+		assertSame(sent.get(0), consumer.receive(1000));
+	}
+
+	@Test
+	public void testReceiveFromOtherThread() throws Exception {
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					send(1);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		sender.start();
+		Message message = consumer.receive();
+		assertNotNull(message);
+		sender.join();
+	}
+
+	@Test
+	public void testReceiveReturnsNullOnClose() throws Exception {
+		Thread closer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					consumer.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		closer.start();
+		assertNull(consumer.receive());
+		closer.join();
+	}
+
+	@Test(expected = javax.jms.IllegalStateException.class)
+	public void testReceiveClosed() throws JMSException {
+		consumer.close();
+		consumer.receiveNoWait();
+	}
+
+	@Test
+	public void testReceiveBatch() throws JMSException {
+		assertTrue(consumer.receiveBatchNoWait(10).isEmpty());
+		List<Message> sent = send(25);
+		assertEquals(sent.subList(0, 10), consumer.receiveBatch(10, 1000));
+		assertEquals(sent.subList(10, 20), consumer.receiveBatchNoWait(10));
+		assertEquals(sent.subList(20, 25), consumer.receiveBatch(10, 1000));
+		assertTrue(consumer.receiveBatch(10, 10).isEmpty());
+	}
+
+	@Test
+	public void testReceiveBatchFromSendBatch() throws JMSException {
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < 100; i++) {
+			sent.add(session.createTextMessage("BODY" + i));
+		}
+		prod.sendBatch(sent, false);
+		assertEquals(sent, consumer.receiveBatch(1000, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReceiveBatchInvalidMax() throws JMSException {
+		consumer.receiveBatchNoWait(0);
+	}
+
+	@Test
+	public void testAcknowledgeBatch() throws JMSException {
+		final List<String> acknowledged = new ArrayList<String>();
+		AcknowledgeCallback callback = new AcknowledgeCallback() {
+			@Override
+			public void acknowledge(String messageID) throws JMSException {
+				acknowledged.add(messageID);
+			}
+		};
+		List<Message> sent = send(3);
+		for (Message message : sent) {
+			((nl.ellipsis.tpjms.core.message.TPJMSMessage) message).setAcknowledgeCallback(callback);
+		}
+
+		List<Message> batch = consumer.receiveBatch(10, 1000);
+		consumer.acknowledge(batch);
+		// cumulative, only the last message of the batch is acknowledged
+		assertEquals(Arrays.asList(sent.get(2).getJMSMessageID()), acknowledged);
+	}
+
+	@Test
+	public void testListenerBypassesBuffer() throws JMSException {
+		final List<Message> received = new ArrayList<Message>();
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+			}
+		});
+		List<Message> sent = send(2);
+		assertEquals(sent, received);
+		consumer.setMessageListener(null);
+		assertNull(consumer.receiveNoWait());
+	}
+
+	@Test
+	public void testQueueConsumersTakeTurns() throws JMSException {
+		TPJMSMessageConsumer other = (TPJMSMessageConsumer) session.createConsumer(queue);
+		try {
+			List<Message> sent = new ArrayList<Message>();
+			for (int i = 0; i < 4; i++) {
+				sent.add(session.createTextMessage("BODY" + i));
+			}
+			prod.sendBatch(sent, false);
+
+			List<Message> first = consumer.receiveBatchNoWait(10);
+			List<Message> second = other.receiveBatchNoWait(10);
+			assertEquals(2, first.size());
+			assertEquals(2, second.size());
+			List<Message> all = new ArrayList<Message>(first);
+			all.addAll(second);
+			assertTrue(all.containsAll(sent));
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testTopicConsumersEachReceive() throws JMSException {
+		Topic topic = session.createTopic("consumer-test-topic");
+		TPJMSMessageConsumer first = (TPJMSMessageConsumer) session.createConsumer(topic);
+		TPJMSMessageConsumer second = (TPJMSMessageConsumer) session.createConsumer(topic);
+		MessageProducer publisher = session.createProducer(topic);
+		Message message = session.createTextMessage("BODY");
+		publisher.send(message);
+		assertSame(message, first.receiveNoWait());
+		assertSame(message, second.receiveNoWait());
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testTemporaryQueue() throws JMSException {
+		TemporaryQueue temporary = session.createTemporaryQueue();
+		MessageConsumer receiver = session.createConsumer(temporary);
+		Message message = session.createTextMessage("BODY");
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+		prod.send(temporary, message);
+		assertSame(message, receiver.receiveNoWait());
+		receiver.close();
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testUnknownDestination() throws JMSException {
+		session.createConsumer(new TPJMSQueue("unknown-queue"));
+	}
+
+	@Test
+	public void testCloseSessionClosesConsumers() throws JMSException {
+		session.close();
+		try {
+			consumer.receiveNoWait();
+			fail("Expected IllegalStateException");
+		} catch (javax.jms.IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReceiveWhileStopped() throws Exception {
+		con.stop();
+		List<Message> sent = send(2);
+		assertNull(consumer.receiveNoWait());
+		assertNull(consumer.receive(50));
+		assertTrue(consumer.receiveBatchNoWait(10).isEmpty());
+
+		con.start();
+		assertSame(sent.get(0), consumer.receiveNoWait());
+		assertEquals(sent.subList(1, 2), consumer.receiveBatchNoWait(10));
+	}
+
+	@Test
+	public void testStartWakesReceive() throws Exception {
+		con.stop();
+		List<Message> sent = send(1);
+		Thread starter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					con.start();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		starter.start();
+		assertSame(sent.get(0), consumer.receive(10000));
+		starter.join();
+	}
+
+	@Test
+	public void testStartDeliversBufferedMessagesInOrder() throws Exception {
+		final List<Message> received = new ArrayList<Message>();
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+			}
+		});
+
+		List<Message> sent = send(1);
+		con.stop();
+		sent.addAll(send(3));
+		assertEquals(1, received.size());
+
+		con.start();
+		assertEquals(sent, received);
+	}
+
+	@Test
+	public void testListenerSetWhileStopped() throws Exception {
+		con.stop();
+		List<Message> sent = send(2);
+		final List<Message> received = new ArrayList<Message>();
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+			}
+		});
+		assertTrue(received.isEmpty());
+
+		con.start();
+		assertEquals(sent, received);
+	}
+
+	@Test
+	public void testStopFromListener() throws Exception {
+		final List<Message> received = new ArrayList<Message>();
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+				try {
+					con.stop();
+				} catch (JMSException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		List<Message> sent = send(3);
+		assertEquals(sent.subList(0, 1), received);
+
+		con.start();
+		assertEquals(sent.subList(0, 2), received);
+		con.start();
+		assertEquals(sent, received);
+	}
+
+	@Test
+	public void testAsyncDispatch() throws Exception {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		factory.setAsyncDispatch(true);
+		TPJMSConnection asyncCon = (TPJMSConnection) factory.createConnection();
+		asyncCon.start();
+		Session asyncSession = asyncCon.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			int count = 50;
+			final CountDownLatch latch = new CountDownLatch(count);
+			final List<Message> received = new ArrayList<Message>();
+			final List<Thread> threads = new ArrayList<Thread>();
+			MessageConsumer listening = asyncSession.createConsumer(asyncSession.createQueue("async-queue"));
+			listening.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					received.add(message);
+					threads.add(Thread.currentThread());
+					latch.countDown();
+				}
+			});
+
+			MessageProducer producer = session.createProducer(session.createQueue("async-queue"));
+			List<Message> sent = new ArrayList<Message>();
+			for (int i = 0; i < count; i++) {
+				Message message = session.createTextMessage("BODY" + i);
+				sent.add(message);
+				producer.send(message);
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			assertEquals(sent, received);
+			assertFalse(threads.contains(Thread.currentThread()));
+		} finally {
+			asyncSession.close();
+			asyncCon.close();
+		}
+	}
+
+	@Test
+	public void testAsyncDispatchStopWaitsForListener() throws Exception {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		factory.setAsyncDispatch(true);
+		TPJMSConnection asyncCon = (TPJMSConnection) factory.createConnection();
+		asyncCon.start();
+		Session asyncSession = asyncCon.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			final CountDownLatch started = new CountDownLatch(1);
+			final List<Message> received = new ArrayList<Message>();
+			MessageConsumer listening = asyncSession.createConsumer(asyncSession.createQueue("async-stop-queue"));
+			listening.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					started.countDown();
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					synchronized (received) {
+						received.add(message);
+					}
+				}
+			});
+
+			MessageProducer producer = session.createProducer(session.createQueue("async-stop-queue"));
+			List<Message> sent = new ArrayList<Message>();
+			for (int i = 0; i < 3; i++) {
+				Message message = session.createTextMessage("BODY" + i);
+				sent.add(message);
+				producer.send(message);
+			}
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			asyncCon.stop();
+			synchronized (received) {
+				assertEquals(sent.subList(0, 1), received);
+			}
+
+			final CountDownLatch done = new CountDownLatch(2);
+			listening.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					synchronized (received) {
+						received.add(message);
+					}
+					done.countDown();
+				}
+			});
+			asyncCon.start();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			synchronized (received) {
+				assertEquals(sent, received);
+			}
+		} finally {
+			asyncSession.close();
+			asyncCon.close();
+		}
+	}
+
+	@Test
+	public void testAsyncDispatchListenerError() throws Exception {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		factory.setAsyncDispatch(true);
+		TPJMSConnection asyncCon = (TPJMSConnection) factory.createConnection();
+		asyncCon.start();
+		Session asyncSession = asyncCon.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			final CountDownLatch done = new CountDownLatch(2);
+			MessageConsumer listening = asyncSession.createConsumer(asyncSession.createQueue("async-error-queue"));
+			listening.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					done.countDown();
+					if (done.getCount() == 1) {
+						throw new AssertionError("listener failure");
+					}
+				}
+			});
+
+			MessageProducer producer = session.createProducer(session.createQueue("async-error-queue"));
+			producer.send(session.createTextMessage("FAIL"));
+			producer.send(session.createTextMessage("BODY"));
+			// an Error does not stop delivery, nor keep the session from closing
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			asyncSession.close();
+			asyncCon.close();
+		}
+	}
+
+	@Test
+	public void testAsyncDispatchCloseWaitsForListener() throws Exception {
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		factory.setAsyncDispatch(true);
+		TPJMSConnection asyncCon = (TPJMSConnection) factory.createConnection();
+		asyncCon.start();
+		Session asyncSession = asyncCon.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			final CountDownLatch started = new CountDownLatch(1);
+			final AtomicBoolean completed = new AtomicBoolean();
+			MessageConsumer listening = asyncSession.createConsumer(asyncSession.createQueue("async-close-queue"));
+			listening.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					started.countDown();
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					completed.set(true);
+				}
+			});
+
+			session.createProducer(session.createQueue("async-close-queue")).send(session.createTextMessage("BODY"));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			asyncSession.close();
+			assertTrue(completed.get());
+		} finally {
+			asyncCon.close();
+		}
+	}
+}
@@ -2,6 +2,12 @@ package nl.ellipsis.tpjms.core.session;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import javax.jms.*;
 
 import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
@@ -13,6 +19,7 @@ import nl.ellipsis.tpjms.core.session.TPJMSMessageProducer;
 import nl.ellipsis.tpjms.core.session.TPJMSSession;
 import nl.ellipsis.tpjms.provider.vm.*;
 import nl.ellipsis.tpjms.util.AcknowledgeCallback;
+import nl.ellipsis.tpjms.util.CompletionListener;
 
 import org.junit.*;
 
@@ -59,12 +66,55 @@ public class TPJMSMessageProducerTest {
 	
 	private AcknowledgeCallbackImpl acknowledgeCallback;
 
+	private static class CompletionListenerImpl implements CompletionListener {
+		private final CountDownLatch latch;
+		private final List<Message> completed = new ArrayList<Message>();
+		private final List<Exception> exceptions = new ArrayList<Exception>();
+
+		public CompletionListenerImpl(int count) {
+			this.latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void onCompletion(Message message) {
+			completed.add(message);
+			latch.countDown();
+		}
+
+		@Override
+		public void onException(Message message, Exception exception) {
+			exceptions.add(exception);
+			latch.countDown();
+		}
+
+		public void await() throws InterruptedException {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	private static class CollectingListener implements MessageListener {
+		private final List<Message> received = new ArrayList<Message>();
+
+		@Override
+		public void onMessage(Message message) {
+			received.add(message);
+		}
+	}
+
+	private CollectingListener subscribe(Topic topic) throws JMSException {
+		CollectingListener listener = new CollectingListener();
+		MessageConsumer consumer = session.createConsumer(topic);
+		consumer.setMessageListener(listener);
+		return listener;
+	}
+
 	@Before
 	public void setUp() throws Exception {
 		VmProvider.getInstance().removeBroker("test");
 
 		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
 		con = (TPJMSConnection) factory.createConnection();
+		con.start();
 		session = (TPJMSSession) con.createSession(false, Session.AUTO_ACKNOWLEDGE);
 		queue = (TPJMSQueue) session.createQueue(QUEUE_NAME);
 		prod = (TPJMSMessageProducer) session.createProducer(queue);
@@ -203,4 +253,141 @@ public class TPJMSMessageProducerTest {
 		assertTrue(acknowledgeCallback.isAcknowledged());
 	}
 
+	@Test
+	public void testSendAsync() throws Exception {
+		acknowledgeCallback.clear();
+		CompletionListenerImpl listener = new CompletionListenerImpl(1);
+		prod.sendAsync(message, listener);
+		listener.await();
+		assertEquals(1, listener.completed.size());
+		assertSame(message, listener.completed.get(0));
+		assertTrue(listener.exceptions.isEmpty());
+		// As Session.AUTO_ACKNOWLEDGE, producer should be notified through the callback 
+		assertTrue(acknowledgeCallback.isAcknowledged());
+	}
+
+	@Test
+	public void testSendAsyncOrder() throws Exception {
+		int count = 100;
+		CompletionListenerImpl listener = new CompletionListenerImpl(count);
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message m = session.createTextMessage("BODY" + i);
+			sent.add(m);
+			prod.sendAsync(m, listener);
+		}
+		listener.await();
+		assertEquals(sent, listener.completed);
+	}
+
+	@Test
+	public void testSendAsyncWithDestination() throws Exception {
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+		CompletionListenerImpl listener = new CompletionListenerImpl(1);
+		prod.sendAsync(queue, message, listener);
+		listener.await();
+		assertEquals(1, listener.completed.size());
+	}
+
+	@Test
+	public void testSendAsyncUnknownDestination() throws Exception {
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+		CompletionListenerImpl listener = new CompletionListenerImpl(1);
+		prod.sendAsync(new TPJMSQueue("unknown-queue"), message, listener);
+		listener.await();
+		assertTrue(listener.completed.isEmpty());
+		assertEquals(1, listener.exceptions.size());
+		assertTrue(listener.exceptions.get(0) instanceof JMSException);
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testSendAsyncInvalidDestination() throws JMSException {
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+		prod.sendAsync(null, message, new CompletionListenerImpl(1));
+	}
+
+	@Test
+	public void testSendAsyncCompletesBeforeClose() throws Exception {
+		int count = 20;
+		CompletionListenerImpl listener = new CompletionListenerImpl(count);
+		for (int i = 0; i < count; i++) {
+			prod.sendAsync(session.createTextMessage("BODY" + i), listener);
+		}
+		session.close();
+		assertEquals(count, listener.completed.size());
+		session = (TPJMSSession) con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	}
+
+	@Test
+	public void testSendBatch() throws JMSException {
+		Topic topic = session.createTopic("batch-topic");
+		CollectingListener listener = subscribe(topic);
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+
+		List<Message> batch = new ArrayList<Message>();
+		for (int i = 0; i < 10; i++) {
+			batch.add(session.createTextMessage("BODY" + i));
+		}
+		prod.sendBatch(topic, batch);
+		assertEquals(batch, listener.received);
+	}
+
+	@Test
+	public void testSendBatchDefaultDestination() throws JMSException {
+		acknowledgeCallback.clear();
+		prod.sendBatch(Arrays.<Message> asList(message), false);
+		// As Session.AUTO_ACKNOWLEDGE, producer should be notified through the callback 
+		assertTrue(acknowledgeCallback.isAcknowledged());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSendBatchWithDestinationUnsupported() throws JMSException {
+		prod.sendBatch(queue, Arrays.<Message> asList(message));
+	}
+
+	@Test
+	public void testSendBatchNullMessage() throws JMSException {
+		Topic topic = session.createTopic("batch-topic-partial");
+		CollectingListener listener = subscribe(topic);
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+
+		Message first = session.createTextMessage("first");
+		Message last = session.createTextMessage("last");
+		try {
+			prod.sendBatch(topic, Arrays.asList(first, null, last));
+			fail("Expected MessageFormatException");
+		} catch (MessageFormatException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList(first), listener.received);
+	}
+
+	@Test
+	public void testSendBatchAtomicNullMessage() throws JMSException {
+		Topic topic = session.createTopic("batch-topic-atomic");
+		CollectingListener listener = subscribe(topic);
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+
+		try {
+			prod.sendBatch(topic, Arrays.asList(session.createTextMessage("first"), null), true);
+			fail("Expected MessageFormatException");
+		} catch (MessageFormatException e) {
+			// expected
+		}
+		assertTrue(listener.received.isEmpty());
+	}
+
+	@Test(expected = JMSException.class)
+	public void testSendBatchUnknownDestination() throws JMSException {
+		prod.close();
+		prod = (TPJMSMessageProducer) session.createProducer(null);
+		prod.sendBatch(new TPJMSQueue("unknown-queue"), Arrays.<Message> asList(message), true);
+	}
+
 }
@@ -3,6 +3,8 @@ package nl.ellipsis.tpjms.core.session;
 import static org.junit.Assert.*;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jms.*;
 
@@ -289,7 +291,7 @@ public class TPJMSSessionTest {
 		assertEquals(Session.SESSION_TRANSACTED, session.getAcknowledgeMode());
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
+	@Test
 	public void testGetMessageListener() throws JMSException {
 		assertNull(session.getMessageListener());
 		MyMessageListener listener = new MyMessageListener();
@@ -321,7 +323,28 @@ public class TPJMSSessionTest {
 		session.run();
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
+	@Test
+	public void testRunDeliversLoadedMessages() throws JMSException {
+		final List<Message> received = new ArrayList<Message>();
+		session.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+			}
+		});
+		List<Message> loaded = new ArrayList<Message>();
+		loaded.add(session.createTextMessage("first"));
+		loaded.add(session.createTextMessage("second"));
+		session.loadMessages(loaded);
+		session.run();
+		assertEquals(loaded, received);
+
+		// the messages are delivered once
+		session.run();
+		assertEquals(2, received.size());
+	}
+
+	@Test
 	public void testSetMessageListener() throws JMSException {
 		assertNull(session.getMessageListener());
 		MyMessageListener listener = new MyMessageListener();
@@ -0,0 +1,217 @@
+package nl.ellipsis.tpjms.management;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.jms.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageConsumer;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class ManagementContextTest {
+	private ManagementContext context;
+	private VmProvider provider;
+	private MBeanServer server;
+	private TPJMSConnection con;
+	private Session session;
+	private Queue queue;
+	private MessageProducer producer;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		context = ManagementContext.getInstance();
+		context.setEnabled(true);
+		provider = VmProvider.getInstance();
+		server = ManagementFactory.getPlatformMBeanServer();
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		queue = session.createQueue("management-queue");
+		producer = session.createProducer(queue);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		provider.resume(queue);
+		context.setEnabled(false);
+		if (session != null) {
+			session.close();
+		}
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testMBeansRegistered() throws Exception {
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		for (int i = 0; i < 3; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+
+		ObjectName destination = new ObjectName(
+				"nl.ellipsis.tpjms:type=Destination,name=\"queue://management-queue\"");
+		assertEquals(3L, server.getAttribute(destination, "Depth"));
+		assertEquals(1, server.getAttribute(destination, "ConsumerCount"));
+		assertTrue((Long) server.getAttribute(destination, "MemoryUsage") > 0);
+
+		ObjectName broker = new ObjectName("nl.ellipsis.tpjms:type=Broker,name=\"test\"");
+		assertTrue(server.isRegistered(broker));
+
+		ObjectName connection = context.getObjectName(con);
+		assertNotNull(connection);
+		assertEquals(true, server.getAttribute(connection, "Running"));
+		assertEquals(1, server.getAttribute(connection, "SessionCount"));
+
+		ObjectName consumerName = context.getObjectName(consumer);
+		assertEquals(3, server.getAttribute(consumerName, "PendingMessageCount"));
+		assertEquals("queue://management-queue",
+				server.getAttribute(consumerName, "Destination"));
+
+		consumer.close();
+		assertFalse(server.isRegistered(consumerName));
+		// closing the connection closes its session
+		con.close();
+		session = null;
+		assertFalse(server.isRegistered(connection));
+	}
+
+	@Test
+	public void testEnableRegistersExisting() throws Exception {
+		context.setEnabled(false);
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		assertNull(context.getObjectName(consumer));
+
+		context.setEnabled(true);
+		ObjectName name = context.getObjectName(consumer);
+		assertNotNull(name);
+		assertTrue(server.isRegistered(name));
+
+		context.setEnabled(false);
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testNotNamedWhileDisabled() throws Exception {
+		final int[] created = new int[1];
+		ManagementContext.MBeanFactory<Object> factory = new ManagementContext.MBeanFactory<Object>() {
+			@Override
+			public Object createMBean(Object resource) {
+				created[0]++;
+				return new ConnectionView(con);
+			}
+
+			@Override
+			public String keyProperties(Object resource) {
+				return "type=Test,id=" + context.nextId();
+			}
+		};
+		Object resource = new Object();
+		context.setEnabled(false);
+		long id = context.nextId();
+		context.register(resource, factory);
+		assertEquals(0, created[0]);
+		assertEquals(id + 1, context.nextId());
+
+		context.setEnabled(true);
+		assertEquals(1, created[0]);
+		ObjectName name = context.getObjectName(resource);
+		assertTrue(server.isRegistered(name));
+		context.unregister(resource);
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testPurge() throws Exception {
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		for (int i = 0; i < 4; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+
+		ObjectName broker = new ObjectName("nl.ellipsis.tpjms:type=Broker,name=\"test\"");
+		assertEquals(4, server.invoke(broker, "purge",
+				new Object[] { "queue://management-queue" },
+				new String[] { String.class.getName() }));
+		assertEquals(0, consumer.getPendingMessageCount());
+		assertNull(consumer.receiveNoWait());
+	}
+
+	@Test
+	public void testMoveMessages() throws Exception {
+		Queue target = session.createQueue("management-target");
+		session.createConsumer(queue);
+		MessageConsumer targetConsumer = session.createConsumer(target);
+		for (int i = 0; i < 3; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+
+		assertEquals(3, provider.moveMessages(queue, target));
+		assertEquals(0, provider.getDepth(queue));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("BODY" + i, ((TextMessage) targetConsumer.receiveNoWait()).getText());
+		}
+	}
+
+	@Test
+	public void testMoveMessagesFromTopic() throws Exception {
+		Topic topic = session.createTopic("management-topic");
+		Queue target = session.createQueue("management-target");
+		session.createConsumer(topic);
+		session.createConsumer(topic);
+		MessageConsumer targetConsumer = session.createConsumer(target);
+		MessageProducer topicProducer = session.createProducer(topic);
+		for (int i = 0; i < 3; i++) {
+			topicProducer.send(session.createTextMessage("BODY" + i));
+		}
+
+		// both subscribers hold the same messages, each is moved once
+		assertEquals(3, provider.moveMessages(topic, target));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("BODY" + i, ((TextMessage) targetConsumer.receiveNoWait()).getText());
+		}
+		assertNull(targetConsumer.receiveNoWait());
+	}
+
+	@Test
+	public void testPauseHoldsMessagesInOrder() throws Exception {
+		MessageConsumer consumer = session.createConsumer(queue);
+		producer.send(session.createTextMessage("BODY0"));
+		provider.pause(queue);
+		assertTrue(provider.isPaused(queue));
+		producer.send(session.createTextMessage("BODY1"));
+		producer.send(session.createTextMessage("BODY2"));
+
+		assertEquals(2, provider.getHeldCount(queue));
+		assertEquals(3, provider.getDepth(queue));
+		assertEquals("BODY0", ((TextMessage) consumer.receiveNoWait()).getText());
+		assertNull(consumer.receiveNoWait());
+
+		provider.resume(queue);
+		assertFalse(provider.isPaused(queue));
+		producer.send(session.createTextMessage("BODY3"));
+		for (int i = 1; i < 4; i++) {
+			assertEquals("BODY" + i, ((TextMessage) consumer.receiveNoWait()).getText());
+		}
+	}
+
+	@Test
+	public void testCloseSlowConsumer() throws Exception {
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		producer.send(session.createTextMessage("BODY"));
+
+		server.invoke(context.getObjectName(consumer), "close", null, null);
+		assertTrue(consumer.isClosed());
+		List<MessageConsumer> consumers = provider.getConsumers(queue);
+		assertFalse(consumers.contains(consumer));
+	}
+}
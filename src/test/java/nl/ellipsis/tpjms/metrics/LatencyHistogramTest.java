@@ -0,0 +1,77 @@
+package nl.ellipsis.tpjms.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class LatencyHistogramTest {
+	private LatencyHistogram histogram;
+
+	@Before
+	public void setUp() throws Exception {
+		histogram = new LatencyHistogram();
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testPrecision() {
+		long[] values = { 1000, 12345, 999999, 123456789, 3600000000000L };
+		for (long value : values) {
+			histogram.reset();
+			histogram.record(value);
+			histogram.record(value * 2);
+			long reported = histogram.getValueAtPercentile(50);
+			assertTrue(value + " reported as " + reported, reported >= value);
+			assertTrue(value + " reported as " + reported, reported <= value * 1.02);
+		}
+	}
+
+	@Test
+	public void testBucketsAreContiguous() {
+		for (long value = 0; value < 1 << 16; value++) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(value <= LatencyHistogram.highestEquivalent(index));
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.highestEquivalent(index - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testOutOfRange() {
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(2, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testReset() {
+		histogram.record(10);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+}
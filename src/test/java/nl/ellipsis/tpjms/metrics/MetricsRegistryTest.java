@@ -0,0 +1,164 @@
+package nl.ellipsis.tpjms.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.jms.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnection;
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageConsumer;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class MetricsRegistryTest {
+	private MetricsRegistry registry;
+	private TPJMSConnection con;
+	private Session session;
+	private Queue queue;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		registry = MetricsRegistry.getInstance();
+		registry.setEnabled(true);
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = (TPJMSConnection) factory.createConnection();
+		con.start();
+		session = con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		queue = session.createQueue("metrics-queue");
+		registry.getDestinationMetrics(queue).reset();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		registry.setJmxEnabled(false);
+		registry.setEnabled(false);
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testCounters() throws Exception {
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		MessageProducer producer = session.createProducer(queue);
+		for (int i = 0; i < 5; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+
+		DestinationMetrics metrics = registry.getDestinationMetrics(queue);
+		assertEquals("queue://metrics-queue", metrics.getDestination());
+		assertEquals(5, metrics.getEnqueueCount());
+		assertEquals(5, metrics.getDispatchCount());
+		assertEquals(5, metrics.getDepth());
+		assertEquals(1, metrics.getConsumerCount());
+
+		List<Message> received = consumer.receiveBatchNoWait(3);
+		assertEquals(3, metrics.getDequeueCount());
+		assertEquals(2, metrics.getDepth());
+		assertEquals(3, metrics.getInFlightCount());
+		assertEquals(3, metrics.getDeliveryLatency().getCount());
+		assertTrue(metrics.getDeliveryLatencyMax() > 0);
+
+		// acknowledging is cumulative, it covers all messages received
+		received.get(2).acknowledge();
+		assertEquals(3, metrics.getAcknowledgeCount());
+		assertEquals(3, metrics.getAcknowledgeLatency().getCount());
+		assertEquals(0, metrics.getInFlightCount());
+
+		consumer.close();
+		assertEquals(2, metrics.getDiscardCount());
+		assertEquals(0, metrics.getDepth());
+		assertEquals(0, metrics.getConsumerCount());
+	}
+
+	@Test
+	public void testTopicSubscribers() throws Exception {
+		Topic topic = session.createTopic("metrics-topic");
+		registry.getDestinationMetrics(topic).reset();
+		Session other = con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		MessageConsumer first = session.createConsumer(topic);
+		MessageConsumer second = other.createConsumer(topic);
+		session.createProducer(topic).send(session.createTextMessage("BODY"));
+
+		// each subscriber acknowledges its own delivery of the message
+		first.receiveNoWait().acknowledge();
+		second.receiveNoWait().acknowledge();
+		DestinationMetrics metrics = registry.getDestinationMetrics(topic);
+		assertEquals(2, metrics.getDequeueCount());
+		assertEquals(2, metrics.getAcknowledgeCount());
+		assertEquals(0, metrics.getInFlightCount());
+		other.close();
+	}
+
+	@Test
+	public void testTemporaryDestinationRemoved() throws Exception {
+		TemporaryQueue temporary = session.createTemporaryQueue();
+		MessageConsumer consumer = session.createConsumer(temporary);
+		session.createProducer(temporary).send(session.createTextMessage("BODY"));
+		DestinationMetrics metrics = registry.getDestinationMetrics(temporary);
+		assertTrue(registry.getDestinationMetrics().contains(metrics));
+
+		consumer.close();
+		assertFalse(registry.getDestinationMetrics().contains(metrics));
+	}
+
+	@Test
+	public void testListener() throws Exception {
+		MessageConsumer consumer = session.createConsumer(queue);
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+			}
+		});
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+
+		DestinationMetrics metrics = registry.getDestinationMetrics(queue);
+		assertEquals(1, metrics.getDequeueCount());
+		assertEquals(0, metrics.getDepth());
+		consumer.close();
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		registry.setEnabled(false);
+		TPJMSMessageConsumer consumer = (TPJMSMessageConsumer) session.createConsumer(queue);
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		assertNotNull(consumer.receiveNoWait());
+
+		DestinationMetrics metrics = registry.getDestinationMetrics(queue);
+		assertEquals(0, metrics.getEnqueueCount());
+		assertEquals(0, metrics.getDequeueCount());
+		assertTrue(registry.getConsumerMetrics().isEmpty());
+		consumer.close();
+	}
+
+	@Test
+	public void testJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MetricsRegistry.JMX_DOMAIN
+				+ ":type=DestinationMetrics,name=" + ObjectName.quote("queue://metrics-queue"));
+
+		registry.setJmxEnabled(true);
+		assertTrue(server.isRegistered(name));
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		assertEquals(1L, server.getAttribute(name, "EnqueueCount"));
+
+		MessageConsumer consumer = session.createConsumer(queue);
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		ObjectName consumers = new ObjectName(MetricsRegistry.JMX_DOMAIN + ":type=ConsumerMetrics,*");
+		assertEquals(1, server.queryNames(consumers, null).size());
+		consumer.close();
+		assertEquals(0, server.queryNames(consumers, null).size());
+
+		registry.setJmxEnabled(false);
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,106 @@
+package nl.ellipsis.tpjms.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import javax.jms.*;
+
+import org.junit.*;
+
+public class EncodedMapTest {
+	private Map<String, Object> map;
+	private EncodedMap view;
+
+	@Before
+	public void setUp() throws Exception {
+		map = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 100; i++) {
+			map.put("key" + i, (i % 2 == 0) ? (Object) i : "value" + i);
+		}
+		map.put("bytes", new byte[] { 1, 2 });
+		map.put("null", null);
+		view = new EncodedMap(encode(map));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		view = null;
+		map = null;
+	}
+
+	@Test
+	public void testGet() throws JMSException {
+		assertEquals(102, view.size());
+		assertEquals(42, view.get("key42"));
+		assertEquals("value43", view.get("key43"));
+		assertArrayEquals(new byte[] { 1, 2 }, (byte[]) view.get("bytes"));
+		assertNull(view.get("null"));
+		assertTrue(view.containsKey("null"));
+		assertNull(view.get("missing"));
+		assertFalse(view.containsKey("missing"));
+		assertFalse(view.containsKey(null));
+	}
+
+	@Test
+	public void testKeysAndCopy() throws JMSException {
+		assertEquals(new ArrayList<String>(map.keySet()), view.keys());
+
+		Map<String, Object> copy = new HashMap<String, Object>();
+		view.copyTo(copy);
+		assertEquals(map.keySet(), copy.keySet());
+		assertEquals("value1", copy.get("key1"));
+	}
+
+	@Test
+	public void testOnlyRequestedValuesDecoded() throws JMSException {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("a", 1);
+		values.put("b", "xx");
+		byte[] data = encode(values);
+		// invalid UTF-8 in the last value, which is skipped but not decoded
+		data[data.length - 1] = (byte) 0xFF;
+
+		EncodedMap corrupt = new EncodedMap(data);
+		assertEquals(1, corrupt.get("a"));
+		assertTrue(corrupt.containsKey("b"));
+		try {
+			corrupt.get("b");
+			fail("Expected MessageFormatException");
+		} catch (MessageFormatException expected) {
+		}
+	}
+
+	@Test
+	public void testNonAsciiKeys() throws JMSException {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("caf\u00e9", 1);
+		values.put("cafe", 2);
+		EncodedMap view = new EncodedMap(encode(values));
+		assertEquals(1, view.get("caf\u00e9"));
+		assertEquals(2, view.get("cafe"));
+		assertEquals(new ArrayList<String>(values.keySet()), view.keys());
+	}
+
+	@Test
+	public void testEmpty() throws JMSException {
+		EncodedMap empty = new EncodedMap(encode(Collections.<String, Object> emptyMap()));
+		assertEquals(0, empty.size());
+		assertNull(empty.get("a"));
+	}
+
+	@Test(expected = MessageEOFException.class)
+	public void testTruncated() throws JMSException {
+		new EncodedMap(new byte[] { 5 }).get("a");
+	}
+
+	private static byte[] encode(Map<String, Object> map) throws JMSException {
+		MarshallingEncoder encoder = new MarshallingEncoder();
+		try {
+			encoder.writeMap(map);
+			return encoder.toByteArray();
+		} finally {
+			encoder.release();
+		}
+	}
+}
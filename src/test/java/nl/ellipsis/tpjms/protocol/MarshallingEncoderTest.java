@@ -0,0 +1,147 @@
+package nl.ellipsis.tpjms.protocol;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import javax.jms.*;
+
+import org.junit.*;
+
+import nl.ellipsis.tpjms.protocol.MarshallingSupport.ObjectType;
+
+public class MarshallingEncoderTest {
+	private MarshallingEncoder encoder;
+
+	@Before
+	public void setUp() throws Exception {
+		encoder = new MarshallingEncoder();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		encoder.release();
+		encoder = null;
+	}
+
+	@Test
+	public void testRoundTripObjects() throws JMSException {
+		Object[] values = { null, true, (byte) -3, 'x', (short) 300, 70000,
+				1L << 40, 1.5f, -2.25d, "text", new byte[] { 1, 2, 3 } };
+		for (Object value : values) {
+			encoder.writeObject(value);
+		}
+
+		MarshallingDecoder decoder = decoder(encoder.toByteArray());
+		for (Object value : values) {
+			if (value instanceof byte[]) {
+				assertArrayEquals((byte[]) value, (byte[]) decoder.readObject());
+			} else {
+				assertEquals(value, decoder.readObject());
+			}
+		}
+		assertFalse(decoder.hasRemaining());
+	}
+
+	@Test
+	public void testStringEncoding() throws JMSException {
+		String value = "a\u00e9\u20ac\ud83d\ude00z";
+		encoder.writeString(value);
+		byte[] data = encoder.toByteArray();
+
+		byte[] utf8 = value.getBytes(Charset.forName("UTF-8"));
+		assertEquals(ObjectType.STRING.ordinal(), data[0]);
+		assertEquals(utf8.length, data[1]);
+		assertArrayEquals(utf8, Arrays.copyOfRange(data, 2, data.length));
+		assertEquals(value, decoder(data).readObject());
+	}
+
+	@Test
+	public void testLongString() throws JMSException {
+		char[] chars = new char[100000];
+		Arrays.fill(chars, '\u00e9');
+		String value = new String(chars);
+		encoder.writeString(value);
+		assertEquals(value, decoder(encoder.toByteArray()).readObject());
+	}
+
+	@Test
+	public void testRoundTripMap() throws JMSException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("int", 1);
+		map.put("string", "value");
+		map.put("null", null);
+		encoder.writeMap(map);
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		decoder(encoder.toByteArray()).readMap(result);
+		assertEquals(map, result);
+	}
+
+	@Test
+	public void testTypedReaders() throws JMSException {
+		encoder.writeInt(42);
+		encoder.writeLong(-1L);
+		MarshallingDecoder decoder = decoder(encoder.toByteArray());
+
+		assertEquals(ObjectType.INT, decoder.peekType());
+		try {
+			decoder.readLong();
+			fail("Expected MessageFormatException");
+		} catch (MessageFormatException expected) {
+		}
+		// a mismatch does not consume the value
+		assertEquals(42, decoder.readInt());
+		assertEquals(ObjectType.LONG, decoder.peekType());
+		assertEquals(-1L, decoder.readLong());
+	}
+
+	@Test(expected = MessageFormatException.class)
+	public void testInvalidType() throws JMSException {
+		encoder.writeObject(new Object());
+	}
+
+	@Test(expected = MessageEOFException.class)
+	public void testTruncated() throws JMSException {
+		encoder.writeLong(1L);
+		byte[] data = encoder.toByteArray();
+		decoder(Arrays.copyOf(data, data.length - 1)).readObject();
+	}
+
+	@Test
+	public void testStreaming() throws JMSException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		MarshallingEncoder streaming = new MarshallingEncoder(sink, 16);
+		byte[] bytes = new byte[100];
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			text.append("0123456789");
+		}
+		try {
+			for (int i = 0; i < 50; i++) {
+				streaming.writeInt(i);
+			}
+			streaming.writeBytes(bytes, 0, bytes.length);
+			streaming.writeString(text.toString());
+			streaming.flush();
+		} finally {
+			streaming.release();
+		}
+
+		MarshallingDecoder decoder = new MarshallingDecoder(
+				new ByteArrayInputStream(sink.toByteArray()), 16);
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i, decoder.readObject());
+		}
+		assertArrayEquals(bytes, (byte[]) decoder.readObject());
+		assertEquals(text.toString(), decoder.readObject());
+		assertFalse(decoder.hasRemaining());
+	}
+
+	private static MarshallingDecoder decoder(byte[] data) {
+		return new MarshallingDecoder(ByteBuffer.wrap(data));
+	}
+}
@@ -0,0 +1,66 @@
+package nl.ellipsis.tpjms.provider;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+public class FileChunkStoreTest {
+	private FileChunkStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new FileChunkStore(null, 16);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		store = null;
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		store.write(data, 0, 10);
+		store.write(data, 10, 90);
+		assertEquals(100L, store.length());
+
+		byte[] read = new byte[data.length];
+		DataInputStream in = new DataInputStream(store.getInputStream());
+		try {
+			in.readFully(read);
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+		assertArrayEquals(data, read);
+	}
+
+	@Test
+	public void testCloseDeletesFile() throws IOException {
+		store.write(new byte[40], 0, 40);
+		File file = store.getFile();
+		assertTrue(file.exists());
+		store.close();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testCollectedStoreDeletesFile() throws Exception {
+		FileChunkStore dropped = new FileChunkStore(null, 16);
+		dropped.write(new byte[40], 0, 40);
+		File file = dropped.getFile();
+		dropped = null;
+
+		for (int i = 0; i < 100 && file.exists(); i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertFalse(file.exists());
+	}
+}
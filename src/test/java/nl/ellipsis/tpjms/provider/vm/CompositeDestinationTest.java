@@ -0,0 +1,149 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.destination.TPJMSCompositeDestination;
+import nl.ellipsis.tpjms.core.session.TPJMSMessageProducer;
+
+import org.junit.*;
+
+public class CompositeDestinationTest {
+	private VmProvider provider;
+	private Connection con;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		provider = VmProvider.getInstance();
+
+		con = new TPJMSConnectionFactory("vm://test").createConnection();
+		con.start();
+		session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testCompositeDestination() throws Exception {
+		TPJMSCompositeDestination composite = provider
+				.createCompositeDestination("queue:composite.orders, topic:composite.audit");
+		assertEquals(2, composite.getDestinations().size());
+		Queue orders = session.createQueue("composite.orders");
+		Topic audit = session.createTopic("composite.audit");
+		assertSame(orders, composite.getDestinations().get(0));
+		assertSame(audit, composite.getDestinations().get(1));
+
+		MessageConsumer ordersConsumer = session.createConsumer(orders);
+		MessageConsumer auditConsumer = session.createConsumer(audit);
+		MessageProducer producer = session.createProducer(composite);
+		TextMessage sent = session.createTextMessage("ORDER");
+		producer.send(sent);
+
+		// the message is shared by the members, not copied
+		assertSame(sent, ordersConsumer.receiveNoWait());
+		assertSame(sent, auditConsumer.receiveNoWait());
+		assertNull(ordersConsumer.receiveNoWait());
+		assertNull(auditConsumer.receiveNoWait());
+	}
+
+	@Test
+	public void testCompositeBatch() throws Exception {
+		TPJMSCompositeDestination composite = provider
+				.createCompositeDestination("queue:composite.batch.a,queue:composite.batch.b");
+		MessageConsumer a = session.createConsumer(session.createQueue("composite.batch.a"));
+		MessageConsumer b = session.createConsumer(session.createQueue("composite.batch.b"));
+		List<Message> batch = new ArrayList<Message>();
+		for (int i = 0; i < 3; i++) {
+			batch.add(session.createTextMessage("BODY" + i));
+		}
+		((TPJMSMessageProducer) session.createProducer(null)).sendBatch(composite, batch);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals("BODY" + i, ((TextMessage) a.receiveNoWait()).getText());
+			assertEquals("BODY" + i, ((TextMessage) b.receiveNoWait()).getText());
+		}
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testMemberWithoutType() throws Exception {
+		provider.createCompositeDestination("queue:composite.a,composite.b");
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testWildcardMember() throws Exception {
+		provider.createCompositeDestination("topic:composite.*");
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testConsumeFromComposite() throws Exception {
+		session.createConsumer(provider.createCompositeDestination("queue:composite.consume"));
+	}
+
+	@Test
+	public void testVirtualTopic() throws Exception {
+		Topic topic = session.createTopic("VirtualTopic.Orders");
+		Queue billing = session.createQueue("Consumer.Billing.VirtualTopic.Orders");
+		Queue shipping = session.createQueue("consumer.shipping.virtualtopic.orders");
+		session.createQueue("Consumer.Other.VirtualTopic.Invoices");
+		assertEquals(2, provider.getVirtualTopicQueues(topic).size());
+
+		MessageConsumer billing1 = session.createConsumer(billing);
+		MessageConsumer billing2 = session.createConsumer(billing);
+		MessageConsumer shippingConsumer = session.createConsumer(shipping);
+		MessageConsumer subscriber = session.createConsumer(topic);
+
+		MessageProducer producer = session.createProducer(topic);
+		for (int i = 0; i < 4; i++) {
+			producer.send(session.createTextMessage("ORDER" + i));
+		}
+
+		// each group gets every message, shared among its consumers
+		assertEquals(4, drain(billing1) + drain(billing2));
+		assertEquals(4, drain(shippingConsumer));
+		assertEquals(4, drain(subscriber));
+	}
+
+	@Test
+	public void testPausedVirtualTopic() throws Exception {
+		Topic topic = session.createTopic("VirtualTopic.Paused");
+		MessageConsumer queueConsumer = session.createConsumer(session
+				.createQueue("Consumer.A.VirtualTopic.Paused"));
+		MessageProducer producer = session.createProducer(topic);
+		provider.pause(topic);
+		producer.send(session.createTextMessage("HELD"));
+
+		// the queues only get what the topic itself lets through
+		assertNull(queueConsumer.receiveNoWait());
+		provider.resume(topic);
+		assertEquals("HELD", ((TextMessage) queueConsumer.receiveNoWait()).getText());
+		assertNull(queueConsumer.receiveNoWait());
+	}
+
+	@Test
+	public void testNotVirtual() throws Exception {
+		assertTrue(provider.getVirtualTopicQueues(session.createTopic("Orders")).isEmpty());
+		session.createQueue("Consumer.VirtualTopic");
+		session.createQueue("Consumer..VirtualTopic.Orders");
+		assertTrue(provider.getVirtualTopicQueues(session.createTopic("VirtualTopic.Orders.None")).isEmpty());
+	}
+
+	private static int drain(MessageConsumer consumer) throws JMSException {
+		int count = 0;
+		while (consumer.receiveNoWait() != null) {
+			count++;
+		}
+		return count;
+	}
+}
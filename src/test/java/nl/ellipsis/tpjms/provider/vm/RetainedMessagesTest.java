@@ -0,0 +1,173 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+
+import org.junit.*;
+
+public class RetainedMessagesTest {
+	private VmProvider provider;
+	private Connection con;
+	private Session session;
+	private Topic topic;
+	private MessageProducer producer;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		provider = VmProvider.getInstance();
+
+		con = new TPJMSConnectionFactory("vm://test").createConnection();
+		con.start();
+		session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		topic = session.createTopic("retained-topic");
+		producer = session.createProducer(topic);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		provider.setRetention(topic, 0, 0);
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testLateSubscriberGetsRetainedMessages() throws Exception {
+		provider.setRetention(topic, 2, 0);
+		send(0, 5);
+
+		MessageConsumer consumer = session.createConsumer(topic);
+		assertBodies(consumer, 3, 5);
+
+		send(5, 6);
+		assertBodies(consumer, 5, 6);
+	}
+
+	@Test
+	public void testWithoutRetention() throws Exception {
+		send(0, 3);
+
+		MessageConsumer consumer = session.createConsumer(topic);
+		assertNull(consumer.receiveNoWait());
+		assertTrue(provider.getRetainedMessages(topic).isEmpty());
+	}
+
+	@Test
+	public void testListenerSubscriber() throws Exception {
+		provider.setRetention(topic, 1, 0);
+		send(0, 2);
+
+		MessageConsumer consumer = session.createConsumer(topic);
+		final StringBuilder received = new StringBuilder();
+		consumer.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				try {
+					received.append(((TextMessage) message).getText());
+				} catch (JMSException e) {
+					fail(e.getMessage());
+				}
+			}
+		});
+		send(2, 3);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.length() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("BODY1BODY2", received.toString());
+	}
+
+	@Test
+	public void testByteLimit() throws Exception {
+		send(0, 1);
+		long size = provider.getMemoryUsage(topic);
+		provider.setRetention(topic, 10, 0);
+		send(0, 1);
+		long one = provider.getMemoryUsage(topic) - size;
+		assertTrue(one > 0);
+
+		provider.setRetention(topic, 10, one * 3);
+		assertEquals(1, provider.getRetainedMessages(topic).size());
+		send(1, 6);
+		assertEquals(3, provider.getRetainedMessages(topic).size());
+		assertTrue(provider.getMemoryUsage(topic) <= one * 3);
+
+		// a message that does not fit on its own empties the ring
+		provider.setRetention(topic, 10, one);
+		TextMessage large = session.createTextMessage();
+		large.setText(new String(new char[1000]));
+		producer.send(large);
+		assertTrue(provider.getRetainedMessages(topic).isEmpty());
+	}
+
+	@Test
+	public void testExpiredMessagesAreNotDelivered() throws Exception {
+		provider.setRetention(topic, 5, 0);
+		TextMessage expired = session.createTextMessage("BODY0");
+		expired.setJMSExpiration(System.currentTimeMillis() - 1);
+		producer.send(expired);
+		send(1, 2);
+
+		MessageConsumer consumer = session.createConsumer(topic);
+		assertBodies(consumer, 1, 2);
+	}
+
+	@Test
+	public void testClearAndResize() throws Exception {
+		provider.setRetention(topic, 5, 0);
+		send(0, 5);
+		provider.setRetention(topic, 2, 0);
+		List<Message> retained = provider.getRetainedMessages(topic);
+		assertEquals(2, retained.size());
+		assertEquals("BODY3", ((TextMessage) retained.get(0)).getText());
+
+		assertEquals(2, provider.clearRetainedMessages(topic));
+		assertNull(session.createConsumer(topic).receiveNoWait());
+		send(5, 6);
+		assertEquals(1, provider.getRetainedMessages(topic).size());
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testUnknownTopic() throws Exception {
+		provider.setRetention(session.createTemporaryTopic(), 1, 0);
+	}
+
+	@Test
+	public void testRing() throws Exception {
+		RetainedMessages ring = new RetainedMessages(3, 0);
+		assertEquals(0, ring.size());
+		for (int i = 0; i < 7; i++) {
+			ring.add(session.createTextMessage("BODY" + i));
+		}
+		List<Message> messages = ring.snapshot(0);
+		assertEquals(3, messages.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("BODY" + (4 + i), ((TextMessage) messages.get(i)).getText());
+		}
+		assertTrue(ring.getMemoryUsage() > 0);
+		ring.clear();
+		assertEquals(0, ring.size());
+		assertEquals(0, ring.getMemoryUsage());
+	}
+
+	private void send(int from, int to) throws JMSException {
+		for (int i = from; i < to; i++) {
+			producer.send(session.createTextMessage("BODY" + i));
+		}
+	}
+
+	private static void assertBodies(MessageConsumer consumer, int from, int to) throws JMSException {
+		for (int i = from; i < to; i++) {
+			TextMessage message = (TextMessage) consumer.receiveNoWait();
+			assertNotNull("message " + i, message);
+			assertEquals("BODY" + i, message.getText());
+		}
+		assertNull(consumer.receiveNoWait());
+	}
+}
@@ -0,0 +1,85 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.jms.InvalidDestinationException;
+import javax.jms.Topic;
+
+import nl.ellipsis.tpjms.core.destination.TPJMSTopic;
+
+import org.junit.Test;
+
+public class TopicTrieTest {
+
+	@Test
+	public void testIsWildcard() {
+		assertTrue(TPJMSTopic.isWildcard("*"));
+		assertTrue(TPJMSTopic.isWildcard(">"));
+		assertTrue(TPJMSTopic.isWildcard("prices.*.last"));
+		assertTrue(TPJMSTopic.isWildcard("prices.>"));
+		assertFalse(TPJMSTopic.isWildcard("prices"));
+		assertFalse(TPJMSTopic.isWildcard("prices.a*"));
+		assertFalse(TPJMSTopic.isWildcard("prices.>>"));
+		assertFalse(TPJMSTopic.isWildcard(""));
+		assertFalse(TPJMSTopic.isWildcard(null));
+	}
+
+	@Test
+	public void testMatch() {
+		TopicTrie trie = new TopicTrie();
+		Topic oneLevel = add(trie, "prices.*");
+		Topic allLevels = add(trie, "prices.>");
+		Topic middle = add(trie, "prices.*.last");
+		Topic root = add(trie, ">");
+		Topic literal = add(trie, "prices.NYSE.*");
+		assertEquals(5, trie.size());
+
+		assertMatches(trie, "prices", root);
+		assertMatches(trie, "prices.NYSE", oneLevel, allLevels, root);
+		assertMatches(trie, "prices.nyse.last", allLevels, middle, root, literal);
+		assertMatches(trie, "prices.NASDAQ.last", allLevels, middle, root);
+		assertMatches(trie, "prices.NASDAQ.AAPL.last", allLevels, root);
+		assertMatches(trie, "orders.new", root);
+	}
+
+	@Test
+	public void testEmpty() {
+		TopicTrie trie = new TopicTrie();
+		assertTrue(trie.isEmpty());
+		assertMatches(trie, "prices");
+	}
+
+	@Test
+	public void testMatches() {
+		assertTrue(TopicTrie.matches("prices.*", "prices.AAPL"));
+		assertTrue(TopicTrie.matches("Prices.>", "prices.AAPL.last"));
+		assertTrue(TopicTrie.matches("*.*", "a.b"));
+		assertFalse(TopicTrie.matches("prices.*", "prices"));
+		assertFalse(TopicTrie.matches("prices.>", "prices"));
+		assertFalse(TopicTrie.matches("prices.*", "prices.AAPL.last"));
+		assertFalse(TopicTrie.matches("prices.*", "orders.new"));
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testMultiLevelWildcardNotLast() throws Exception {
+		TopicTrie.checkPattern("prices.>.last");
+	}
+
+	private static Topic add(TopicTrie trie, String pattern) {
+		Topic topic = new TPJMSTopic(pattern);
+		trie.add(topic, pattern);
+		return topic;
+	}
+
+	private static void assertMatches(TopicTrie trie, String name, Topic... expected) {
+		List<Topic> matches = new ArrayList<Topic>();
+		trie.match(name, matches);
+		assertEquals(expected.length, matches.size());
+		assertEquals(new HashSet<Topic>(Arrays.asList(expected)), new HashSet<Topic>(matches));
+	}
+}
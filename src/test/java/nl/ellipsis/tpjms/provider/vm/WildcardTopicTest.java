@@ -0,0 +1,119 @@
+package nl.ellipsis.tpjms.provider.vm;
+
+import static org.junit.Assert.*;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.destination.TPJMSTopic;
+
+import org.junit.*;
+
+public class WildcardTopicTest {
+	private VmProvider provider;
+	private Connection con;
+	private Session session;
+	private MessageProducer producer;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		provider = VmProvider.getInstance();
+
+		con = new TPJMSConnectionFactory("vm://test").createConnection();
+		con.start();
+		session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		producer = session.createProducer(null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testWildcardSubscriptions() throws Exception {
+		Topic aapl = session.createTopic("wildcard.prices.AAPL");
+		Topic msft = session.createTopic("wildcard.prices.MSFT.last");
+		MessageConsumer exact = session.createConsumer(aapl);
+		MessageConsumer oneLevel = session.createConsumer(session.createTopic("wildcard.prices.*"));
+		MessageConsumer allLevels = session.createConsumer(session.createTopic("wildcard.prices.>"));
+
+		producer.send(aapl, session.createTextMessage("AAPL"));
+		producer.send(msft, session.createTextMessage("MSFT"));
+
+		assertBodies(exact, "AAPL");
+		assertBodies(oneLevel, "AAPL");
+		assertBodies(allLevels, "AAPL", "MSFT");
+	}
+
+	@Test
+	public void testCaseInsensitive() throws Exception {
+		MessageConsumer consumer = session.createConsumer(session.createTopic("WILDCARD.Case.*"));
+		producer.send(session.createTopic("wildcard.case.x"), session.createTextMessage("X"));
+
+		assertBodies(consumer, "X");
+		assertSame(session.createTopic("wildcard.case.x"), session.createTopic("Wildcard.Case.X"));
+	}
+
+	@Test
+	public void testWildcardTopic() throws Exception {
+		Topic topic = session.createTopic("wildcard.topic.*");
+		assertTrue(((TPJMSTopic) topic).isWildcard());
+		assertFalse(((TPJMSTopic) session.createTopic("wildcard.topic")).isWildcard());
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testSendToWildcard() throws Exception {
+		producer.send(session.createTopic("wildcard.send.*"), session.createTextMessage("X"));
+	}
+
+	@Test(expected = InvalidDestinationException.class)
+	public void testInvalidPattern() throws Exception {
+		session.createTopic("wildcard.>.invalid");
+	}
+
+	@Test
+	public void testPausedWildcardTopic() throws Exception {
+		Topic wildcard = session.createTopic("wildcard.paused.*");
+		MessageConsumer consumer = session.createConsumer(wildcard);
+		provider.pause(wildcard);
+		producer.send(session.createTopic("wildcard.paused.a"), session.createTextMessage("A"));
+		assertNull(consumer.receiveNoWait());
+
+		provider.resume(wildcard);
+		assertBodies(consumer, "A");
+	}
+
+	@Test
+	public void testRetainedMessagesOfMatchingTopics() throws Exception {
+		Topic a = session.createTopic("wildcard.retained.a");
+		Topic b = session.createTopic("wildcard.retained.b");
+		provider.setRetention(a, 1, 0);
+		provider.setRetention(b, 1, 0);
+		try {
+			producer.send(a, session.createTextMessage("A"));
+			producer.send(b, session.createTextMessage("B"));
+
+			MessageConsumer consumer = session.createConsumer(session.createTopic("wildcard.retained.*"));
+			String first = ((TextMessage) consumer.receiveNoWait()).getText();
+			String second = ((TextMessage) consumer.receiveNoWait()).getText();
+			assertEquals("AB", first.compareTo(second) < 0 ? first + second : second + first);
+			assertNull(consumer.receiveNoWait());
+		} finally {
+			provider.setRetention(a, 0, 0);
+			provider.setRetention(b, 0, 0);
+		}
+	}
+
+	private static void assertBodies(MessageConsumer consumer, String... bodies) throws JMSException {
+		for (String body : bodies) {
+			TextMessage message = (TextMessage) consumer.receiveNoWait();
+			assertNotNull(body, message);
+			assertEquals(body, message.getText());
+		}
+		assertNull(consumer.receiveNoWait());
+	}
+}
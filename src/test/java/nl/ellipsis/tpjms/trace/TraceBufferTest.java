@@ -0,0 +1,79 @@
+package nl.ellipsis.tpjms.trace;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TraceBufferTest {
+
+	@Test
+	public void testCapacityRoundedUp() {
+		assertEquals(8, new TraceBuffer(5).getCapacity());
+		assertEquals(8, new TraceBuffer(8).getCapacity());
+		assertEquals(1, new TraceBuffer(1).getCapacity());
+	}
+
+	@Test
+	public void testDumpInOrder() {
+		TraceBuffer buffer = new TraceBuffer(8);
+		MessageTrace trace = new MessageTrace(7, "queue://q", buffer, 100);
+		trace.completed(TraceStage.VALIDATE, 100, 150);
+		trace.completed(TraceStage.ROUTE, 150, 400);
+
+		List<TraceEvent> events = buffer.dump();
+		assertEquals(2, events.size());
+		assertEquals(TraceStage.VALIDATE, events.get(0).getStage());
+		assertEquals(50, events.get(0).getDurationNanos());
+		assertEquals(TraceStage.ROUTE, events.get(1).getStage());
+		assertEquals(7, events.get(1).getTraceId());
+		assertEquals("queue://q", events.get(1).getDestination());
+	}
+
+	@Test
+	public void testWrapKeepsLatest() {
+		TraceBuffer buffer = new TraceBuffer(4);
+		MessageTrace trace = new MessageTrace(1, "topic://t", buffer, 0);
+		for (int i = 0; i < 10; i++) {
+			trace.completed(TraceStage.LISTENER, i, i + 1);
+		}
+
+		List<TraceEvent> events = buffer.dump();
+		assertEquals(4, events.size());
+		assertEquals(6, events.get(0).getStartNanos());
+		assertEquals(9, events.get(3).getStartNanos());
+		assertEquals(10, buffer.getRecordedCount());
+
+		buffer.clear();
+		assertTrue(buffer.dump().isEmpty());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws Exception {
+		final TraceBuffer buffer = new TraceBuffer(1024);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final MessageTrace trace = new MessageTrace(t, "queue://q", buffer, 0);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						trace.completed(TraceStage.ENQUEUE, i, i + trace.getId());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		List<TraceEvent> events = buffer.dump();
+		assertEquals(1024, events.size());
+		for (TraceEvent event : events) {
+			// fields of an event are never mixed up with those of another
+			assertEquals(event.getTraceId(), event.getDurationNanos());
+		}
+	}
+}
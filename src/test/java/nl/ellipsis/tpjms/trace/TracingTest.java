@@ -0,0 +1,124 @@
+package nl.ellipsis.tpjms.trace;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+import nl.ellipsis.tpjms.core.connection.TPJMSConnectionFactory;
+import nl.ellipsis.tpjms.core.message.TPJMSMessage;
+import nl.ellipsis.tpjms.provider.vm.VmProvider;
+
+import org.junit.*;
+
+public class TracingTest {
+	private Tracing tracing;
+	private Connection con;
+	private Session session;
+	private Queue queue;
+
+	@Before
+	public void setUp() throws Exception {
+		VmProvider.getInstance().removeBroker("test");
+		tracing = Tracing.getInstance();
+		tracing.getBuffer().clear();
+
+		TPJMSConnectionFactory factory = new TPJMSConnectionFactory("vm://test");
+		con = factory.createConnection();
+		con.start();
+		session = con.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+		queue = session.createQueue("trace-queue");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tracing.setSampleRate(0);
+		tracing.setTracer(null);
+		session.close();
+		con.close();
+		VmProvider.getInstance().removeBroker("test");
+	}
+
+	@Test
+	public void testDisabledRecordsNothing() throws Exception {
+		MessageConsumer consumer = session.createConsumer(queue);
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		Message message = consumer.receiveNoWait();
+		message.acknowledge();
+
+		assertNull(((TPJMSMessage) message).getTrace());
+		assertTrue(tracing.dump().isEmpty());
+	}
+
+	@Test
+	public void testReceiveStages() throws Exception {
+		tracing.setSampleRate(1);
+		MessageConsumer consumer = session.createConsumer(queue);
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		consumer.receiveNoWait().acknowledge();
+
+		assertEquals(EnumSet.of(TraceStage.VALIDATE, TraceStage.ROUTE, TraceStage.ENQUEUE,
+				TraceStage.DISPATCH_WAIT, TraceStage.ACKNOWLEDGE), stages(tracing.dump()));
+		for (TraceEvent event : tracing.dump()) {
+			assertEquals("queue://trace-queue", event.getDestination());
+			assertTrue(event.getDurationNanos() >= 0);
+		}
+	}
+
+	@Test
+	public void testListenerStage() throws Exception {
+		tracing.setSampleRate(1);
+		final CountDownLatch latch = new CountDownLatch(1);
+		session.createConsumer(queue).setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				latch.countDown();
+			}
+		});
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		Set<TraceStage> stages = stages(tracing.dump());
+		assertTrue(stages.contains(TraceStage.DISPATCH_WAIT));
+		assertTrue(stages.contains(TraceStage.LISTENER));
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		tracing.setSampleRate(10);
+		MessageProducer producer = session.createProducer(queue);
+		int traced = 0;
+		for (int i = 0; i < 2000; i++) {
+			Message message = session.createTextMessage("BODY" + i);
+			producer.send(message);
+			if (((TPJMSMessage) message).getTrace() != null) {
+				traced++;
+			}
+		}
+		assertTrue("traced " + traced, traced > 100 && traced < 400);
+	}
+
+	@Test
+	public void testCustomTracer() throws Exception {
+		final TraceBuffer custom = new TraceBuffer(16);
+		tracing.setTracer(custom);
+		tracing.setSampleRate(1);
+		session.createProducer(queue).send(session.createTextMessage("BODY"));
+
+		assertTrue(tracing.dump().isEmpty());
+		assertEquals(EnumSet.of(TraceStage.VALIDATE, TraceStage.ROUTE), stages(custom.dump()));
+	}
+
+	private static Set<TraceStage> stages(List<TraceEvent> events) {
+		Set<TraceStage> stages = EnumSet.noneOf(TraceStage.class);
+		for (TraceEvent event : events) {
+			stages.add(event.getStage());
+		}
+		return stages;
+	}
+}
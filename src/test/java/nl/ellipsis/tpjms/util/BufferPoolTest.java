@@ -0,0 +1,81 @@
+package nl.ellipsis.tpjms.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class BufferPoolTest {
+	private BufferPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		pool = BufferPool.getInstance();
+		pool.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.setEnabled(false);
+	}
+
+	@Test
+	public void testAcquireRoundsUpToSizeClass() {
+		assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+		assertEquals(512, pool.acquire(257).length);
+		assertEquals(1024, pool.acquire(1024).length);
+	}
+
+	@Test
+	public void testAcquireLargerThanMax() {
+		int size = BufferPool.MAX_BUFFER_SIZE + 1;
+		byte[] buffer = pool.acquire(size);
+		assertEquals(size, buffer.length);
+		pool.release(buffer);
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	@Test
+	public void testReleaseRecycles() {
+		byte[] buffer = pool.acquire(1000);
+		pool.release(buffer);
+		assertEquals(1, pool.getPooledCount());
+		assertSame(buffer, pool.acquire(600));
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	@Test
+	public void testReleaseIgnoresForeignBuffers() {
+		pool.release(null);
+		pool.release(new byte[300]);
+		pool.release(new byte[16]);
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	@Test
+	public void testDisabled() {
+		pool.setEnabled(false);
+		assertEquals(300, pool.acquire(300).length);
+		pool.release(new byte[512]);
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	@Test
+	public void testOutputStreamGrowth() {
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream();
+		byte[] chunk = new byte[100];
+		for (int i = 0; i < 10; i++) {
+			chunk[0] = (byte) i;
+			bos.write(chunk, 0, chunk.length);
+		}
+		assertEquals(1000, bos.size());
+		byte[] result = bos.toByteArray();
+		assertEquals(1000, result.length);
+		assertEquals((byte) 9, result[900]);
+
+		bos.release();
+		assertEquals(0, bos.size());
+		assertNull(bos.getBuffer());
+		// 256 and 512 were recycled while growing, 1024 on release
+		assertEquals(3, pool.getPooledCount());
+	}
+}
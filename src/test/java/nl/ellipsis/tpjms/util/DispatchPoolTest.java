@@ -0,0 +1,58 @@
+package nl.ellipsis.tpjms.util;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+
+public class DispatchPoolTest {
+	private DispatchPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		pool = DispatchPool.getInstance();
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				thread.set(Thread.currentThread());
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), thread.get());
+		assertEquals(pool.isVirtual(), isVirtual(thread.get()));
+	}
+
+	@Test
+	public void testVirtualWhenAvailable() throws Exception {
+		boolean available;
+		try {
+			Thread.class.getMethod("ofVirtual");
+			available = true;
+		} catch (NoSuchMethodException e) {
+			available = false;
+		}
+		if (!available) {
+			assertFalse(pool.isVirtual());
+		}
+	}
+
+	private static boolean isVirtual(Thread thread) throws Exception {
+		try {
+			Method method = Thread.class.getMethod("isVirtual");
+			return (Boolean) method.invoke(thread);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}